@@ -11,6 +11,8 @@
  */
 package edu.rit.cs;
 
+import java.nio.ByteBuffer;
+
 public interface Block
 {
 	/**
@@ -33,4 +35,22 @@ public interface Block
 	 * @return Reference to block data.
 	 */
 	public byte[] data();
+
+	/**
+	 * Get a view of the underlying data of this block, without copying
+	 * it. The view starts at position zero and is limited to the length of
+	 * the block, and each call returns a new view with its own position and
+	 * limit. The view may be direct or read only, so consumers should only
+	 * reach for its array when hasArray() says there is one.
+	 * @return View of block data.
+	 */
+	public ByteBuffer buffer();
+
+	/**
+	 * Give up this block's hold on its data, once the consumer of the
+	 * block is done with it. Blocks whose data is pooled will return it to
+	 * the pool, after which the data must not be touched. Blocks that own
+	 * their data outright may treat this as a no-op.
+	 */
+	public void release();
 }
@@ -0,0 +1,422 @@
+/**
+ * Copyright © 2015
+ * Hrfs Block Codec
+ *
+ * Compresses blocks on their way to disk and over the wire. A block is
+ * always hashed as it was read, the codec only changes how it is stored and
+ * sent, so the key of a block never depends on the codec. Every encoded block
+ * starts with a small header, recording the codec that encoded it and the
+ * original length, so any node can decode a block whatever codec it is itself
+ * configured with.
+ *
+ * Data that doesn't compress, such as media or data that is already
+ * compressed, is detected and stored raw behind the header. Large blocks are
+ * judged from an LZ4 sample first, so they aren't compressed in full only to
+ * be thrown away, and any block that doesn't shrink by at least an eighth is
+ * kept raw.
+ *
+ * LZ4 is a pure java implementation, cheap enough to run on every block.
+ * DEFLATE compresses harder for data that is written once and rarely read.
+ *
+ * Stores only encode blocks while a codec other than none is configured,
+ * and record with each block whether it was encoded, so the codec of a store
+ * can change without its older blocks being misread. A bare block is never
+ * judged by its first bytes, which may happen to look like a header. Blocks
+ * sent over RPC are always framed, raw if need be.
+ *
+ * @file BlockCodec.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public final class BlockCodec
+{
+	public static final String NONE		= "none";
+	public static final String LZ4		= "lz4";
+	public static final String DEFLATE	= "deflate";
+	public static final String DEFAULT_CODEC = NONE;
+	public static final int HEADER_LENGTH = 6;
+	public static final int SAMPLE_SIZE = 1024 * 4;		// 4KB
+	public static final int MIN_SAVING = 8;			// 1/8th
+
+	private static final byte MAGIC = (byte)0xb1;
+	private static final byte ID_RAW = 0;
+	private static final byte ID_LZ4 = 1;
+	private static final byte ID_DEFLATE = 2;
+	private static final int WRITE_CHUNK = 1024 * 64;	// 64KB
+	private static final int SCRATCH_MAX = 1024 * 1024 * 4;	// 4MB
+
+	/**
+	 * Per thread scratch space, so encoding a block allocates its output
+	 * only. Scratch arrays are kept up to SCRATCH_MAX, anything larger is
+	 * allocated for the one block, so a thread that once encoded a huge
+	 * block doesn't hold on to its space.
+	 */
+	private static final class Scratch
+	{
+		final int[] table = new int[1 << Lz4.HASH_LOG];
+		final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		final Inflater inflater = new Inflater(true);
+		byte[] in = new byte[0];
+		byte[] out = new byte[0];
+
+		byte[] in(int len)
+		{
+			if(len > SCRATCH_MAX)
+				return new byte[len];
+			if(in.length < len)
+				in = new byte[len];
+			return in;
+		}
+
+		byte[] out(int len)
+		{
+			if(len > SCRATCH_MAX)
+				return new byte[len];
+			if(out.length < len)
+				out = new byte[len];
+			return out;
+		}
+	}
+
+	private static final ThreadLocal<Scratch> SCRATCH =
+		new ThreadLocal<Scratch>() {
+			@Override
+			protected Scratch initialValue()
+			{
+				return new Scratch();
+			}
+		};
+
+	private static final BlockCodec RAW = new BlockCodec(NONE, ID_RAW);
+
+	private final String name;
+	private final byte id;
+
+	private BlockCodec(String name, byte id)
+	{
+		this.name = name;
+		this.id = id;
+	}
+
+	static
+	{
+		HrfsConfiguration.init();
+	}
+
+	/**
+	 * Look up a codec by name.
+	 * @param name Name of the codec, such as lz4.
+	 * @return Codec for the name.
+	 * @throws IllegalArgumentException If the name is not known.
+	 */
+	public static BlockCodec forName(String name)
+	{
+		if(name == null)
+			throw new IllegalArgumentException("Null codec name");
+
+		switch(name)
+		{
+		case NONE:
+			return RAW;
+		case LZ4:
+			return new BlockCodec(LZ4, ID_LZ4);
+		case DEFLATE:
+			return new BlockCodec(DEFLATE, ID_DEFLATE);
+		default:
+			throw new IllegalArgumentException("Unknown block codec: " + name);
+		}
+	}
+
+	/**
+	 * Get the codec configured for stores and the wire.
+	 * @param conf Configuration to read from
+	 * @return Configured codec.
+	 */
+	public static BlockCodec configured(HrfsConfiguration conf)
+	{
+		return forName(conf.get(HrfsKeys.HRFS_CODEC, DEFAULT_CODEC));
+	}
+
+	/** Return the name of the codec. */
+	public String getName()
+	{ return name; }
+
+	/** Return whether the codec leaves blocks uncompressed. */
+	public boolean isRaw()
+	{ return id == ID_RAW; }
+
+	/**
+	 * Compress a region with this codec, giving up as soon as the output
+	 * would reach the limit.
+	 * @return Length of the compressed data, or -1 if it didn't fit.
+	 */
+	private int compress(Scratch scratch, byte[] src, int off, int len,
+			     byte[] dst, int doff, int limit)
+	{
+		Deflater deflater;
+		int clen;
+
+		if(id == ID_LZ4) {
+			clen = Lz4.compress(src, off, len, dst, doff, scratch.table);
+			return (clen < limit) ? clen : -1;
+		}
+
+		deflater = scratch.deflater;
+		deflater.reset();
+		deflater.setInput(src, off, len);
+		deflater.finish();
+
+		clen = 0;
+		while(!deflater.finished() && clen < limit)
+			clen += deflater.deflate(dst, doff + clen, limit - clen);
+
+		return (deflater.finished() && clen < limit) ? clen : -1;
+	}
+
+	/**
+	 * Judge from a sample in the middle of a large block whether the block
+	 * is worth compressing at all. Small blocks are simply compressed.
+	 */
+	private static boolean worthCompressing(Scratch scratch, byte[] src, int off, int len)
+	{
+		byte[] out;
+		int soff;
+		int clen;
+
+		if(len < 4 * SAMPLE_SIZE)
+			return true;
+
+		out = scratch.out(Lz4.maxCompressedLength(SAMPLE_SIZE));
+		soff = off + (len - SAMPLE_SIZE) / 2;
+		clen = Lz4.compress(src, soff, SAMPLE_SIZE, out, 0, scratch.table);
+		return clen < SAMPLE_SIZE - SAMPLE_SIZE / MIN_SAVING;
+	}
+
+	/** Write the header of an encoded block */
+	private static void header(byte[] dst, byte id, int len)
+	{
+		dst[0] = MAGIC;
+		dst[1] = id;
+		dst[2] = (byte)(len >>> 24);
+		dst[3] = (byte)(len >>> 16);
+		dst[4] = (byte)(len >>> 8);
+		dst[5] = (byte)len;
+	}
+
+	/**
+	 * Encode the remaining bytes of a buffer, compressing them if they
+	 * compress well and storing them raw otherwise. The buffer's position
+	 * is left where it was.
+	 * @param buf Block data to encode
+	 * @return Encoded block, header included, in an exact length array.
+	 */
+	public byte[] encode(ByteBuffer buf)
+	{
+		Scratch scratch;
+		byte[] encoded;
+		byte[] src;
+		byte[] out;
+		int limit;
+		int clen;
+		int off;
+		int len;
+
+		scratch = SCRATCH.get();
+		len = buf.remaining();
+
+		if(buf.hasArray()) {
+			src = buf.array();
+			off = buf.arrayOffset() + buf.position();
+		}
+		else {
+			src = scratch.in(len);
+			off = 0;
+			buf.duplicate().get(src, 0, len);
+		}
+
+		clen = -1;
+		if(id != ID_RAW && worthCompressing(scratch, src, off, len)) {
+			limit = len - len / MIN_SAVING;
+			out = scratch.out(Lz4.maxCompressedLength(len));
+			clen = compress(scratch, src, off, len, out, 0, limit);
+			if(clen >= 0) {
+				encoded = new byte[HEADER_LENGTH + clen];
+				header(encoded, id, len);
+				System.arraycopy(out, 0, encoded, HEADER_LENGTH, clen);
+				return encoded;
+			}
+		}
+
+		encoded = new byte[HEADER_LENGTH + len];
+		header(encoded, ID_RAW, len);
+		System.arraycopy(src, off, encoded, HEADER_LENGTH, len);
+		return encoded;
+	}
+
+	/**
+	 * Encode the remaining bytes of a buffer onto a stream, as a length
+	 * and the encoded block. A block that stays raw is written straight
+	 * from its buffer, without being copied into the encoding first.
+	 * @param buf Block data to encode
+	 * @param out Stream to write to
+	 */
+	public void write(ByteBuffer buf, DataOutput out)
+		throws IOException
+	{
+		ByteBuffer view;
+		byte[] encoded;
+		byte[] hdr;
+		byte[] chunk;
+		int len;
+
+		if(id != ID_RAW) {
+			encoded = encode(buf);
+			out.writeInt(encoded.length);
+			out.write(encoded);
+			return;
+		}
+
+		view = buf.duplicate();
+		hdr = new byte[HEADER_LENGTH];
+		header(hdr, ID_RAW, view.remaining());
+		out.writeInt(HEADER_LENGTH + view.remaining());
+		out.write(hdr);
+
+		if(view.hasArray()) {
+			out.write(view.array(), view.arrayOffset() + view.position(),
+				  view.remaining());
+			return;
+		}
+
+		/* Direct and mapped buffers have no array to hand over */
+		chunk = new byte[Math.min(WRITE_CHUNK, view.remaining())];
+		while(view.hasRemaining()) {
+			len = Math.min(chunk.length, view.remaining());
+			view.get(chunk, 0, len);
+			out.write(chunk, 0, len);
+		}
+	}
+
+	/**
+	 * Read a block written by write(), with whatever codec wrote it. The
+	 * lengths are checked before anything is allocated for the block, an
+	 * encoding is never longer than the raw block, and no block is longer
+	 * than BlockFactory.MAX_BLOCK_SIZE.
+	 * @param in Stream to read from
+	 * @return Decoded block data.
+	 */
+	public static ByteBuffer read(DataInput in)
+		throws IOException
+	{
+		byte[] encoded;
+		byte[] hdr;
+		int dlen;
+		int len;
+
+		len = in.readInt();
+		if(len < HEADER_LENGTH)
+			throw new IOException("Invalid encoded block length: " + len);
+
+		hdr = new byte[HEADER_LENGTH];
+		in.readFully(hdr);
+		dlen = decodedLength(hdr, 0);
+		if(len - HEADER_LENGTH > dlen)
+			throw new IOException("Encoded block of " + len + " bytes, longer than its "
+					      + dlen + " decoded bytes");
+
+		encoded = new byte[len];
+		System.arraycopy(hdr, 0, encoded, 0, HEADER_LENGTH);
+		in.readFully(encoded, HEADER_LENGTH, len - HEADER_LENGTH);
+		return decode(encoded, 0, len);
+	}
+
+	/**
+	 * Get the original length of an encoded block from its header. A
+	 * length past BlockFactory.MAX_BLOCK_SIZE is taken as corruption, so
+	 * a bad header never has a huge block allocated for it.
+	 * @param buf Buffer holding the encoded block
+	 * @param off Offset of the encoded block within the buffer
+	 * @return Length of the decoded block.
+	 */
+	public static int decodedLength(byte[] buf, int off)
+		throws IOException
+	{
+		int len;
+
+		if(buf.length - off < HEADER_LENGTH || buf[off] != MAGIC)
+			throw new IOException("Not an encoded block");
+
+		len = (buf[off + 2] & 0xff) << 24 | (buf[off + 3] & 0xff) << 16
+			| (buf[off + 4] & 0xff) << 8 | (buf[off + 5] & 0xff);
+		if(len < 0 || len > BlockFactory.MAX_BLOCK_SIZE)
+			throw new IOException("Invalid decoded block length: " + len);
+
+		return len;
+	}
+
+	/**
+	 * Decode a block, with whatever codec encoded it. Raw blocks are
+	 * returned as a view of the encoding, without a copy.
+	 * @param buf Buffer holding the encoded block
+	 * @param off Offset of the encoded block within the buffer
+	 * @param len Length of the encoded block
+	 * @return Decoded block data.
+	 */
+	public static ByteBuffer decode(byte[] buf, int off, int len)
+		throws IOException
+	{
+		Inflater inflater;
+		byte[] decoded;
+		int dlen;
+		int clen;
+		int res;
+
+		dlen = decodedLength(buf, off);
+		clen = len - HEADER_LENGTH;
+
+		switch(buf[off + 1])
+		{
+		case ID_RAW:
+			if(clen != dlen)
+				throw new IOException("Raw block of " + clen + " bytes, expected "
+						      + dlen);
+			return ByteBuffer.wrap(buf, off + HEADER_LENGTH, clen).slice();
+		case ID_LZ4:
+			decoded = new byte[dlen];
+			Lz4.decompress(buf, off + HEADER_LENGTH, clen, decoded, 0, dlen);
+			return ByteBuffer.wrap(decoded);
+		case ID_DEFLATE:
+			decoded = new byte[dlen];
+			inflater = SCRATCH.get().inflater;
+			inflater.reset();
+			inflater.setInput(buf, off + HEADER_LENGTH, clen);
+			try {
+				res = 0;
+				while(res < dlen && !inflater.finished()) {
+					res += inflater.inflate(decoded, res, dlen - res);
+					if(inflater.needsInput() || inflater.needsDictionary())
+						break;
+				}
+			}
+			catch(DataFormatException e) {
+				throw new IOException("Corrupt deflated block: " + e.getMessage());
+			}
+
+			if(res != dlen)
+				throw new IOException("Corrupt deflated block, " + res + " of "
+						      + dlen + " bytes");
+			return ByteBuffer.wrap(decoded);
+		default:
+			throw new IOException("Unknown block codec id: " + buf[off + 1]);
+		}
+	}
+}
@@ -13,10 +13,18 @@ package edu.rit.cs;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -29,19 +37,33 @@ import org.apache.hadoop.util.*;
 import edu.rit.cs.HrfsConfiguration;
 
 public class BlockFactory
+	implements java.io.Closeable
 {
 	public static final long MAX_BLOCK_SIZE = 1024L*1024L*1024L;// 1GB
 	public static final long MIN_BLOCK_SIZE = 1024L * 64L;	// 64KB
-	private static final int READAHEAD_COUNT = 10;
+	public static final long UNKNOWN_BLOCK_COUNT = -1;
+	public static final long DEFAULT_READAHEAD_BYTES = 1024L*1024L*128L; // 128MB
+	public static final int MAX_SPLIT_BLOCKS = 1024;
 	private static final Log LOG = LogFactory.getLog(BlockFactory.class);
 
-	private final HrfsConfiguration conf;
-	private ConcurrentLinkedQueue<FactoryBlock> bqueue;
+	protected final HrfsConfiguration conf;
+	private final ReentrantLock qlock;
+	private final Condition qfilled;
+	private final Condition qdrained;
+	private final ArrayDeque<Block> bqueue;
+	private final long rabytes;
 	private ReadAheadWorker rworker;
-	private long blockCount;
-	private AtomicBoolean done;	
+	private InputStream istream;
+	private final AtomicReference<InputStream> source;
+	protected long blockCount;
 	private AtomicLong produced;
-	private int blksz;
+	protected int blksz;
+
+	/* Guarded by qlock */
+	private long qbytes;
+	private boolean done;
+	private IOException failure;
+	private volatile boolean closed;
 
 	static
 	{
@@ -54,11 +76,13 @@ public class BlockFactory
 	 * objects as Block interface adherents, and will allow anyone wishing
 	 * to use them for network or otherwise easily.
 	 */
-	private class FactoryBlock
+	protected class FactoryBlock
 		implements Block
 	{
 		private long _idx;
+		private long _length;
 		private byte[] _buffer;
+		private PooledBuffer _pbuf;
 
 		/**
 		 * Produce a new raw block, which must have at least a backing
@@ -74,138 +98,224 @@ public class BlockFactory
 		{
 			_idx = idx;
 			_buffer = buffer;
+			_length = buffer.length;
+			_pbuf = null;
+		}
+
+		/**
+		 * Produce a new raw block backed by a pooled heap buffer, which is
+		 * handed back to its pool when the block is released. The pooled
+		 * buffer may be longer than the block, only the first length bytes
+		 * are block data.
+		 *
+		 * @param pbuf Pooled buffer holding the block data
+		 * @param length Length of the block data within the buffer
+		 * @param idx Index of the block, where it lies on disk.
+		 */
+		public FactoryBlock(PooledBuffer pbuf, long length, long idx)
+		{
+			_idx = idx;
+			_buffer = pbuf.array();
+			_length = length;
+			_pbuf = pbuf;
 		}
 		
 		@Override
 		public long length()
-		{ return (long)_buffer.length; }
+		{ return _length; }
 
 		@Override
 		public long index()
 		{ return _idx; };
 
+		/**
+		 * Return the block data. A pooled buffer longer than the block,
+		 * as a chunk's buffer is, holds stale bytes past its end, so the
+		 * block moves into an exact length copy on first use, and the
+		 * pooled buffer is left alone until the block is released.
+		 */
 		@Override
 		public byte[] data()
-		{ return _buffer; }
+		{
+			if(_buffer.length != _length)
+				_buffer = Arrays.copyOf(_buffer, (int)_length);
+
+			return _buffer;
+		}
+
+		@Override
+		public ByteBuffer buffer()
+		{ return ByteBuffer.wrap(_buffer, 0, (int)_length).slice(); }
+
+		@Override
+		public void release()
+		{
+			if(_pbuf != null)
+				_pbuf.release();
+		}
 	}
 
 	/**
-	 * XXX Needs more intelligent tracking
-	 *
-	 * When the readahead gets a signal to do work, it buffers up the next
-	 * READAHEAD_COUNT amount of blocks. This allows a client to get a
-	 * substantial performance boost, but is dependant on the client reading
-	 * all the buffered blocks before reading more.
+	 * Pulls blocks out of the factory source ahead of the client, handing
+	 * them off through the readahead queue. The worker blocks once the queue
+	 * holds the configured readahead window worth of bytes, and is woken as
+	 * the client drains it, so memory use is bounded no matter the block size.
 	 */
 	private class ReadAheadWorker
 		extends Thread
 	{
-		private int _readahead_idx;
 		private long _blkidx;
-		private int _blksz;
-		private Object _master;
-		private InputStream _istream;
-		private Runtime _runtime;
-		
+
 		/**
-		 * Construct a new readahead worker, pulls data from disk
-		 * a kind of jumpy fashion as the need suits the user.
+		 * Construct a new readahead worker, which will read from the
+		 * beginning of the factory source once started.
 		 */
-		public ReadAheadWorker(InputStream istream, Object master, int blksz)
-			throws IOException
+		public ReadAheadWorker()
 		{
-			if(istream == null)
-				throw new IOException("Invalid readahead environment");
-
-			_readahead_idx = 0;
+			super("BlockFactory-readahead");
+			setDaemon(true);
 			_blkidx = 0;
-			_blksz = blksz;
-			_master = master;
-			_istream = istream;
-			_runtime = Runtime.getRuntime();
-			System.out.println("Started Readahead worker");
-			System.out.println(" -- Aware of " + _runtime.totalMemory() + " limit");
-			System.out.println(" -- Currently sitting at " + _runtime.freeMemory());
 		}
 
 		@Override
 		public void run()
 		{
-			LOG.info("Started a readahead worker.");
-			while(true)
-			{
-				try {
-					/*
-					 * If the readahead value is above the threshold,
-					 * then stop here and wait for the client to
-					 * flush what we've got. Then build some more.
-					 * We're also going to be aware of our memory limit, not
-					 * being too greedy with it.
-					 */
-					if(_readahead_idx >= READAHEAD_COUNT ||
-					   _runtime.freeMemory() < (_blksz * 2)) {
-						synchronized(_master) {
-							_master.wait();
-						}
-						_readahead_idx = 0;
-						System.out.println("Reset readahead count");
-					}
-					
-					for(int rh=0; rh < READAHEAD_COUNT; ++rh)
-					{
-						FactoryBlock rblock;
-						byte[] buffer;
-						int res;
-
-						/* Read a blocks worth of data. */
-						buffer = new byte[_blksz];
-						res = _istream.read(buffer);
-						if(res == -1) {
-							System.out.println("Readahead finished");
-							done.set(true);
-							return; // Stop here
-						}
-
-						rblock = new FactoryBlock(buffer, _blkidx);
-						bqueue.add(rblock);
-
-						++_blkidx;
-						++_readahead_idx;
-						System.out.println("Readahead idx: " + _readahead_idx);
-					}
-				}
-				catch(OutOfMemoryError e) {
-					System.out.println("Hit memory cap, backing down...");
-					try {
-						Thread.sleep(1000);
-						synchronized(_master) { _master.wait(); }
-					}
-					catch(InterruptedException e2) { continue; }
-				}
-				catch(IOException e) {
-					LOG.error("Failed to readahead blocks from disk.");
-					System.exit(1);
+			Block rblock;
+
+			LOG.debug("Started a readahead worker.");
+			rblock = null;
+			try {
+				while((rblock = readBlock(_blkidx)) != null) {
+					offer(rblock);
+					rblock = null;
+					++_blkidx;
 				}
-				catch(InterruptedException e) {
-					LOG.error("ReadAhead worker was interrupted before " +
-						  "completing it's task.");
-					System.exit(1);
-				}
-				
+
+				finish(null);
+			}
+			catch(IOException e) {
+				if(!closed)
+					LOG.error("Failed to readahead blocks from disk: "
+						  + e.toString());
+				finish(e);
+			}
+			catch(InterruptedException e) {
+				finish(new InterruptedIOException("ReadAhead worker was "
+					+ "interrupted before completing it's task."));
+			}
+			finally {
+				/* Read but never queued, the factory was closed */
+				if(rblock != null)
+					rblock.release();
+				closeSource();
+			}
+		}
+	}
+
+	/**
+	 * Spliterator over the blocks still to come out of the factory. Every
+	 * spliterator handed out draws from the same readahead queue, so each
+	 * block is seen exactly once across all of them. Splitting takes a batch
+	 * of blocks off the queue into an array, with batches growing up to the
+	 * number of blocks that fit in the readahead window, so a parallel
+	 * stream never holds much more than the factory itself would.
+	 */
+	private class BlockSpliterator
+		implements Spliterator<Block>
+	{
+		private final int _maxbatch;
+		private int _batch;
+
+		public BlockSpliterator()
+		{
+			_maxbatch = (int)Math.max(1, Math.min(MAX_SPLIT_BLOCKS,
+							      rabytes / blksz));
+			_batch = 0;
+		}
+
+		/** Pull the next block, unchecked for use within streams. */
+		private Block next()
+		{
+			try {
+				return getBlock();
+			}
+			catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Block> action)
+		{
+			Block blk;
+
+			if(action == null)
+				throw new NullPointerException();
+
+			blk = next();
+			if(blk == null)
+				return false;
+
+			action.accept(blk);
+			return true;
+		}
+
+		@Override
+		public Spliterator<Block> trySplit()
+		{
+			Block[] blocks;
+			Block blk;
+			int cnt;
+
+			_batch = Math.min(Math.max(1, _batch * 2), _maxbatch);
+			blocks = new Block[_batch];
+
+			for(cnt = 0; cnt < _batch; ++cnt) {
+				blk = next();
+				if(blk == null)
+					break;
+
+				blocks[cnt] = blk;
 			}
+
+			if(cnt == 0)
+				return null;
+
+			return Spliterators.spliterator(blocks, 0, cnt, characteristics());
+		}
+
+		/**
+		 * The block count is only an estimate, a factory may produce
+		 * fewer blocks than it expects (an empty source for instance),
+		 * so the spliterator never reports itself as SIZED.
+		 */
+		@Override
+		public long estimateSize()
+		{
+			if(blockCount == UNKNOWN_BLOCK_COUNT)
+				return Long.MAX_VALUE;
+
+			return Math.max(0, blockCount - produced.get());
+		}
+
+		@Override
+		public int characteristics()
+		{
+			return NONNULL | (isOrdered() ? ORDERED : 0);
 		}
 	}
 
 	/**
 	 * Default constructor that instantiates the necessary data structures.
+	 * Subclasses that provide their own source of blocks through
+	 * readBlock() must call start() once they are fully constructed.
 	 */
-	private BlockFactory(int blksz)
+	protected BlockFactory(int blksz)
 		throws IOException
 	{
-		conf = new HrfsConfiguration();
-		done = new AtomicBoolean(false);
-		produced = new AtomicLong(0);
-		blksz = blksz;
+		this.conf = new HrfsConfiguration();
+		this.produced = new AtomicLong(0);
+		this.blksz = blksz;
 
 		if(blksz < MIN_BLOCK_SIZE || blksz > MAX_BLOCK_SIZE)
 			throw new IOException("Invalid Block Size: " + blksz);
@@ -213,7 +323,16 @@ public class BlockFactory
 			throw new IOException("Block size is misaligned, " +
 					      "use multiples of 4096 or 512 bytes");
 
-		bqueue = new ConcurrentLinkedQueue<FactoryBlock>();
+		this.qlock = new ReentrantLock();
+		this.qfilled = qlock.newCondition();
+		this.qdrained = qlock.newCondition();
+		this.bqueue = new ArrayDeque<Block>();
+		this.rabytes = conf.getLong(HrfsKeys.HRFS_BLOCKFACTORY_READAHEAD,
+					    DEFAULT_READAHEAD_BYTES);
+		this.qbytes = 0;
+		this.done = false;
+		this.failure = null;
+		this.source = new AtomicReference<InputStream>();
 	}
 
 	/**
@@ -226,8 +345,6 @@ public class BlockFactory
 	{
 		this(blksz);
 
-		InputStream istream;
-
 		if(barr == null)
 			throw new IOException("Null byte array input");
 
@@ -238,9 +355,7 @@ public class BlockFactory
 		LOG.info("Breaking byte input array into " + blockCount
 			 + " blocks");
 		istream = new ByteArrayInputStream(barr);
-		
-		rworker = new ReadAheadWorker(istream, this, blksz);
-		rworker.start();
+		start();
 	}
 
 	/**
@@ -254,8 +369,6 @@ public class BlockFactory
 	{
 		this(blksz);
 
-		InputStream istream;
-
 		if(file == null)
 			throw new IOException("Null File Descriptor");
 
@@ -272,13 +385,265 @@ public class BlockFactory
 		LOG.info("Breaking raw file into " + blockCount + " blocks");
 		istream = new BufferedInputStream(
 			new FileInputStream(file));
+		ownSource(istream);
+		start();
+	}
+
+	/**
+	 * Constructs a new BlockFactory upon a stream of unknown length, such
+	 * as a pipe, socket, or hadoop FSDataInputStream. The readahead worker
+	 * stops reading from the stream whenever the readahead window is full,
+	 * so a fast source is held back to the pace of the client. The stream
+	 * is not closed by the factory.
+	 * @param in Stream to produce raw blocks from.
+	 * @param blksz Size of blocks produced
+	 */
+	public BlockFactory(InputStream in, int blksz)
+		throws IOException
+	{
+		this(in, blksz, -1);
+	}
+
+	/**
+	 * Constructs a new BlockFactory upon a stream, whose length may be
+	 * known ahead of time.
+	 * @param in Stream to produce raw blocks from.
+	 * @param blksz Size of blocks produced
+	 * @param length Length of the stream in bytes, or -1 if unknown.
+	 */
+	public BlockFactory(InputStream in, int blksz, long length)
+		throws IOException
+	{
+		this(blksz);
+
+		if(in == null)
+			throw new IOException("Null input stream");
+
+		if(length < 0) {
+			blockCount = UNKNOWN_BLOCK_COUNT;
+			LOG.info("Breaking input stream of unknown length into blocks");
+		}
+		else {
+			blockCount = length / blksz;
+			if((length % blksz) != 0 || blockCount == 0)
+				++blockCount;
+
+			LOG.info("Breaking input stream into " + blockCount + " blocks");
+		}
+
+		istream = in;
+		start();
+	}
+
+	/**
+	 * Constructs a new BlockFactory upon a channel of unknown length. The
+	 * channel is not closed by the factory.
+	 * @param channel Channel to produce raw blocks from.
+	 * @param blksz Size of blocks produced
+	 */
+	public BlockFactory(ReadableByteChannel channel, int blksz)
+		throws IOException
+	{
+		this(channel, blksz, -1);
+	}
+
+	/**
+	 * Constructs a new BlockFactory upon a channel, whose length may be
+	 * known ahead of time. Reads from the channel go straight into the
+	 * block buffers, without an intermediate copy.
+	 * @param channel Channel to produce raw blocks from.
+	 * @param blksz Size of blocks produced
+	 * @param length Length of the channel data in bytes, or -1 if unknown.
+	 */
+	public BlockFactory(ReadableByteChannel channel, int blksz, long length)
+		throws IOException
+	{
+		this(channel == null ? null : Channels.newInputStream(channel),
+		     blksz, length);
+	}
+
+	/**
+	 * Have the factory close a source it opened itself, once the readahead
+	 * worker is done with it or the factory is closed. Sources handed to
+	 * the factory by its caller are left for the caller to close.
+	 * @param in Source the factory opened.
+	 */
+	protected final void ownSource(InputStream in)
+	{
+		source.set(in);
+	}
+
+	/** Close the source the factory opened, if it hasn't been already */
+	private void closeSource()
+	{
+		InputStream in;
+
+		in = source.getAndSet(null);
+		if(in == null)
+			return;
+
+		try {
+			in.close();
+		}
+		catch(IOException e) {
+			LOG.warn("Failed to close block source: " + e.toString());
+		}
+	}
+
+	/**
+	 * Start the readahead worker for this factory, after which blocks
+	 * are pulled from readBlock() in index order. This must be called
+	 * exactly once, after the factory source has been set up.
+	 */
+	protected final void start()
+		throws IOException
+	{
+		if(rworker != null)
+			throw new IOException("Factory already started");
 
-		rworker = new ReadAheadWorker(istream, this, blksz);
+		rworker = new ReadAheadWorker();
 		rworker.start();
 	}
 
 	/**
-	 * Return the expected block count for the factory.
+	 * Hand a block off to the client, waiting while the readahead window is
+	 * full. A block is always let into an empty queue regardless of its
+	 * size, so that a window smaller than a block cannot stall the factory.
+	 */
+	private void offer(Block blk)
+		throws InterruptedException
+	{
+		qlock.lockInterruptibly();
+		try {
+			while(!bqueue.isEmpty() && qbytes + blk.length() > rabytes
+			      && !done)
+				qdrained.await();
+
+			/* The factory was closed out from under us */
+			if(done)
+				throw new InterruptedException("Block factory closed");
+
+			bqueue.add(blk);
+			qbytes += blk.length();
+			qfilled.signal();
+		}
+		finally {
+			qlock.unlock();
+		}
+	}
+
+	/**
+	 * Mark the factory source as exhausted, waking any waiting clients. A
+	 * non-null cause is reported to clients once the queue has drained,
+	 * unless the factory was closed, in which case the worker was only
+	 * stopped and the clients simply see the end of the blocks.
+	 */
+	private void finish(IOException cause)
+	{
+		qlock.lock();
+		try {
+			done = true;
+			if(!closed)
+				failure = cause;
+			qfilled.signalAll();
+		}
+		finally {
+			qlock.unlock();
+		}
+	}
+
+	/**
+	 * Take the next block out of the readahead queue.
+	 * @param nanos Time to wait for a block, or negative to wait forever.
+	 * @return Next block, or null at the end of input or on timeout.
+	 */
+	private Block take(long nanos)
+		throws IOException
+	{
+		Block blk;
+
+		try {
+			qlock.lockInterruptibly();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for block");
+		}
+
+		try {
+			while(bqueue.isEmpty()) {
+				if(failure != null)
+					throw new IOException("Block factory source failed", failure);
+				if(done)
+					return null;
+
+				if(nanos < 0)
+					qfilled.await();
+				else if(nanos > 0)
+					nanos = qfilled.awaitNanos(nanos);
+				else
+					return null;
+			}
+
+			blk = bqueue.poll();
+			qbytes -= blk.length();
+			qdrained.signal();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for block");
+		}
+		finally {
+			qlock.unlock();
+		}
+
+		produced.getAndIncrement();
+		return blk;
+	}
+
+	/**
+	 * Read the next block out of the factory source. This is called only
+	 * from the readahead worker, in increasing index order, and should
+	 * return null once the source has been exhausted.
+	 * @param idx Index of the block being read.
+	 * @return Block for the given index, or null at the end of input.
+	 */
+	protected Block readBlock(long idx)
+		throws IOException
+	{
+		PooledBuffer pbuf;
+		byte[] buffer;
+		int res;
+		int off;
+
+		pbuf = BufferPool.getHeapPool().allocate(blksz);
+		buffer = pbuf.array();
+
+		try {
+			for(off = 0; off < blksz; off += res) {
+				res = istream.read(buffer, off, blksz - off);
+				if(res == -1)
+					break;
+			}
+		}
+		catch(IOException e) {
+			pbuf.release();
+			throw e;
+		}
+
+		if(off == 0) {
+			pbuf.release();
+			return null;
+		}
+
+		/* Recycled buffers hold stale data, pad out the short block */
+		Arrays.fill(buffer, off, blksz, (byte)0);
+		return new FactoryBlock(pbuf, blksz, idx);
+	}
+
+	/**
+	 * Return the expected block count for the factory. Factories that do
+	 * not know their block count ahead of time return UNKNOWN_BLOCK_COUNT.
 	 * @return Number of blocks this factory will produce.
 	 */
 	public long blockCount()
@@ -294,40 +659,129 @@ public class BlockFactory
 	{ return produced.get(); }
 
 	/**
-	 * Return whether we've reached the data input.
+	 * Return the size of the readahead window, the number of bytes of
+	 * blocks that may be read ahead of the client.
+	 * @return Readahead window in bytes.
+	 */
+	public long getReadaheadBytes()
+	{ return rabytes; }
+
+	/**
+	 * Return whether blocks are handed out in index order, which is the
+	 * case for every factory that does not say otherwise.
+	 * @return Whether blocks come out in increasing index order.
+	 */
+	public boolean isOrdered()
+	{ return true; }
+
+	/**
+	 * Get a spliterator over the blocks the factory has yet to produce.
+	 * Blocks taken through the spliterator are removed from the factory,
+	 * and read failures are thrown as UncheckedIOException. As with
+	 * getBlock(), each block should be released once it has been used.
+	 * @return Spliterator over the remaining blocks.
+	 */
+	public Spliterator<Block> spliterator()
+	{
+		return new BlockSpliterator();
+	}
+
+	/**
+	 * Get a sequential stream of the blocks the factory has yet to produce.
+	 * @return Stream of the remaining blocks.
+	 */
+	public Stream<Block> stream()
+	{
+		return StreamSupport.stream(spliterator(), false);
+	}
+
+	/**
+	 * Get a parallel stream of the blocks the factory has yet to produce,
+	 * so that hashing and storing blocks can fan out across the common
+	 * fork join pool.
+	 * @return Parallel stream of the remaining blocks.
+	 */
+	public Stream<Block> parallelStream()
+	{
+		return StreamSupport.stream(spliterator(), true);
+	}
+
+	/**
+	 * Return whether we've reached the end of the data input, and every
+	 * block read from it has been handed out.
 	 * @return Whether the factory will produce any more blocks.
 	 */
 	public boolean isDone()
-	{ return done.get(); }
+	{
+		qlock.lock();
+		try {
+			return done && bqueue.isEmpty();
+		}
+		finally {
+			qlock.unlock();
+		}
+	}
 	
 	/**
 	 * Produces a block of data for a client application, this block is
 	 * sequential, gauranteed to be the previous block compared to the 
-	 * next block in the queue.
-	 * @return A block of data, whose size matches the factories construction value.
+	 * next block in the queue. This blocks until the readahead worker has
+	 * a block available.
+	 * @return A block of data, or null once the input is exhausted.
 	 */
 	public Block getBlock()
+		throws IOException
 	{
-		Block blk;
+		return take(-1);
+	}
 
-		for(;;) {
-			/* Wake up the readahead worker */
-			if(bqueue.isEmpty() == true)
-				synchronized(this) { this.notifyAll(); }
+	/**
+	 * Produces a block of data for a client application, waiting up to the
+	 * given time for one to be read. A null return is either the end of the
+	 * input or a timeout, which can be told apart with isDone().
+	 * @param timeout Time to wait for a block
+	 * @param unit Unit of the timeout
+	 * @return A block of data, or null on timeout or end of input.
+	 */
+	public Block getBlock(long timeout, TimeUnit unit)
+		throws IOException
+	{
+		return take(Math.max(0, unit.toNanos(timeout)));
+	}
 
-			blk = bqueue.poll();
-			if(blk == null) {
-				if(done.get()) {
-					System.out.println("Finished Block Factory");
-					return null;
-				}
+	/** Return whether the factory has been closed. */
+	protected boolean isClosed()
+	{ return closed; }
 
-				/* if !done, we're waiting on readahead */
-				continue;
-			}
+	/**
+	 * Stop producing blocks, releasing anything that has been read ahead
+	 * back to its pool. The factory will report that it is done, and the
+	 * readahead worker will exit once its current read completes. A source
+	 * the factory opened itself is closed.
+	 */
+	@Override
+	public void close()
+		throws IOException
+	{
+		Block blk;
 
-			produced.getAndIncrement();
-			return blk;
+		closed = true;
+		qlock.lock();
+		try {
+			done = true;
+			while((blk = bqueue.poll()) != null)
+				blk.release();
+			qbytes = 0;
+			qfilled.signalAll();
+			qdrained.signalAll();
 		}
+		finally {
+			qlock.unlock();
+		}
+
+		if(rworker != null)
+			rworker.interrupt();
+
+		closeSource();
 	}
 }
@@ -0,0 +1,377 @@
+/**
+ * Copyright © 2015
+ * Hrfs Block Hasher
+ *
+ * Reusable, per thread, content hash state. Hashing a block through a fresh
+ * MessageDigest and formatting it through a Formatter allocates the digest,
+ * its output, and a string for every byte of the hash. A BlockHasher keeps
+ * one digest per thread for each hash function, digests into a buffer it
+ * owns, and encodes hex through a lookup table, so hashing a block and
+ * naming it allocates nothing until the name is needed as a String.
+ *
+ * Data can be fed as arrays or as ByteBuffers. Buffers without a backing
+ * array, such as direct or mapped buffers, are hashed in place by the
+ * platform digests, and otherwise pass through a small per thread scratch
+ * array a piece at a time, never as a whole copy of the block.
+ *
+ * The name of a tree hash, such as SHA256/1048576, gets a hasher that tree
+ * hashes anything longer than a chunk, and hashes anything else plainly,
+ * just as the HashEngine does. A whole block given to hash() is tree hashed
+ * across cores by a TreeHasher. Data fed through update() is gathered a
+ * chunk at a time, and each chunk hashed as it fills, so the key comes out
+ * the same however the block arrives. This is the one place keys are made,
+ * by clients, nodes and the scrubber alike.
+ *
+ * @file BlockHasher.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+
+public final class BlockHasher
+{
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final int SCRATCH_SIZE = 1024 * 8;	// 8KB
+	private static final ThreadLocal<byte[]> SCRATCH =
+		new ThreadLocal<byte[]>() {
+			@Override
+			protected byte[] initialValue()
+			{
+				return new byte[SCRATCH_SIZE];
+			}
+		};
+	private static final ThreadLocal<HashMap<String, BlockHasher>> HASHERS =
+		new ThreadLocal<HashMap<String, BlockHasher>>() {
+			@Override
+			protected HashMap<String, BlockHasher> initialValue()
+			{
+				return new HashMap<String, BlockHasher>();
+			}
+		};
+
+	private final String name;
+	private final MessageDigest md;
+	private final HashFunction hfn;
+	private final byte[] hash;
+	private Hasher hasher;
+
+	/* Tree hashing state, only for the name of a tree hash */
+	private final int chunk;
+	private final TreeHasher tree;
+	private final ArrayList<byte[]> chunks;
+	private byte[] pending;
+	private int plen;
+
+	/**
+	 * Build the hash state for a function. Functions that the platform
+	 * provides as a MessageDigest are digested in place, anything else goes
+	 * through its guava HashFunction.
+	 */
+	private BlockHasher(String name)
+	{
+		String alg;
+
+		this.name = name;
+		this.hfn = HrfsHashing.function(name);
+		alg = HrfsHashing.digestAlgorithm(name);
+
+		try {
+			this.md = (alg == null) ? null : MessageDigest.getInstance(alg);
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException(alg + " not supported on system", e);
+		}
+
+		this.hash = new byte[hfn.bits() / 8];
+		this.chunk = HrfsHashing.treeChunk(name);
+		this.tree = (chunk > 0) ? new TreeHasher(hfn, chunk) : null;
+		this.chunks = new ArrayList<byte[]>();
+		this.plen = 0;
+	}
+
+	/**
+	 * Get the calling thread's hasher for the named content hash. The
+	 * hasher must not be handed to another thread.
+	 * @param name Name of the hash function, such as SHA1.
+	 * @return Hasher owned by the calling thread.
+	 */
+	public static BlockHasher forThread(String name)
+	{
+		HashMap<String, BlockHasher> hashers;
+		BlockHasher hasher;
+
+		hashers = HASHERS.get();
+		hasher = hashers.get(name);
+		if(hasher == null) {
+			hasher = new BlockHasher(name);
+			hashers.put(name, hasher);
+		}
+
+		return hasher;
+	}
+
+	/** Return the name of the hash function. */
+	public String getName()
+	{ return name; }
+
+	/** Return the length of the hash in bytes. */
+	public int length()
+	{ return hash.length; }
+
+	/** Return the chunk size of a tree hash, or zero for a plain hash. */
+	public int getTreeChunk()
+	{ return chunk; }
+
+	/**
+	 * Hash a region of a buffer. The returned array belongs to the hasher,
+	 * and is overwritten by the next call on this thread.
+	 * @param buf Buffer holding the data
+	 * @param off Offset of the data within the buffer
+	 * @param len Length of the data
+	 * @return Hash of the data.
+	 */
+	public byte[] hash(byte[] buf, int off, int len)
+	{
+		return hash(ByteBuffer.wrap(buf, off, len));
+	}
+
+	/**
+	 * Hash the remaining bytes of a buffer, which is left positioned at its
+	 * limit. A block longer than a tree hash chunk is hashed across cores.
+	 * The returned array belongs to the hasher, and is overwritten by the
+	 * next call on this thread.
+	 * @param buf Buffer holding the data
+	 * @return Hash of the data.
+	 */
+	public byte[] hash(ByteBuffer buf)
+	{
+		if(plen > 0 || !chunks.isEmpty())
+			return update(buf).digest();
+		if(tree == null || buf.remaining() <= chunk)
+			return feed(buf).digest();
+
+		System.arraycopy(tree.hash(buf), 0, hash, 0, hash.length);
+		buf.position(buf.limit());
+		return hash;
+	}
+
+	/**
+	 * Feed part of the data being hashed, so that data can be hashed in
+	 * pieces as it arrives, while it is still in cache.
+	 * @param buf Buffer holding the data
+	 * @param off Offset of the data within the buffer
+	 * @param len Length of the data
+	 * @return This hasher.
+	 */
+	public BlockHasher update(byte[] buf, int off, int len)
+	{
+		if(tree != null)
+			return gather(ByteBuffer.wrap(buf, off, len));
+
+		if(md != null) {
+			md.update(buf, off, len);
+			return this;
+		}
+
+		if(hasher == null)
+			hasher = hfn.newHasher();
+
+		hasher.putBytes(buf, off, len);
+		return this;
+	}
+
+	/**
+	 * Feed the remaining bytes of a buffer, which is left positioned at
+	 * its limit.
+	 * @param buf Buffer holding the data
+	 * @return This hasher.
+	 */
+	public BlockHasher update(ByteBuffer buf)
+	{
+		if(tree != null)
+			return gather(buf);
+
+		return feed(buf);
+	}
+
+	/** Feed a buffer straight to the digest, as a plain hash */
+	private BlockHasher feed(ByteBuffer buf)
+	{
+		if(md != null) {
+			md.update(buf);
+			return this;
+		}
+
+		if(hasher == null)
+			hasher = hfn.newHasher();
+
+		putBuffer(hasher, buf);
+		return this;
+	}
+
+	/**
+	 * Gather data into the pending chunk of a tree hash. A full chunk is
+	 * only hashed once more data follows it, as data no longer than a
+	 * chunk is hashed plainly.
+	 */
+	private BlockHasher gather(ByteBuffer buf)
+	{
+		int len;
+
+		if(pending == null)
+			pending = new byte[chunk];
+
+		while(buf.hasRemaining()) {
+			if(plen == chunk) {
+				chunks.add(TreeHasher.chunkHash(hfn, ByteBuffer.wrap(pending, 0, plen)));
+				plen = 0;
+			}
+
+			len = Math.min(chunk - plen, buf.remaining());
+			buf.get(pending, plen, len);
+			plen += len;
+		}
+
+		return this;
+	}
+
+	/**
+	 * Feed the remaining bytes of a buffer to a guava hasher, which only
+	 * takes arrays. Buffers with a backing array are fed directly, others
+	 * are copied through a per thread scratch array a piece at a time. The
+	 * buffer is left positioned at its limit.
+	 * @param hasher Hasher to feed
+	 * @param buf Buffer holding the data
+	 * @return The hasher.
+	 */
+	public static Hasher putBuffer(Hasher hasher, ByteBuffer buf)
+	{
+		byte[] scratch;
+		int len;
+
+		if(buf.hasArray()) {
+			hasher.putBytes(buf.array(), buf.arrayOffset() + buf.position(),
+					buf.remaining());
+			buf.position(buf.limit());
+			return hasher;
+		}
+
+		scratch = SCRATCH.get();
+		while(buf.hasRemaining()) {
+			len = Math.min(scratch.length, buf.remaining());
+			buf.get(scratch, 0, len);
+			hasher.putBytes(scratch, 0, len);
+		}
+
+		return hasher;
+	}
+
+	/**
+	 * Finish hashing everything fed through update(), and reset for the
+	 * next hash. The returned array belongs to the hasher, and is
+	 * overwritten by the next call on this thread.
+	 * @return Hash of the data.
+	 */
+	public byte[] digest()
+	{
+		int len;
+
+		if(tree != null && !chunks.isEmpty()) {
+			chunks.add(TreeHasher.chunkHash(hfn, ByteBuffer.wrap(pending, 0, plen)));
+			System.arraycopy(TreeHasher.combine(hfn, chunks, 0, chunks.size()), 0,
+					 hash, 0, hash.length);
+			chunks.clear();
+			plen = 0;
+			return hash;
+		}
+
+		/* No more than a chunk, which is hashed plainly */
+		if(tree != null && plen > 0) {
+			len = plen;
+			plen = 0;
+			if(md != null) {
+				md.update(pending, 0, len);
+			}
+			else {
+				if(hasher == null)
+					hasher = hfn.newHasher();
+				hasher.putBytes(pending, 0, len);
+			}
+		}
+
+		if(md == null) {
+			if(hasher == null)
+				hasher = hfn.newHasher();
+
+			System.arraycopy(hasher.hash().asBytes(), 0, hash, 0, hash.length);
+			hasher = null;
+			return hash;
+		}
+
+		try {
+			md.digest(hash, 0, hash.length);
+		}
+		catch(DigestException e) {
+			throw new IllegalStateException("Digest output too short", e);
+		}
+
+		return hash;
+	}
+
+	/**
+	 * Encode bytes as lower case hex into a character array.
+	 * @param src Bytes to encode
+	 * @param off Offset of the bytes within src
+	 * @param len Number of bytes to encode
+	 * @param dst Destination, with room for 2 * len characters at doff
+	 * @param doff Offset within dst to start writing
+	 */
+	public static void toHex(byte[] src, int off, int len, char[] dst, int doff)
+	{
+		int b;
+
+		for(int bidx=0; bidx < len; ++bidx) {
+			b = src[off + bidx] & 0xff;
+			dst[doff++] = HEX[b >>> 4];
+			dst[doff++] = HEX[b & 0xf];
+		}
+	}
+
+	/**
+	 * Append bytes as lower case hex onto a builder, which allocates
+	 * nothing if the builder already has room.
+	 */
+	public static StringBuilder appendHex(StringBuilder sb, byte[] src, int off, int len)
+	{
+		int b;
+
+		for(int bidx=0; bidx < len; ++bidx) {
+			b = src[off + bidx] & 0xff;
+			sb.append(HEX[b >>> 4]).append(HEX[b & 0xf]);
+		}
+
+		return sb;
+	}
+
+	/**
+	 * Encode bytes as a lower case hex string.
+	 * @param src Bytes to encode
+	 * @return Hex string of the bytes.
+	 */
+	public static String toHex(byte[] src)
+	{
+		char[] hex;
+
+		hex = new char[src.length * 2];
+		toHex(src, 0, src.length, hex, 0);
+		return new String(hex);
+	}
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright © 2015
+ * Hrfs Block Key
+ *
+ * The identity of a block, its content hash, as a compact value. A hash kept
+ * as a byte[] has no equals() or hashCode(), and kept as a hex String it
+ * takes twice the memory and must be encoded and decoded at every boundary.
+ * A BlockKey packs up to 32 bytes of hash into four longs, caches its hash
+ * code, and orders keys the same way as their bytes, so it can be used as
+ * is in hash maps, sorted maps, the ring, and over RPC.
+ *
+ * Keys are only encoded as hex where a name is needed, such as a file name.
+ *
+ * @file BlockKey.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import org.apache.hadoop.io.WritableComparable;
+
+public final class BlockKey
+	implements WritableComparable<BlockKey>, Serializable
+{
+	public static final int MAX_LENGTH = 32;
+	private static final long serialVersionUID = 1L;
+
+	private long w0;
+	private long w1;
+	private long w2;
+	private long w3;
+	private int length;
+	private int hash;
+
+	/**
+	 * Empty key, to be filled in with readFields(). Keys are otherwise
+	 * never changed once built.
+	 */
+	public BlockKey()
+	{
+		this.length = 0;
+	}
+
+	/**
+	 * Build a key from a whole content hash.
+	 * @param bytes Content hash of the block
+	 */
+	public BlockKey(byte[] bytes)
+	{
+		this(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Build a key from a content hash held within a buffer. The bytes are
+	 * copied, the buffer may be reused afterwards.
+	 * @param buf Buffer holding the hash
+	 * @param off Offset of the hash within the buffer
+	 * @param len Length of the hash in bytes
+	 */
+	public BlockKey(byte[] buf, int off, int len)
+	{
+		if(len < 1 || len > MAX_LENGTH)
+			throw new IllegalArgumentException("Invalid key length: " + len);
+
+		this.w0 = pack(buf, off, len, 0);
+		this.w1 = pack(buf, off, len, 1);
+		this.w2 = pack(buf, off, len, 2);
+		this.w3 = pack(buf, off, len, 3);
+		this.length = len;
+		this.hash = mix();
+	}
+
+	/**
+	 * Build a key from its hex encoding, as used in block file names.
+	 * @param hex Lower or upper case hex of the hash
+	 * @return Key for the hash.
+	 */
+	public static BlockKey fromHex(String hex)
+	{
+		byte[] bytes;
+		int hi;
+		int lo;
+
+		if(hex == null || (hex.length() & 1) != 0)
+			throw new IllegalArgumentException("Invalid key: " + hex);
+
+		bytes = new byte[hex.length() / 2];
+		for(int bidx=0; bidx < bytes.length; ++bidx) {
+			hi = Character.digit(hex.charAt(2*bidx), 16);
+			lo = Character.digit(hex.charAt(2*bidx + 1), 16);
+			if(hi < 0 || lo < 0)
+				throw new IllegalArgumentException("Invalid key: " + hex);
+
+			bytes[bidx] = (byte)((hi << 4) | lo);
+		}
+
+		return new BlockKey(bytes);
+	}
+
+	/**
+	 * Pack the given word of a hash big endian, so that comparing words
+	 * as unsigned longs orders keys the same as comparing their bytes.
+	 * Bytes beyond the end of the hash are zero.
+	 */
+	private static long pack(byte[] buf, int off, int len, int word)
+	{
+		long w;
+		int bidx;
+
+		w = 0;
+		for(int widx=0; widx < 8; ++widx) {
+			bidx = word * 8 + widx;
+			w <<= 8;
+			if(bidx < len)
+				w |= buf[off + bidx] & 0xffL;
+		}
+
+		return w;
+	}
+
+	/** Hash code of the key, computed once */
+	private int mix()
+	{
+		long h;
+
+		/* The words are already a good hash, just fold them down */
+		h = w0 ^ (w1 * 31) ^ (w2 * 961) ^ (w3 * 29791) ^ length;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	/** Get a byte of the hash */
+	private int byteAt(int bidx)
+	{
+		long w;
+
+		switch(bidx >>> 3)
+		{
+		case 0:
+			w = w0;
+			break;
+		case 1:
+			w = w1;
+			break;
+		case 2:
+			w = w2;
+			break;
+		default:
+			w = w3;
+			break;
+		}
+
+		return (int)(w >>> (56 - 8 * (bidx & 7))) & 0xff;
+	}
+
+	/** Return the length of the hash in bytes. */
+	public int length()
+	{ return length; }
+
+	/**
+	 * Copy the hash into a buffer.
+	 * @param dst Buffer with room for length() bytes at doff
+	 * @param doff Offset within dst to start writing
+	 */
+	public void copyTo(byte[] dst, int doff)
+	{
+		for(int bidx=0; bidx < length; ++bidx)
+			dst[doff + bidx] = (byte)byteAt(bidx);
+	}
+
+	/**
+	 * Get the hash as a new array.
+	 * @return Bytes of the hash.
+	 */
+	public byte[] toBytes()
+	{
+		byte[] bytes;
+
+		bytes = new byte[length];
+		copyTo(bytes, 0);
+		return bytes;
+	}
+
+	/**
+	 * Append the hash as lower case hex onto a builder, which allocates
+	 * nothing if the builder already has room.
+	 */
+	public StringBuilder appendHex(StringBuilder sb)
+	{
+		int b;
+
+		for(int bidx=0; bidx < length; ++bidx) {
+			b = byteAt(bidx);
+			sb.append(Character.forDigit(b >>> 4, 16))
+				.append(Character.forDigit(b & 0xf, 16));
+		}
+
+		return sb;
+	}
+
+	/** Return the hash as lower case hex. */
+	@Override
+	public String toString()
+	{
+		return appendHex(new StringBuilder(length * 2)).toString();
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		BlockKey other;
+
+		if(this == obj)
+			return true;
+		if(!(obj instanceof BlockKey))
+			return false;
+
+		other = (BlockKey)obj;
+		return hash == other.hash && length == other.length
+			&& w0 == other.w0 && w1 == other.w1
+			&& w2 == other.w2 && w3 == other.w3;
+	}
+
+	/**
+	 * Order keys as their bytes, unsigned, with a shorter key before a
+	 * longer key it is a prefix of.
+	 */
+	@Override
+	public int compareTo(BlockKey other)
+	{
+		int cmp;
+
+		if((cmp = Long.compareUnsigned(w0, other.w0)) != 0)
+			return cmp;
+		if((cmp = Long.compareUnsigned(w1, other.w1)) != 0)
+			return cmp;
+		if((cmp = Long.compareUnsigned(w2, other.w2)) != 0)
+			return cmp;
+		if((cmp = Long.compareUnsigned(w3, other.w3)) != 0)
+			return cmp;
+
+		return Integer.compare(length, other.length);
+	}
+
+	/**
+	 * Only the bytes of the hash go on the wire, a SHA1 key is 21 bytes
+	 * rather than the 42 of its hex string.
+	 */
+	@Override
+	public void write(DataOutput out)
+		throws IOException
+	{
+		out.writeByte(length);
+		for(int bidx=0; bidx < length; ++bidx)
+			out.writeByte(byteAt(bidx));
+	}
+
+	@Override
+	public void readFields(DataInput in)
+		throws IOException
+	{
+		byte[] bytes;
+		int len;
+
+		len = in.readUnsignedByte();
+		if(len < 1 || len > MAX_LENGTH)
+			throw new IOException("Invalid key length: " + len);
+
+		bytes = new byte[len];
+		in.readFully(bytes);
+
+		this.w0 = pack(bytes, 0, len, 0);
+		this.w1 = pack(bytes, 0, len, 1);
+		this.w2 = pack(bytes, 0, len, 2);
+		this.w3 = pack(bytes, 0, len, 3);
+		this.length = len;
+		this.hash = mix();
+	}
+}
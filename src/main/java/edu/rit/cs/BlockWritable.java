@@ -0,0 +1,117 @@
+/**
+ * Copyright © 2015
+ * Hrfs Block Writable
+ *
+ * Carries block data over hadoop RPC. Sending a byte[] through RPC means the
+ * block must first be copied into an exact length heap array. A BlockWritable
+ * instead wraps the block's own buffer, and writes it to the wire straight
+ * from there, so a block leaves the sender without an extra copy, and arrives
+ * as a single array read off the wire.
+ *
+ * Blocks may be compressed for the wire with a BlockCodec, the encoding
+ * records its codec, so the receiver decodes it whatever its own codec is.
+ *
+ * @file BlockWritable.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.apache.hadoop.io.Writable;
+
+public class BlockWritable
+	implements Writable
+{
+	private ByteBuffer buffer;
+	private BlockCodec codec;
+
+	/** Empty block, to be filled in with readFields() */
+	public BlockWritable()
+	{
+		this.buffer = ByteBuffer.allocate(0);
+		this.codec = BlockCodec.forName(BlockCodec.NONE);
+	}
+
+	/**
+	 * Wrap the remaining bytes of a buffer, without copying them. The
+	 * block is sent uncompressed.
+	 * @param buf Buffer holding the block data
+	 */
+	public BlockWritable(ByteBuffer buf)
+	{
+		this(buf, BlockCodec.forName(BlockCodec.NONE));
+	}
+
+	/**
+	 * Wrap the remaining bytes of a buffer, without copying them, to be
+	 * sent encoded with a codec.
+	 * @param buf Buffer holding the block data
+	 * @param codec Codec to encode the block with on the wire
+	 */
+	public BlockWritable(ByteBuffer buf, BlockCodec codec)
+	{
+		if(buf == null || codec == null)
+			throw new IllegalArgumentException("Invalid block buffer or codec");
+
+		this.buffer = buf.slice();
+		this.codec = codec;
+	}
+
+	/**
+	 * Wrap the data of a block, without copying it.
+	 * @param blk Block to send
+	 */
+	public BlockWritable(Block blk)
+	{
+		this(blk.buffer());
+	}
+
+	/**
+	 * Wrap the data of a block, without copying it, to be sent encoded
+	 * with a codec.
+	 * @param blk Block to send
+	 * @param codec Codec to encode the block with on the wire
+	 */
+	public BlockWritable(Block blk, BlockCodec codec)
+	{
+		this(blk.buffer(), codec);
+	}
+
+	/**
+	 * Get a view of the block data, with its own position and limit.
+	 * @return View of the block data.
+	 */
+	public ByteBuffer buffer()
+	{
+		return buffer.duplicate();
+	}
+
+	/** Return the length of the block data in bytes. */
+	public int length()
+	{
+		return buffer.remaining();
+	}
+
+	/** Raw blocks are written straight from their buffer */
+	@Override
+	public void write(DataOutput out)
+		throws IOException
+	{
+		codec.write(buffer, out);
+	}
+
+	/**
+	 * Read a block off the wire. Its lengths are checked against
+	 * BlockFactory.MAX_BLOCK_SIZE before the block is allocated, so a
+	 * corrupt or hostile length fails rather than exhausting the heap.
+	 */
+	@Override
+	public void readFields(DataInput in)
+		throws IOException
+	{
+		this.buffer = BlockCodec.read(in);
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright © 2015
+ * Hrfs Buffer Pool
+ *
+ * Recycles the buffers that hold block data, so that reading and hashing
+ * blocks does not allocate a fresh buffer for every block. Buffers are kept
+ * in size classes of 512 bytes, the finest alignment the BlockFactory
+ * accepts, so every valid block size is a size class of its own and gets
+ * back a buffer of exactly that size.
+ *
+ * @file BufferPool.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+public final class BufferPool
+{
+	public static final int SIZE_CLASS = 512;
+	public static final long DEFAULT_HEAP_POOL_BYTES = 1024L*1024L*256L;	// 256MB
+	public static final long DEFAULT_DIRECT_POOL_BYTES = 1024L*1024L*64L;	// 64MB
+	private static final Log LOG = LogFactory.getLog(BufferPool.class);
+
+	private static BufferPool heapPool;
+	private static BufferPool directPool;
+
+	private final boolean direct;
+	private final long capacity;
+	private final AtomicLong pooled;
+	private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<PooledBuffer>> classes;
+
+	static
+	{
+		HrfsConfiguration.init();
+	}
+
+	/**
+	 * Build a new pool of buffers.
+	 * @param direct Whether buffers are allocated outside the java heap.
+	 * @param capacity Bytes of idle buffers the pool may hold on to.
+	 */
+	public BufferPool(boolean direct, long capacity)
+	{
+		this.direct = direct;
+		this.capacity = capacity;
+		this.pooled = new AtomicLong(0);
+		this.classes = new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<PooledBuffer>>();
+	}
+
+	/**
+	 * Get the shared pool of heap buffers, sized by the configuration.
+	 * @return Shared heap buffer pool.
+	 */
+	public static synchronized BufferPool getHeapPool()
+	{
+		if(heapPool == null)
+			heapPool = new BufferPool(false, new HrfsConfiguration().getLong(
+				HrfsKeys.HRFS_BUFFERPOOL_HEAP_BYTES, DEFAULT_HEAP_POOL_BYTES));
+
+		return heapPool;
+	}
+
+	/**
+	 * Get the shared pool of direct buffers, sized by the configuration.
+	 * @return Shared direct buffer pool.
+	 */
+	public static synchronized BufferPool getDirectPool()
+	{
+		if(directPool == null)
+			directPool = new BufferPool(true, new HrfsConfiguration().getLong(
+				HrfsKeys.HRFS_BUFFERPOOL_DIRECT_BYTES, DEFAULT_DIRECT_POOL_BYTES));
+
+		return directPool;
+	}
+
+	/**
+	 * Round a requested size up to its size class.
+	 * @param size Requested size in bytes
+	 * @return Size of buffer that will be handed out for the request.
+	 */
+	public static int sizeClass(int size)
+	{
+		return ((size + SIZE_CLASS - 1) / SIZE_CLASS) * SIZE_CLASS;
+	}
+
+	/** Return whether the pool hands out direct buffers. */
+	public boolean isDirect()
+	{ return direct; }
+
+	/** Return the number of bytes of idle buffers the pool may hold. */
+	public long getCapacity()
+	{ return capacity; }
+
+	/** Return the number of bytes of idle buffers held by the pool. */
+	public long getPooledBytes()
+	{ return pooled.get(); }
+
+	/**
+	 * Get a buffer of at least the given size, with a single reference.
+	 * The contents of a recycled buffer are whatever the last holder left
+	 * in it.
+	 * @param size Minimum size of the buffer in bytes.
+	 * @return Buffer, which must be released when no longer needed.
+	 */
+	public PooledBuffer allocate(int size)
+	{
+		ConcurrentLinkedQueue<PooledBuffer> freelist;
+		PooledBuffer pbuf;
+		int sclass;
+
+		if(size < 0)
+			throw new IllegalArgumentException("Invalid buffer size: " + size);
+
+		sclass = sizeClass(size);
+		pbuf = null;
+
+		freelist = classes.get(sclass);
+		if(freelist != null)
+			pbuf = freelist.poll();
+
+		if(pbuf != null)
+			pooled.addAndGet(-sclass);
+		else if(direct)
+			pbuf = new PooledBuffer(this, ByteBuffer.allocateDirect(sclass));
+		else
+			pbuf = new PooledBuffer(this, ByteBuffer.allocate(sclass));
+
+		pbuf.reset();
+		return pbuf;
+	}
+
+	/**
+	 * Take back a buffer whose last reference was released. If the pool is
+	 * already holding its capacity, the buffer is left to the collector.
+	 */
+	void recycle(PooledBuffer pbuf)
+	{
+		ConcurrentLinkedQueue<PooledBuffer> freelist;
+		ConcurrentLinkedQueue<PooledBuffer> prev;
+		int sclass;
+
+		sclass = pbuf.capacity();
+		if(pooled.addAndGet(sclass) > capacity) {
+			pooled.addAndGet(-sclass);
+			LOG.debug("Buffer pool full, dropping " + sclass + " byte buffer");
+			return;
+		}
+
+		freelist = classes.get(sclass);
+		if(freelist == null) {
+			freelist = new ConcurrentLinkedQueue<PooledBuffer>();
+			prev = classes.putIfAbsent(sclass, freelist);
+			if(prev != null)
+				freelist = prev;
+		}
+
+		freelist.add(pbuf);
+	}
+}
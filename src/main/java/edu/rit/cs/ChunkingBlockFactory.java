@@ -0,0 +1,292 @@
+/**
+ * Copyright © 2015
+ * Hrfs Content Defined Chunking Block Factory
+ *
+ * Decomposes data sources into variable sized blocks whose boundaries are
+ * chosen by the content itself, using the FastCDC gear hash. Because a cut
+ * point only depends on the bytes immediately before it, an insertion or
+ * deletion within a file only changes the blocks around the edit, and every
+ * other block keeps the same content hash.
+ *
+ * @file ChunkingBlockFactory.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+public class ChunkingBlockFactory
+	extends BlockFactory
+{
+	public static final int DEFAULT_MIN_CHUNK = 1024 * 64;		// 64KB
+	public static final int DEFAULT_AVG_CHUNK = 1024 * 256;		// 256KB
+	public static final int DEFAULT_MAX_CHUNK = 1024 * 1024;	// 1MB
+
+	/*
+	 * The gear table must be identical on every node, otherwise the same
+	 * data would be cut differently depending on who read it. It is derived
+	 * from a fixed seed, which java.util.Random guarantees to be stable.
+	 */
+	private static final long GEAR_SEED = 0x6872667343444300L;
+	private static final long[] GEAR = new long[256];
+	private static final Log LOG = LogFactory.getLog(ChunkingBlockFactory.class);
+
+	private final int minsz;
+	private final int avgsz;
+	private final int maxsz;
+	private final long smask;
+	private final long lmask;
+	private InputStream istream;
+	private byte[] window;
+	private int wstart;
+	private int wend;
+	private boolean eof;
+
+	static
+	{
+		Random rnd;
+
+		rnd = new Random(GEAR_SEED);
+		for(int g=0; g < GEAR.length; ++g)
+			GEAR[g] = rnd.nextLong();
+	}
+
+	/**
+	 * Build a mask of the given number of bits, taken from the top of the
+	 * fingerprint. The gear hash shifts left, so the high bits are the ones
+	 * that depend on the most input bytes.
+	 */
+	private static long topMask(int bits)
+	{
+		return ((1L << bits) - 1) << (64 - bits);
+	}
+
+	/** Resolve a chunk size, falling back to the configured value. */
+	private static int chunkSize(int size, String key, int defsize)
+	{
+		if(size >= 0)
+			return size;
+
+		return new HrfsConfiguration().getInt(key, defsize);
+	}
+
+	/**
+	 * Set up the chunk size parameters, each of which must lie within the
+	 * block size limits of the BlockFactory. The average must be a power of
+	 * two, as it determines the number of fingerprint bits that are tested.
+	 * Any size given as -1 is taken from the configuration.
+	 */
+	private ChunkingBlockFactory(int minsz, int avgsz, int maxsz)
+		throws IOException
+	{
+		super(chunkSize(maxsz, HrfsKeys.HRFS_CHUNKER_MAX, DEFAULT_MAX_CHUNK));
+
+		int bits;
+
+		minsz = chunkSize(minsz, HrfsKeys.HRFS_CHUNKER_MIN, DEFAULT_MIN_CHUNK);
+		avgsz = chunkSize(avgsz, HrfsKeys.HRFS_CHUNKER_AVG, DEFAULT_AVG_CHUNK);
+		maxsz = blksz;
+
+		if(minsz < MIN_BLOCK_SIZE)
+			throw new IOException("Minimum chunk size below " + MIN_BLOCK_SIZE);
+		if(!(minsz < avgsz && avgsz < maxsz))
+			throw new IOException("Chunk sizes must satisfy min < avg < max");
+		if(Integer.bitCount(avgsz) != 1)
+			throw new IOException("Average chunk size must be a power of two");
+
+		this.minsz = minsz;
+		this.avgsz = avgsz;
+		this.maxsz = maxsz;
+
+		/*
+		 * Normalized chunking, use a harder mask before the average size
+		 * and an easier one after it. This pulls chunk sizes in closer to
+		 * the average than a single mask would.
+		 */
+		bits = Integer.numberOfTrailingZeros(avgsz);
+		this.smask = topMask(bits + 1);
+		this.lmask = topMask(bits - 1);
+
+		this.window = new byte[maxsz * 2];
+		this.wstart = 0;
+		this.wend = 0;
+		this.eof = false;
+		this.blockCount = UNKNOWN_BLOCK_COUNT;
+	}
+
+	/**
+	 * Constructs a new chunking factory upon a byte array, using the
+	 * configured chunk sizes.
+	 * @param barr Data to chunk
+	 */
+	public ChunkingBlockFactory(byte[] barr)
+		throws IOException
+	{
+		this(barr, -1, -1, -1);
+	}
+
+	/**
+	 * Constructs a new chunking factory upon a byte array. Blocks produced
+	 * are copies, changes to the array will not affect them.
+	 * @param barr Data to chunk
+	 * @param minsz Minimum chunk size
+	 * @param avgsz Average chunk size, a power of two
+	 * @param maxsz Maximum chunk size
+	 */
+	public ChunkingBlockFactory(byte[] barr, int minsz, int avgsz, int maxsz)
+		throws IOException
+	{
+		this(minsz, avgsz, maxsz);
+
+		if(barr == null)
+			throw new IOException("Null byte array input");
+
+		istream = new ByteArrayInputStream(barr);
+		start();
+	}
+
+	/**
+	 * Constructs a new chunking factory upon a file, using the configured
+	 * chunk sizes.
+	 * @param file File to chunk
+	 */
+	public ChunkingBlockFactory(File file)
+		throws IOException
+	{
+		this(file, -1, -1, -1);
+	}
+
+	/**
+	 * Constructs a new chunking factory upon a file.
+	 * @param file File to chunk
+	 * @param minsz Minimum chunk size
+	 * @param avgsz Average chunk size, a power of two
+	 * @param maxsz Maximum chunk size
+	 */
+	public ChunkingBlockFactory(File file, int minsz, int avgsz, int maxsz)
+		throws IOException
+	{
+		this(minsz, avgsz, maxsz);
+
+		if(file == null)
+			throw new IOException("Null File Descriptor");
+		if(!file.exists())
+			throw new FileNotFoundException();
+
+		LOG.info("Chunking " + file.getName() + " with chunk sizes "
+			 + this.minsz + "/" + this.avgsz + "/" + this.maxsz);
+		istream = new BufferedInputStream(new FileInputStream(file));
+		ownSource(istream);
+		start();
+	}
+
+	/** Minimum size of chunks produced, other than the last. */
+	public int getMinChunkSize()
+	{ return minsz; }
+
+	/** Target average size of chunks produced. */
+	public int getAvgChunkSize()
+	{ return avgsz; }
+
+	/** Maximum size of chunks produced. */
+	public int getMaxChunkSize()
+	{ return maxsz; }
+
+	/**
+	 * Make sure that at least a maximum chunk worth of data is sitting in
+	 * the window, unless the source has run dry.
+	 */
+	private void fill()
+		throws IOException
+	{
+		int res;
+
+		if(wend - wstart >= maxsz || eof)
+			return;
+
+		/* Slide what's left down to the front of the window */
+		System.arraycopy(window, wstart, window, 0, wend - wstart);
+		wend -= wstart;
+		wstart = 0;
+
+		while(wend < window.length) {
+			res = istream.read(window, wend, window.length - wend);
+			if(res == -1) {
+				eof = true;
+				istream.close();
+				break;
+			}
+
+			wend += res;
+		}
+	}
+
+	/**
+	 * Find the length of the next chunk in the window, starting at wstart.
+	 * Nothing before the minimum chunk size can be a cut point, so hashing
+	 * starts there.
+	 */
+	private int cut(int avail)
+	{
+		long fp;
+		int normal;
+		int limit;
+		int pos;
+
+		if(avail <= minsz)
+			return avail;
+
+		limit = Math.min(avail, maxsz);
+		normal = Math.min(limit, avgsz);
+		fp = 0;
+
+		for(pos = minsz; pos < normal; ++pos) {
+			fp = (fp << 1) + GEAR[window[wstart + pos] & 0xff];
+			if((fp & smask) == 0)
+				return pos + 1;
+		}
+
+		for(; pos < limit; ++pos) {
+			fp = (fp << 1) + GEAR[window[wstart + pos] & 0xff];
+			if((fp & lmask) == 0)
+				return pos + 1;
+		}
+
+		return limit;
+	}
+
+	/**
+	 * Produce the next content defined chunk of the source. Unlike the fixed
+	 * size factories, chunks are not padded, and the length of each block is
+	 * exactly the length of its data. The pooled buffer backing a chunk may
+	 * be longer than the chunk itself, data() copies the chunk out rather
+	 * than handing back the whole buffer.
+	 */
+	@Override
+	protected Block readBlock(long idx)
+		throws IOException
+	{
+		PooledBuffer chunk;
+		int len;
+
+		fill();
+		if(wend == wstart)
+			return null;
+
+		len = cut(wend - wstart);
+		chunk = BufferPool.getHeapPool().allocate(len);
+		System.arraycopy(window, wstart, chunk.array(), 0, len);
+		wstart += len;
+
+		return new FactoryBlock(chunk, len, idx);
+	}
+}
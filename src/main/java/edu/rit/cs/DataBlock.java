@@ -11,21 +11,29 @@
  */
 package edu.rit.cs;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 public final class DataBlock
 	implements Block
 {
 	private final long   index;
-	private final byte[] buffer;
+	private final long   length;
+	private final ByteBuffer view;
 	private final byte[] hashval;
+	private final Block  source;
+	private volatile byte[] buffer;
+	private volatile BlockKey key;
 
 	/** Hide the default constructor */
 	private DataBlock()
 	{
 		index = -1;
+		length = 0;
+		view = null;
 		buffer = null;
 		hashval = null;
+		source = null;
 	}
 
 	/**
@@ -44,14 +52,63 @@ public final class DataBlock
 			throw new IllegalArgumentException("Block index must be >= 0");
 		
 		buffer = buf;
+		view = ByteBuffer.wrap(buf);
 		hashval = hval;
 		index = idx;
+		length = buf.length;
+		source = null;
 	}
 
-	/** Return size of block data buffer */
+	/**
+	 * Build a new DataBlock around a buffer, which may be direct or read
+	 * only. The block holds the remaining bytes of the buffer, without
+	 * copying them, and without moving the buffer's position.
+	 * @param buf Buffer holding the block data
+	 * @param hval Hash value in byte array for the block
+	 */
+	public DataBlock(ByteBuffer buf, byte[] hval, long idx)
+		throws IllegalArgumentException
+	{
+		if(buf == null || hval == null)
+			throw new IllegalArgumentException("Invalid block buffers");
+		if(idx < 0)
+			throw new IllegalArgumentException("Block index must be >= 0");
+
+		buffer = null;
+		view = buf.slice();
+		hashval = hval;
+		index = idx;
+		length = view.remaining();
+		source = null;
+	}
+
+	/**
+	 * Build a new DataBlock from a block that has been hashed, sharing the
+	 * block's data rather than copying it. Releasing the DataBlock releases
+	 * the block it was built from.
+	 * @param blk Block whose data was hashed
+	 * @param hval Hash value in byte array for the block
+	 */
+	public DataBlock(Block blk, byte[] hval)
+		throws IllegalArgumentException
+	{
+		if(blk == null || blk.buffer() == null || hval == null)
+			throw new IllegalArgumentException("Invalid block buffers");
+		if(blk.index() < 0)
+			throw new IllegalArgumentException("Block index must be >= 0");
+
+		buffer = null;
+		view = blk.buffer();
+		hashval = hval;
+		index = blk.index();
+		length = blk.length();
+		source = blk;
+	}
+
+	/** Return size of block data */
 	@Override
 	public long length()
-	{ return buffer.length; }
+	{ return length; }
 
 	/** Return index of block within file */
 	@Override
@@ -59,12 +116,45 @@ public final class DataBlock
 	{ return index; }
 
 	/** 
-	 * Return a reference to the underlying data buffer.
+	 * Return a reference to the underlying data buffer. Blocks built
+	 * around a buffer with no backing array, such as a direct or mapped
+	 * buffer, copy their data into a heap array on first use.
 	 */
 	@Override
 	public byte[] data()
 	{
-		return buffer;
+		byte[] copy;
+
+		if(source != null)
+			return source.data();
+
+		copy = buffer;
+		if(copy == null) {
+			copy = new byte[view.remaining()];
+			view.duplicate().get(copy);
+			buffer = copy;
+		}
+
+		return copy;
+	}
+
+	/**
+	 * Return a view of the underlying data, without copying it.
+	 */
+	@Override
+	public ByteBuffer buffer()
+	{
+		return view.duplicate();
+	}
+
+	/**
+	 * Release the block this DataBlock was built from, if any.
+	 */
+	@Override
+	public void release()
+	{
+		if(source != null)
+			source.release();
 	}
 
 	/**
@@ -74,4 +164,20 @@ public final class DataBlock
 	{
 		return hashval;
 	}
+
+	/**
+	 * Return the hash value as a key, which is built on first use.
+	 */
+	public BlockKey key()
+	{
+		BlockKey bkey;
+
+		bkey = key;
+		if(bkey == null) {
+			bkey = new BlockKey(hashval);
+			key = bkey;
+		}
+
+		return bkey;
+	}
 }
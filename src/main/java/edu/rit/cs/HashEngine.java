@@ -6,143 +6,641 @@
  * for output hashes. This performs the given hash function using a supplied
  * hash function, for example SHA1, using the guava Hash library.
  *
+ * Each block handed to the engine gets back a future for its DataBlock. The
+ * number of blocks in flight is bounded, so a client that submits faster than
+ * the workers can hash is held up in putBlock(), rather than piling blocks up
+ * in memory. Results may optionally be completed in the order their blocks
+ * were submitted.
+ *
+ * Blocks are hashed through BlockHasher, by the name of the content hash.
+ * When that is a tree hash, blocks larger than a chunk are tree hashed across
+ * the common fork join pool, rather than on a single worker.
+ *
+ * In adaptive mode the number of workers is not fixed. A governor thread
+ * watches the backlog of blocks waiting to be hashed, adding workers while
+ * blocks queue up and the machine has idle CPUs, and retiring them once the
+ * engine has been idle for a while, always between a floor and a ceiling.
+ * The worker counts can be published over JMX with publishMetrics(), see
+ * HashEngineMXBean. Publishing is left to the owner of a long lived engine,
+ * as a published engine stays registered until it is shut down.
+ *
  * @file HashEngine.java
  * @author Will Dignazio <wdignazio@gmail.com>
  */
 package edu.rit.cs;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import com.google.common.hash.HashFunction;
-import com.google.common.hash.HashCode;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 
 public class HashEngine
+	implements HashEngineMXBean
 {
 	static
 	{
 		HrfsConfiguration.init();
 	}
 
+	public static final int DEFAULT_WORKERS = 5;
+	public static final int DEFAULT_QUEUE_PER_WORKER = 4;
+	public static final long GOVERNOR_INTERVAL_MS = 250;
+	public static final int GOVERNOR_IDLE_INTERVALS = 4;
 	private static final Log LOG = LogFactory.getLog(HashEngine.class);
+	private static final AtomicInteger engines = new AtomicInteger(0);
 	private AtomicLong ahcnt;
 	private HrfsConfiguration conf;
 	private ThreadPoolExecutor executor;
-	private ConcurrentLinkedQueue<Block> biqueue;
-	private ConcurrentLinkedQueue<DataBlock> boqueue;
-	private HashFunction hashfn;
-	private int nworkers;
+	private String hashname;
+	private Semaphore slots;
+	private boolean ordered;
+	private volatile int nworkers;
+	private int floor;
+	private int ceiling;
+	private int qsize;
+	private Governor governor;
+	private AtomicLong resizes;
+	private volatile ObjectName mxname;
+
+	/* Guarded by olock, used to complete results in submission order */
+	private final ReentrantLock olock;
+	private final HashMap<Long, HEWorker> finished;
+	private long nextin;
+	private long nextout;
+	private boolean delivering;
 
 	private class HEWorker
 		implements Runnable
 	{
-		private HashFunction _phashfn;
-		private Block _blk;
-		
-		public HEWorker(HashFunction phashfn, Block blk)
+		private final String _hashname;
+		private final Block _blk;
+		private final long _seq;
+		private final CompletableFuture<DataBlock> _future;
+		private DataBlock _dblk;
+		private Throwable _cause;
+
+		public HEWorker(String hashname, Block blk, long seq)
 		{
-			_phashfn = phashfn;
+			_hashname = hashname;
 			_blk = blk;
+			_seq = seq;
+			_future = new CompletableFuture<DataBlock>();
 		}
 
 		@Override
 		public void run()
-			throws IllegalArgumentException
 		{
-			DataBlock dblk;
-			HashCode hcode;
-			byte[] bdata;
-			
-			if(biqueue == null || boqueue == null || ahcnt == null)
-				throw new IllegalArgumentException("Unitialized Engine");
-			
-			for(;;) {
-				bdata = _blk.data();
-				if(_blk.data() == null)
+			ByteBuffer bdata;
+			byte[] hash;
+
+			try {
+				/* Hash the block where it lies, even off heap */
+				bdata = _blk.buffer();
+				if(bdata == null)
 					throw new IllegalArgumentException("Invalid Block/Data");
 
-				/* Use the generic hash function to generate hash */
-				hcode = _phashfn.newHasher()
-					.putBytes(bdata)
-					.hash();
+				/* Blocks larger than a tree hash chunk are spread across cores */
+				hash = BlockHasher.forThread(_hashname).hash(bdata).clone();
 
-				/* Go Go Go! */
-				dblk = new DataBlock(_blk.data(), hcode.asBytes(), _blk.index());
-				boqueue.add(dblk);
-				/* For now we need a hash metric */
+				_dblk = new DataBlock(_blk, hash);
+			}
+			catch(RuntimeException e) {
+				LOG.error("Failed to hash block " + _blk.index()
+					  + ": " + e.toString());
+				_cause = e;
+			}
+			catch(Error e) {
+				LOG.error("Failed to hash block " + _blk.index()
+					  + ": " + e.toString());
+				_cause = e;
+				throw e;
+			}
+			finally {
+				/* Always delivered, or ordered delivery would wait forever */
+				deliver(this);
 			}
 		}
+
+		/** Hand the result to whoever is waiting on the future. */
+		public void complete()
+		{
+			if(_cause == null) {
+				ahcnt.incrementAndGet();
+				_future.complete(_dblk);
+			}
+			else {
+				_future.completeExceptionally(_cause);
+			}
+
+			slots.release();
+		}
+	}
+
+	/**
+	 * Resizes the worker pool of an adaptive engine. The pool grows while
+	 * blocks are waiting behind busy workers, as long as the system load
+	 * leaves a CPU free, and shrinks a worker at a time once the backlog
+	 * has been empty and workers idle for several intervals.
+	 */
+	private class Governor
+		extends Thread
+	{
+		private final OperatingSystemMXBean _os;
+		private final int _cpus;
+		private int _idle;
+
+		public Governor()
+		{
+			super("HashEngine-governor");
+			setDaemon(true);
+			_os = ManagementFactory.getOperatingSystemMXBean();
+			_cpus = Runtime.getRuntime().availableProcessors();
+			_idle = 0;
+		}
+
+		@Override
+		public void run()
+		{
+			while(!executor.isShutdown()) {
+				try {
+					Thread.sleep(GOVERNOR_INTERVAL_MS);
+				}
+				catch(InterruptedException e) {
+					break;
+				}
+
+				adjust();
+			}
+		}
+
+		/** Take one look at the engine, and resize it if need be */
+		private void adjust()
+		{
+			double load;
+			int active;
+			int depth;
+			int cur;
+
+			depth = executor.getQueue().size();
+			active = executor.getActiveCount();
+			load = _os.getSystemLoadAverage();
+			cur = nworkers;
+
+			if(depth > 0 && active >= cur) {
+				_idle = 0;
+
+				/* No load average on this platform, trust the ceiling */
+				if(cur < ceiling && (load < 0 || load < _cpus))
+					resize(Math.min(ceiling, cur + Math.min(depth, cur)));
+			}
+			else if(depth == 0 && active < cur) {
+				if(++_idle >= GOVERNOR_IDLE_INTERVALS) {
+					_idle = 0;
+					resize(Math.max(floor, Math.max(active, cur - 1)));
+				}
+			}
+			else {
+				_idle = 0;
+			}
+		}
+	}
+
+	/**
+	 * Construct a new hash engine for the cluster content hash, using the
+	 * default configuration values present in the hrfs site configuration
+	 * file.
+	 */
+	public HashEngine()
+	{
+		this(HrfsHashing.configuredName(new HrfsConfiguration()));
+	}
+
+	/**
+	 * Construct a new hash engine for a content hash, using the default
+	 * configuration values present in the hrfs site configuration file.
+	 * @param hashname Name of the content hash, plain or tree
+	 */
+	public HashEngine(String hashname)
+	{
+		this(hashname, new HrfsConfiguration().getBoolean(
+			     HrfsKeys.HRFS_HENGINE_ORDERED, false));
 	}
 
 	/**
 	 * Construct a new hash engine, using the default configuration values
-	 * present in the the hrfs site configuration file.
+	 * present in the the hrfs site configuration file. Large blocks are
+	 * tree hashed if the cluster tree hashes.
 	 */
 	public HashEngine(HashFunction hfn)
 	{
+		this(hfn, new HrfsConfiguration().getBoolean(
+			     HrfsKeys.HRFS_HENGINE_ORDERED, false));
+	}
+
+	/**
+	 * Construct a new hash engine, choosing whether results are completed
+	 * in the order their blocks were submitted. The engine is adaptive if
+	 * configured so, otherwise it has a fixed number of workers.
+	 * @param hfn Hash function used on block data
+	 * @param ordered Whether to complete results in submission order
+	 */
+	public HashEngine(HashFunction hfn, boolean ordered)
+	{
+		this(clusterName(hfn), ordered);
+	}
+
+	/**
+	 * Construct a new hash engine for a content hash, choosing whether
+	 * results are completed in the order their blocks were submitted.
+	 * @param hashname Name of the content hash, plain or tree
+	 * @param ordered Whether to complete results in submission order
+	 */
+	public HashEngine(String hashname, boolean ordered)
+	{
+		this(hashname, ordered, workerFloor(), workerCeiling());
+	}
+
+	/**
+	 * Construct a new hash engine whose worker count is kept between a
+	 * floor and a ceiling. Giving the same floor and ceiling makes a fixed
+	 * size engine.
+	 * @param hfn Hash function used on block data
+	 * @param ordered Whether to complete results in submission order
+	 * @param floor Fewest workers the engine will shrink to
+	 * @param ceiling Most workers the engine will grow to
+	 */
+	public HashEngine(HashFunction hfn, boolean ordered, int floor, int ceiling)
+	{
+		this(clusterName(hfn), ordered, floor, ceiling);
+	}
+
+	/**
+	 * Construct a new hash engine for a content hash, whose worker count
+	 * is kept between a floor and a ceiling.
+	 * @param hashname Name of the content hash, plain or tree
+	 * @param ordered Whether to complete results in submission order
+	 * @param floor Fewest workers the engine will shrink to
+	 * @param ceiling Most workers the engine will grow to
+	 */
+	public HashEngine(String hashname, boolean ordered, int floor, int ceiling)
+	{
+		HrfsHashing.function(hashname); // Reject unknown names
+
 		this.conf = new HrfsConfiguration();
-		this.hashfn = hfn;
-		this.nworkers = conf.getInt(HrfsKeys.HRFS_HENGINE_WORKERS, 5);
+		this.hashname = hashname;
+		this.ordered = ordered;
+		this.floor = floor;
+		this.ceiling = ceiling;
+		this.nworkers = floor;
+		this.qsize = conf.getInt(HrfsKeys.HRFS_HENGINE_QUEUE,
+					 ceiling * DEFAULT_QUEUE_PER_WORKER);
+
+		if(floor < 1 || ceiling < floor)
+			throw new IllegalArgumentException("Invalid worker counts: "
+							   + floor + "-" + ceiling);
+		if(qsize < 1)
+			throw new IllegalArgumentException("Invalid queue size: " + qsize);
 
-		this.biqueue = new ConcurrentLinkedQueue<Block>();
-		this.boqueue = new ConcurrentLinkedQueue<DataBlock>();
 		this.ahcnt = new AtomicLong(0);
-		
-		/* Build up our worker pool using the configuration tunable. */
+		this.resizes = new AtomicLong(0);
+		this.slots = new Semaphore(qsize);
+		this.olock = new ReentrantLock();
+		this.finished = new HashMap<Long, HEWorker>();
+		this.nextin = 0;
+		this.nextout = 0;
+		this.delivering = false;
+
+		/*
+		 * Build up our worker pool using the configuration tunable. The
+		 * work queue itself may be unbounded, the slots bound what is in it.
+		 * Idle workers time out, so an unused engine holds no threads.
+		 */
 		this.executor = new ThreadPoolExecutor(nworkers, nworkers,
 						       1000L, TimeUnit.MILLISECONDS,
 						       new LinkedBlockingQueue<Runnable>());
+		this.executor.allowCoreThreadTimeOut(true);
+
+		if(ceiling > floor) {
+			LOG.info("Adaptive hash engine with " + floor + " to "
+				 + ceiling + " workers");
+			this.governor = new Governor();
+			this.governor.start();
+		}
 	}
 
 	/**
-	 * Get the number of workers assigned to this engine.
+	 * Publish the engine's metrics over JMX, until it is shut down. An
+	 * engine already published keeps its name, and one shut down is not
+	 * published.
+	 * @return Name the metrics are published under, or null if they
+	 *         could not be published.
+	 */
+	public synchronized ObjectName publishMetrics()
+	{
+		if(mxname != null || executor.isShutdown())
+			return mxname;
+
+		try {
+			mxname = new ObjectName("edu.rit.cs:type=HashEngine,id="
+						+ engines.incrementAndGet());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, mxname);
+		}
+		catch(JMException e) {
+			LOG.warn("Failed to publish hash engine metrics: " + e.toString());
+			mxname = null;
+		}
+
+		return mxname;
+	}
+
+	/** Stop publishing the engine's metrics */
+	private synchronized void unregister()
+	{
+		if(mxname == null)
+			return;
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mxname);
+		}
+		catch(JMException e) {
+			LOG.warn("Failed to withdraw hash engine metrics: " + e.toString());
+		}
+		mxname = null;
+	}
+
+	/** Return the name the engine's metrics are published under, if any. */
+	public ObjectName getMetricsName()
+	{ return this.mxname; }
+
+	/**
+	 * Name the content hash of a function, as a tree hash if the cluster
+	 * tree hashes its blocks.
+	 */
+	private static String clusterName(HashFunction hfn)
+	{
+		return HrfsHashing.treeName(HrfsHashing.nameOf(hfn), new HrfsConfiguration()
+					    .getInt(HrfsKeys.HRFS_HASH_TREE_CHUNK, 0));
+	}
+
+	/** Fewest workers for a new engine, per the configuration */
+	private static int workerFloor()
+	{
+		HrfsConfiguration conf;
+
+		conf = new HrfsConfiguration();
+		if(!conf.getBoolean(HrfsKeys.HRFS_HENGINE_ADAPTIVE, false))
+			return conf.getInt(HrfsKeys.HRFS_HENGINE_WORKERS, DEFAULT_WORKERS);
+
+		return conf.getInt(HrfsKeys.HRFS_HENGINE_WORKERS_MIN, 1);
+	}
+
+	/** Most workers for a new engine, per the configuration */
+	private static int workerCeiling()
+	{
+		HrfsConfiguration conf;
+
+		conf = new HrfsConfiguration();
+		if(!conf.getBoolean(HrfsKeys.HRFS_HENGINE_ADAPTIVE, false))
+			return conf.getInt(HrfsKeys.HRFS_HENGINE_WORKERS, DEFAULT_WORKERS);
+
+		return conf.getInt(HrfsKeys.HRFS_HENGINE_WORKERS_MAX,
+				   Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Set the number of workers. Growing raises the maximum before the
+	 * core size, and shrinking lowers the core size first, as the executor
+	 * requires core size to never exceed the maximum.
+	 */
+	private synchronized void resize(int count)
+	{
+		if(count == nworkers || executor.isShutdown())
+			return;
+
+		if(count > nworkers) {
+			executor.setMaximumPoolSize(count);
+			executor.setCorePoolSize(count);
+		}
+		else {
+			executor.setCorePoolSize(count);
+			executor.setMaximumPoolSize(count);
+		}
+
+		LOG.debug("Hash engine resized from " + nworkers + " to "
+			  + count + " workers");
+		nworkers = count;
+		resizes.incrementAndGet();
+	}
+
+	/**
+	 * Get the number of workers assigned to this engine, which changes
+	 * over time in an adaptive engine.
 	 * @return Number of active workers.
 	 */
+	@Override
 	public int getWorkerCount()
 	{ return this.nworkers; }
 
+	/** Return the fewest workers the engine will shrink to. */
+	@Override
+	public int getWorkerFloor()
+	{ return this.floor; }
+
+	/** Return the most workers the engine will grow to. */
+	@Override
+	public int getWorkerCeiling()
+	{ return this.ceiling; }
+
+	/** Return whether the engine resizes itself. */
+	@Override
+	public boolean isAdaptive()
+	{ return this.governor != null; }
+
+	/** Return the number of workers hashing a block right now. */
+	@Override
+	public int getBusyWorkers()
+	{ return executor.getActiveCount(); }
+
+	/** Return the number of blocks waiting for a free worker. */
+	@Override
+	public int getBacklog()
+	{ return executor.getQueue().size(); }
+
+	/** Return the number of times the engine has been resized. */
+	@Override
+	public long getResizeCount()
+	{ return resizes.get(); }
+
+	/**
+	 * Get the number of blocks that may be in flight in the engine before
+	 * putBlock() blocks.
+	 */
+	public int getQueueSize()
+	{ return this.qsize; }
+
+	/**
+	 * Get the number of blocks submitted to the engine whose results have
+	 * not been completed yet.
+	 */
+	@Override
+	public int getPendingCount()
+	{ return qsize - slots.availablePermits(); }
+
+	/**
+	 * Get the tree hash chunk size, blocks larger than this are tree hashed.
+	 * @return Chunk size in bytes, or zero if tree hashing is off.
+	 */
+	public int getTreeHashChunk()
+	{ return HrfsHashing.treeChunk(hashname); }
+
+	/** Return the name of the content hash blocks are hashed with. */
+	public String getHashName()
+	{ return this.hashname; }
+
+	/** Return whether results are completed in submission order. */
+	public boolean isOrdered()
+	{ return this.ordered; }
+
 	/**
 	 * Get the number of DataBlocks produced by this HashEngine.
 	 * This value is atomic and is the true representation of the number of
 	 * blocks processed bye the hash engine.
 	 */
+	@Override
 	public long getProducedCount()
 	{ return this.ahcnt.get(); }
 
 	/**
-	 * Submit a job to run within the HashEngine, this passes the work off
-	 * a waiting thread. If no such thread is present, the thread that was
-	 * asked to the job will yield, and the thread that requested the
-	 * insertion will complete the task.
+	 * Submit a block to be hashed within the HashEngine. If the engine
+	 * already has its limit of blocks in flight, this waits for one of them
+	 * to complete before submitting.
+	 * @param blk Block to hash
+	 * @return Future completed with the hashed DataBlock.
 	 */
-	public void putBlock(Block blk)
+	public CompletableFuture<DataBlock> putBlock(Block blk)
+		throws IOException
 	{
-		if(blk == null || blk.data() == null)
+		HEWorker worker;
+
+		if(blk == null || blk.buffer() == null)
 			throw new IllegalArgumentException("Invalid block");
+		if(executor.isShutdown())
+			throw new IOException("Hash engine has been shut down");
+
+		try {
+			slots.acquire();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted submitting block");
+		}
 
-		/* 
-		 * Safely and concurrently add the block to the biqueue object
-		 * within the engine. The biqueue uses a thread safe data structure
-		 * to back it's primary storae.
+		/*
+		 * Sequence numbers must be handed out in the same order the
+		 * workers are queued, otherwise ordered delivery could wait on a
+		 * block that has not been submitted yet.
 		 */
-		executor.execute(new HEWorker(hashfn, blk));
+		olock.lock();
+		try {
+			worker = new HEWorker(hashname, blk, nextin++);
+			executor.execute(worker);
+		}
+		catch(RejectedExecutionException e) {
+			--nextin;
+			slots.release();
+			throw new IOException("Hash engine has been shut down", e);
+		}
+		finally {
+			olock.unlock();
+		}
+
+		return worker._future;
+	}
+
+	/**
+	 * Complete the result of a worker. In ordered mode, results are held
+	 * back until every earlier result has been completed, and only one
+	 * thread at a time completes results so that they cannot overtake each
+	 * other.
+	 */
+	private void deliver(HEWorker worker)
+	{
+		if(!ordered) {
+			worker.complete();
+			return;
+		}
+
+		olock.lock();
+		try {
+			finished.put(worker._seq, worker);
+			if(delivering)
+				return;
+
+			delivering = true;
+		}
+		finally {
+			olock.unlock();
+		}
+
+		for(;;) {
+			olock.lock();
+			try {
+				worker = finished.remove(nextout);
+				if(worker == null) {
+					delivering = false;
+					return;
+				}
+
+				++nextout;
+			}
+			finally {
+				olock.unlock();
+			}
+
+			worker.complete();
+		}
 	}
 
 	/**
-	 * Poll for a data block from the engine, if no new data blocks are
-	 * available, then null is returned. 
+	 * Stop accepting blocks. Blocks already submitted are still hashed, and
+	 * their futures completed.
 	 */
-	public DataBlock getDataBlock()
+	public void shutdown()
 	{
-		DataBlock dblk;
+		executor.shutdown();
+		if(governor != null)
+			governor.interrupt();
+		unregister();
+	}
 
-		/** XXX Needs to be fixed */
-		dblk = boqueue.poll();
-		return dblk;
+	/**
+	 * Wait for the engine to finish hashing after a shutdown.
+	 * @param timeout Time to wait
+	 * @param unit Unit of the timeout
+	 * @return Whether every submitted block has been hashed.
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit)
+		throws InterruptedException
+	{
+		return executor.awaitTermination(timeout, unit);
 	}
+
+	/** Return whether the engine has been shut down. */
+	public boolean isShutdown()
+	{ return executor.isShutdown(); }
 }
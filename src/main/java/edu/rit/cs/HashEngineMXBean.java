@@ -0,0 +1,43 @@
+/**
+ * Copyright © 2015
+ * Hrfs Hash Engine Metrics
+ *
+ * The metrics a HashEngine publishes over JMX, so the size of an adaptive
+ * engine can be watched as it follows the hashing backlog. An engine whose
+ * metrics are published with HashEngine.publishMetrics() is registered as
+ * edu.rit.cs:type=HashEngine,id=<n> until it is shut down.
+ *
+ * @file HashEngineMXBean.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+public interface HashEngineMXBean
+{
+	/** Return the number of workers assigned to the engine. */
+	public int getWorkerCount();
+
+	/** Return the fewest workers the engine will shrink to. */
+	public int getWorkerFloor();
+
+	/** Return the most workers the engine will grow to. */
+	public int getWorkerCeiling();
+
+	/** Return the number of workers hashing a block right now. */
+	public int getBusyWorkers();
+
+	/** Return the number of blocks waiting for a free worker. */
+	public int getBacklog();
+
+	/** Return the number of times the engine has been resized. */
+	public long getResizeCount();
+
+	/** Return the number of blocks submitted but not yet completed. */
+	public int getPendingCount();
+
+	/** Return the number of DataBlocks the engine has produced. */
+	public long getProducedCount();
+
+	/** Return whether the engine resizes itself. */
+	public boolean isAdaptive();
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright © 2015
+ * Hrfs Hashing Block Factory
+ *
+ * Decomposes data sources into fixed size blocks that come out already
+ * hashed. Rather than reading a whole block and then reading it all over
+ * again in the HashEngine, the readahead worker reads each block in strides
+ * and feeds every stride to the content hash while it is still in cache.
+ * For large blocks this saves a full trip through memory per block.
+ *
+ * Blocks produced are DataBlocks, hashed with the cluster content hash.
+ *
+ * @file HashingBlockFactory.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+public class HashingBlockFactory
+	extends BlockFactory
+{
+	public static final int DEFAULT_HASH_STRIDE = 1024 * 256;	// 256KB
+	private static final Log LOG = LogFactory.getLog(HashingBlockFactory.class);
+
+	private final String hashname;
+	private final int stride;
+	private InputStream istream;
+
+	/**
+	 * Set up the hash function and stride, the source is left to the
+	 * public constructors.
+	 */
+	private HashingBlockFactory(int blksz, String hashname)
+		throws IOException
+	{
+		super(blksz);
+
+		if(hashname == null)
+			hashname = HrfsHashing.configuredName(conf);
+
+		try {
+			HrfsHashing.function(hashname);
+		}
+		catch(IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+
+		this.hashname = hashname;
+		this.stride = conf.getInt(HrfsKeys.HRFS_BLOCKFACTORY_HASH_STRIDE,
+					  DEFAULT_HASH_STRIDE);
+		if(stride < 1)
+			throw new IOException("Invalid hash stride: " + stride);
+	}
+
+	/**
+	 * Constructs a new hashing factory upon a file, using the cluster
+	 * content hash.
+	 * @param file File to produce hashed blocks from.
+	 * @param blksz Size of blocks produced
+	 */
+	public HashingBlockFactory(File file, int blksz)
+		throws IOException
+	{
+		this(file, blksz, null);
+	}
+
+	/**
+	 * Constructs a new hashing factory upon a file.
+	 * @param file File to produce hashed blocks from.
+	 * @param blksz Size of blocks produced
+	 * @param hashname Name of the content hash, or null for the cluster's.
+	 */
+	public HashingBlockFactory(File file, int blksz, String hashname)
+		throws IOException
+	{
+		this(blksz, hashname);
+
+		if(file == null)
+			throw new IOException("Null File Descriptor");
+		if(!file.exists())
+			throw new FileNotFoundException();
+
+		blockCount = (file.length() / blksz);
+		if((file.length() % blksz) != 0 || blockCount == 0)
+			++blockCount; // At least a block count of 1.
+
+		LOG.info("Hashing " + file.getName() + " as " + blockCount
+			 + " " + this.hashname + " blocks");
+
+		/* Reads are a stride at a time, there is nothing to buffer */
+		istream = new FileInputStream(file);
+		ownSource(istream);
+		start();
+	}
+
+	/**
+	 * Constructs a new hashing factory upon a stream of unknown length.
+	 * The stream is not closed by the factory.
+	 * @param in Stream to produce hashed blocks from.
+	 * @param blksz Size of blocks produced
+	 * @param hashname Name of the content hash, or null for the cluster's.
+	 */
+	public HashingBlockFactory(InputStream in, int blksz, String hashname)
+		throws IOException
+	{
+		this(blksz, hashname);
+
+		if(in == null)
+			throw new IOException("Null input stream");
+
+		blockCount = UNKNOWN_BLOCK_COUNT;
+		istream = in;
+		start();
+	}
+
+	/** Return the name of the content hash blocks are hashed with. */
+	public String getHashName()
+	{ return hashname; }
+
+	/** Return the number of bytes read and hashed at a time. */
+	public int getStride()
+	{ return stride; }
+
+	/**
+	 * Read the next block a stride at a time, hashing each stride as soon
+	 * as it has been read. The short block at the end of the source is
+	 * padded out, and the padding is hashed along with it, just as the
+	 * HashEngine would hash the padded block.
+	 */
+	@Override
+	protected Block readBlock(long idx)
+		throws IOException
+	{
+		BlockHasher hasher;
+		PooledBuffer pbuf;
+		byte[] buffer;
+		int hashed;
+		int res;
+		int off;
+
+		hasher = BlockHasher.forThread(hashname);
+		pbuf = BufferPool.getHeapPool().allocate(blksz);
+		buffer = pbuf.array();
+		hashed = 0;
+
+		try {
+			for(off = 0; off < blksz; off += res) {
+				res = istream.read(buffer, off, Math.min(stride, blksz - off));
+				if(res == -1)
+					break;
+
+				/* Hash whole strides while they're hot */
+				if(off + res - hashed >= stride) {
+					hasher.update(buffer, hashed, off + res - hashed);
+					hashed = off + res;
+				}
+			}
+		}
+		catch(IOException e) {
+			pbuf.release();
+			hasher.digest();
+			throw e;
+		}
+
+		if(off == 0) {
+			pbuf.release();
+			return null;
+		}
+
+		/* Recycled buffers hold stale data, pad out the short block */
+		Arrays.fill(buffer, off, blksz, (byte)0);
+		hasher.update(buffer, hashed, blksz - hashed);
+
+		return new DataBlock(new FactoryBlock(pbuf, blksz, idx),
+				     hasher.digest().clone());
+	}
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright © 2015
+ * Hrfs Content Hashing
+ *
+ * Resolves the content hash used across the cluster from its name. Every node
+ * must hash blocks with the same function as the ring, so the function is
+ * chosen once by name, kept in the serialized ring, and looked up here by the
+ * ring, the hash engine, and the node write path alike.
+ *
+ * SHA1 remains the default, so that existing data keeps its block names.
+ * SHA256 is a stronger choice, and is backed by the platform MessageDigest
+ * which uses the CPU's hashing instructions where the JVM supports them.
+ * MURMUR3_128 is not cryptographic, but is several times faster than either,
+ * and is meant for trusted clusters where nobody will craft colliding blocks.
+ *
+ * A cluster may also tree hash its large blocks, see TreeHasher. The tree
+ * changes every key it is used for, so the chunk size is part of the name
+ * of the content hash, as in SHA256/1048576, and travels with the ring
+ * along with the function. Names without a chunk size are plain hashes.
+ *
+ * @file HrfsHashing.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+public final class HrfsHashing
+{
+	public static final String SHA1		= "SHA1";
+	public static final String SHA256	= "SHA256";
+	public static final String MURMUR3_128	= "MURMUR3_128";
+	public static final String DEFAULT_FUNCTION = SHA1;
+	public static final char TREE_SEPARATOR = '/';
+
+	static
+	{
+		HrfsConfiguration.init();
+	}
+
+	private HrfsHashing() { }
+
+	/**
+	 * Look up a content hash function by name.
+	 * @param name Name of the hash function, such as SHA1.
+	 * @return Hash function for the name, the function of a tree hash for
+	 *         the name of one.
+	 * @throws IllegalArgumentException If the name is not known.
+	 */
+	public static HashFunction function(String name)
+	{
+		if(name == null)
+			throw new IllegalArgumentException("Null hash function name");
+
+		treeChunk(name); // Reject bad chunk sizes
+		switch(functionName(name))
+		{
+		case SHA1:
+			return Hashing.sha1();
+		case SHA256:
+			return Hashing.sha256();
+		case MURMUR3_128:
+			return Hashing.murmur3_128();
+		default:
+			throw new IllegalArgumentException("Unknown hash function: " + name);
+		}
+	}
+
+	/**
+	 * Get the name of a known hash function.
+	 * @param hfn Hash function, such as Hashing.sha1()
+	 * @return Name of the function.
+	 * @throws IllegalArgumentException If the function is not known.
+	 */
+	public static String nameOf(HashFunction hfn)
+	{
+		for(String name : new String[] { SHA1, SHA256, MURMUR3_128 })
+			if(function(name).equals(hfn))
+				return name;
+
+		throw new IllegalArgumentException("Unknown hash function: " + hfn);
+	}
+
+	/**
+	 * Name the tree hash of a function.
+	 * @param function Name of the hash function, such as SHA1.
+	 * @param chunk Chunk size of the tree, or zero for a plain hash
+	 * @return Name of the content hash.
+	 */
+	public static String treeName(String function, int chunk)
+	{
+		if(chunk == 0)
+			return function;
+
+		return function + TREE_SEPARATOR + chunk;
+	}
+
+	/**
+	 * Get the name of the function a content hash is made with.
+	 * @param name Name of the content hash, plain or tree.
+	 * @return Name of the hash function.
+	 */
+	public static String functionName(String name)
+	{
+		int sep;
+
+		sep = name.indexOf(TREE_SEPARATOR);
+		return (sep < 0) ? name : name.substring(0, sep);
+	}
+
+	/**
+	 * Get the chunk size of a tree hash from its name.
+	 * @param name Name of the content hash, plain or tree.
+	 * @return Chunk size in bytes, or zero for a plain hash.
+	 * @throws IllegalArgumentException If the chunk size is invalid.
+	 */
+	public static int treeChunk(String name)
+	{
+		int chunk;
+		int sep;
+
+		sep = name.indexOf(TREE_SEPARATOR);
+		if(sep < 0)
+			return 0;
+
+		try {
+			chunk = Integer.parseInt(name.substring(sep + 1));
+		}
+		catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid tree hash: " + name);
+		}
+
+		if(chunk < TreeHasher.MIN_CHUNK_SIZE)
+			throw new IllegalArgumentException("Tree hash chunk below "
+							   + TreeHasher.MIN_CHUNK_SIZE + ": " + name);
+
+		return chunk;
+	}
+
+	/**
+	 * Get the platform MessageDigest algorithm behind a content hash.
+	 * @param name Name of the hash function, such as SHA1.
+	 * @return MessageDigest algorithm, or null if there is none.
+	 */
+	public static String digestAlgorithm(String name)
+	{
+		function(name); // Reject unknown names
+		switch(functionName(name))
+		{
+		case SHA1:
+			return "SHA-1";
+		case SHA256:
+			return "SHA-256";
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Get the name of the content hash configured for the cluster,
+	 * including the chunk size if blocks are tree hashed.
+	 * @param conf Configuration to read from
+	 * @return Name of the configured content hash.
+	 */
+	public static String configuredName(HrfsConfiguration conf)
+	{
+		return treeName(conf.get(HrfsKeys.HRFS_HASH_FUNCTION, DEFAULT_FUNCTION),
+				conf.getInt(HrfsKeys.HRFS_HASH_TREE_CHUNK, 0));
+	}
+
+	/**
+	 * Get the content hash configured for the cluster.
+	 * @param conf Configuration to read from
+	 * @return Configured hash function.
+	 */
+	public static HashFunction configured(HrfsConfiguration conf)
+	{
+		return function(configuredName(conf));
+	}
+}
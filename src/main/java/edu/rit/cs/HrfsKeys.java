@@ -16,13 +16,50 @@ public final class HrfsKeys
 	public static final String	HRFS_NODE_PATH		= "hrfs.node.path";
 	public static final String 	HRFS_NODE_PORT		= "hrfs.node.port";
 	public static final String	HRFS_NODE_STORE_PATH	= "hrfs.node.store.path";
+	public static final String	HRFS_NODE_STORE_PATHS	= "hrfs.node.store.paths";
+	public static final String	HRFS_NODE_STORE_TYPE	= "hrfs.node.store.type";
 
 	public static final String HRFS_ZOOKEEPER_ADDRESS	= "hrfs.zookeeper.address";
 	public static final String HRFS_ZOOKEEPER_PORT		= "hrfs.zookeeper.port";
 
 	/* Tunables */
+	public static final String	HRFS_HASH_FUNCTION	= "hrfs.hash.function";
+	public static final String	HRFS_HASH_TREE_CHUNK	= "hrfs.hash.tree.chunk";
+	public static final String	HRFS_CODEC		= "hrfs.codec";
 	public static final String	HRFS_HENGINE_WORKERS	= "hrfs.hengine.workers";
+	public static final String	HRFS_HENGINE_ADAPTIVE	= "hrfs.hengine.adaptive";
+	public static final String	HRFS_HENGINE_WORKERS_MIN = "hrfs.hengine.workers.min";
+	public static final String	HRFS_HENGINE_WORKERS_MAX = "hrfs.hengine.workers.max";
+	public static final String	HRFS_HENGINE_QUEUE	= "hrfs.hengine.queue";
+	public static final String	HRFS_HENGINE_ORDERED	= "hrfs.hengine.ordered";
 	public static final String	HRFS_DISK_WORKERS	= "hrfs.disk.workers";
+	public static final String	HRFS_DISK_QUEUE		= "hrfs.disk.queue";
+	public static final String	HRFS_CACHE_BYTES	= "hrfs.cache.bytes";
+	public static final String	HRFS_LEVELDB_BATCH_BYTES = "hrfs.leveldb.batch.bytes";
+	public static final String	HRFS_LEVELDB_BATCH_DELAY = "hrfs.leveldb.batch.delay";
+	public static final String	HRFS_LEVELDB_SYNC	= "hrfs.leveldb.sync";
+	public static final String	HRFS_LEVELDB_QUEUE	= "hrfs.leveldb.queue";
+	public static final String	HRFS_SEGMENT_BYTES	= "hrfs.segment.bytes";
+	public static final String	HRFS_SEGMENT_COMPACT_RATIO = "hrfs.segment.compact.ratio";
+	public static final String	HRFS_SEGMENT_SYNC	= "hrfs.segment.sync";
+	public static final String	HRFS_TIER_FAST_PATHS	= "hrfs.tier.fast.paths";
+	public static final String	HRFS_TIER_FAST_BYTES	= "hrfs.tier.fast.bytes";
+	public static final String	HRFS_TIER_SLOW_BYTES	= "hrfs.tier.slow.bytes";
+	public static final String	HRFS_TIER_PROMOTE_FREQUENCY = "hrfs.tier.promote.frequency";
+	public static final String	HRFS_SCRUB_BYTES	= "hrfs.scrub.bytes";
+	public static final String	HRFS_SCRUB_BUSY		= "hrfs.scrub.busy";
+	public static final String	HRFS_INDEX_PATH		= "hrfs.index.path";
+	public static final String	HRFS_INDEX_CHECKPOINT_INTERVAL = "hrfs.index.checkpoint.interval";
+	public static final String	HRFS_INDEX_SYNC		= "hrfs.index.sync";
+	public static final String	HRFS_BLOCKFACTORY_READAHEAD = "hrfs.blockfactory.readahead";
+	public static final String	HRFS_BLOCKFACTORY_MMAP_WINDOW = "hrfs.blockfactory.mmap.window";
+	public static final String	HRFS_BLOCKFACTORY_READERS = "hrfs.blockfactory.readers";
+	public static final String	HRFS_BLOCKFACTORY_HASH_STRIDE = "hrfs.blockfactory.hash.stride";
+	public static final String	HRFS_BUFFERPOOL_HEAP_BYTES = "hrfs.bufferpool.heap.bytes";
+	public static final String	HRFS_BUFFERPOOL_DIRECT_BYTES = "hrfs.bufferpool.direct.bytes";
+	public static final String	HRFS_CHUNKER_MIN	= "hrfs.chunker.min";
+	public static final String	HRFS_CHUNKER_AVG	= "hrfs.chunker.avg";
+	public static final String	HRFS_CHUNKER_MAX	= "hrfs.chunker.max";
 
 	/* Assinged Value Constants */
 	public static final String HRFS_DEFAULT_URI_SCHEME	= "hrfs";
@@ -13,7 +13,7 @@ import org.apache.hadoop.ipc.ProtocolInfo;
 
 @InterfaceAudience.Private
 @InterfaceStability.Evolving
-@ProtocolInfo(protocolName = "hrfs", protocolVersion = 1)
+@ProtocolInfo(protocolName = "hrfs", protocolVersion = 4)
 public interface HrfsRPC
 {
 	/**
@@ -37,27 +37,28 @@ public interface HrfsRPC
 	/**
 	 * Puts a block into a participating node. The idea
 	 * is to abstractly let a node deal with the block
-	 * placement. In return, it should give a string key
-	 * that was used to store the block.
+	 * placement. In return, it should give the key
+	 * that was used to store the block. The block is
+	 * written to the wire from its own buffer.
 	 * @param block Block data to store on node
 	 */
-	String putBlock(byte[] block);
+	BlockKey putBlock(BlockWritable block);
 
 	/**
-	 * Gets a block from a participating node. The String
-	 * key given is ideally the same kind used to put the
-	 * block in the first place.
+	 * Gets a block from a participating node. The key
+	 * given is ideally the same one returned when the
+	 * block was put in the first place.
 	 * @param key Remote key for block to retrieve
 	 * @return Block data associated with key
 	 */
-	byte[] getBlock(String key);
+	byte[] getBlock(BlockKey key);
 
 	/**
-	 * Remove block from a node, this causes the deletion
-	 * of a block if the key exists. If the block existed
-	 * and was successfully deleted, true is returned.
+	 * Remove block from a node, this releases a reference
+	 * to the block, which is deleted once no references
+	 * remain. If the block existed, true is returned.
 	 * @param key Key of block to delete on node
 	 * @return Whether delete was successful
 	 */
-	boolean delBlock(String key);
+	boolean delBlock(BlockKey key);
 }
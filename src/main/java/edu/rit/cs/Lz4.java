@@ -0,0 +1,257 @@
+/**
+ * Copyright © 2015
+ * Hrfs LZ4 Block Compression
+ *
+ * A pure java implementation of the LZ4 block format, so that blocks can be
+ * compressed quickly without the native libraries hadoop's codecs rely on.
+ * Only the raw block format is produced, framing is left to the BlockCodec.
+ *
+ * @file Lz4.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+final class Lz4
+{
+	static final int HASH_LOG = 12;
+	private static final int MIN_MATCH = 4;
+	private static final int LAST_LITERALS = 5;
+	private static final int MF_LIMIT = 12;
+	private static final int MAX_DISTANCE = 65535;
+	private static final int SKIP_TRIGGER = 6;
+
+	private Lz4() { }
+
+	/** Most bytes compressing len bytes can produce. */
+	static int maxCompressedLength(int len)
+	{
+		return len + len / 255 + 16;
+	}
+
+	private static int readInt(byte[] buf, int off)
+	{
+		return (buf[off] & 0xff) | (buf[off + 1] & 0xff) << 8
+			| (buf[off + 2] & 0xff) << 16 | (buf[off + 3] & 0xff) << 24;
+	}
+
+	private static int hash(int seq)
+	{
+		return (seq * -1640531535) >>> (32 - HASH_LOG);
+	}
+
+	/** Write the remainder of a length past its token nibble */
+	private static int writeLength(int len, byte[] dst, int dp)
+	{
+		while(len >= 255) {
+			dst[dp++] = (byte)255;
+			len -= 255;
+		}
+
+		dst[dp++] = (byte)len;
+		return dp;
+	}
+
+	/** Write a run of literals, and the match after them if any */
+	private static int writeSequence(byte[] src, int lit, int nlit,
+					 int offset, int mlen, byte[] dst, int dp)
+	{
+		int tpos;
+		int token;
+
+		tpos = dp++;
+		if(nlit >= 15) {
+			token = 0xf0;
+			dp = writeLength(nlit - 15, dst, dp);
+		}
+		else {
+			token = nlit << 4;
+		}
+
+		System.arraycopy(src, lit, dst, dp, nlit);
+		dp += nlit;
+
+		if(mlen > 0) {
+			dst[dp++] = (byte)offset;
+			dst[dp++] = (byte)(offset >>> 8);
+
+			mlen -= MIN_MATCH;
+			if(mlen >= 15) {
+				token |= 0x0f;
+				dp = writeLength(mlen - 15, dst, dp);
+			}
+			else {
+				token |= mlen;
+			}
+		}
+
+		dst[tpos] = (byte)token;
+		return dp;
+	}
+
+	/**
+	 * Compress a region of a buffer. The destination must have room for
+	 * maxCompressedLength(slen) bytes.
+	 * @param src Data to compress
+	 * @param soff Offset of the data within src
+	 * @param slen Length of the data
+	 * @param dst Destination of the compressed data
+	 * @param doff Offset within dst to start writing
+	 * @param table Match table of 1 << HASH_LOG entries, reused across calls
+	 * @return Length of the compressed data.
+	 */
+	static int compress(byte[] src, int soff, int slen,
+			    byte[] dst, int doff, int[] table)
+	{
+		int mflimit;
+		int mlimit;
+		int anchor;
+		int send;
+		int mlen;
+		int ref;
+		int seq;
+		int sp;
+		int dp;
+		int h;
+
+		send = soff + slen;
+		mflimit = send - MF_LIMIT;
+		mlimit = send - LAST_LITERALS;
+		anchor = soff;
+		sp = soff;
+		dp = doff;
+
+		Arrays.fill(table, -1);
+		while(sp < mflimit) {
+			seq = readInt(src, sp);
+			h = hash(seq);
+			ref = table[h];
+			table[h] = sp;
+
+			if(ref < 0 || sp - ref > MAX_DISTANCE || readInt(src, ref) != seq) {
+				/* Step faster the longer nothing has matched */
+				sp += 1 + ((sp - anchor) >>> SKIP_TRIGGER);
+				continue;
+			}
+
+			while(sp > anchor && ref > soff && src[sp - 1] == src[ref - 1]) {
+				--sp;
+				--ref;
+			}
+
+			mlen = MIN_MATCH;
+			while(sp + mlen < mlimit && src[sp + mlen] == src[ref + mlen])
+				++mlen;
+
+			dp = writeSequence(src, anchor, sp - anchor, sp - ref, mlen, dst, dp);
+			sp += mlen;
+			anchor = sp;
+		}
+
+		/* Whatever is left goes out as literals */
+		dp = writeSequence(src, anchor, send - anchor, 0, 0, dst, dp);
+		return dp - doff;
+	}
+
+	/** Read the remainder of a length past its token nibble */
+	private static int readLength(byte[] src, int[] sp, int send)
+		throws IOException
+	{
+		int len;
+		int b;
+
+		len = 0;
+		do {
+			if(sp[0] >= send)
+				throw new IOException("Truncated LZ4 block");
+
+			b = src[sp[0]++] & 0xff;
+			len += b;
+		} while(b == 255);
+
+		return len;
+	}
+
+	/**
+	 * Decompress a block, which must come out to exactly dlen bytes.
+	 * @param src Compressed data
+	 * @param soff Offset of the data within src
+	 * @param slen Length of the compressed data
+	 * @param dst Destination of the original data
+	 * @param doff Offset within dst to start writing
+	 * @param dlen Length of the original data
+	 */
+	static void decompress(byte[] src, int soff, int slen,
+			       byte[] dst, int doff, int dlen)
+		throws IOException
+	{
+		int[] sp;
+		int token;
+		int offset;
+		int send;
+		int dend;
+		int nlit;
+		int mlen;
+		int ref;
+		int dp;
+
+		sp = new int[] { soff };
+		send = soff + slen;
+		dend = doff + dlen;
+		dp = doff;
+
+		for(;;) {
+			if(sp[0] >= send)
+				throw new IOException("Truncated LZ4 block");
+
+			token = src[sp[0]++] & 0xff;
+			nlit = token >>> 4;
+			if(nlit == 15)
+				nlit += readLength(src, sp, send);
+
+			if(nlit > send - sp[0] || nlit > dend - dp)
+				throw new IOException("Corrupt LZ4 block, literals overrun");
+
+			System.arraycopy(src, sp[0], dst, dp, nlit);
+			sp[0] += nlit;
+			dp += nlit;
+
+			/* The last sequence has no match */
+			if(sp[0] == send)
+				break;
+
+			if(send - sp[0] < 2)
+				throw new IOException("Truncated LZ4 block");
+
+			offset = (src[sp[0]] & 0xff) | (src[sp[0] + 1] & 0xff) << 8;
+			sp[0] += 2;
+			if(offset == 0 || offset > dp - doff)
+				throw new IOException("Corrupt LZ4 block, bad offset " + offset);
+
+			mlen = token & 0x0f;
+			if(mlen == 15)
+				mlen += readLength(src, sp, send);
+			mlen += MIN_MATCH;
+
+			if(mlen > dend - dp)
+				throw new IOException("Corrupt LZ4 block, match overrun");
+
+			ref = dp - offset;
+			if(offset >= mlen) {
+				System.arraycopy(dst, ref, dst, dp, mlen);
+				dp += mlen;
+			}
+			else {
+				/* Overlapping matches repeat what they copy */
+				for(int midx=0; midx < mlen; ++midx)
+					dst[dp++] = dst[ref++];
+			}
+		}
+
+		if(dp != dend)
+			throw new IOException("Corrupt LZ4 block, " + (dp - doff)
+					      + " of " + dlen + " bytes");
+	}
+}
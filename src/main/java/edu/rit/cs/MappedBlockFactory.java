@@ -0,0 +1,223 @@
+/**
+ * Copyright © 2015
+ * Hrfs Memory Mapped Block Factory
+ *
+ * Decomposes a file into blocks by mapping it into memory a window at a time,
+ * rather than copying it through a stream. Each block handed out is a read only
+ * view of the mapping, so data is only brought in from disk when a consumer
+ * actually touches it.
+ *
+ * @file MappedBlockFactory.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+public class MappedBlockFactory
+	extends BlockFactory
+{
+	public static final long DEFAULT_WINDOW_SIZE = 1024L*1024L*256L; // 256MB
+	private static final Log LOG = LogFactory.getLog(MappedBlockFactory.class);
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final long flength;
+	private final long wsize;
+	private MappedByteBuffer window;
+	private long wstart;
+
+	/**
+	 * Block implementor that is a read only view of a mapped window of a
+	 * file. The view is only valid as long as the mapping is, which is
+	 * managed by the garbage collector, so blocks remain safe to hold on to
+	 * after the factory has moved on to the next window.
+	 */
+	public static final class MappedBlock
+		implements Block
+	{
+		private final long _idx;
+		private final ByteBuffer _view;
+		private final PooledBuffer _pbuf;
+		private volatile byte[] _copy;
+
+		MappedBlock(ByteBuffer view, PooledBuffer pbuf, long idx)
+		{
+			_idx = idx;
+			_view = view;
+			_pbuf = pbuf;
+		}
+
+		@Override
+		public long length()
+		{ return (long)_view.capacity(); }
+
+		@Override
+		public long index()
+		{ return _idx; }
+
+		/**
+		 * The mapping cannot be exposed as an array, so this will copy the
+		 * view into a heap buffer on first use. Modifications to the
+		 * returned array will not change the underlying file.
+		 */
+		@Override
+		public byte[] data()
+		{
+			byte[] copy;
+
+			copy = _copy;
+			if(copy == null) {
+				copy = new byte[_view.capacity()];
+				_view.duplicate().get(copy);
+				_copy = copy;
+			}
+
+			return copy;
+		}
+
+		/**
+		 * Get a read only view of the block data, without copying it.
+		 * Every call returns a new view with its own position and limit.
+		 * @return View of the block data.
+		 */
+		@Override
+		public ByteBuffer buffer()
+		{
+			return _view.duplicate();
+		}
+
+		/**
+		 * Mapped views are unmapped by the collector, only the padded
+		 * tail block holds a pooled buffer.
+		 */
+		@Override
+		public void release()
+		{
+			if(_pbuf != null)
+				_pbuf.release();
+		}
+	}
+
+	/**
+	 * Constructs a new mapped factory upon a file, using the configured
+	 * mapping window size.
+	 * @param file File to produce blocks from.
+	 * @param blksz Size of blocks produced
+	 */
+	public MappedBlockFactory(File file, int blksz)
+		throws IOException
+	{
+		this(file, blksz, -1);
+	}
+
+	/**
+	 * Constructs a new mapped factory upon a file. The window size is
+	 * rounded down to a multiple of the block size, but is always at least
+	 * one block.
+	 * @param file File to produce blocks from.
+	 * @param blksz Size of blocks produced
+	 * @param wsize Size in bytes of each mapped window, or -1 for default.
+	 */
+	public MappedBlockFactory(File file, int blksz, long wsize)
+		throws IOException
+	{
+		super(blksz);
+
+		if(file == null)
+			throw new IOException("Null File Descriptor");
+		if(!file.exists())
+			throw new FileNotFoundException();
+
+		if(wsize < 0)
+			wsize = conf.getLong(HrfsKeys.HRFS_BLOCKFACTORY_MMAP_WINDOW,
+					     DEFAULT_WINDOW_SIZE);
+
+		/* A single mapping cannot exceed 2GB */
+		wsize = Math.min(wsize, (long)Integer.MAX_VALUE);
+		wsize = Math.max((wsize / blksz) * blksz, (long)blksz);
+		this.wsize = wsize;
+
+		this.raf = new RandomAccessFile(file, "r");
+		this.channel = raf.getChannel();
+		this.flength = channel.size();
+		this.window = null;
+		this.wstart = 0;
+
+		blockCount = flength / blksz;
+		if((flength % blksz) != 0 || blockCount == 0)
+			++blockCount; // At least a block count of 1.
+
+		LOG.info("Mapping " + file.getName() + " into " + blockCount
+			 + " blocks, " + wsize + " bytes at a time");
+		start();
+	}
+
+	/**
+	 * Produce a view of the next block within the current window, mapping
+	 * in the next window once the current one is exhausted. The short block
+	 * at the end of the file cannot be mapped past the end of the file, so
+	 * it is padded out in a pooled direct buffer instead.
+	 */
+	@Override
+	protected Block readBlock(long idx)
+		throws IOException
+	{
+		ByteBuffer view;
+		long offset;
+		long remaining;
+
+		offset = idx * blksz;
+		remaining = flength - offset;
+		if(remaining <= 0) {
+			window = null;
+			raf.close();
+			return null;
+		}
+
+		if(remaining < blksz) {
+			PooledBuffer pbuf;
+			ByteBuffer tail;
+
+			pbuf = BufferPool.getDirectPool().allocate(blksz);
+			tail = pbuf.buffer();
+			tail.limit(blksz);
+			try {
+				while(tail.position() < remaining) {
+					if(channel.read(tail, offset + tail.position()) < 0)
+						break;
+				}
+			}
+			catch(IOException e) {
+				pbuf.release();
+				throw e;
+			}
+
+			/* Recycled buffers hold stale data, pad out the short block */
+			while(tail.hasRemaining())
+				tail.put((byte)0);
+
+			tail.flip();
+			return new MappedBlock(tail.slice().asReadOnlyBuffer(), pbuf, idx);
+		}
+
+		if(window == null || offset + blksz > wstart + window.capacity()) {
+			wstart = offset;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, wstart,
+					     Math.min(wsize, flength - wstart));
+		}
+
+		view = window.duplicate();
+		view.position((int)(offset - wstart));
+		view.limit(view.position() + blksz);
+		return new MappedBlock(view.slice().asReadOnlyBuffer(), null, idx);
+	}
+}
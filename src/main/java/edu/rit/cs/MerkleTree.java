@@ -0,0 +1,358 @@
+/**
+ * Copyright © 2015
+ * Hrfs Merkle Tree
+ *
+ * Combines the ordered block hashes of a file into a single file digest. The
+ * leaves of the tree are the content hashes of the file's blocks, in index
+ * order, and each inner node is the hash of its two children. Two copies of a
+ * file can be compared by walking down only the subtrees whose hashes differ,
+ * and a single block can be checked against the root with a proof of log(n)
+ * sibling hashes, without reading any other block.
+ *
+ * Leaves and inner nodes are hashed with different prefixes, so that an inner
+ * node can never pass for a leaf. A node without a sibling, at the end of an
+ * odd length level, is carried up to the next level unchanged.
+ *
+ * The tree is Writable, so that it can be stored with the metadata of its
+ * file. Only the block hashes are written, the tree is rebuilt on read.
+ *
+ * @file MerkleTree.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import org.apache.hadoop.io.Writable;
+
+public class MerkleTree
+	implements Writable
+{
+	private static final byte[] LEAF_PREFIX = { 0x00 };
+	private static final byte[] NODE_PREFIX = { 0x01 };
+
+	private String hashname;
+	private byte[][] bhashes;
+	private List<byte[][]> levels;
+
+	/** Empty tree, to be filled in with readFields() */
+	public MerkleTree()
+	{
+		this.hashname = HrfsHashing.DEFAULT_FUNCTION;
+		this.levels = new ArrayList<byte[][]>();
+		build(new byte[0][]);
+	}
+
+	/**
+	 * Build a tree over the hashes of a file's blocks.
+	 * @param hashname Name of the content hash the blocks were hashed with
+	 * @param leaves Block hashes, in block index order
+	 */
+	public MerkleTree(String hashname, byte[][] leaves)
+	{
+		HrfsHashing.function(hashname); // Reject unknown names
+
+		this.hashname = hashname;
+		this.levels = new ArrayList<byte[][]>();
+		build(leaves);
+	}
+
+	/**
+	 * Build a tree over the hashed blocks of a file. The blocks may be in
+	 * any order, such as the order the HashEngine finished them in, but
+	 * their indices must run from zero with no gaps or repeats.
+	 * @param hashname Name of the content hash the blocks were hashed with
+	 * @param blocks Every hashed block of the file
+	 * @return Tree over the blocks.
+	 */
+	public static MerkleTree build(String hashname, Collection<DataBlock> blocks)
+	{
+		byte[][] leaves;
+		long idx;
+
+		leaves = new byte[blocks.size()][];
+		for(DataBlock dblk : blocks) {
+			idx = dblk.index();
+			if(idx < 0 || idx >= leaves.length || leaves[(int)idx] != null)
+				throw new IllegalArgumentException("Blocks must be indexed 0 to "
+								   + (leaves.length - 1)
+								   + " without repeats");
+
+			leaves[(int)idx] = dblk.hash();
+		}
+
+		return new MerkleTree(hashname, leaves);
+	}
+
+	/** Hash of a leaf, from the content hash of its block */
+	private static byte[] leafHash(String hashname, byte[] bhash)
+	{
+		return BlockHasher.forThread(HrfsHashing.functionName(hashname))
+			.update(LEAF_PREFIX, 0, 1)
+			.update(bhash, 0, bhash.length)
+			.digest().clone();
+	}
+
+	/** Hash of an inner node, from its two children */
+	private static byte[] nodeHash(String hashname, byte[] left, byte[] right)
+	{
+		return BlockHasher.forThread(HrfsHashing.functionName(hashname))
+			.update(NODE_PREFIX, 0, 1)
+			.update(left, 0, left.length)
+			.update(right, 0, right.length)
+			.digest().clone();
+	}
+
+	/** Build every level of the tree up from the block hashes. */
+	private void build(byte[][] leaves)
+	{
+		byte[][] level;
+		byte[][] next;
+
+		level = new byte[leaves.length][];
+		for(int lidx=0; lidx < leaves.length; ++lidx) {
+			if(leaves[lidx] == null)
+				throw new IllegalArgumentException("Missing hash for block " + lidx);
+
+			level[lidx] = leafHash(hashname, leaves[lidx]);
+		}
+
+		bhashes = leaves;
+		levels.clear();
+		levels.add(level);
+
+		while(level.length > 1) {
+			next = new byte[(level.length + 1) / 2][];
+			for(int nidx=0; nidx < next.length; ++nidx) {
+				if(2*nidx + 1 < level.length)
+					next[nidx] = nodeHash(hashname, level[2*nidx], level[2*nidx + 1]);
+				else
+					next[nidx] = level[2*nidx];
+			}
+
+			levels.add(next);
+			level = next;
+		}
+	}
+
+	/** Return the name of the content hash the tree is built with. */
+	public String getHashName()
+	{ return hashname; }
+
+	/** Return the number of blocks the tree covers. */
+	public long leafCount()
+	{ return levels.get(0).length; }
+
+	/**
+	 * Get the content hash of a block in the tree.
+	 * @param idx Index of the block
+	 * @return Content hash of the block.
+	 */
+	public byte[] blockHash(long idx)
+	{
+		if(idx < 0 || idx >= leafCount())
+			throw new IndexOutOfBoundsException("No block " + idx);
+
+		return bhashes[(int)idx].clone();
+	}
+
+	/** Return the number of levels in the tree, leaves included. */
+	public int depth()
+	{ return levels.size(); }
+
+	/**
+	 * Get the root of the tree, the digest of the whole file. A tree over
+	 * no blocks has the hash of nothing as its root.
+	 * @return Root hash.
+	 */
+	public byte[] root()
+	{
+		byte[][] top;
+
+		top = levels.get(levels.size() - 1);
+		if(top.length == 0)
+			return BlockHasher.forThread(HrfsHashing.functionName(hashname))
+				.digest().clone();
+
+		return top[0].clone();
+	}
+
+	/**
+	 * Get the proof that a block belongs to the tree, the sibling hashes
+	 * on the path from its leaf up to the root.
+	 * @param idx Index of the block
+	 * @return Sibling hashes, from the bottom of the tree up.
+	 */
+	public List<byte[]> proof(long idx)
+	{
+		List<byte[]> path;
+		byte[][] level;
+		int pos;
+		int sib;
+
+		if(idx < 0 || idx >= leafCount())
+			throw new IndexOutOfBoundsException("No block " + idx);
+
+		path = new ArrayList<byte[]>();
+		pos = (int)idx;
+		for(int lvl=0; lvl < levels.size() - 1; ++lvl) {
+			level = levels.get(lvl);
+			sib = pos ^ 1;
+			if(sib < level.length)
+				path.add(level[sib].clone());
+
+			pos >>>= 1;
+		}
+
+		return path;
+	}
+
+	/**
+	 * Check a block against the root of a tree, using a proof from the
+	 * tree. Only the root and the number of blocks need to be trusted.
+	 * @param hashname Name of the content hash of the tree
+	 * @param root Root of the tree
+	 * @param leafCount Number of blocks in the tree
+	 * @param idx Index of the block
+	 * @param bhash Content hash of the block
+	 * @param proof Proof given by proof() for the block
+	 * @return Whether the block belongs in the tree at that index.
+	 */
+	public static boolean verify(String hashname, byte[] root, long leafCount,
+				     long idx, byte[] bhash, List<byte[]> proof)
+	{
+		byte[] hash;
+		long size;
+		long pos;
+		int pidx;
+
+		if(idx < 0 || idx >= leafCount)
+			return false;
+
+		hash = leafHash(hashname, bhash);
+		pos = idx;
+		pidx = 0;
+		for(size = leafCount; size > 1; size = (size + 1) / 2) {
+			if((pos ^ 1) < size) {
+				if(pidx >= proof.size())
+					return false;
+
+				if((pos & 1) == 0)
+					hash = nodeHash(hashname, hash, proof.get(pidx++));
+				else
+					hash = nodeHash(hashname, proof.get(pidx++), hash);
+			}
+
+			pos >>>= 1;
+		}
+
+		return pidx == proof.size() && Arrays.equals(hash, root);
+	}
+
+	/**
+	 * Find the blocks that differ between two trees of the same file. When
+	 * both trees cover the same number of blocks, only subtrees whose hashes
+	 * differ are visited, so a few changed blocks cost a few walks down the
+	 * tree. Otherwise the leaves are compared, and every block beyond the
+	 * end of the shorter tree counts as different.
+	 * @param other Tree to compare against
+	 * @return Indices of blocks that differ, in increasing order.
+	 */
+	public List<Long> diff(MerkleTree other)
+	{
+		List<Long> diffs;
+		byte[][] mine;
+		byte[][] theirs;
+		long common;
+
+		if(!hashname.equals(other.hashname))
+			throw new IllegalArgumentException("Trees use different hashes");
+
+		diffs = new ArrayList<Long>();
+		mine = levels.get(0);
+		theirs = other.levels.get(0);
+
+		if(mine.length == theirs.length) {
+			if(mine.length > 0)
+				diff(other, levels.size() - 1, 0, diffs);
+			return diffs;
+		}
+
+		common = Math.min(mine.length, theirs.length);
+		for(int lidx=0; lidx < common; ++lidx)
+			if(!Arrays.equals(mine[lidx], theirs[lidx]))
+				diffs.add((long)lidx);
+
+		for(long lidx=common; lidx < Math.max(mine.length, theirs.length); ++lidx)
+			diffs.add(lidx);
+
+		return diffs;
+	}
+
+	/** Walk down the differing subtrees of two trees of the same shape */
+	private void diff(MerkleTree other, int lvl, int pos, List<Long> diffs)
+	{
+		byte[][] level;
+
+		level = levels.get(lvl);
+		if(Arrays.equals(level[pos], other.levels.get(lvl)[pos]))
+			return;
+
+		if(lvl == 0) {
+			diffs.add((long)pos);
+			return;
+		}
+
+		level = levels.get(lvl - 1);
+		diff(other, lvl - 1, 2*pos, diffs);
+		if(2*pos + 1 < level.length)
+			diff(other, lvl - 1, 2*pos + 1, diffs);
+	}
+
+	@Override
+	public void write(DataOutput out)
+		throws IOException
+	{
+		out.writeUTF(hashname);
+		out.writeInt(bhashes.length);
+		for(byte[] bhash : bhashes) {
+			out.writeShort(bhash.length);
+			out.write(bhash);
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in)
+		throws IOException
+	{
+		byte[][] leaves;
+		String hname;
+		int count;
+
+		hname = in.readUTF();
+		try {
+			HrfsHashing.function(hname);
+		}
+		catch(IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+
+		count = in.readInt();
+		if(count < 0)
+			throw new IOException("Invalid block count: " + count);
+
+		leaves = new byte[count][];
+		for(int lidx=0; lidx < count; ++lidx) {
+			leaves[lidx] = new byte[in.readUnsignedShort()];
+			in.readFully(leaves[lidx]);
+		}
+
+		this.hashname = hname;
+		build(leaves);
+	}
+}
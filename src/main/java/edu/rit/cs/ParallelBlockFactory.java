@@ -0,0 +1,335 @@
+/**
+ * Copyright © 2015
+ * Hrfs Parallel Block Factory
+ *
+ * Decomposes a file into blocks using several reader threads at once, each
+ * of which reads whole blocks with positional reads on a shared channel. A
+ * single sequential reader cannot keep a striped array or an NVMe device busy,
+ * several outstanding reads can. Blocks keep the index of where they lie in
+ * the file, and may be handed out in index order or as soon as they are read.
+ *
+ * @file ParallelBlockFactory.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+public class ParallelBlockFactory
+	extends BlockFactory
+{
+	public static final int DEFAULT_READERS = 4;
+	private static final Log LOG = LogFactory.getLog(ParallelBlockFactory.class);
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final long flength;
+	private final boolean ordered;
+	private final Thread[] readers;
+	private final AtomicLong claimed;
+	private final Semaphore slots;
+	private final ReentrantLock rlock;
+	private final Condition rready;
+
+	/* Guarded by rlock */
+	private final HashMap<Long, Block> pending;
+	private final ArrayDeque<Block> completed;
+	private long delivered;
+	private int live;
+	private IOException failure;
+
+	/**
+	 * Reads blocks out of the file until there are none left to claim. A
+	 * reader claims the next unread block index, so the readers between
+	 * them sweep the file front to back with several reads in flight.
+	 */
+	private class RangeReader
+		extends Thread
+	{
+		public RangeReader(int rdx)
+		{
+			super("ParallelBlockFactory-reader-" + rdx);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run()
+		{
+			long idx;
+
+			try {
+				for(;;) {
+					slots.acquire();
+
+					idx = claimed.getAndIncrement();
+					if(idx >= blockCount) {
+						slots.release();
+						break;
+					}
+
+					publish(read(idx));
+				}
+
+				retire(null);
+			}
+			catch(IOException e) {
+				if(!isClosed())
+					LOG.error("Failed to read block from disk: " + e.toString());
+				retire(e);
+			}
+			catch(InterruptedException e) {
+				retire(new InterruptedIOException("Reader interrupted"));
+			}
+		}
+	}
+
+	/**
+	 * Constructs a new parallel factory upon a file, using the configured
+	 * number of readers.
+	 * @param file File to produce raw blocks from.
+	 * @param blksz Size of blocks produced
+	 * @param ordered Whether blocks are handed out in index order.
+	 */
+	public ParallelBlockFactory(File file, int blksz, boolean ordered)
+		throws IOException
+	{
+		this(file, blksz, -1, ordered);
+	}
+
+	/**
+	 * Constructs a new parallel factory upon a file.
+	 * @param file File to produce raw blocks from.
+	 * @param blksz Size of blocks produced
+	 * @param nreaders Number of concurrent readers, or -1 for default.
+	 * @param ordered Whether blocks are handed out in index order.
+	 */
+	public ParallelBlockFactory(File file, int blksz, int nreaders, boolean ordered)
+		throws IOException
+	{
+		super(blksz);
+
+		if(file == null)
+			throw new IOException("Null File Descriptor");
+		if(!file.exists())
+			throw new FileNotFoundException();
+
+		if(nreaders < 0)
+			nreaders = conf.getInt(HrfsKeys.HRFS_BLOCKFACTORY_READERS,
+					       DEFAULT_READERS);
+		if(nreaders < 1)
+			throw new IOException("Invalid reader count: " + nreaders);
+
+		this.raf = new RandomAccessFile(file, "r");
+		this.channel = raf.getChannel();
+		this.flength = channel.size();
+		this.ordered = ordered;
+
+		blockCount = flength / blksz;
+		if((flength % blksz) != 0 || blockCount == 0)
+			++blockCount; // At least a block count of 1.
+
+		/*
+		 * Readers may only run so far ahead of the readahead worker, each
+		 * block read but not yet handed off holds one of these slots.
+		 */
+		this.claimed = new AtomicLong(0);
+		this.slots = new Semaphore(nreaders * 2);
+		this.rlock = new ReentrantLock();
+		this.rready = rlock.newCondition();
+		this.pending = new HashMap<Long, Block>();
+		this.completed = new ArrayDeque<Block>();
+		this.delivered = 0;
+		this.live = nreaders;
+		this.failure = null;
+
+		LOG.info("Reading " + file.getName() + " as " + blockCount
+			 + " blocks with " + nreaders + " readers");
+
+		this.readers = new Thread[nreaders];
+		for(int rdx=0; rdx < nreaders; ++rdx) {
+			readers[rdx] = new RangeReader(rdx);
+			readers[rdx].start();
+		}
+
+		start();
+	}
+
+	/** Return whether blocks are handed out in index order. */
+	@Override
+	public boolean isOrdered()
+	{ return ordered; }
+
+	/** Return the number of concurrent readers. */
+	public int getReaderCount()
+	{ return readers.length; }
+
+	/**
+	 * Read a single block at its offset in the file, padding out the short
+	 * block at the end of the file.
+	 */
+	private Block read(long idx)
+		throws IOException
+	{
+		PooledBuffer pbuf;
+		ByteBuffer buf;
+		long offset;
+		int res;
+
+		offset = idx * blksz;
+		pbuf = BufferPool.getHeapPool().allocate(blksz);
+		buf = pbuf.buffer();
+		buf.limit(blksz);
+
+		try {
+			while(buf.hasRemaining()) {
+				res = channel.read(buf, offset + buf.position());
+				if(res < 0)
+					break;
+			}
+		}
+		catch(IOException e) {
+			pbuf.release();
+			throw e;
+		}
+
+		/* Recycled buffers hold stale data, pad out the short block */
+		while(buf.hasRemaining())
+			buf.put((byte)0);
+
+		return new FactoryBlock(pbuf, blksz, idx);
+	}
+
+	/** Make a block that has been read available for handing out. */
+	private void publish(Block blk)
+	{
+		rlock.lock();
+		try {
+			/* Nobody will take it, close() has already emptied the queues */
+			if(isClosed()) {
+				blk.release();
+				return;
+			}
+
+			if(ordered)
+				pending.put(blk.index(), blk);
+			else
+				completed.add(blk);
+
+			rready.signalAll();
+		}
+		finally {
+			rlock.unlock();
+		}
+	}
+
+	/** Account for a reader that has run out of blocks, or failed. */
+	private void retire(IOException cause)
+	{
+		rlock.lock();
+		try {
+			--live;
+			if(cause != null && failure == null)
+				failure = cause;
+
+			if(live == 0)
+				raf.close();
+
+			rready.signalAll();
+		}
+		catch(IOException e) {
+			LOG.warn("Failed to close file: " + e.toString());
+		}
+		finally {
+			rlock.unlock();
+		}
+	}
+
+	/**
+	 * Hand the next block over to the readahead worker. In ordered mode
+	 * this waits for the block with the next index to be read, otherwise it
+	 * takes whichever block finished first.
+	 */
+	@Override
+	protected Block readBlock(long idx)
+		throws IOException
+	{
+		Block blk;
+
+		try {
+			rlock.lockInterruptibly();
+		}
+		catch(InterruptedException e) {
+			throw new InterruptedIOException("Interrupted waiting for readers");
+		}
+
+		try {
+			for(;;) {
+				if(failure != null)
+					throw new IOException("Parallel read failed", failure);
+
+				blk = ordered ? pending.remove(delivered) : completed.poll();
+				if(blk != null)
+					break;
+
+				if(live == 0 && pending.isEmpty())
+					return null;
+
+				rready.await();
+			}
+
+			++delivered;
+		}
+		catch(InterruptedException e) {
+			throw new InterruptedIOException("Interrupted waiting for readers");
+		}
+		finally {
+			rlock.unlock();
+		}
+
+		slots.release();
+		return blk;
+	}
+
+	/**
+	 * Stop producing blocks, along with the readers behind the factory,
+	 * releasing the blocks they have read but not handed over.
+	 */
+	@Override
+	public void close()
+		throws IOException
+	{
+		Block blk;
+
+		super.close();
+
+		for(Thread reader : readers)
+			reader.interrupt();
+
+		rlock.lock();
+		try {
+			for(Block held : pending.values())
+				held.release();
+			pending.clear();
+
+			while((blk = completed.poll()) != null)
+				blk.release();
+		}
+		finally {
+			rlock.unlock();
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright © 2015
+ * Hrfs Pooled Buffer
+ *
+ * A reference counted buffer handed out by a BufferPool. The buffer starts
+ * out with a single reference, each holder that shares it takes another with
+ * retain(), and once every holder has called release() it goes back to the
+ * pool it came from.
+ *
+ * @file PooledBuffer.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class PooledBuffer
+{
+	private final BufferPool pool;
+	private final ByteBuffer buffer;
+	private final byte[] array;
+	private final AtomicInteger refcnt;
+
+	/**
+	 * Wrap a buffer for the given pool, the pool is responsible for
+	 * resetting the reference count when the buffer is handed out.
+	 */
+	PooledBuffer(BufferPool pool, ByteBuffer buffer)
+	{
+		this.pool = pool;
+		this.buffer = buffer;
+		this.array = buffer.hasArray() ? buffer.array() : null;
+		this.refcnt = new AtomicInteger(0);
+	}
+
+	/** Called by the pool as the buffer is handed out. */
+	void reset()
+	{
+		refcnt.set(1);
+	}
+
+	/**
+	 * Get the backing array of a heap buffer. The array may be longer than
+	 * was asked for, as it is sized to the pool's size class.
+	 * @return Backing array, or null for a direct buffer.
+	 */
+	public byte[] array()
+	{
+		return array;
+	}
+
+	/**
+	 * Get a view of the whole buffer, with its own position and limit.
+	 * @return View of the buffer, positioned at zero.
+	 */
+	public ByteBuffer buffer()
+	{
+		ByteBuffer view;
+
+		view = buffer.duplicate();
+		view.clear();
+		return view;
+	}
+
+	/** Return the capacity of the buffer in bytes. */
+	public int capacity()
+	{
+		return buffer.capacity();
+	}
+
+	/** Return whether this buffer lives outside of the java heap. */
+	public boolean isDirect()
+	{
+		return buffer.isDirect();
+	}
+
+	/** Return the number of outstanding references to the buffer. */
+	public int refCount()
+	{
+		return refcnt.get();
+	}
+
+	/**
+	 * Take another reference to the buffer, which must be given up with
+	 * a matching call to release().
+	 * @return This buffer.
+	 */
+	public PooledBuffer retain()
+	{
+		int cnt;
+
+		do {
+			cnt = refcnt.get();
+			if(cnt <= 0)
+				throw new IllegalStateException("Buffer already released");
+		} while(!refcnt.compareAndSet(cnt, cnt + 1));
+
+		return this;
+	}
+
+	/**
+	 * Give up a reference to the buffer. Once the last reference is gone
+	 * the buffer is returned to its pool, and must not be used again.
+	 * @return Whether this was the last reference.
+	 */
+	public boolean release()
+	{
+		int cnt;
+
+		cnt = refcnt.decrementAndGet();
+		if(cnt < 0) {
+			refcnt.incrementAndGet();
+			throw new IllegalStateException("Buffer released too many times");
+		}
+
+		if(cnt > 0)
+			return false;
+
+		pool.recycle(this);
+		return true;
+	}
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright © 2015
+ * Hrfs Tree Hasher
+ *
+ * Hashes a single large block on several cores at once. The block is cut
+ * into fixed size chunks, each chunk is hashed on a fork join pool, and the
+ * chunk hashes are combined pairwise up a binary tree. The shape of the tree
+ * only depends on the length of the block and the chunk size, never on how
+ * many threads took part, so the same block always gets the same key.
+ *
+ * The left subtree of every node holds the largest power of two number of
+ * chunks that leaves something for the right. Chunk and node hashes are made
+ * with different prefixes, so a node can never pass for a chunk. A tree hash
+ * is a different key than a plain hash of the same block, every node in the
+ * cluster must use the same chunk size, which is why it is part of the name
+ * of the cluster's content hash. BlockHasher builds the same tree from data
+ * fed to it a piece at a time.
+ *
+ * @file TreeHasher.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import com.google.common.hash.HashFunction;
+
+public class TreeHasher
+{
+	public static final int MIN_CHUNK_SIZE = 4096;
+	private static final byte CHUNK_PREFIX = 0x00;
+	private static final byte NODE_PREFIX = 0x01;
+
+	private final HashFunction hashfn;
+	private final ForkJoinPool pool;
+	private final int chunk;
+
+	/**
+	 * Hashes a run of whole chunks, splitting the run in two and hashing
+	 * each half as its own task until only one chunk is left.
+	 */
+	private class ChunkTask
+		extends RecursiveTask<byte[]>
+	{
+		private final ByteBuffer _buf;
+		private final int _off;
+		private final int _len;
+
+		public ChunkTask(ByteBuffer buf, int off, int len)
+		{
+			_buf = buf;
+			_off = off;
+			_len = len;
+		}
+
+		@Override
+		protected byte[] compute()
+		{
+			ByteBuffer view;
+			ChunkTask left;
+			byte[] right;
+			int split;
+
+			if(_len <= chunk) {
+				/* Each task reads through its own view of the buffer */
+				view = _buf.duplicate();
+				view.limit(_off + _len);
+				view.position(_off);
+
+				return chunkHash(hashfn, view);
+			}
+
+			split = splitPoint(_len);
+			left = new ChunkTask(_buf, _off, split);
+			left.fork();
+			right = new ChunkTask(_buf, _off + split, _len - split).compute();
+
+			return nodeHash(hashfn, left.join(), right);
+		}
+	}
+
+	/**
+	 * Hash one chunk, the remaining bytes of a buffer.
+	 * @param hfn Hash function of the tree
+	 * @param buf Buffer holding the chunk
+	 * @return Hash of the chunk.
+	 */
+	static byte[] chunkHash(HashFunction hfn, ByteBuffer buf)
+	{
+		return BlockHasher.putBuffer(hfn.newHasher().putByte(CHUNK_PREFIX), buf)
+			.hash().asBytes();
+	}
+
+	/** Hash an inner node of the tree from its two children */
+	private static byte[] nodeHash(HashFunction hfn, byte[] left, byte[] right)
+	{
+		return hfn.newHasher()
+			.putByte(NODE_PREFIX)
+			.putBytes(left)
+			.putBytes(right)
+			.hash().asBytes();
+	}
+
+	/**
+	 * Combine a run of chunk hashes into the root of their tree, in the
+	 * same shape as a tree hash of the whole block.
+	 * @param hfn Hash function of the tree
+	 * @param chunks Hashes of every chunk, in order
+	 * @param from Index of the first chunk of the run
+	 * @param to Index after the last chunk of the run
+	 * @return Hash of the run.
+	 */
+	static byte[] combine(HashFunction hfn, List<byte[]> chunks, int from, int to)
+	{
+		int split;
+
+		if(to - from == 1)
+			return chunks.get(from);
+
+		split = Integer.highestOneBit(to - from - 1);
+		return nodeHash(hfn, combine(hfn, chunks, from, from + split),
+				combine(hfn, chunks, from + split, to));
+	}
+
+	/**
+	 * Build a tree hasher on the common fork join pool.
+	 * @param hfn Hash function for chunks and nodes
+	 * @param chunk Size of chunks in bytes
+	 */
+	public TreeHasher(HashFunction hfn, int chunk)
+	{
+		this(hfn, chunk, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Build a tree hasher.
+	 * @param hfn Hash function for chunks and nodes
+	 * @param chunk Size of chunks in bytes
+	 * @param pool Pool the chunks are hashed on
+	 */
+	public TreeHasher(HashFunction hfn, int chunk, ForkJoinPool pool)
+	{
+		if(hfn == null || pool == null)
+			throw new IllegalArgumentException("Invalid hash function or pool");
+		if(chunk < MIN_CHUNK_SIZE)
+			throw new IllegalArgumentException("Chunk size below " + MIN_CHUNK_SIZE);
+
+		this.hashfn = hfn;
+		this.chunk = chunk;
+		this.pool = pool;
+	}
+
+	/** Return the size of chunks in bytes. */
+	public int getChunkSize()
+	{ return chunk; }
+
+	/**
+	 * Where to split a run of bytes longer than a chunk, the largest power
+	 * of two number of chunks that is less than the whole run.
+	 */
+	private int splitPoint(int len)
+	{
+		long nchunks;
+
+		nchunks = (len + (long)chunk - 1) / chunk;
+		return (int)(Long.highestOneBit(nchunks - 1) * chunk);
+	}
+
+	/**
+	 * Tree hash a region of a buffer. Data no longer than a chunk is a
+	 * single chunk, and hashed on the calling thread.
+	 * @param buf Buffer holding the data
+	 * @param off Offset of the data within the buffer
+	 * @param len Length of the data
+	 * @return Tree hash of the data.
+	 */
+	public byte[] hash(byte[] buf, int off, int len)
+	{
+		return hash(ByteBuffer.wrap(buf, off, len));
+	}
+
+	/**
+	 * Tree hash the remaining bytes of a buffer, which may be direct. The
+	 * position of the buffer is left where it was.
+	 * @param buf Buffer holding the data
+	 * @return Tree hash of the data.
+	 */
+	public byte[] hash(ByteBuffer buf)
+	{
+		ChunkTask task;
+		ByteBuffer base;
+
+		base = buf.slice();
+		task = new ChunkTask(base, 0, base.remaining());
+		if(base.remaining() <= chunk)
+			return task.compute();
+
+		return pool.invoke(task);
+	}
+}
@@ -2,6 +2,9 @@
  * Copyright © 2014
  * Hrfs Ring Object and Utilities
  *
+ * Positions on the ring are BlockKeys, the same binary keys that blocks are
+ * named by, so a block's node is found without encoding its hash.
+ *
  * @file Ring.java
  * @author Will Dignazio <wdignazio@gmail.com>
  */
@@ -15,19 +18,21 @@ import java.util.SortedMap;
 import java.util.TreeMap;
 
 import com.google.common.hash.HashFunction;
-import com.google.common.hash.HashCode;
-import com.google.common.hash.Hashing;
 
+import edu.rit.cs.BlockKey;
+import edu.rit.cs.HrfsHashing;
 import edu.rit.cs.HrfsKeys;
 import edu.rit.cs.HrfsConfiguration;
 
-public final class Ring<H extends HashCode>
+public final class Ring
 	implements Serializable
 {
 	public static final String HASH_UNSET	= "UNSET";
-	public static final String HASH_SHA1	= "SHA1";
+	public static final String HASH_SHA1	= HrfsHashing.SHA1;
+	public static final String HASH_SHA256	= HrfsHashing.SHA256;
+	public static final String HASH_MURMUR3_128 = HrfsHashing.MURMUR3_128;
 	
-	private final SortedMap<H, RingNode> ring;
+	private final SortedMap<BlockKey, RingNode> ring;
 	private final String hashFunctionString;
        
 	private transient HashFunction _hashFunction;
@@ -43,13 +48,13 @@ public final class Ring<H extends HashCode>
 	public class RingNode
 		implements Serializable
 	{
-		private H hash;
+		private BlockKey hash;
 		private InetSocketAddress address;
 
 		/* Shield in default constructor */
 		private RingNode() { }
 		
-		RingNode(H hash, InetSocketAddress addr)
+		RingNode(BlockKey hash, InetSocketAddress addr)
 		{
 			this.hash = hash;
 			this.address = addr;
@@ -59,7 +64,7 @@ public final class Ring<H extends HashCode>
 		 * Gets the hash value assigned to this node.
 		 * @return hash Hash value for the node.
 		 */
-		public H getHash()
+		public BlockKey getHash()
 		{
 			return hash;
 		}
@@ -90,16 +95,24 @@ public final class Ring<H extends HashCode>
 	 */
 	private HashFunction translateFromHashString(String hstr)
 	{
-		switch(hstr)
-		{
-		case HASH_UNSET:
+		if(hstr == null || hstr.equals(HASH_UNSET))
 			return null;
-		case HASH_SHA1:
-			return Hashing.sha1();
-		default:
+
+		try {
+			return HrfsHashing.function(hstr);
+		}
+		catch(IllegalArgumentException e) {
 			return null;
 		}
 	}
+
+	/**
+	 * Get the name of the hash function used by this Ring.
+	 */
+	public String getHashFunctionName()
+	{
+		return hashFunctionString;
+	}
 	
 	/**
 	 * Get immutable hash function string for this Ring, this is also nifty
@@ -118,28 +131,28 @@ public final class Ring<H extends HashCode>
 	}
 	
 	/**
-	 * Build the Ring with the default hash function, this will as of this
-	 * revision be the SHA1 algorithm.
+	 * Build the Ring with the cluster hash function named by the
+	 * configuration, which is SHA1 unless configured otherwise.
 	 */
 	public Ring()
 	{
-		this.hashFunctionString = HASH_SHA1;
-		this.ring = new TreeMap<H, RingNode>();
-		this._hashFunction = translateFromHashString(hashFunctionString);
 		this._conf = new HrfsConfiguration();
+		this.hashFunctionString = HrfsHashing.configuredName(_conf);
+		this.ring = new TreeMap<BlockKey, RingNode>();
+		this._hashFunction = translateFromHashString(hashFunctionString);
 	}
 
 	public Ring(String hashstr)
 	{
 		this.hashFunctionString = hashstr;
-		this.ring = new TreeMap<H, RingNode>();
+		this.ring = new TreeMap<BlockKey, RingNode>();
 		this._hashFunction = translateFromHashString(hashFunctionString);
 		this._conf = new HrfsConfiguration();
 	}
 
 	public Ring(String hashstr, Collection<RingNode> nodes)
 	{
-		this.ring = new TreeMap<H, RingNode>();
+		this.ring = new TreeMap<BlockKey, RingNode>();
 		this.hashFunctionString = hashstr;
 		this._hashFunction = translateFromHashString(hashstr);
 		this._conf = new HrfsConfiguration();
@@ -148,7 +161,7 @@ public final class Ring<H extends HashCode>
 			add(node);
 	}
 
-	public RingNode createNode(H hash, InetSocketAddress addr)
+	public RingNode createNode(BlockKey hash, InetSocketAddress addr)
 	{
 		return new RingNode(hash, addr);
 	}
@@ -168,7 +181,7 @@ public final class Ring<H extends HashCode>
 
 	public boolean contains(RingNode node)
 	{
-		H hash;
+		BlockKey hash;
 		
 		hash = node.getHash();
 		if(ring.get(hash) != null)
@@ -182,13 +195,13 @@ public final class Ring<H extends HashCode>
 		ring.remove(node.getHash());
 	}
 
-	public RingNode get(H hash)
+	public RingNode get(BlockKey hash)
 	{
 		if(ring.isEmpty())
 			return null;
 
 		if(!ring.containsKey(hash)) {
-			SortedMap<H, RingNode> tailMap;
+			SortedMap<BlockKey, RingNode> tailMap;
 
 			/* Returns a list greater than this hash */
 			tailMap = ring.tailMap(hash);
@@ -27,12 +27,12 @@ import org.apache.zookeeper.*;
 import org.apache.zookeeper.ZooDefs.*;
 
 import com.google.common.base.Charsets;
-import com.google.common.hash.Hashing;
-import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
 
 import edu.rit.cs.HrfsConfiguration;
+import edu.rit.cs.HrfsHashing;
 import edu.rit.cs.HrfsKeys;
+import edu.rit.cs.BlockKey;
 import edu.rit.cs.Ring;
 
 public class RingManager
@@ -50,7 +50,7 @@ public class RingManager
 
 
 	private InetSocketAddress node_addr;
-	private HashCode chash;
+	private BlockKey chash;
 	private HrfsConfiguration conf;
 	private Ring.RingNode manager_rnode;
 	private ClusterLock ringlock;
@@ -81,8 +81,8 @@ public class RingManager
 
 		potent = potent;
 		suuid = null;
-		hf = Hashing.sha1();
 		this.conf = new HrfsConfiguration();
+		hf = HrfsHashing.configured(conf);
 
 		/* Initialize the agent to a static hash value */
 		fuuid = new File(conf.get(HrfsKeys.HRFS_NODE_PATH, null) + "/uuid");
@@ -106,9 +106,9 @@ public class RingManager
 		}
 
 		LOG.info("Builing uuid chash from " + suuid);
-		chash = hf.newHasher()
-			.putString(suuid, Charsets.UTF_8)
-			.hash();		
+		chash = new BlockKey(hf.newHasher()
+				     .putString(suuid, Charsets.UTF_8)
+				     .hash().asBytes());
 		LOG.info("Cluster agent chash: " + chash.toString());
 
 		/* Setup the ZooKeeper session */
@@ -202,12 +202,12 @@ public class RingManager
 			return getRing();
 		}
 
-		/* Create an empty ring of SHA1 */
+		/* Create an empty ring of the configured hash */
 		nodes = new LinkedList<Ring.RingNode>();
 		nodes.add(manager_rnode);
 
 		/* Create the brand new ring. */
-		ring = new Ring(Ring.HASH_SHA1, nodes);
+		ring = new Ring(HrfsHashing.configuredName(conf), nodes);
 		setRing(ring);
 
 		ringlock.unlock();
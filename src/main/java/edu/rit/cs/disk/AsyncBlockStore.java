@@ -0,0 +1,30 @@
+/**
+ * Copyright © 2015
+ * Hrfs Asynchronous Block Store API
+ *
+ * A BlockStore whose inserts are written in the background, so a block may
+ * not be readable as soon as insert() returns. Callers that must read a block
+ * back, or move it between stores, wait on the future from insertAsync()
+ * instead.
+ *
+ * @file AsyncBlockStore.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs.disk;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import edu.rit.cs.DataBlock;
+
+public interface AsyncBlockStore
+	extends BlockStore
+{
+	/**
+	 * Insert a block in the background.
+	 * @param blk Block to insert
+	 * @return Future completed with the block once it can be read back.
+	 */
+	public CompletableFuture<DataBlock> insertAsync(DataBlock blk)
+		throws IOException;
+}
@@ -0,0 +1,358 @@
+/**
+ * Copyright © 2015
+ * Hrfs Block Cache
+ *
+ * Keeps recently and frequently read blocks in memory, up to a budget in
+ * bytes. Blocks are admitted with the W-TinyLFU policy: new blocks land in a
+ * small LRU window, and once pushed out of it, only take a place in the main
+ * cache if they have been asked for more often than the block they would
+ * replace. A scan through a large file reads every block once, and so can't
+ * push out blocks that are read again and again.
+ *
+ * The main cache is a segmented LRU. Blocks enter its probation segment, and
+ * are promoted to the protected segment when read again. Lookups go through
+ * a concurrent map, bookkeeping for a hit is skipped rather than waited on
+ * when another thread holds the policy lock.
+ *
+ * @file BlockCache.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs.disk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.rit.cs.BlockKey;
+import edu.rit.cs.DataBlock;
+import edu.rit.cs.HrfsConfiguration;
+import edu.rit.cs.HrfsKeys;
+
+public class BlockCache
+{
+	static
+	{
+		HrfsConfiguration.init();
+	}
+
+	public static final long DEFAULT_CACHE_BYTES = 1024L*1024L*64L;	// 64MB
+	public static final int WINDOW_PERCENT = 1;
+	public static final int PROTECTED_PERCENT = 80;
+	public static final int ENTRY_OVERHEAD = 128;
+	private static final int EXPECTED_BLOCK_SIZE = 1024 * 64;
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+
+	private final ConcurrentHashMap<BlockKey, Node> map;
+	private final ReentrantLock lock;
+	private final FrequencySketch sketch;
+	private final AccessQueue[] queues;
+	private final long[] qbytes;
+	private final long capacity;
+	private final long windowMax;
+	private final long protectedMax;
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final AtomicLong evictions;
+
+	/** Cached block, linked into the queue of the segment it is in */
+	private static final class Node
+	{
+		final BlockKey key;
+		final DataBlock block;
+		final long weight;
+		int queue;
+		Node prev;
+		Node next;
+
+		Node(BlockKey key, DataBlock block, long weight)
+		{
+			this.key = key;
+			this.block = block;
+			this.weight = weight;
+			this.queue = -1;
+		}
+	}
+
+	/** Least recently used first queue of nodes, around a sentinel */
+	private static final class AccessQueue
+	{
+		private final Node head;
+
+		AccessQueue()
+		{
+			head = new Node(null, null, 0);
+			head.prev = head;
+			head.next = head;
+		}
+
+		boolean isEmpty()
+		{ return head.next == head; }
+
+		Node first()
+		{ return isEmpty() ? null : head.next; }
+
+		Node next(Node node)
+		{ return (node.next == head) ? null : node.next; }
+
+		void addLast(Node node)
+		{
+			node.prev = head.prev;
+			node.next = head;
+			head.prev.next = node;
+			head.prev = node;
+		}
+
+		void remove(Node node)
+		{
+			node.prev.next = node.next;
+			node.next.prev = node.prev;
+			node.prev = null;
+			node.next = null;
+		}
+	}
+
+	/**
+	 * Build a cache with the configured memory budget.
+	 */
+	public BlockCache()
+	{
+		this(new HrfsConfiguration().getLong(HrfsKeys.HRFS_CACHE_BYTES,
+						     DEFAULT_CACHE_BYTES));
+	}
+
+	/**
+	 * Build a cache with a memory budget.
+	 * @param capacity Most bytes of blocks to hold
+	 */
+	public BlockCache(long capacity)
+	{
+		if(capacity < 0)
+			throw new IllegalArgumentException("Invalid cache size: " + capacity);
+
+		this.capacity = capacity;
+		this.windowMax = capacity * WINDOW_PERCENT / 100;
+		this.protectedMax = (capacity - windowMax) * PROTECTED_PERCENT / 100;
+		this.map = new ConcurrentHashMap<BlockKey, Node>();
+		this.lock = new ReentrantLock();
+		this.sketch = new FrequencySketch(capacity / EXPECTED_BLOCK_SIZE);
+		this.queues = new AccessQueue[] {
+			new AccessQueue(), new AccessQueue(), new AccessQueue()
+		};
+		this.qbytes = new long[3];
+		this.hits = new AtomicLong(0);
+		this.misses = new AtomicLong(0);
+		this.evictions = new AtomicLong(0);
+	}
+
+	/**
+	 * Look up a block.
+	 * @param key Key of the block
+	 * @return Cached block, or null if it isn't cached.
+	 */
+	public DataBlock get(BlockKey key)
+	{
+		Node node;
+
+		node = map.get(key);
+		if(node == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		hits.incrementAndGet();
+
+		/* A busy policy only costs the hit its promotion */
+		if(lock.tryLock()) {
+			try {
+				sketch.increment(key.hashCode());
+				if(node.queue >= 0)
+					onAccess(node);
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		return node.block;
+	}
+
+	/**
+	 * Offer a block to the cache, usually after a miss. The block may be
+	 * turned away by the admission policy.
+	 * @param blk Block to cache
+	 */
+	public void put(DataBlock blk)
+	{
+		BlockKey key;
+		Node node;
+
+		key = blk.key();
+		node = new Node(key, blk, blk.length() + ENTRY_OVERHEAD);
+
+		lock.lock();
+		try {
+			sketch.increment(key.hashCode());
+			if(map.containsKey(key) || node.weight > capacity)
+				return;
+
+			map.put(key, node);
+			link(node, WINDOW);
+
+			/* Blocks pushed out of the window compete for the main cache */
+			while(qbytes[WINDOW] > windowMax)
+				admit(queues[WINDOW].first());
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drop a block from the cache, such as when it is deleted.
+	 * @param key Key of the block
+	 */
+	public void invalidate(BlockKey key)
+	{
+		Node node;
+
+		lock.lock();
+		try {
+			node = map.remove(key);
+			if(node != null && node.queue >= 0)
+				unlink(node);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/** Put a node at the back of a segment's queue */
+	private void link(Node node, int queue)
+	{
+		node.queue = queue;
+		queues[queue].addLast(node);
+		qbytes[queue] += node.weight;
+	}
+
+	/** Take a node out of whatever segment it is in */
+	private void unlink(Node node)
+	{
+		queues[node.queue].remove(node);
+		qbytes[node.queue] -= node.weight;
+		node.queue = -1;
+	}
+
+	/** Drop a node from the cache entirely */
+	private void evict(Node node)
+	{
+		unlink(node);
+		map.remove(node.key, node);
+		evictions.incrementAndGet();
+	}
+
+	/**
+	 * Move a node out of the window and into probation, if it is asked
+	 * for more than the blocks it would push out of the main cache. The
+	 * victims are chosen and weighed against the candidate first, and
+	 * only evicted if the candidate wins against all of them.
+	 */
+	private void admit(Node cand)
+	{
+		List<Node> victims;
+		Node victim;
+		long needed;
+		long freed;
+		int cfreq;
+
+		unlink(cand);
+		needed = qbytes[PROBATION] + qbytes[PROTECTED] + cand.weight
+			- (capacity - windowMax);
+		cfreq = sketch.frequency(cand.key.hashCode());
+
+		victims = new ArrayList<Node>();
+		freed = 0;
+		for(int queue=PROBATION; queue <= PROTECTED && freed < needed; ++queue) {
+			victim = queues[queue].first();
+			for(; victim != null && freed < needed; victim = queues[queue].next(victim)) {
+				/* Ties go to the incumbent, which is what stops scans */
+				if(cfreq <= sketch.frequency(victim.key.hashCode())) {
+					map.remove(cand.key, cand);
+					evictions.incrementAndGet();
+					return;
+				}
+
+				victims.add(victim);
+				freed += victim.weight;
+			}
+		}
+
+		for(Node chosen : victims)
+			evict(chosen);
+
+		link(cand, PROBATION);
+	}
+
+	/** Record a hit, promoting blocks read again out of probation */
+	private void onAccess(Node node)
+	{
+		Node demoted;
+
+		switch(node.queue)
+		{
+		case WINDOW:
+			unlink(node);
+			link(node, WINDOW);
+			break;
+		case PROBATION:
+			unlink(node);
+			link(node, PROTECTED);
+			while(qbytes[PROTECTED] > protectedMax) {
+				demoted = queues[PROTECTED].first();
+				unlink(demoted);
+				link(demoted, PROBATION);
+			}
+			break;
+		default:
+			unlink(node);
+			link(node, PROTECTED);
+			break;
+		}
+	}
+
+	/** Return the memory budget of the cache in bytes. */
+	public long getCapacity()
+	{ return capacity; }
+
+	/** Return the bytes held by the cache, overhead included. */
+	public long size()
+	{
+		lock.lock();
+		try {
+			return qbytes[WINDOW] + qbytes[PROBATION] + qbytes[PROTECTED];
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/** Return the number of blocks held by the cache. */
+	public int count()
+	{ return map.size(); }
+
+	/** Return the number of lookups served from the cache. */
+	public long getHitCount()
+	{ return hits.get(); }
+
+	/** Return the number of lookups the cache could not serve. */
+	public long getMissCount()
+	{ return misses.get(); }
+
+	/** Return the number of blocks turned away or pushed out. */
+	public long getEvictionCount()
+	{ return evictions.get(); }
+}
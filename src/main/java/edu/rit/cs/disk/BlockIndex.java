@@ -0,0 +1,980 @@
+/**
+ * Copyright © 2015
+ * Hrfs Block Index
+ *
+ * Remembers which blocks a node holds, and how many references each has, so
+ * a restarted node knows its blocks without walking its store. The index is a
+ * hash table kept off the java heap, slots laid out like a SegmentIndex, and
+ * is made durable with a checkpoint and a journal.
+ *
+ * A checkpoint is the whole table written to a temporary file and renamed
+ * into place, checksummed at the end, taken every so often and when the index
+ * is closed. Every change since is appended to a journal, as the new count of
+ * the block rather than the change to it, each record with its own checksum.
+ * Taking a checkpoint starts a new journal first and writes the table while
+ * changes carry on, so a checkpoint may hold some changes from the new journal,
+ * and replaying the journal over it sets those blocks to the same counts.
+ * Journals older than the checkpoint are then deleted.
+ *
+ * Loading reads the checkpoint and replays the journals after it, stopping a
+ * journal at its first torn record. Tens of millions of blocks load in the
+ * time it takes to read the checkpoint once.
+ *
+ * Closing leaves a clean marker beside the checkpoint, and opening removes
+ * it, so isClean() tells whether the index was last closed rather than lost
+ * to a crash. An index kept beside a store is only written once the store has
+ * been, so after a crash it can be behind the store, and should be checked
+ * against it.
+ *
+ * @file BlockIndex.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs.disk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.rit.cs.BlockKey;
+import edu.rit.cs.HrfsConfiguration;
+import edu.rit.cs.HrfsKeys;
+
+public class BlockIndex
+{
+	static
+	{
+		HrfsConfiguration.init();
+	}
+
+	public static final long DEFAULT_CHECKPOINT_INTERVAL = 300;	// Seconds
+	public static final String CHECKPOINT_NAME = "index.ckpt";
+	public static final String CLEAN_NAME = "index.clean";
+	public static final int MAGIC = 0x48524249;			// "HRBI"
+	public static final int VERSION = 1;
+	public static final int SLOT_SIZE = 48;
+	public static final int MIN_SLOTS = 1024;
+	public static final int MAX_SLOTS = 1 << 25;
+	public static final int SCAN_CHUNK = 4096;
+	public static final int SCAN_RETRIES = 3;
+	private static final Log LOG = LogFactory.getLog(BlockIndex.class);
+	private static final Pattern JOURNAL_NAME = Pattern.compile("journal-(\\d{8})\\.log");
+
+	/* Slot layout, the key is padded out to its longest length */
+	private static final int KEY = 0;
+	private static final int KEY_LENGTH = 32;
+	private static final int REFS = 40;
+
+	private static final byte EMPTY = 0;
+	private static final byte REMOVED = (byte)0xff;
+
+	/* Journal records */
+	private static final byte OP_SET = 1;
+	private static final byte OP_REMOVE = 2;
+	private static final int RECORD_MAX = 2 + BlockKey.MAX_LENGTH + 8 + 4;
+
+	private final File dir;
+	private final long interval;
+	private final boolean sync;
+	private final ReentrantLock lock;
+	private final ByteBuffer record;
+	private final CRC32 crc;
+	private final AtomicLong checkpoints;
+	private ByteBuffer table;
+	private int mask;
+	private int size;
+	private int used;
+	private long rehashes;
+	private int generation;
+	private RandomAccessFile journal;
+	private FileChannel jchannel;
+	private Checkpointer checkpointer;
+	private boolean isopen;
+	private boolean clean;
+
+	/** Takes a checkpoint every so often */
+	private class Checkpointer
+		extends Thread
+	{
+		private final CountDownLatch stop;
+
+		public Checkpointer()
+		{
+			super("BlockIndex-checkpointer");
+			setDaemon(true);
+			this.stop = new CountDownLatch(1);
+		}
+
+		/* Interrupting could close the journal under a writer */
+		public void finish()
+		{
+			stop.countDown();
+		}
+
+		@Override
+		public void run()
+		{
+			try {
+				while(!stop.await(interval, TimeUnit.SECONDS)) {
+					try {
+						checkpoint();
+					}
+					catch(IOException e) {
+						LOG.error("Failed to checkpoint block index: " + e.toString());
+					}
+				}
+			}
+			catch(InterruptedException e) {
+				LOG.warn("Block index checkpointer interrupted");
+			}
+		}
+	}
+
+	/**
+	 * Build an index kept in a directory, checkpointed as configured.
+	 * @param path Directory for the checkpoint and journals
+	 */
+	public BlockIndex(String path)
+	{
+		this(path, new HrfsConfiguration().getLong(HrfsKeys.HRFS_INDEX_CHECKPOINT_INTERVAL,
+							   DEFAULT_CHECKPOINT_INTERVAL),
+		     new HrfsConfiguration().getBoolean(HrfsKeys.HRFS_INDEX_SYNC, false));
+	}
+
+	/**
+	 * Build an index kept in a directory.
+	 * @param path Directory for the checkpoint and journals
+	 * @param interval Seconds between checkpoints
+	 * @param sync Whether to sync every journal record to disk
+	 */
+	public BlockIndex(String path, long interval, boolean sync)
+	{
+		if(path == null)
+			throw new IllegalArgumentException("No block index path");
+		if(interval <= 0)
+			throw new IllegalArgumentException("Invalid checkpoint interval: " + interval);
+
+		this.dir = new File(path);
+		this.interval = interval;
+		this.sync = sync;
+		this.lock = new ReentrantLock();
+		this.record = ByteBuffer.allocate(RECORD_MAX);
+		this.crc = new CRC32();
+		this.checkpoints = new AtomicLong(0);
+		this.isopen = false;
+		this.clean = false;
+		allocate(MIN_SLOTS);
+	}
+
+	private void allocate(int slots)
+	{
+		table = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+		mask = slots - 1;
+		size = 0;
+		used = 0;
+	}
+
+	/** Spread a key's hash code over the table */
+	private int home(BlockKey key)
+	{
+		int hash;
+
+		hash = key.hashCode() * 0x9e3779b9;
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	/** Whether the slot at a byte position holds a key */
+	private boolean matches(int pos, byte[] kbytes)
+	{
+		if(table.get(pos + KEY_LENGTH) != kbytes.length)
+			return false;
+
+		for(int kidx=0; kidx < kbytes.length; ++kidx)
+			if(table.get(pos + KEY + kidx) != kbytes[kidx])
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Find the byte position of a key's slot.
+	 * @return Position of the slot, or -1 if the key isn't indexed.
+	 */
+	private int find(BlockKey key, byte[] kbytes)
+	{
+		byte state;
+		int slot;
+		int pos;
+
+		slot = home(key);
+		for(;;) {
+			pos = slot * SLOT_SIZE;
+			state = table.get(pos + KEY_LENGTH);
+			if(state == EMPTY)
+				return -1;
+			if(state != REMOVED && matches(pos, kbytes))
+				return pos;
+
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/** Read the key out of the slot at a byte position */
+	private static BlockKey keyAt(ByteBuffer buf, int pos, byte klen)
+	{
+		byte[] kbytes;
+
+		kbytes = new byte[klen];
+		for(int kidx=0; kidx < kbytes.length; ++kidx)
+			kbytes[kidx] = buf.get(pos + KEY + kidx);
+
+		return new BlockKey(kbytes);
+	}
+
+	/** Set the references to a key in the table, removing it at zero */
+	private void store(BlockKey key, long refs)
+	{
+		byte[] kbytes;
+		byte state;
+		int slot;
+		int pos;
+
+		kbytes = key.toBytes();
+		if(kbytes.length == 0 || kbytes.length > BlockKey.MAX_LENGTH)
+			throw new IllegalArgumentException("Invalid block key length: " + kbytes.length);
+
+		pos = find(key, kbytes);
+		if(pos >= 0) {
+			if(refs > 0) {
+				table.putLong(pos + REFS, refs);
+			}
+			else {
+				table.put(pos + KEY_LENGTH, REMOVED);
+				--size;
+			}
+			return;
+		}
+
+		if(refs <= 0)
+			return;
+
+		if(used + 1 > (mask + 1) * 3L / 4) {
+			if((size + 1) * 2L <= mask + 1)
+				rehash(mask + 1);
+			else if(mask + 1 < MAX_SLOTS)
+				rehash((mask + 1) << 1);
+			else if(size + 1 >= mask + 1)
+				throw new IllegalStateException("Block index full");
+			else if(used + 1 >= mask + 1)
+				rehash(mask + 1);
+		}
+
+		/* Reuse the first free slot along the probe */
+		slot = home(key);
+		for(;;) {
+			pos = slot * SLOT_SIZE;
+			state = table.get(pos + KEY_LENGTH);
+			if(state == EMPTY || state == REMOVED)
+				break;
+
+			slot = (slot + 1) & mask;
+		}
+
+		if(state == EMPTY)
+			++used;
+		++size;
+
+		for(int kidx=0; kidx < KEY_LENGTH; ++kidx)
+			table.put(pos + KEY + kidx, kidx < kbytes.length ? kbytes[kidx] : 0);
+		table.put(pos + KEY_LENGTH, (byte)kbytes.length);
+		table.putLong(pos + REFS, refs);
+	}
+
+	/** Move every entry into a fresh table, clearing out removed markers */
+	private void rehash(int slots)
+	{
+		ByteBuffer old;
+		byte state;
+		int oldSlots;
+		int slot;
+		int pos;
+
+		old = table;
+		oldSlots = mask + 1;
+		allocate(slots);
+		++rehashes;
+
+		for(int oslot=0; oslot < oldSlots; ++oslot) {
+			pos = oslot * SLOT_SIZE;
+			state = old.get(pos + KEY_LENGTH);
+			if(state == EMPTY || state == REMOVED)
+				continue;
+
+			slot = home(keyAt(old, pos, state));
+			while(table.get(slot * SLOT_SIZE + KEY_LENGTH) != EMPTY)
+				slot = (slot + 1) & mask;
+
+			for(int bidx=0; bidx < SLOT_SIZE; bidx += 8)
+				table.putLong(slot * SLOT_SIZE + bidx, old.getLong(pos + bidx));
+
+			++size;
+			++used;
+		}
+	}
+
+	private File journalFile(int gen)
+	{
+		return new File(dir, String.format("journal-%08d.log", gen));
+	}
+
+	/** Find the journals in the directory, by generation */
+	private SortedMap<Integer, File> journals()
+	{
+		SortedMap<Integer, File> found;
+		Matcher matcher;
+		String[] names;
+
+		found = new TreeMap<Integer, File>();
+		names = dir.list();
+		if(names == null)
+			return found;
+
+		for(String name : names) {
+			matcher = JOURNAL_NAME.matcher(name);
+			if(matcher.matches())
+				found.put(Integer.parseInt(matcher.group(1)), new File(dir, name));
+		}
+
+		return found;
+	}
+
+	/**
+	 * Open the index, loading the checkpoint and replaying the journals
+	 * after it. An index with nothing to load starts empty.
+	 * @return Whether the index was loaded, rather than starting empty.
+	 *         One that wasn't should be filled in from its store.
+	 */
+	public boolean open()
+		throws IOException
+	{
+		SortedMap<Integer, File> found;
+		File marker;
+		File ckpt;
+		boolean loaded;
+		int first;
+
+		if(!dir.exists() && !dir.mkdirs())
+			throw new IOException("Unable to create block index directory " + dir);
+
+		lock.lock();
+		try {
+			if(isopen)
+				throw new IOException("Block index already open");
+
+			/* Whatever happens from here on, the last close is used up */
+			marker = new File(dir, CLEAN_NAME);
+			clean = marker.exists();
+			if(clean) {
+				Files.delete(marker.toPath());
+				syncDir();
+			}
+
+			allocate(MIN_SLOTS);
+			found = journals();
+			ckpt = new File(dir, CHECKPOINT_NAME);
+			loaded = false;
+			first = 1;
+			if(ckpt.exists()) {
+				try {
+					first = loadCheckpoint(ckpt);
+					loaded = true;
+				}
+				catch(IOException e) {
+					LOG.error("Discarding block index checkpoint: " + e.toString());
+					allocate(MIN_SLOTS);
+				}
+			}
+			else {
+				/* Without a checkpoint, only a first journal tells everything */
+				loaded = found.containsKey(1);
+			}
+
+			if(loaded) {
+				for(File jfile : found.tailMap(first).values())
+					replay(jfile);
+			}
+			else {
+				allocate(MIN_SLOTS);
+				clean = false;
+			}
+
+			generation = found.isEmpty() ? first : Math.max(first, found.lastKey() + 1);
+			startJournal();
+			isopen = true;
+		}
+		finally {
+			lock.unlock();
+		}
+
+		checkpointer = new Checkpointer();
+		checkpointer.start();
+		LOG.info("Block index opened with " + size + " blocks" + (loaded ? "" : ", rebuilding"));
+		return loaded;
+	}
+
+	/**
+	 * Sync the directory, so a marker made or removed in it outlives a
+	 * crash. Not every platform can sync a directory, those are left to
+	 * the file system.
+	 */
+	private void syncDir()
+	{
+		FileChannel dchannel;
+
+		try {
+			dchannel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+			try {
+				dchannel.force(true);
+			}
+			finally {
+				dchannel.close();
+			}
+		}
+		catch(IOException e) {
+			LOG.debug("Unable to sync block index directory: " + e.toString());
+		}
+	}
+
+	/**
+	 * Return whether the index was last closed cleanly, rather than lost to
+	 * a crash, so it holds every change made before then.
+	 */
+	public boolean isClean()
+	{
+		lock.lock();
+		try {
+			return clean;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/** Open a fresh journal for the current generation */
+	private void startJournal()
+		throws IOException
+	{
+		journal = new RandomAccessFile(journalFile(generation), "rw");
+		journal.setLength(0);
+		jchannel = journal.getChannel();
+	}
+
+	/**
+	 * Read a checkpoint into the table.
+	 * @return Generation of the first journal after it.
+	 */
+	private int loadCheckpoint(File ckpt)
+		throws IOException
+	{
+		CheckedInputStream cis;
+		DataInputStream din;
+		byte[] kbytes;
+		long count;
+		long read;
+		int gen;
+		int klen;
+
+		cis = new CheckedInputStream(new BufferedInputStream(new FileInputStream(ckpt),
+								     1024 * 1024), new CRC32());
+		din = new DataInputStream(cis);
+		try {
+			if(din.readInt() != MAGIC)
+				throw new IOException("Not a block index checkpoint");
+			if(din.readInt() != VERSION)
+				throw new IOException("Unknown block index version");
+
+			gen = din.readInt();
+			read = 0;
+			kbytes = new byte[BlockKey.MAX_LENGTH];
+			for(;;) {
+				klen = din.readUnsignedByte();
+				if(klen == 0)
+					break;
+				if(klen > BlockKey.MAX_LENGTH)
+					throw new IOException("Invalid key length in checkpoint: " + klen);
+
+				din.readFully(kbytes, 0, klen);
+				store(new BlockKey(kbytes, 0, klen), din.readLong());
+				++read;
+			}
+
+			count = din.readLong();
+			if(count != read)
+				throw new IOException("Checkpoint holds " + read + " blocks, expected " + count);
+			if((int)cis.getChecksum().getValue() != din.readInt())
+				throw new IOException("Checkpoint checksum mismatch");
+
+			return gen;
+		}
+		catch(EOFException e) {
+			throw new IOException("Truncated block index checkpoint");
+		}
+		finally {
+			din.close();
+		}
+	}
+
+	/** Apply a journal to the table, up to its first torn record */
+	private void replay(File jfile)
+		throws IOException
+	{
+		DataInputStream din;
+		byte[] kbytes;
+		long refs;
+		byte op;
+		int klen;
+		int sum;
+
+		din = new DataInputStream(new BufferedInputStream(new FileInputStream(jfile)));
+		kbytes = new byte[BlockKey.MAX_LENGTH];
+		try {
+			for(;;) {
+				crc.reset();
+				op = din.readByte();
+				klen = din.readUnsignedByte();
+				if((op != OP_SET && op != OP_REMOVE) || klen == 0
+				   || klen > BlockKey.MAX_LENGTH)
+					break;
+
+				din.readFully(kbytes, 0, klen);
+				refs = (op == OP_SET) ? din.readLong() : 0;
+				sum = din.readInt();
+
+				crc.update(op);
+				crc.update(klen);
+				crc.update(kbytes, 0, klen);
+				if(op == OP_SET)
+					crc.update(ByteBuffer.allocate(8).putLong(0, refs).array());
+				if((int)crc.getValue() != sum)
+					break;
+
+				store(new BlockKey(kbytes, 0, klen), refs);
+			}
+
+			LOG.warn("Block index journal " + jfile.getName() + " has a torn record");
+		}
+		catch(EOFException e) {
+			/* End of the journal */
+		}
+		finally {
+			din.close();
+		}
+	}
+
+	/** Append a change to the journal, the caller holds the lock */
+	private void log(BlockKey key, long refs)
+		throws IOException
+	{
+		byte[] kbytes;
+
+		kbytes = key.toBytes();
+		record.clear();
+		record.put(refs > 0 ? OP_SET : OP_REMOVE);
+		record.put((byte)kbytes.length);
+		record.put(kbytes);
+		if(refs > 0)
+			record.putLong(refs);
+
+		crc.reset();
+		crc.update(record.array(), 0, record.position());
+		record.putInt((int)crc.getValue());
+		record.flip();
+
+		while(record.hasRemaining())
+			jchannel.write(record);
+		if(sync)
+			jchannel.force(false);
+	}
+
+	private void checkOpen()
+		throws IOException
+	{
+		if(!isopen)
+			throw new IOException("Block index not open");
+	}
+
+	/**
+	 * Set the references to a block, as when filling the index in from
+	 * its store. Zero references removes the block.
+	 */
+	public void set(BlockKey key, long refs)
+		throws IOException
+	{
+		lock.lock();
+		try {
+			checkOpen();
+			store(key, refs);
+			log(key, refs);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Count one more reference to a block.
+	 * @return References to the block now.
+	 */
+	public long add(BlockKey key)
+		throws IOException
+	{
+		return add(key, 1);
+	}
+
+	/**
+	 * Count more references to a block.
+	 * @param key Key of the block
+	 * @param added References to count
+	 * @return References to the block now.
+	 */
+	public long add(BlockKey key, long added)
+		throws IOException
+	{
+		long refs;
+		int pos;
+
+		lock.lock();
+		try {
+			checkOpen();
+			pos = find(key, key.toBytes());
+			refs = ((pos < 0) ? 0 : table.getLong(pos + REFS)) + added;
+			store(key, refs);
+			log(key, refs);
+			return refs;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drop a reference to a block, removing it at the last.
+	 * @return References to the block now, or -1 if it wasn't indexed.
+	 */
+	public long release(BlockKey key)
+		throws IOException
+	{
+		long refs;
+		int pos;
+
+		lock.lock();
+		try {
+			checkOpen();
+			pos = find(key, key.toBytes());
+			if(pos < 0)
+				return -1;
+
+			refs = table.getLong(pos + REFS) - 1;
+			store(key, refs);
+			log(key, refs);
+			return refs;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Count the references to a block.
+	 * @return References to the block, zero if it isn't indexed.
+	 */
+	public long references(BlockKey key)
+	{
+		int pos;
+
+		lock.lock();
+		try {
+			pos = find(key, key.toBytes());
+			return (pos < 0) ? 0 : table.getLong(pos + REFS);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/** Determine whether a block is indexed. */
+	public boolean contains(BlockKey key)
+	{
+		return references(key) > 0;
+	}
+
+	/** List the key of every block indexed. */
+	public List<BlockKey> keys()
+	{
+		List<BlockKey> keys;
+		byte state;
+		int pos;
+
+		lock.lock();
+		try {
+			keys = new ArrayList<BlockKey>(size);
+			for(int slot=0; slot <= mask; ++slot) {
+				pos = slot * SLOT_SIZE;
+				state = table.get(pos + KEY_LENGTH);
+				if(state != EMPTY && state != REMOVED)
+					keys.add(keyAt(table, pos, state));
+			}
+
+			return keys;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Write the table out as a new checkpoint, and drop the journals it
+	 * makes redundant. Changes carry on while the table is written, a
+	 * chunk of slots at a time.
+	 */
+	public synchronized void checkpoint()
+		throws IOException
+	{
+		SortedMap<Integer, File> found;
+		int gen;
+
+		lock.lock();
+		try {
+			checkOpen();
+
+			/* Later changes go to a new journal, replayed over this one */
+			jchannel.force(false);
+			journal.close();
+			++generation;
+			gen = generation;
+			startJournal();
+		}
+		finally {
+			lock.unlock();
+		}
+
+		writeCheckpoint(gen);
+
+		found = journals();
+		for(File jfile : found.headMap(gen).values())
+			Files.deleteIfExists(jfile.toPath());
+
+		checkpoints.incrementAndGet();
+	}
+
+	/** Write the checkpoint to a temporary file and move it into place */
+	private void writeCheckpoint(int gen)
+		throws IOException
+	{
+		CheckedOutputStream cos;
+		DataOutputStream dout;
+		FileOutputStream fos;
+		File tmp;
+		long count;
+
+		tmp = new File(dir, CHECKPOINT_NAME + ".tmp");
+		fos = new FileOutputStream(tmp);
+		cos = new CheckedOutputStream(new BufferedOutputStream(fos, 1024 * 1024), new CRC32());
+		dout = new DataOutputStream(cos);
+		try {
+			dout.writeInt(MAGIC);
+			dout.writeInt(VERSION);
+			dout.writeInt(gen);
+			count = scan(dout);
+			dout.writeByte(0);
+			dout.writeLong(count);
+			dout.flush();
+			dout.writeInt((int)cos.getChecksum().getValue());
+			dout.flush();
+			fos.getFD().sync();
+		}
+		finally {
+			dout.close();
+		}
+
+		Files.move(tmp.toPath(), new File(dir, CHECKPOINT_NAME).toPath(),
+			   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Write every entry of the table, a chunk at a time. A table that grows
+	 * part way through has moved its entries, so the scan starts over,
+	 * writing some entries twice, and after a few tries is done whole
+	 * under the lock.
+	 * @return Number of entries written.
+	 */
+	private long scan(DataOutputStream dout)
+		throws IOException
+	{
+		ByteBuffer chunk;
+		long startRehashes;
+		long count;
+		boolean moved;
+		boolean whole;
+		byte state;
+		int chunkSlots;
+		int slot;
+		int pos;
+
+		chunk = ByteBuffer.allocate(SCAN_CHUNK * SLOT_SIZE);
+		count = 0;
+		for(int attempt=0;; ++attempt) {
+			whole = attempt >= SCAN_RETRIES;
+			if(whole)
+				lock.lock();
+
+			try {
+				lock.lock();
+				try {
+					startRehashes = rehashes;
+				}
+				finally {
+					lock.unlock();
+				}
+
+				moved = false;
+				for(slot=0;; slot += chunkSlots) {
+					/* Copy a chunk out, and write it without the lock */
+					lock.lock();
+					try {
+						if(rehashes != startRehashes) {
+							moved = true;
+							break;
+						}
+						if(slot > mask)
+							break;
+
+						chunkSlots = Math.min(SCAN_CHUNK, mask + 1 - slot);
+						for(int bidx=0; bidx < chunkSlots * SLOT_SIZE; bidx += 8)
+							chunk.putLong(bidx, table.getLong(slot * SLOT_SIZE + bidx));
+					}
+					finally {
+						lock.unlock();
+					}
+
+					for(int cslot=0; cslot < chunkSlots; ++cslot) {
+						pos = cslot * SLOT_SIZE;
+						state = chunk.get(pos + KEY_LENGTH);
+						if(state == EMPTY || state == REMOVED)
+							continue;
+
+						dout.writeByte(state);
+						for(int kidx=0; kidx < state; ++kidx)
+							dout.writeByte(chunk.get(pos + KEY + kidx));
+						dout.writeLong(chunk.getLong(pos + REFS));
+						++count;
+					}
+				}
+
+				if(!moved)
+					return count;
+			}
+			finally {
+				if(whole)
+					lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Checkpoint the index and close it, marking it clean once the
+	 * checkpoint is in place.
+	 */
+	public void close()
+		throws IOException
+	{
+		lock.lock();
+		try {
+			if(!isopen)
+				return;
+		}
+		finally {
+			lock.unlock();
+		}
+
+		checkpointer.finish();
+		try {
+			checkpointer.join();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted stopping checkpointer");
+		}
+
+		checkpoint();
+		lock.lock();
+		try {
+			isopen = false;
+			journal.close();
+			markClean();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/** Leave the clean marker, synced, beside the checkpoint */
+	private void markClean()
+		throws IOException
+	{
+		FileOutputStream fos;
+
+		fos = new FileOutputStream(new File(dir, CLEAN_NAME));
+		try {
+			fos.getFD().sync();
+		}
+		finally {
+			fos.close();
+		}
+
+		syncDir();
+	}
+
+	/** Return the number of blocks indexed. */
+	public int size()
+	{
+		lock.lock();
+		try {
+			return size;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/** Return the number of checkpoints taken. */
+	public long getCheckpointCount()
+	{ return checkpoints.get(); }
+}
@@ -11,8 +11,11 @@
  */
 package edu.rit.cs.disk;
 
+import edu.rit.cs.BlockKey;
 import edu.rit.cs.DataBlock;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
 
 public interface BlockStore
 {
@@ -42,8 +45,100 @@ public interface BlockStore
 	 * Implementation of insert for the BlockStore unit, this will return
 	 * whether the specified insertion was successful. The gaurantees about
 	 * whether the data is immediately retrievable are dependent on the
-	 * implementation.
+	 * implementation. Blocks are named by their content, so inserting a
+	 * block the store already holds only adds a reference to it, without
+	 * writing the data again.
 	 */
 	public boolean insert(DataBlock blk)
 		throws IOException;
+
+	/**
+	 * Insert a block with several references at once, as when moving a
+	 * block and its count between stores. Unlike insert(), the block and
+	 * its count can be read back once this returns, and the count is
+	 * written once, not once per reference.
+	 * @param blk Block to insert
+	 * @param refs References to add to the block, at least one
+	 * @return Whether the block was inserted.
+	 */
+	public boolean insert(DataBlock blk, long refs)
+		throws IOException;
+
+	/**
+	 * Read a block back out of the store. Stores don't know where blocks
+	 * lie within files, so the block returned has an index of zero.
+	 * @param key Key of the block
+	 * @return The block, or null if the store doesn't hold it.
+	 */
+	public DataBlock get(BlockKey key)
+		throws IOException;
+
+	/**
+	 * Open a block to read a piece at a time, so a large block need not be
+	 * held in memory at once. A store that can't read part of a block
+	 * streams the whole block read with get().
+	 * @param key Key of the block
+	 * @return Stream of the block's data, or null if the store doesn't
+	 *         hold it.
+	 */
+	public InputStream stream(BlockKey key)
+		throws IOException;
+
+	/**
+	 * Determine whether the store holds a block, without reading it.
+	 * @param key Key of the block
+	 * @return Whether the block is in the store.
+	 */
+	public boolean contains(BlockKey key)
+		throws IOException;
+
+	/**
+	 * Count the references to a block, one for every insert of it not yet
+	 * matched by a delete.
+	 * @param key Key of the block
+	 * @return References to the block, zero if it isn't in the store.
+	 */
+	public long references(BlockKey key)
+		throws IOException;
+
+	/**
+	 * Get the length of a block as it was inserted, without reading it.
+	 * @param key Key of the block
+	 * @return Length of the block, or -1 if it isn't in the store.
+	 */
+	public long length(BlockKey key)
+		throws IOException;
+
+	/**
+	 * Drop a reference to a block, removing the block from the store once
+	 * the last reference is dropped.
+	 * @param key Key of the block
+	 * @return Whether the block was in the store.
+	 */
+	public boolean delete(BlockKey key)
+		throws IOException;
+
+	/**
+	 * Remove a block along with all of its references at once.
+	 * @param key Key of the block
+	 * @return Whether the block was in the store.
+	 */
+	public boolean remove(BlockKey key)
+		throws IOException;
+
+	/**
+	 * List the keys of the blocks in the store. The keys are gathered up
+	 * front, blocks inserted or deleted while they are walked may or may
+	 * not show up.
+	 * @return Iterator over the key of every block stored.
+	 */
+	public Iterator<BlockKey> keys()
+		throws IOException;
+
+	/**
+	 * Close the store, finishing any writes it has accepted. The store
+	 * must be opened again before it is used.
+	 */
+	public void close()
+		throws IOException;
 }
@@ -0,0 +1,229 @@
+/**
+ * Copyright © 2015
+ * Hrfs Block Stores
+ *
+ * Builds the block store a node is configured with. A node with a single
+ * store path gets one store, a node listing several paths, one per disk, gets
+ * a JBODStore spreading blocks over a store on each. A node with fast tier
+ * paths as well gets a TieredStore, keeping hot blocks on the fast paths and
+ * the rest on the store paths. With an index path the store is indexed, so
+ * a restarted node loads its blocks from the index. Either way the store is
+ * put behind a block cache unless the cache is configured off.
+ *
+ * @file BlockStores.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import edu.rit.cs.DataBlock;
+import edu.rit.cs.HrfsConfiguration;
+import edu.rit.cs.HrfsKeys;
+
+public final class BlockStores
+{
+	static
+	{
+		HrfsConfiguration.init();
+	}
+
+	public static final String LEVELDB = "leveldb";
+	public static final String SEGMENT = "segment";
+	public static final String DEFAULT_TYPE = LEVELDB;
+	public static final int DEFAULT_DISK_WORKERS = 2;
+
+	private BlockStores() { }
+
+	/**
+	 * Stream the data of a block already in memory, for stores that can
+	 * only read a block whole.
+	 * @param blk Block to stream, may be null
+	 * @return Stream of the block's data, or null if there is no block.
+	 */
+	public static InputStream stream(DataBlock blk)
+	{
+		return (blk == null) ? null : stream(blk.buffer());
+	}
+
+	/**
+	 * Stream the remaining bytes of a buffer, leaving the buffer as is.
+	 * @param buf Buffer to stream
+	 * @return Stream of the buffer's data.
+	 */
+	public static InputStream stream(ByteBuffer buf)
+	{
+		final ByteBuffer data;
+
+		data = buf.duplicate();
+		return new InputStream() {
+			@Override
+			public int read()
+			{
+				return data.hasRemaining() ? (data.get() & 0xff) : -1;
+			}
+
+			@Override
+			public int read(byte[] buf, int off, int len)
+			{
+				if(len == 0)
+					return 0;
+				if(!data.hasRemaining())
+					return -1;
+
+				len = Math.min(len, data.remaining());
+				data.get(buf, off, len);
+				return len;
+			}
+
+			@Override
+			public int available()
+			{
+				return data.remaining();
+			}
+		};
+	}
+
+	/**
+	 * Insert a block into any store, in the background if the store writes
+	 * in the background.
+	 * @param store Store to insert into
+	 * @param blk Block to insert
+	 * @return Future completed with the block once it can be read back.
+	 */
+	public static CompletableFuture<DataBlock> insertAsync(BlockStore store, DataBlock blk)
+		throws IOException
+	{
+		CompletableFuture<DataBlock> future;
+
+		if(store instanceof AsyncBlockStore)
+			return ((AsyncBlockStore)store).insertAsync(blk);
+
+		future = new CompletableFuture<DataBlock>();
+		if(store.insert(blk))
+			future.complete(blk);
+		else
+			future.completeExceptionally(new IOException("Failed to insert " + blk.key()));
+
+		return future;
+	}
+
+	/**
+	 * Insert a block into any store, waiting for a store writing in the
+	 * background to have it.
+	 * @param store Store to insert into
+	 * @param blk Block to insert
+	 */
+	public static void insertSync(BlockStore store, DataBlock blk)
+		throws IOException
+	{
+		try {
+			insertAsync(store, blk).get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted inserting block");
+		}
+		catch(ExecutionException e) {
+			throw new IOException("Failed to insert block " + blk.key() + ": "
+					      + e.getCause().toString());
+		}
+	}
+
+	/**
+	 * Build a store of a type at a path.
+	 * @param type Type of store, leveldb or segment
+	 * @param path Location of the store
+	 * @param nworkers Workers for stores that write in the background
+	 * @return The store, not yet opened.
+	 */
+	public static BlockStore forPath(String type, String path, int nworkers)
+		throws IOException
+	{
+		switch(type)
+		{
+		case LEVELDB:
+			return new LevelDBStore(path, nworkers);
+		case SEGMENT:
+			return new SegmentStore(path);
+		default:
+			throw new IllegalArgumentException("Unknown block store type: " + type);
+		}
+	}
+
+	/**
+	 * Build a store over one or more paths, one per disk.
+	 * @param type Type of store, leveldb or segment
+	 * @param paths Location of the store on each disk
+	 * @param nworkers Workers for each disk
+	 * @return The store, not yet opened.
+	 */
+	public static BlockStore forPaths(String type, String[] paths, int nworkers)
+		throws IOException
+	{
+		List<BlockStore> stores;
+		List<File> files;
+
+		if(paths.length == 1)
+			return forPath(type, paths[0], nworkers);
+
+		stores = new ArrayList<BlockStore>();
+		files = new ArrayList<File>();
+		for(String path : paths) {
+			stores.add(forPath(type, path, nworkers));
+			files.add(new File(path));
+		}
+
+		return new JBODStore(stores, files, nworkers);
+	}
+
+	/**
+	 * Build the store configured for the node.
+	 * @param conf Configuration to read from
+	 * @return The store, not yet opened.
+	 */
+	public static BlockStore configured(HrfsConfiguration conf)
+		throws IOException
+	{
+		BlockStore store;
+		String[] fastPaths;
+		String[] paths;
+		String type;
+		long cacheBytes;
+		int nworkers;
+
+		paths = conf.getTrimmedStrings(HrfsKeys.HRFS_NODE_STORE_PATHS);
+		if(paths == null || paths.length == 0) {
+			if(conf.get(HrfsKeys.HRFS_NODE_STORE_PATH) == null)
+				throw new IOException("No block store path configured");
+
+			paths = new String[] { conf.get(HrfsKeys.HRFS_NODE_STORE_PATH) };
+		}
+
+		type = conf.get(HrfsKeys.HRFS_NODE_STORE_TYPE, DEFAULT_TYPE);
+		nworkers = conf.getInt(HrfsKeys.HRFS_DISK_WORKERS, DEFAULT_DISK_WORKERS);
+
+		store = forPaths(type, paths, nworkers);
+
+		fastPaths = conf.getTrimmedStrings(HrfsKeys.HRFS_TIER_FAST_PATHS);
+		if(fastPaths != null && fastPaths.length > 0)
+			store = new TieredStore(forPaths(type, fastPaths, nworkers), store);
+
+		if(conf.get(HrfsKeys.HRFS_INDEX_PATH) != null)
+			store = new IndexedBlockStore(store, new BlockIndex(conf.get(HrfsKeys.HRFS_INDEX_PATH)));
+
+		cacheBytes = conf.getLong(HrfsKeys.HRFS_CACHE_BYTES, BlockCache.DEFAULT_CACHE_BYTES);
+		if(cacheBytes > 0)
+			store = new CachedBlockStore(store, new BlockCache(cacheBytes));
+
+		return store;
+	}
+}
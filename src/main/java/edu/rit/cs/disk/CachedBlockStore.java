@@ -0,0 +1,242 @@
+/**
+ * Copyright © 2015
+ * Hrfs Cached Block Store
+ *
+ * Puts a BlockCache in front of another BlockStore. Reads are served from
+ * memory when the block is cached, and blocks read from the store are offered
+ * to the cache on the way out. Inserts go straight through, background ones
+ * included, blocks are only cached once something reads them. Blocks never
+ * change under their key, so the only thing that can make a cached block
+ * stale is deleting its last reference. The block is dropped from the cache
+ * once it is gone from the store, under a lock on its key that reads filling
+ * the cache also take, so a read can't put it back in between.
+ *
+ * @file CachedBlockStore.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs.disk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import edu.rit.cs.BlockKey;
+import edu.rit.cs.DataBlock;
+
+public class CachedBlockStore
+	implements AsyncBlockStore
+{
+	private static final int LOCK_STRIPES = 64;
+
+	private final BlockStore store;
+	private final BlockCache cache;
+	private final ReadWriteLock[] stripes;
+
+	/**
+	 * Cache a store with the configured memory budget.
+	 * @param store Store to read through to
+	 */
+	public CachedBlockStore(BlockStore store)
+	{
+		this(store, new BlockCache());
+	}
+
+	/**
+	 * Cache a store with a given cache, which may be shared.
+	 * @param store Store to read through to
+	 * @param cache Cache to keep blocks in
+	 */
+	public CachedBlockStore(BlockStore store, BlockCache cache)
+	{
+		if(store == null || cache == null)
+			throw new IllegalArgumentException("Invalid store or cache");
+
+		this.store = store;
+		this.cache = cache;
+		this.stripes = new ReadWriteLock[LOCK_STRIPES];
+		for(int sidx=0; sidx < stripes.length; ++sidx)
+			stripes[sidx] = new ReentrantReadWriteLock();
+	}
+
+	/** Lock held filling the cache with a key, and dropping it */
+	private ReadWriteLock stripe(BlockKey key)
+	{
+		return stripes[(key.hashCode() & 0x7fffffff) % stripes.length];
+	}
+
+	/** Return the store behind the cache, to read without caching. */
+	public BlockStore getStore()
+	{ return store; }
+
+	/** Return the cache in front of the store. */
+	public BlockCache getCache()
+	{ return cache; }
+
+	@Override
+	public boolean create()
+		throws IOException
+	{
+		return store.create();
+	}
+
+	@Override
+	public boolean open()
+		throws IOException
+	{
+		return store.open();
+	}
+
+	@Override
+	public boolean isOpen()
+		throws IOException
+	{
+		return store.isOpen();
+	}
+
+	@Override
+	public void close()
+		throws IOException
+	{
+		store.close();
+	}
+
+	@Override
+	public boolean insert(DataBlock blk)
+		throws IOException
+	{
+		return store.insert(blk);
+	}
+
+	@Override
+	public boolean insert(DataBlock blk, long refs)
+		throws IOException
+	{
+		return store.insert(blk, refs);
+	}
+
+	@Override
+	public CompletableFuture<DataBlock> insertAsync(DataBlock blk)
+		throws IOException
+	{
+		return BlockStores.insertAsync(store, blk);
+	}
+
+	@Override
+	public DataBlock get(BlockKey key)
+		throws IOException
+	{
+		ReadWriteLock klock;
+		DataBlock blk;
+
+		blk = cache.get(key);
+		if(blk != null)
+			return blk;
+
+		klock = stripe(key);
+		klock.readLock().lock();
+		try {
+			blk = store.get(key);
+			if(blk != null)
+				cache.put(blk);
+		}
+		finally {
+			klock.readLock().unlock();
+		}
+
+		return blk;
+	}
+
+	/**
+	 * Stream a block from the cache if it is there, otherwise from the
+	 * store, without caching it.
+	 */
+	@Override
+	public InputStream stream(BlockKey key)
+		throws IOException
+	{
+		DataBlock blk;
+
+		blk = cache.get(key);
+		if(blk != null)
+			return BlockStores.stream(blk);
+
+		return store.stream(key);
+	}
+
+	@Override
+	public boolean contains(BlockKey key)
+		throws IOException
+	{
+		if(cache.get(key) != null)
+			return true;
+
+		return store.contains(key);
+	}
+
+	@Override
+	public long references(BlockKey key)
+		throws IOException
+	{
+		return store.references(key);
+	}
+
+	@Override
+	public long length(BlockKey key)
+		throws IOException
+	{
+		return store.length(key);
+	}
+
+	@Override
+	public Iterator<BlockKey> keys()
+		throws IOException
+	{
+		return store.keys();
+	}
+
+	@Override
+	public boolean delete(BlockKey key)
+		throws IOException
+	{
+		ReadWriteLock klock;
+
+		klock = stripe(key);
+		klock.writeLock().lock();
+		try {
+			if(!store.delete(key))
+				return false;
+
+			/* Only the last reference takes the block away */
+			if(!store.contains(key))
+				cache.invalidate(key);
+
+			return true;
+		}
+		finally {
+			klock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(BlockKey key)
+		throws IOException
+	{
+		ReadWriteLock klock;
+
+		klock = stripe(key);
+		klock.writeLock().lock();
+		try {
+			if(!store.remove(key))
+				return false;
+
+			cache.invalidate(key);
+			return true;
+		}
+		finally {
+			klock.writeLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright © 2015
+ * Hrfs Frequency Sketch
+ *
+ * Estimates how often keys have been seen recently, in a fixed amount of
+ * memory no matter how many distinct keys go by. The sketch is a count-min
+ * sketch of four bit counters, four counters to a key, packed sixteen to a
+ * long. Once as many increments as ten times the expected number of keys have
+ * been counted, every counter is halved, so the sketch forgets old popularity
+ * and follows what is hot now.
+ *
+ * Estimates may run high when keys collide, never low. The sketch is not
+ * thread safe, callers must hold their own lock around it.
+ *
+ * @file FrequencySketch.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs.disk;
+
+public final class FrequencySketch
+{
+	public static final int MAX_FREQUENCY = 15;
+	private static final long[] SEEDS = {
+		0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+		0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+	};
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	private final long[] table;
+	private final int mask;
+	private final int sampleSize;
+	private int size;
+
+	/**
+	 * Build a sketch sized for a number of keys. Sizing it for more keys
+	 * than are really tracked costs memory, for fewer costs accuracy.
+	 * @param expected Number of distinct keys expected to be tracked
+	 */
+	public FrequencySketch(long expected)
+	{
+		int tlen;
+
+		expected = Math.max(16, Math.min(expected, 1L << 30));
+		tlen = Integer.highestOneBit((int)expected - 1) << 1;
+
+		this.table = new long[tlen];
+		this.mask = tlen - 1;
+		this.sampleSize = (int)Math.min(10L * expected, Integer.MAX_VALUE);
+		this.size = 0;
+	}
+
+	/** Spread a hash code, as callers' hash codes may be poorly mixed */
+	private static int spread(int hash)
+	{
+		hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+		hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+		return (hash >>> 16) ^ hash;
+	}
+
+	/** Index of the long holding a key's counter for one row */
+	private int indexOf(int hash, int row)
+	{
+		long h;
+
+		h = (hash + SEEDS[row]) * SEEDS[row];
+		h += h >>> 32;
+		return (int)h & mask;
+	}
+
+	/**
+	 * Estimate how often a key has been seen recently.
+	 * @param hash Hash code of the key
+	 * @return Estimated count, at most MAX_FREQUENCY.
+	 */
+	public int frequency(int hash)
+	{
+		int start;
+		int freq;
+		int count;
+
+		hash = spread(hash);
+		start = (hash & 3) << 2;
+		freq = MAX_FREQUENCY;
+		for(int row=0; row < 4; ++row) {
+			count = (int)(table[indexOf(hash, row)] >>> ((start + row) << 2)) & 0xf;
+			freq = Math.min(freq, count);
+		}
+
+		return freq;
+	}
+
+	/**
+	 * Count one more sighting of a key.
+	 * @param hash Hash code of the key
+	 */
+	public void increment(int hash)
+	{
+		boolean added;
+		int start;
+		int idx;
+		int shift;
+
+		hash = spread(hash);
+		start = (hash & 3) << 2;
+		added = false;
+		for(int row=0; row < 4; ++row) {
+			idx = indexOf(hash, row);
+			shift = (start + row) << 2;
+			if(((table[idx] >>> shift) & 0xf) < MAX_FREQUENCY) {
+				table[idx] += 1L << shift;
+				added = true;
+			}
+		}
+
+		if(added && ++size >= sampleSize)
+			reset();
+	}
+
+	/** Halve every counter, so that past popularity fades */
+	private void reset()
+	{
+		for(int tidx=0; tidx < table.length; ++tidx)
+			table[tidx] = (table[tidx] >>> 1) & RESET_MASK;
+
+		size /= 2;
+	}
+}
@@ -0,0 +1,276 @@
+/**
+ * Copyright © 2015
+ * Hrfs Indexed Block Store
+ *
+ * Keeps a BlockIndex of another store's blocks, so a restarted node knows
+ * what it holds from the index's checkpoint rather than by walking the store.
+ * Every insert and delete the store takes is counted in the index once the
+ * store has it. Listing blocks, and asking whether one is held, are answered
+ * from memory. A block the index doesn't know is still looked for in the
+ * store.
+ *
+ * Since the index is written after the store, and its journal isn't synced
+ * unless so configured, a crash can leave it missing new blocks and listing
+ * deleted ones. Only an index that was closed cleanly is trusted as it is.
+ * One that wasn't, or that has nothing to load, is reconciled against the
+ * store once on opening, and checkpointed straight away.
+ *
+ * @file IndexedBlockStore.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs.disk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.rit.cs.BlockKey;
+import edu.rit.cs.DataBlock;
+
+public class IndexedBlockStore
+	implements AsyncBlockStore
+{
+	private static final Log LOG = LogFactory.getLog(IndexedBlockStore.class);
+
+	private final BlockStore store;
+	private final BlockIndex index;
+
+	/**
+	 * Index a store.
+	 * @param store Store holding the blocks
+	 * @param index Index of the store's blocks
+	 */
+	public IndexedBlockStore(BlockStore store, BlockIndex index)
+	{
+		if(store == null || index == null)
+			throw new IllegalArgumentException("Invalid store or index");
+
+		this.store = store;
+		this.index = index;
+	}
+
+	/** Return the store behind the index. */
+	public BlockStore getStore()
+	{ return store; }
+
+	/** Return the index of the store. */
+	public BlockIndex getIndex()
+	{ return index; }
+
+	/**
+	 * Bring the index in line with the store, dropping blocks the store no
+	 * longer holds, and counting every block it does.
+	 */
+	private void rebuild()
+		throws IOException
+	{
+		Iterator<BlockKey> keys;
+		BlockKey key;
+		long refs;
+		long start;
+
+		start = System.currentTimeMillis();
+		for(BlockKey indexed : index.keys())
+			if(store.references(indexed) == 0)
+				index.set(indexed, 0);
+
+		keys = store.keys();
+		while(keys.hasNext()) {
+			key = keys.next();
+			refs = store.references(key);
+			if(refs > 0)
+				index.set(key, refs);
+		}
+
+		index.checkpoint();
+		LOG.info("Rebuilt block index of " + index.size() + " blocks in "
+			 + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	@Override
+	public boolean create()
+		throws IOException
+	{
+		if(!store.create())
+			return false;
+
+		if(!index.open() || !index.isClean())
+			rebuild();
+
+		return true;
+	}
+
+	@Override
+	public boolean open()
+		throws IOException
+	{
+		if(!store.open())
+			return false;
+
+		if(!index.open() || !index.isClean())
+			rebuild();
+
+		return true;
+	}
+
+	@Override
+	public boolean isOpen()
+		throws IOException
+	{
+		return store.isOpen();
+	}
+
+	/**
+	 * Insert a block, counted in the index once the store has it. A store
+	 * writing in the background is not waited for.
+	 */
+	@Override
+	public boolean insert(DataBlock blk)
+		throws IOException
+	{
+		if(store instanceof AsyncBlockStore) {
+			insertAsync(blk);
+			return true;
+		}
+
+		if(!store.insert(blk))
+			return false;
+
+		index.add(blk.key());
+		return true;
+	}
+
+	@Override
+	public CompletableFuture<DataBlock> insertAsync(final DataBlock blk)
+		throws IOException
+	{
+		final CompletableFuture<DataBlock> future;
+
+		future = new CompletableFuture<DataBlock>();
+		BlockStores.insertAsync(store, blk).whenComplete(
+			new BiConsumer<DataBlock, Throwable>() {
+				@Override
+				public void accept(DataBlock written, Throwable failure)
+				{
+					if(failure != null) {
+						future.completeExceptionally(failure);
+						return;
+					}
+
+					try {
+						index.add(blk.key());
+						future.complete(blk);
+					}
+					catch(IOException e) {
+						future.completeExceptionally(e);
+					}
+				}
+			});
+
+		return future;
+	}
+
+	@Override
+	public boolean insert(DataBlock blk, long refs)
+		throws IOException
+	{
+		if(!store.insert(blk, refs))
+			return false;
+
+		index.add(blk.key(), refs);
+		return true;
+	}
+
+	@Override
+	public DataBlock get(BlockKey key)
+		throws IOException
+	{
+		return store.get(key);
+	}
+
+	@Override
+	public InputStream stream(BlockKey key)
+		throws IOException
+	{
+		return store.stream(key);
+	}
+
+	@Override
+	public boolean contains(BlockKey key)
+		throws IOException
+	{
+		return index.contains(key) || store.contains(key);
+	}
+
+	@Override
+	public long references(BlockKey key)
+		throws IOException
+	{
+		long refs;
+
+		refs = index.references(key);
+		if(refs > 0)
+			return refs;
+
+		return store.references(key);
+	}
+
+	@Override
+	public long length(BlockKey key)
+		throws IOException
+	{
+		return store.length(key);
+	}
+
+	/**
+	 * List the blocks in the store, from the index.
+	 */
+	@Override
+	public Iterator<BlockKey> keys()
+		throws IOException
+	{
+		return index.keys().iterator();
+	}
+
+	@Override
+	public boolean delete(BlockKey key)
+		throws IOException
+	{
+		if(!store.delete(key))
+			return false;
+
+		index.release(key);
+		return true;
+	}
+
+	@Override
+	public boolean remove(BlockKey key)
+		throws IOException
+	{
+		if(!store.remove(key))
+			return false;
+
+		index.set(key, 0);
+		return true;
+	}
+
+	/**
+	 * Close the store, then checkpoint and close the index, so the blocks
+	 * written while closing are in the checkpoint.
+	 */
+	@Override
+	public void close()
+		throws IOException
+	{
+		try {
+			store.close();
+		}
+		finally {
+			index.close();
+		}
+	}
+}
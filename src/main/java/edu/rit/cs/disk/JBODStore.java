@@ -0,0 +1,673 @@
+/**
+ * Copyright © 2015
+ * Hrfs JBOD Block Store
+ *
+ * Spreads blocks over a set of stores, one to a disk, so a single node can
+ * drive every disk it has. Each block has two candidate disks, the two that
+ * rank highest for its key under rendezvous hashing, and a new block goes to
+ * the first unless the second is clearly less full. Adding a disk only moves
+ * the blocks that now rank it highest, and a filling disk sheds new blocks to
+ * its partners without any central placement table.
+ *
+ * Every disk has its own pool of workers and its own queue, so a slow or busy
+ * disk only backs up the writes placed on it. The queues are bounded, once a
+ * disk's queue is full an insert placed on it waits for room, so a burst of
+ * inserts is held back rather than piling up in memory. Reads run on the
+ * calling thread, looking at a block's candidates first, and then at every
+ * other disk, for blocks placed before the set of disks changed.
+ *
+ * @file JBODStore.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import com.google.common.collect.Iterators;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.rit.cs.BlockKey;
+import edu.rit.cs.DataBlock;
+import edu.rit.cs.HrfsConfiguration;
+import edu.rit.cs.HrfsKeys;
+
+public class JBODStore
+	implements AsyncBlockStore
+{
+	static
+	{
+		HrfsConfiguration.init();
+	}
+
+	public static final long FILL_REFRESH_MS = 1000;
+	public static final double FILL_TOLERANCE = 0.05;
+	public static final int DEFAULT_QUEUE_DEPTH = 256;
+	private static final Log LOG = LogFactory.getLog(JBODStore.class);
+
+	/**
+	 * Waits for room on a full disk queue. A task that makes it onto the
+	 * queue only as the disk is shut down is taken back off, as the
+	 * workers may already be gone.
+	 */
+	private static final RejectedExecutionHandler WAIT_FOR_ROOM =
+		new RejectedExecutionHandler() {
+			@Override
+			public void rejectedExecution(Runnable task, ThreadPoolExecutor pool)
+			{
+				if(pool.isShutdown())
+					throw new RejectedExecutionException("Store is closing");
+
+				try {
+					pool.getQueue().put(task);
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RejectedExecutionException("Interrupted waiting for disk queue");
+				}
+
+				if(pool.isShutdown() && pool.getQueue().remove(task))
+					throw new RejectedExecutionException("Store is closing");
+			}
+		};
+
+	private final List<Disk> disks;
+	private final ConcurrentHashMap<BlockKey, Placement> pending;
+	private final AtomicBoolean isopen;
+
+	/**
+	 * A store on one disk, with the workers that write to it. The workers
+	 * are started when the store is opened, as closing shuts them down.
+	 */
+	private static final class Disk
+	{
+		final BlockStore store;
+		final File path;
+		final long seed;
+		final int nworkers;
+		final int queueDepth;
+		volatile ThreadPoolExecutor executor;
+		volatile double fill;
+		volatile long filled;
+
+		Disk(BlockStore store, File path, int nworkers, int queueDepth)
+		{
+			this.store = store;
+			this.path = path;
+			this.seed = mix(path.getAbsolutePath().hashCode());
+			this.nworkers = nworkers;
+			this.queueDepth = queueDepth;
+			this.executor = null;
+			this.fill = 0;
+			this.filled = 0;
+		}
+
+		/** Start the workers, unless they are already running */
+		void start()
+		{
+			if(executor != null && !executor.isShutdown())
+				return;
+
+			executor = new ThreadPoolExecutor(nworkers, nworkers,
+							  1000L, TimeUnit.MILLISECONDS,
+							  new LinkedBlockingQueue<Runnable>(queueDepth),
+							  WAIT_FOR_ROOM);
+		}
+
+		/** Fraction of the disk in use, looked up at most once a second */
+		double fill()
+		{
+			File probe;
+			long total;
+			long now;
+
+			now = System.currentTimeMillis();
+			if(now - filled >= FILL_REFRESH_MS) {
+				/* A store not yet created is gauged by where it will be */
+				probe = path.getAbsoluteFile();
+				while(probe != null && !probe.exists())
+					probe = probe.getParentFile();
+
+				total = (probe == null) ? 0 : probe.getTotalSpace();
+				if(total > 0)
+					fill = 1.0 - (double)probe.getUsableSpace() / total;
+				filled = now;
+			}
+
+			return fill;
+		}
+	}
+
+	/** An insert on its way to a disk */
+	private static final class Placement
+	{
+		final Disk disk;
+		final CompletableFuture<DataBlock> future;
+
+		Placement(Disk disk, CompletableFuture<DataBlock> future)
+		{
+			this.disk = disk;
+			this.future = future;
+		}
+	}
+
+	/**
+	 * Build a store over one store per disk, queueing as many writes on
+	 * each disk as configured.
+	 * @param stores Store on each disk
+	 * @param paths Location of each store, which names the disk when
+	 *        placing blocks, and is where its fill is gauged
+	 * @param nworkers Workers writing to each disk
+	 */
+	public JBODStore(List<? extends BlockStore> stores, List<File> paths, int nworkers)
+	{
+		this(stores, paths, nworkers,
+		     new HrfsConfiguration().getInt(HrfsKeys.HRFS_DISK_QUEUE, DEFAULT_QUEUE_DEPTH));
+	}
+
+	/**
+	 * Build a store over one store per disk.
+	 * @param stores Store on each disk
+	 * @param paths Location of each store, which names the disk when
+	 *        placing blocks, and is where its fill is gauged
+	 * @param nworkers Workers writing to each disk
+	 * @param queueDepth Writes queued on a disk before inserts wait
+	 */
+	public JBODStore(List<? extends BlockStore> stores, List<File> paths, int nworkers,
+			 int queueDepth)
+	{
+		if(stores.isEmpty() || stores.size() != paths.size())
+			throw new IllegalArgumentException("Need a path for each of the stores");
+		if(nworkers < 1)
+			throw new IllegalArgumentException("Invalid worker count: " + nworkers);
+		if(queueDepth < 1)
+			throw new IllegalArgumentException("Invalid disk queue depth: " + queueDepth);
+
+		this.disks = new ArrayList<Disk>();
+		for(int didx=0; didx < stores.size(); ++didx)
+			disks.add(new Disk(stores.get(didx), paths.get(didx), nworkers, queueDepth));
+
+		this.pending = new ConcurrentHashMap<BlockKey, Placement>();
+		this.isopen = new AtomicBoolean(false);
+	}
+
+	/** Finalizer from MurmurHash3, to spread weak hashes */
+	private static long mix(long hash)
+	{
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * Rank the disks for a key, highest first. The first two are where a
+	 * new block may go.
+	 */
+	private List<Disk> rank(BlockKey key)
+	{
+		final long khash;
+		List<Disk> ranked;
+
+		khash = key.hashCode();
+		ranked = new ArrayList<Disk>(disks);
+		Collections.sort(ranked, new Comparator<Disk>() {
+			@Override
+			public int compare(Disk a, Disk b)
+			{
+				return Long.compare(mix(khash ^ b.seed), mix(khash ^ a.seed));
+			}
+		});
+
+		return ranked;
+	}
+
+	/**
+	 * Find the disk holding a block, candidates first.
+	 * @return Disk holding the block, or null if none does.
+	 */
+	private Disk locate(BlockKey key)
+		throws IOException
+	{
+		for(Disk disk : rank(key))
+			if(disk.store.contains(key))
+				return disk;
+
+		return null;
+	}
+
+	/**
+	 * Pick the disk for a new block, the first of its two candidates unless
+	 * the second is clearly less full.
+	 */
+	private Disk place(BlockKey key)
+	{
+		List<Disk> ranked;
+		Disk target;
+		double fill;
+
+		ranked = rank(key);
+		target = ranked.get(0);
+
+		/* Disks within a few percent of each other count as even */
+		if(ranked.size() > 1) {
+			fill = target.fill();
+			if(ranked.get(1).fill() + FILL_TOLERANCE < fill)
+				target = ranked.get(1);
+		}
+
+		return target;
+	}
+
+	@Override
+	public boolean create()
+		throws IOException
+	{
+		for(Disk disk : disks)
+			if(!disk.store.create())
+				return false;
+
+		for(Disk disk : disks)
+			disk.start();
+
+		isopen.set(true);
+		return true;
+	}
+
+	@Override
+	public boolean open()
+		throws IOException
+	{
+		for(Disk disk : disks)
+			if(!disk.store.open())
+				return false;
+
+		for(Disk disk : disks)
+			disk.start();
+
+		isopen.set(true);
+		return true;
+	}
+
+	@Override
+	public boolean isOpen()
+	{ return isopen.get(); }
+
+	/**
+	 * Queue a block on its disk, it is written in the background. Use
+	 * insertAsync() to know when. Waits for room on a full disk queue.
+	 */
+	@Override
+	public boolean insert(DataBlock blk)
+		throws IOException
+	{
+		insertAsync(blk);
+		return true;
+	}
+
+	/**
+	 * Queue a block on its disk. A block already stored, or on its way,
+	 * goes to the disk that has it, to be counted there. Otherwise it goes
+	 * to the first of its two candidates, unless the second is clearly less
+	 * full.
+	 * @param blk Block to insert
+	 * @return Future completed with the block once its disk has it.
+	 */
+	@Override
+	public CompletableFuture<DataBlock> insertAsync(final DataBlock blk)
+		throws IOException
+	{
+		final CompletableFuture<DataBlock> future;
+		final Placement placement;
+		final BlockKey key;
+		Placement tracked;
+		Placement prev;
+		Disk target;
+
+		if(!isopen.get())
+			throw new IOException("JBOD store not open");
+
+		key = blk.key();
+		target = null;
+
+		prev = pending.get(key);
+		if(prev != null)
+			target = prev.disk;
+
+		if(target == null)
+			target = locate(key);
+
+		if(target == null)
+			target = place(key);
+
+		/* Racing inserts of a new block must agree on its disk */
+		future = new CompletableFuture<DataBlock>();
+		tracked = new Placement(target, future);
+		prev = pending.putIfAbsent(key, tracked);
+		placement = (prev == null) ? tracked : new Placement(prev.disk, future);
+
+		try {
+			placement.disk.executor.execute(new Runnable() {
+				@Override
+				public void run()
+				{
+					BlockStore store;
+
+					store = placement.disk.store;
+					try {
+						/* Stores writing in the background say when they're done */
+						if(store instanceof AsyncBlockStore) {
+							((AsyncBlockStore)store).insertAsync(blk).whenComplete(
+								new BiConsumer<DataBlock, Throwable>() {
+									@Override
+									public void accept(DataBlock written, Throwable failure)
+									{
+										settle(key, placement, blk, failure);
+									}
+								});
+							return;
+						}
+
+						store.insert(blk);
+						settle(key, placement, blk, null);
+					}
+					catch(IOException e) {
+						settle(key, placement, blk, e);
+					}
+					catch(RuntimeException e) {
+						settle(key, placement, blk, e);
+					}
+				}
+			});
+		}
+		catch(RejectedExecutionException e) {
+			pending.remove(key, placement);
+			throw new IOException(e.getMessage());
+		}
+
+		return future;
+	}
+
+	/**
+	 * Write a block with several references to the disk holding it, or to
+	 * the disk a new block would go to, once inserts of it still on their
+	 * way are done.
+	 */
+	@Override
+	public boolean insert(DataBlock blk, long refs)
+		throws IOException
+	{
+		Placement placement;
+		BlockKey key;
+		Disk disk;
+
+		if(!isopen.get())
+			throw new IOException("JBOD store not open");
+
+		key = blk.key();
+		placement = pending.get(key);
+		if(placement != null)
+			await(placement);
+
+		disk = locate(key);
+		if(disk == null)
+			disk = place(key);
+
+		return disk.store.insert(blk, refs);
+	}
+
+	/** Finish an insert, once its disk has the block or has failed */
+	private void settle(BlockKey key, Placement placement, DataBlock blk, Throwable failure)
+	{
+		pending.remove(key, placement);
+		if(failure == null)
+			placement.future.complete(blk);
+		else
+			placement.future.completeExceptionally(failure);
+	}
+
+	/** Wait out an insert of a key still on its way */
+	private static void await(Placement placement)
+		throws IOException
+	{
+		try {
+			placement.future.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting on insert");
+		}
+		catch(ExecutionException e) {
+			/* The insert's own caller hears of the failure */
+		}
+	}
+
+	@Override
+	public DataBlock get(BlockKey key)
+		throws IOException
+	{
+		DataBlock blk;
+
+		if(!isopen.get())
+			throw new IOException("JBOD store not open");
+
+		for(Disk disk : rank(key)) {
+			blk = disk.store.get(key);
+			if(blk != null)
+				return blk;
+		}
+
+		return null;
+	}
+
+	@Override
+	public InputStream stream(BlockKey key)
+		throws IOException
+	{
+		InputStream in;
+
+		if(!isopen.get())
+			throw new IOException("JBOD store not open");
+
+		for(Disk disk : rank(key)) {
+			in = disk.store.stream(key);
+			if(in != null)
+				return in;
+		}
+
+		return null;
+	}
+
+	@Override
+	public boolean contains(BlockKey key)
+		throws IOException
+	{
+		if(!isopen.get())
+			throw new IOException("JBOD store not open");
+
+		return locate(key) != null;
+	}
+
+	@Override
+	public long references(BlockKey key)
+		throws IOException
+	{
+		Disk disk;
+
+		if(!isopen.get())
+			throw new IOException("JBOD store not open");
+
+		disk = locate(key);
+		return (disk == null) ? 0 : disk.store.references(key);
+	}
+
+	@Override
+	public long length(BlockKey key)
+		throws IOException
+	{
+		long length;
+
+		if(!isopen.get())
+			throw new IOException("JBOD store not open");
+
+		for(Disk disk : rank(key)) {
+			length = disk.store.length(key);
+			if(length >= 0)
+				return length;
+		}
+
+		return -1;
+	}
+
+	@Override
+	public Iterator<BlockKey> keys()
+		throws IOException
+	{
+		List<Iterator<BlockKey>> iters;
+
+		if(!isopen.get())
+			throw new IOException("JBOD store not open");
+
+		iters = new ArrayList<Iterator<BlockKey>>();
+		for(Disk disk : disks)
+			iters.add(disk.store.keys());
+
+		return Iterators.concat(iters.iterator());
+	}
+
+	/**
+	 * Drop a reference to a block, on whichever disk holds it. Inserts of
+	 * the block still on their way are waited for first.
+	 */
+	@Override
+	public boolean delete(BlockKey key)
+		throws IOException
+	{
+		Placement placement;
+		Disk disk;
+
+		if(!isopen.get())
+			throw new IOException("JBOD store not open");
+
+		placement = pending.get(key);
+		if(placement != null)
+			await(placement);
+
+		disk = locate(key);
+		if(disk == null)
+			return false;
+
+		return disk.store.delete(key);
+	}
+
+	/**
+	 * Remove a block and all of its references, from whichever disk holds
+	 * it, once inserts of it still on their way are done.
+	 */
+	@Override
+	public boolean remove(BlockKey key)
+		throws IOException
+	{
+		Placement placement;
+		Disk disk;
+
+		if(!isopen.get())
+			throw new IOException("JBOD store not open");
+
+		placement = pending.get(key);
+		if(placement != null)
+			await(placement);
+
+		disk = locate(key);
+		if(disk == null)
+			return false;
+
+		return disk.store.remove(key);
+	}
+
+	/**
+	 * Close every disk, once the writes queued on it are done.
+	 */
+	@Override
+	public void close()
+		throws IOException
+	{
+		IOException failure;
+
+		if(!isopen.getAndSet(false))
+			return;
+
+		for(Disk disk : disks)
+			disk.executor.shutdown();
+
+		failure = null;
+		for(Disk disk : disks) {
+			try {
+				disk.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				disk.store.close();
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted closing store");
+			}
+			catch(IOException e) {
+				LOG.error("Failed to close store on " + disk.path + ": " + e.toString());
+				failure = e;
+			}
+		}
+
+		if(failure != null)
+			throw failure;
+	}
+
+	/** Return the number of disks. */
+	public int getDiskCount()
+	{ return disks.size(); }
+
+	/** Return the store on a disk. */
+	public BlockStore getStore(int disk)
+	{ return disks.get(disk).store; }
+
+	/** Return the number of writes queued or under way on a disk. */
+	public int getQueueDepth(int disk)
+	{
+		ThreadPoolExecutor executor;
+
+		executor = disks.get(disk).executor;
+		if(executor == null)
+			return 0;
+
+		return executor.getQueue().size() + executor.getActiveCount();
+	}
+
+	/** Return the number of writes queued or under way on every disk. */
+	public int getQueueDepth()
+	{
+		int depth;
+
+		depth = 0;
+		for(int didx=0; didx < disks.size(); ++didx)
+			depth += getQueueDepth(didx);
+
+		return depth;
+	}
+}
@@ -6,6 +6,24 @@
  * By implementing the BlockStore API, higher layer can create, destroy, put,
  * remove, and check if blocks exist.
  *
+ * Writes are group committed. Blocks inserted at around the same time are
+ * written as a single LevelDB WriteBatch, so a batch of small blocks costs
+ * one write and one sync rather than one each. A batch is written as soon as
+ * it holds enough bytes, or once its first block has waited long enough.
+ *
+ * Every block has a reference count, kept under its own key: the block's key
+ * behind REF_PREFIX. Blocks are stored under their bare key, the prefix keeps
+ * the counts together in a range of their own, so listing the blocks only
+ * walks the counts. Inserting a block the store already holds only writes its
+ * new count, and the block is only removed once deletes have dropped the
+ * count to zero. Blocks stored before counts were kept are given a count of
+ * one the first time the store is opened.
+ *
+ * The count record also carries flags, FLAG_ENCODED marks a block stored
+ * encoded by the codec. Whether a block is decoded on the way out is read
+ * from the flag, never guessed from the data, which may happen to look like
+ * an encoded block.
+ *
  * @file LevelDBStore.java
  * @author Will Dignazio <wdignazio@gmail.com>
  */
@@ -16,75 +34,369 @@ import org.iq80.leveldb.*;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.io.*;
 
+import edu.rit.cs.BlockCodec;
+import edu.rit.cs.BlockKey;
 import edu.rit.cs.HrfsConfiguration;
 import edu.rit.cs.DataBlock;
 import edu.rit.cs.HrfsKeys;
 
 class LevelDBStore
-	implements BlockStore
+	implements AsyncBlockStore
 {
 	static
 	{
 		HrfsConfiguration.init();
 	}
 
+	public static final long DEFAULT_BATCH_BYTES = 1024L*1024L*4L;	// 4MB
+	public static final long DEFAULT_BATCH_DELAY_US = 1000;		// 1ms
+	public static final int DEFAULT_QUEUE_DEPTH = 256;
+	/* Long enough that no block key will ever start with it */
+	public static final byte[] REF_PREFIX = "\0hrfs.refs\0".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] COUNTED_KEY = "\0hrfs.counted".getBytes(StandardCharsets.US_ASCII);
+	private static final byte FLAG_ENCODED = 0x01;
+	private static final int COUNT_LENGTH = 17;
 	private static final Log LOG = LogFactory.getLog(LevelDBStore.class);
 
 	private ThreadPoolExecutor executor;
+	private RejectedExecutionHandler overflow;
+	private int nworkers;
 	private HrfsConfiguration conf;
+	private BlockCodec codec;
 	private String storePath;
 	private Options options;
 	private AtomicBoolean isopen;
 	private File lvlfd;
 	private DB lvldb;
+	private LinkedBlockingQueue<PendingWrite> commitq;
+	private int queueDepth;
+	private Committer committer;
+	private WriteOptions wopts;
+	private long batchBytes;
+	private long batchDelay;
+	private AtomicLong batches;
+	private AtomicLong committed;
+	private AtomicLong dedups;
+	private ReentrantLock reflock;
 
 	/**
-	 * Helper class that can be used to asynchronously store a block of data
-	 * given to the underlying block storage. This will not acknowledge that
-	 * acknowledge completeness currently, but give an exception for failed
-	 * writes.
+	 * Block waiting on the committer, already in the form LevelDB takes.
+	 * Blocks that looked to be stored already aren't encoded, unless the
+	 * committer finds they are needed after all.
 	 */
-	private class LevelDBWorker
+	private static final class PendingWrite
+	{
+		final DataBlock blk;
+		final byte[] key;
+		final byte[] value;
+		final CompletableFuture<DataBlock> future;
+
+		PendingWrite(DataBlock blk, byte[] key, byte[] value,
+			     CompletableFuture<DataBlock> future)
+		{
+			this.blk = blk;
+			this.key = key;
+			this.value = value;
+			this.future = future;
+		}
+
+		long length()
+		{
+			return key.length + ((value == null) ? 0 : value.length);
+		}
+	}
+
+	/**
+	 * Commits pending writes as batches. Whatever has queued up while the
+	 * last batch was being written goes into the next one, and a batch
+	 * waits a short while for company unless it is already full, so one
+	 * sync is paid for many blocks.
+	 */
+	private class Committer
 		extends Thread
 	{
-		DataBlock _blk;
-		
-		public LevelDBWorker(DataBlock blk)
+		private volatile boolean _finishing;
+
+		public Committer()
+		{
+			super("LevelDBStore-committer");
+			setDaemon(true);
+			_finishing = false;
+		}
+
+		/** Commit whatever is queued, then stop */
+		public void finish()
 		{
-			_blk = blk;
+			_finishing = true;
 		}
 
-		/* Simpley go and insert the block */
 		@Override
 		public void run()
 		{
-			if(lvldb == null || !isopen.get()) {
-				System.err.println("Invalid LevelDB instance for worker");
-				return;
+			List<PendingWrite> batch;
+			PendingWrite pending;
+			long deadline;
+			long bytes;
+			long wait;
+
+			batch = new ArrayList<PendingWrite>();
+			for(;;) {
+				try {
+					pending = commitq.poll(100, TimeUnit.MILLISECONDS);
+				}
+				catch(InterruptedException e) {
+					pending = null;
+				}
+
+				if(pending == null) {
+					if(_finishing && commitq.isEmpty())
+						break;
+					continue;
+				}
+
+				batch.clear();
+				batch.add(pending);
+				bytes = pending.length();
+				deadline = System.nanoTime() + batchDelay;
+
+				while(bytes < batchBytes) {
+					pending = commitq.poll();
+					if(pending == null) {
+						wait = deadline - System.nanoTime();
+						if(wait <= 0 || _finishing)
+							break;
+
+						try {
+							pending = commitq.poll(wait, TimeUnit.NANOSECONDS);
+						}
+						catch(InterruptedException e) {
+							break;
+						}
+
+						if(pending == null)
+							break;
+					}
+
+					batch.add(pending);
+					bytes += pending.length();
+				}
+
+				commit(batch);
+			}
+
+			LOG.debug("LevelDB committer finished");
+		}
+	}
+
+	/**
+	 * Write a batch of blocks in one go, completing the future of every
+	 * block once the batch is written, and synced if so configured. Blocks
+	 * already stored, or earlier in the batch, only have their count
+	 * raised.
+	 */
+	private void commit(List<PendingWrite> batch)
+	{
+		HashMap<BlockKey, Long> counts;
+		HashMap<BlockKey, Byte> flags;
+		WriteBatch wbatch;
+		IOException failure;
+		BlockKey bkey;
+		Long refs;
+		int dups;
+
+		failure = null;
+		counts = new HashMap<BlockKey, Long>();
+		flags = new HashMap<BlockKey, Byte>();
+		dups = 0;
+
+		reflock.lock();
+		wbatch = lvldb.createWriteBatch();
+		try {
+			for(PendingWrite pending : batch) {
+				bkey = pending.blk.key();
+				refs = counts.get(bkey);
+				if(refs == null) {
+					refs = storedReferences(pending.key, false);
+					flags.put(bkey, storedFlags(pending.key));
+				}
+
+				if(refs == 0) {
+					wbatch.put(pending.key, (pending.value != null) ?
+						   pending.value : blockBytes(pending.blk));
+					flags.put(bkey, blockFlags());
+				}
+				else
+					++dups;
+
+				counts.put(bkey, refs + 1);
+				wbatch.put(refKey(pending.key),
+					   countBytes(refs + 1, pending.blk.length(), flags.get(bkey)));
 			}
 
+			lvldb.write(wbatch, wopts);
+			batches.incrementAndGet();
+			committed.addAndGet(batch.size());
+			dedups.addAndGet(dups);
+		}
+		catch(DBException e) {
+			LOG.error("Failed to commit " + batch.size() + " blocks: " + e.toString());
+			failure = new IOException("Failed to commit block: " + e.toString());
+		}
+		catch(RuntimeException e) {
+			/* Fail the batch rather than the committer, or inserts wait forever */
+			LOG.error("Failed to commit " + batch.size() + " blocks: " + e.toString());
+			failure = new IOException("Failed to commit block: " + e.toString());
+		}
+		finally {
+			reflock.unlock();
 			try {
-				/*
-				 * Simple as possible for now, toss the data in.
-				 * This will throw */
-				lvldb.put(_blk.hash(), _blk.data());
-				
+				wbatch.close();
 			}
-			catch(DBException e) {
-				System.err.println("Failed to insert block: "
-						      + e.toString());
-				return;
+			catch(IOException e) {
+				LOG.warn("Failed to release write batch: " + e.toString());
 			}
 		}
+
+		for(PendingWrite pending : batch) {
+			if(failure == null)
+				pending.future.complete(pending.blk);
+			else
+				pending.future.completeExceptionally(failure);
+		}
 	}
-	
+
+	/** Key of a block's reference count */
+	private static byte[] refKey(byte[] hash)
+	{
+		byte[] rkey;
+
+		rkey = new byte[REF_PREFIX.length + hash.length];
+		System.arraycopy(REF_PREFIX, 0, rkey, 0, REF_PREFIX.length);
+		System.arraycopy(hash, 0, rkey, REF_PREFIX.length, hash.length);
+		return rkey;
+	}
+
+	/** Whether a key is a reference count rather than a block */
+	private static boolean isRefKey(byte[] kbytes)
+	{
+		if(kbytes.length <= REF_PREFIX.length)
+			return false;
+
+		for(int bidx=0; bidx < REF_PREFIX.length; ++bidx)
+			if(kbytes[bidx] != REF_PREFIX[bidx])
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Build a count record, the references to a block followed by its
+	 * length, so the block can be measured without reading it, and its
+	 * flags.
+	 */
+	private static byte[] countBytes(long refs, long length, byte flags)
+	{
+		return ByteBuffer.allocate(COUNT_LENGTH).putLong(0, refs).putLong(8, length)
+			.put(16, flags).array();
+	}
+
+	/**
+	 * Get the flags of a block from its count record. Counts written
+	 * before flags were kept carry none, their blocks are stored bare.
+	 */
+	private byte storedFlags(byte[] hash)
+	{
+		byte[] count;
+
+		count = lvldb.get(refKey(hash));
+		if(count == null || count.length < COUNT_LENGTH)
+			return 0;
+
+		return count[16];
+	}
+
+	/** Flags of a block about to be written with the store's codec */
+	private byte blockFlags()
+	{
+		return codec.isRaw() ? 0 : FLAG_ENCODED;
+	}
+
+	/**
+	 * Get the length of a block from its count record.
+	 * @return Length of the block, or -1 if its count doesn't record it.
+	 */
+	private long countedLength(byte[] hash)
+	{
+		byte[] count;
+
+		count = lvldb.get(refKey(hash));
+		if(count == null || count.length < 16)
+			return -1;
+
+		return ByteBuffer.wrap(count).getLong(8);
+	}
+
+	/**
+	 * Count the references to a stored block, reading only its count.
+	 * @param hash Key of the block
+	 * @param uncounted Whether to look for a block stored without a count
+	 * @return References to the block, zero if it isn't stored.
+	 */
+	private long storedReferences(byte[] hash, boolean uncounted)
+	{
+		byte[] count;
+
+		count = lvldb.get(refKey(hash));
+		if(count != null)
+			return ByteBuffer.wrap(count).getLong();
+
+		if(uncounted && lvldb.get(hash) != null)
+			return 1;
+
+		return 0;
+	}
+
+	/**
+	 * Get the data of a block as an exact length array, which is what
+	 * LevelDB takes. With a codec configured this is the encoded block.
+	 * Otherwise the block is always copied out: LevelDB keeps the array it
+	 * is given in its memtable, and a block's own array, such as a pooled
+	 * buffer, may be reused by its owner once the block is released.
+	 */
+	private byte[] blockBytes(DataBlock blk)
+	{
+		ByteBuffer buf;
+		byte[] bytes;
+
+		buf = blk.buffer();
+		if(!codec.isRaw())
+			return codec.encode(buf);
+
+		bytes = new byte[buf.remaining()];
+		buf.get(bytes);
+		return bytes;
+	}
+
 	/**
 	 * Construct a LevelDB Block Store instance, this will not create or open
 	 * store outright, but instead give a handle to a store as configured in
@@ -96,6 +408,7 @@ class LevelDBStore
 	{
 		String nodepath;
 
+		conf = new HrfsConfiguration();
 		storePath = path;
 		if(storePath == null)
 			storePath = conf.get(HrfsKeys.HRFS_NODE_STORE_PATH);
@@ -104,6 +417,24 @@ class LevelDBStore
 			throw new IOException("Store Path unset, refusing to construct store.");		
 
 		isopen = new AtomicBoolean(false);
+		codec = BlockCodec.configured(conf);
+
+		/* Group commit tunables */
+		batchBytes = conf.getLong(HrfsKeys.HRFS_LEVELDB_BATCH_BYTES,
+					  DEFAULT_BATCH_BYTES);
+		batchDelay = TimeUnit.MICROSECONDS.toNanos(
+			conf.getLong(HrfsKeys.HRFS_LEVELDB_BATCH_DELAY, DEFAULT_BATCH_DELAY_US));
+		wopts = new WriteOptions().sync(conf.getBoolean(HrfsKeys.HRFS_LEVELDB_SYNC,
+								true));
+		queueDepth = conf.getInt(HrfsKeys.HRFS_LEVELDB_QUEUE, DEFAULT_QUEUE_DEPTH);
+		if(queueDepth < 1)
+			throw new IllegalArgumentException("Invalid LevelDB queue depth: " + queueDepth);
+
+		commitq = new LinkedBlockingQueue<PendingWrite>(queueDepth);
+		batches = new AtomicLong(0);
+		committed = new AtomicLong(0);
+		dedups = new AtomicLong(0);
+		reflock = new ReentrantLock();
 		
 		options = new Options();
 		options.compressionType(CompressionType.NONE);
@@ -112,10 +443,25 @@ class LevelDBStore
 		if(lvlfd.exists() && (!lvlfd.canWrite() || !lvlfd.canRead()))
 			throw new IOException("Insufficient Permission");
 
-		/* Build up our worker pool using the configuration tunable. */
-		this.executor = new ThreadPoolExecutor(nworkers, nworkers,
-						       1000L, TimeUnit.MILLISECONDS,
-						       new LinkedBlockingQueue<Runnable>());
+		/*
+		 * The worker pool is sized by the configuration tunable, the
+		 * workers encode blocks and hand them to the committer. Both
+		 * queues are bounded, once they fill an inserting thread encodes
+		 * its own block, and waits for room on the committer's queue, so
+		 * a burst of inserts is held back rather than piling up. The pool
+		 * itself is built on open, as close shuts it down.
+		 */
+		this.nworkers = nworkers;
+		this.overflow = new RejectedExecutionHandler() {
+			@Override
+			public void rejectedExecution(Runnable task, ThreadPoolExecutor pool)
+			{
+				if(pool.isShutdown())
+					throw new RejectedExecutionException("Store is closing");
+
+				task.run();
+			}
+		};
 	}
 
 	/**
@@ -138,7 +484,8 @@ class LevelDBStore
 		if(lvldb == null)
 			return false;
 
-		isopen.set(true);
+		countBlocks();
+		startWorkers();
 		return true;
 	}
 	/**
@@ -157,13 +504,80 @@ class LevelDBStore
 		if(lvldb == null)
 			throw new IOException("Unable to build LevelDB store");
 
-		isopen.set(true);
+		countBlocks();
+		startWorkers();
 		return true;
 	}
 
+	/**
+	 * Give a count of one to every block stored before counts were kept,
+	 * so that keys() can find them by their count. This walks the whole
+	 * database, but only once, a marker records that it has been done.
+	 */
+	private void countBlocks()
+		throws IOException
+	{
+		Map.Entry<byte[], byte[]> entry;
+		WriteBatch wbatch;
+		DBIterator iter;
+		byte[] kbytes;
+		long counted;
+
+		if(lvldb.get(COUNTED_KEY) != null)
+			return;
+
+		counted = 0;
+		wbatch = lvldb.createWriteBatch();
+		try {
+			iter = lvldb.iterator();
+			try {
+				for(iter.seekToFirst(); iter.hasNext();) {
+					entry = iter.next();
+					kbytes = entry.getKey();
+					if(isRefKey(kbytes) || kbytes.length > BlockKey.MAX_LENGTH ||
+					   Arrays.equals(kbytes, COUNTED_KEY))
+						continue;
+
+					if(lvldb.get(refKey(kbytes)) == null) {
+						wbatch.put(refKey(kbytes), countBytes(1, -1, (byte)0));
+						++counted;
+					}
+				}
+			}
+			finally {
+				iter.close();
+			}
+
+			wbatch.put(COUNTED_KEY, new byte[0]);
+			lvldb.write(wbatch, new WriteOptions().sync(true));
+		}
+		catch(DBException e) {
+			throw new IOException("Failed to count stored blocks: " + e.toString());
+		}
+		finally {
+			wbatch.close();
+		}
+
+		if(counted > 0)
+			LOG.info("Counted " + counted + " blocks stored without a count");
+	}
+
+	/** Start the workers and committer for a freshly opened database */
+	private void startWorkers()
+	{
+		executor = new ThreadPoolExecutor(nworkers, nworkers,
+						  1000L, TimeUnit.MILLISECONDS,
+						  new LinkedBlockingQueue<Runnable>(queueDepth),
+						  overflow);
+		committer = new Committer();
+		committer.start();
+		isopen.set(true);
+	}
+
 	/**
 	 * Write a block of data to the store, this block must be qualified by
-	 * the DataBlock class, so that a data buffer and hash is provided.
+	 * the DataBlock class, so that a data buffer and hash is provided. The
+	 * block is written in the background, use insertAsync() to know when.
 	 * @param DataBlock to insert
 	 * @return Whether the insertion of the block was successful.
 	 */
@@ -171,12 +585,380 @@ class LevelDBStore
 	public boolean insert(DataBlock blk)
 		throws IOException
 	{
+		insertAsync(blk);
+		return true;
+	}
+
+	/**
+	 * Write a block of data to the store in the background. The block is
+	 * committed along with whatever other blocks are being written at the
+	 * same time.
+	 * @param blk Block to insert
+	 * @return Future completed with the block once its batch is written,
+	 *         and synced to disk if the store syncs.
+	 */
+	@Override
+	public CompletableFuture<DataBlock> insertAsync(final DataBlock blk)
+		throws IOException
+	{
+		final CompletableFuture<DataBlock> future;
+
 		if(!isopen.get())
 			throw new IOException("Database not open");
 		if(lvldb == null)
 			throw new IOException("Database not initialized");
 
-		executor.execute(new LevelDBWorker(blk));
-		return true;
+		future = new CompletableFuture<DataBlock>();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run()
+				{
+					byte[] hash;
+					byte[] value;
+
+					try {
+						/* Likely duplicates are left for the committer */
+						hash = blk.hash();
+						value = null;
+						if(storedReferences(hash, false) == 0)
+							value = blockBytes(blk);
+
+						commitq.put(new PendingWrite(blk, hash, value, future));
+					}
+					catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+						future.completeExceptionally(
+							new InterruptedIOException("Interrupted queueing block"));
+					}
+					catch(RuntimeException e) {
+						future.completeExceptionally(e);
+					}
+				}
+			});
+		}
+		catch(RejectedExecutionException e) {
+			throw new IOException("Store is closing");
+		}
+
+		return future;
+	}
+
+	/**
+	 * Write a block with several references straight to the database, in
+	 * one write rather than through the committer. Inserts of the block
+	 * already queued are counted on top when they are committed.
+	 */
+	@Override
+	public boolean insert(DataBlock blk, long added)
+		throws IOException
+	{
+		WriteBatch wbatch;
+		byte[] value;
+		byte[] hash;
+		byte flags;
+		long refs;
+
+		checkOpen();
+		if(added < 1)
+			throw new IllegalArgumentException("Invalid reference count: " + added);
+
+		hash = blk.hash();
+		value = null;
+		if(storedReferences(hash, false) == 0)
+			value = blockBytes(blk);
+
+		reflock.lock();
+		try {
+			refs = storedReferences(hash, true);
+			wbatch = lvldb.createWriteBatch();
+			try {
+				if(refs == 0) {
+					wbatch.put(hash, (value != null) ? value : blockBytes(blk));
+					flags = blockFlags();
+				}
+				else
+					flags = storedFlags(hash);
+
+				wbatch.put(refKey(hash), countBytes(refs + added, blk.length(), flags));
+				lvldb.write(wbatch, wopts);
+			}
+			finally {
+				wbatch.close();
+			}
+
+			return true;
+		}
+		catch(DBException e) {
+			throw new IOException("Failed to insert block " + blk.key() + ": " + e.toString());
+		}
+		finally {
+			reflock.unlock();
+		}
+	}
+
+	/**
+	 * Close the store, once every block already inserted is committed.
+	 */
+	@Override
+	public void close()
+		throws IOException
+	{
+		if(!isopen.getAndSet(false))
+			return;
+
+		try {
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			committer.finish();
+			committer.join();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted closing store");
+		}
+
+		lvldb.close();
+		lvldb = null;
+	}
+
+	/** Return the number of batches committed so far. */
+	public long getBatchCount()
+	{ return batches.get(); }
+
+	/** Return the number of blocks committed so far. */
+	public long getCommittedCount()
+	{ return committed.get(); }
+
+	/** Return the number of inserts that only added a reference. */
+	public long getDedupCount()
+	{ return dedups.get(); }
+
+	/** Make sure the store can be read from */
+	private void checkOpen()
+		throws IOException
+	{
+		if(!isopen.get())
+			throw new IOException("Database not open");
+		if(lvldb == null)
+			throw new IOException("Database not initialized");
+	}
+
+	/**
+	 * Read a block from the store, decoding it if it was stored encoded.
+	 * Blocks still queued for insertion are not yet visible.
+	 * @param key Key of the block
+	 * @return The block, or null if it isn't stored.
+	 */
+	@Override
+	public DataBlock get(BlockKey key)
+		throws IOException
+	{
+		ByteBuffer data;
+		byte[] value;
+		byte flags;
+
+		checkOpen();
+		try {
+			value = lvldb.get(key.toBytes());
+			flags = storedFlags(key.toBytes());
+		}
+		catch(DBException e) {
+			throw new IOException("Failed to read block " + key + ": " + e.toString());
+		}
+
+		if(value == null)
+			return null;
+
+		if((flags & FLAG_ENCODED) != 0)
+			data = BlockCodec.decode(value, 0, value.length);
+		else
+			data = ByteBuffer.wrap(value);
+		return new DataBlock(data, key.toBytes(), 0);
+	}
+
+	/**
+	 * Stream a block, which LevelDB can only read whole.
+	 */
+	@Override
+	public InputStream stream(BlockKey key)
+		throws IOException
+	{
+		return BlockStores.stream(get(key));
+	}
+
+	/**
+	 * Determine whether a block is stored, from its reference count
+	 * rather than its data.
+	 * @param key Key of the block
+	 * @return Whether the block is stored.
+	 */
+	@Override
+	public boolean contains(BlockKey key)
+		throws IOException
+	{
+		return references(key) > 0;
+	}
+
+	@Override
+	public long references(BlockKey key)
+		throws IOException
+	{
+		checkOpen();
+		try {
+			return storedReferences(key.toBytes(), true);
+		}
+		catch(DBException e) {
+			throw new IOException("Failed to look up block " + key + ": " + e.toString());
+		}
+	}
+
+	/**
+	 * Get the length of a block from its count record. Only a block whose
+	 * count predates lengths being recorded is read to measure it.
+	 */
+	@Override
+	public long length(BlockKey key)
+		throws IOException
+	{
+		DataBlock blk;
+		long length;
+
+		checkOpen();
+		try {
+			length = countedLength(key.toBytes());
+		}
+		catch(DBException e) {
+			throw new IOException("Failed to look up block " + key + ": " + e.toString());
+		}
+
+		if(length >= 0)
+			return length;
+
+		blk = get(key);
+		return (blk == null) ? -1 : blk.length();
+	}
+
+	/**
+	 * List the keys of the blocks stored. Every stored block has a count,
+	 * so only the range of counts is walked, the blocks themselves are
+	 * never read.
+	 */
+	@Override
+	public Iterator<BlockKey> keys()
+		throws IOException
+	{
+		List<BlockKey> keys;
+		DBIterator iter;
+		byte[] kbytes;
+
+		checkOpen();
+		keys = new ArrayList<BlockKey>();
+		try {
+			iter = lvldb.iterator();
+			try {
+				for(iter.seek(REF_PREFIX); iter.hasNext();) {
+					kbytes = iter.next().getKey();
+					if(!isRefKey(kbytes))
+						break;
+
+					keys.add(new BlockKey(kbytes, REF_PREFIX.length,
+							      kbytes.length - REF_PREFIX.length));
+				}
+			}
+			finally {
+				iter.close();
+			}
+		}
+		catch(DBException e) {
+			throw new IOException("Failed to list blocks: " + e.toString());
+		}
+
+		return keys.iterator();
+	}
+
+	/**
+	 * Drop a reference to a block, removing the block along with its count
+	 * once the last reference is dropped.
+	 * @param key Key of the block
+	 * @return Whether the block was stored.
+	 */
+	@Override
+	public boolean delete(BlockKey key)
+		throws IOException
+	{
+		WriteBatch wbatch;
+		byte[] kbytes;
+		long refs;
+
+		checkOpen();
+		kbytes = key.toBytes();
+		reflock.lock();
+		try {
+			refs = storedReferences(kbytes, true);
+			if(refs == 0)
+				return false;
+
+			if(refs > 1) {
+				lvldb.put(refKey(kbytes), countBytes(refs - 1, countedLength(kbytes),
+								     storedFlags(kbytes)), wopts);
+				return true;
+			}
+
+			wbatch = lvldb.createWriteBatch();
+			try {
+				wbatch.delete(kbytes);
+				wbatch.delete(refKey(kbytes));
+				lvldb.write(wbatch, wopts);
+			}
+			finally {
+				wbatch.close();
+			}
+
+			return true;
+		}
+		catch(DBException e) {
+			throw new IOException("Failed to delete block " + key + ": " + e.toString());
+		}
+		finally {
+			reflock.unlock();
+		}
+	}
+
+	/**
+	 * Remove a block and its count in one write, whatever the count.
+	 */
+	@Override
+	public boolean remove(BlockKey key)
+		throws IOException
+	{
+		WriteBatch wbatch;
+		byte[] kbytes;
+
+		checkOpen();
+		kbytes = key.toBytes();
+		reflock.lock();
+		try {
+			if(storedReferences(kbytes, true) == 0)
+				return false;
+
+			wbatch = lvldb.createWriteBatch();
+			try {
+				wbatch.delete(kbytes);
+				wbatch.delete(refKey(kbytes));
+				lvldb.write(wbatch, wopts);
+			}
+			finally {
+				wbatch.close();
+			}
+
+			return true;
+		}
+		catch(DBException e) {
+			throw new IOException("Failed to remove block " + key + ": " + e.toString());
+		}
+		finally {
+			reflock.unlock();
+		}
 	}
 }
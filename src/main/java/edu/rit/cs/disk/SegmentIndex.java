@@ -0,0 +1,497 @@
+/**
+ * Copyright © 2015
+ * Hrfs Segment Index
+ *
+ * Maps block keys to where their records lie in a SegmentStore: the segment,
+ * the offset of the record within it, and the length of the record. Each key
+ * also has a count of references to the block, and the location of the latest
+ * record setting that count, if the count has ever changed. The index
+ * is an open addressing hash table with linear probing, kept in direct
+ * buffers off the java heap, so millions of blocks cost the collector nothing.
+ * Every entry takes a fixed SLOT_SIZE bytes, and the table doubles once it is
+ * three quarters full, counting the markers left by removed entries. A large
+ * table is split over pages of PAGE_SLOTS slots, as a single buffer can't
+ * hold more than 2GB. Once the table has MAX_SLOTS slots it stops growing,
+ * and is full at three quarters of them.
+ *
+ * The index is not thread safe, callers must hold their own lock around it.
+ *
+ * @file SegmentIndex.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs.disk;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.rit.cs.BlockKey;
+
+final class SegmentIndex
+{
+	public static final int SLOT_SIZE = 72;
+	public static final int MIN_SLOTS = 1024;
+	public static final int PAGE_SLOTS = 1 << 20;
+	public static final int MAX_SLOTS = 1 << 25;
+
+	/* Slot layout, the key is padded out to its longest length */
+	private static final int KEY = 0;
+	private static final int KEY_LENGTH = 32;
+	private static final int SEGMENT = 36;
+	private static final int OFFSET = 40;
+	private static final int LENGTH = 48;
+	private static final int REFS = 52;
+	private static final int REF_SEGMENT = 56;
+	private static final int REF_LENGTH = 60;
+	private static final int REF_OFFSET = 64;
+
+	private static final byte EMPTY = 0;
+	private static final byte REMOVED = (byte)0xff;
+
+	private final int pageSlots;
+	private final int pageShift;
+	private final int maxSlots;
+	private ByteBuffer[] pages;
+	private int mask;
+	private int size;
+	private int used;
+
+	/** Where a block's record lies within the store */
+	static final class Location
+	{
+		final int segment;
+		final long offset;
+		final int length;
+
+		Location(int segment, long offset, int length)
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Build an index with room for a number of blocks before it grows.
+	 * @param expected Number of blocks expected
+	 */
+	SegmentIndex(int expected)
+	{
+		this(expected, PAGE_SLOTS, MAX_SLOTS);
+	}
+
+	/**
+	 * Build an index with its own page and table limits.
+	 * @param expected Number of blocks expected
+	 * @param pageSlots Slots in each page of the table, a power of two
+	 * @param maxSlots Slots the table may grow to, a power of two
+	 */
+	SegmentIndex(int expected, int pageSlots, int maxSlots)
+	{
+		int slots;
+
+		if(Integer.bitCount(pageSlots) != 1 || Integer.bitCount(maxSlots) != 1
+		   || maxSlots < MIN_SLOTS || (long)pageSlots * SLOT_SIZE > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Invalid index limits: " + pageSlots
+							   + ", " + maxSlots);
+
+		this.pageSlots = pageSlots;
+		this.pageShift = Integer.numberOfTrailingZeros(pageSlots);
+		this.maxSlots = maxSlots;
+
+		slots = MIN_SLOTS;
+		while(slots < maxSlots && slots * 3L / 4 < expected)
+			slots <<= 1;
+
+		allocate(slots);
+	}
+
+	private void allocate(int slots)
+	{
+		int perPage;
+
+		perPage = Math.min(slots, pageSlots);
+		pages = new ByteBuffer[slots / perPage];
+		for(int pidx=0; pidx < pages.length; ++pidx)
+			pages[pidx] = ByteBuffer.allocateDirect(perPage * SLOT_SIZE);
+
+		mask = slots - 1;
+		size = 0;
+		used = 0;
+	}
+
+	/** Most blocks a table of so many slots holds */
+	private static long limit(int slots)
+	{
+		return slots * 3L / 4;
+	}
+
+	/** Page of a table holding a slot */
+	private ByteBuffer page(ByteBuffer[] table, int slot)
+	{
+		return table[slot >>> pageShift];
+	}
+
+	/** Byte position of a slot within its page */
+	private int at(int slot)
+	{
+		return (slot & (pageSlots - 1)) * SLOT_SIZE;
+	}
+
+	private byte getByte(int slot, int field)
+	{ return page(pages, slot).get(at(slot) + field); }
+
+	private int getInt(int slot, int field)
+	{ return page(pages, slot).getInt(at(slot) + field); }
+
+	private long getLong(int slot, int field)
+	{ return page(pages, slot).getLong(at(slot) + field); }
+
+	private void putByte(int slot, int field, byte value)
+	{ page(pages, slot).put(at(slot) + field, value); }
+
+	private void putInt(int slot, int field, int value)
+	{ page(pages, slot).putInt(at(slot) + field, value); }
+
+	private void putLong(int slot, int field, long value)
+	{ page(pages, slot).putLong(at(slot) + field, value); }
+
+	/** Spread a key's hash code over the table */
+	private int home(BlockKey key)
+	{
+		int hash;
+
+		hash = key.hashCode() * 0x9e3779b9;
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	/** Whether a slot holds a key */
+	private boolean matches(int slot, byte[] kbytes)
+	{
+		if(getByte(slot, KEY_LENGTH) != kbytes.length)
+			return false;
+
+		for(int kidx=0; kidx < kbytes.length; ++kidx)
+			if(getByte(slot, KEY + kidx) != kbytes[kidx])
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Find a key's slot.
+	 * @return The slot, or -1 if the key isn't indexed.
+	 */
+	private int find(BlockKey key, byte[] kbytes)
+	{
+		byte state;
+		int slot;
+
+		slot = home(key);
+		for(;;) {
+			state = getByte(slot, KEY_LENGTH);
+			if(state == EMPTY)
+				return -1;
+			if(state != REMOVED && matches(slot, kbytes))
+				return slot;
+
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private Location location(int slot)
+	{
+		return new Location(getInt(slot, SEGMENT), getLong(slot, OFFSET),
+				    getInt(slot, LENGTH));
+	}
+
+	/**
+	 * Look up where a block lies.
+	 * @param key Key of the block
+	 * @return Location of the block, or null if it isn't indexed.
+	 */
+	Location get(BlockKey key)
+	{
+		int slot;
+
+		slot = find(key, key.toBytes());
+		if(slot < 0)
+			return null;
+
+		return location(slot);
+	}
+
+	/** Determine whether a block is indexed. */
+	boolean contains(BlockKey key)
+	{
+		return find(key, key.toBytes()) >= 0;
+	}
+
+	/**
+	 * Count the references to a block.
+	 * @param key Key of the block
+	 * @return References to the block, zero if it isn't indexed.
+	 */
+	int references(BlockKey key)
+	{
+		int slot;
+
+		slot = find(key, key.toBytes());
+		return (slot < 0) ? 0 : getInt(slot, REFS);
+	}
+
+	/**
+	 * Look up the latest record setting a block's reference count.
+	 * @param key Key of the block
+	 * @return Location of the record, or null if there is none.
+	 */
+	Location refLocation(BlockKey key)
+	{
+		int slot;
+
+		slot = find(key, key.toBytes());
+		if(slot < 0 || getInt(slot, REF_SEGMENT) < 0)
+			return null;
+
+		return new Location(getInt(slot, REF_SEGMENT), getLong(slot, REF_OFFSET),
+				    getInt(slot, REF_LENGTH));
+	}
+
+	/**
+	 * Set the references to a block, recorded at a location.
+	 * @param key Key of the block
+	 * @param refs References to the block
+	 * @param segment Segment holding the record of the count
+	 * @param offset Offset of the record within the segment
+	 * @param length Length of the record
+	 * @return Where the count was last recorded, or null if it never was,
+	 *         or the block isn't indexed.
+	 */
+	Location setReferences(BlockKey key, int refs, int segment, long offset, int length)
+	{
+		Location prev;
+		int slot;
+
+		slot = find(key, key.toBytes());
+		if(slot < 0)
+			return null;
+
+		prev = null;
+		if(getInt(slot, REF_SEGMENT) >= 0)
+			prev = new Location(getInt(slot, REF_SEGMENT), getLong(slot, REF_OFFSET),
+					    getInt(slot, REF_LENGTH));
+
+		putInt(slot, REFS, refs);
+		putInt(slot, REF_SEGMENT, segment);
+		putLong(slot, REF_OFFSET, offset);
+		putInt(slot, REF_LENGTH, length);
+		return prev;
+	}
+
+	/**
+	 * Determine whether the table is full, and a new block can't be put.
+	 */
+	boolean isFull()
+	{
+		return mask + 1 >= maxSlots && size + 1 > limit(mask + 1);
+	}
+
+	/**
+	 * Index a block, replacing wherever it was before. A new block starts
+	 * with one reference, a block moved keeps its count.
+	 * @param key Key of the block
+	 * @param segment Segment holding the block's record
+	 * @param offset Offset of the record within the segment
+	 * @param length Length of the record
+	 * @return Where the block was before, or null if it is new.
+	 * @throws IllegalStateException if a new block is put in a full table.
+	 */
+	Location put(BlockKey key, int segment, long offset, int length)
+	{
+		Location prev;
+		byte[] kbytes;
+		byte state;
+		int slot;
+
+		kbytes = key.toBytes();
+		if(kbytes.length == 0)
+			throw new IllegalArgumentException("Empty block key");
+
+		slot = find(key, kbytes);
+		if(slot >= 0) {
+			prev = location(slot);
+			write(slot, segment, offset, length);
+			return prev;
+		}
+
+		if(used + 1 > limit(mask + 1)) {
+			/*
+			 * Grow, unless most of what is used is removed markers.
+			 * A table that can't grow only clears out its markers,
+			 * once they leave an eighth of it free.
+			 */
+			if(mask + 1 < maxSlots && (size + 1) * 2L > mask + 1)
+				rehash((mask + 1) << 1);
+			else if(isFull())
+				throw new IllegalStateException("Segment index full");
+			else if(mask + 1 < maxSlots || used + 1 > (mask + 1) * 7L / 8)
+				rehash(mask + 1);
+		}
+
+		/* Reuse the first free slot along the probe */
+		slot = home(key);
+		for(;;) {
+			state = getByte(slot, KEY_LENGTH);
+			if(state == EMPTY || state == REMOVED)
+				break;
+
+			slot = (slot + 1) & mask;
+		}
+
+		if(state == EMPTY)
+			++used;
+		++size;
+
+		for(int kidx=0; kidx < KEY_LENGTH; ++kidx)
+			putByte(slot, KEY + kidx, kidx < kbytes.length ? kbytes[kidx] : 0);
+		putByte(slot, KEY_LENGTH, (byte)kbytes.length);
+		putInt(slot, REFS, 1);
+		putInt(slot, REF_SEGMENT, -1);
+		write(slot, segment, offset, length);
+		return null;
+	}
+
+	/**
+	 * Move a block, but only if it is still where it was, as a block
+	 * deleted or written again since shouldn't be brought back.
+	 * @return Whether the block was moved.
+	 */
+	boolean replace(BlockKey key, Location expect, int segment, long offset, int length)
+	{
+		int slot;
+
+		slot = find(key, key.toBytes());
+		if(slot < 0 || getInt(slot, SEGMENT) != expect.segment
+		   || getLong(slot, OFFSET) != expect.offset)
+			return false;
+
+		write(slot, segment, offset, length);
+		return true;
+	}
+
+	/**
+	 * Move the record of a block's reference count, but only if it is
+	 * still the latest one.
+	 * @return Whether the record was moved.
+	 */
+	boolean replaceRef(BlockKey key, Location expect, int segment, long offset, int length)
+	{
+		int slot;
+
+		slot = find(key, key.toBytes());
+		if(slot < 0 || getInt(slot, REF_SEGMENT) != expect.segment
+		   || getLong(slot, REF_OFFSET) != expect.offset)
+			return false;
+
+		putInt(slot, REF_SEGMENT, segment);
+		putLong(slot, REF_OFFSET, offset);
+		putInt(slot, REF_LENGTH, length);
+		return true;
+	}
+
+	private void write(int slot, int segment, long offset, int length)
+	{
+		putInt(slot, SEGMENT, segment);
+		putLong(slot, OFFSET, offset);
+		putInt(slot, LENGTH, length);
+	}
+
+	/**
+	 * Drop a block from the index.
+	 * @param key Key of the block
+	 * @return Where the block was, or null if it wasn't indexed.
+	 */
+	Location remove(BlockKey key)
+	{
+		Location prev;
+		int slot;
+
+		slot = find(key, key.toBytes());
+		if(slot < 0)
+			return null;
+
+		prev = location(slot);
+		putByte(slot, KEY_LENGTH, REMOVED);
+		--size;
+		return prev;
+	}
+
+	/** List the key of every block indexed. */
+	List<BlockKey> keys()
+	{
+		List<BlockKey> keys;
+		byte[] kbytes;
+		byte state;
+
+		keys = new ArrayList<BlockKey>(size);
+		for(int slot=0; slot <= mask; ++slot) {
+			state = getByte(slot, KEY_LENGTH);
+			if(state == EMPTY || state == REMOVED)
+				continue;
+
+			kbytes = new byte[state];
+			for(int kidx=0; kidx < kbytes.length; ++kidx)
+				kbytes[kidx] = getByte(slot, KEY + kidx);
+
+			keys.add(new BlockKey(kbytes));
+		}
+
+		return keys;
+	}
+
+	/** Move every entry into a fresh table, clearing out removed markers */
+	private void rehash(int slots)
+	{
+		ByteBuffer[] old;
+		ByteBuffer opage;
+		byte[] kbytes;
+		byte state;
+		int oldSlots;
+		int slot;
+		int pos;
+
+		old = pages;
+		oldSlots = mask + 1;
+		allocate(slots);
+
+		for(int oslot=0; oslot < oldSlots; ++oslot) {
+			opage = page(old, oslot);
+			pos = at(oslot);
+			state = opage.get(pos + KEY_LENGTH);
+			if(state == EMPTY || state == REMOVED)
+				continue;
+
+			kbytes = new byte[state];
+			for(int kidx=0; kidx < kbytes.length; ++kidx)
+				kbytes[kidx] = opage.get(pos + KEY + kidx);
+
+			slot = home(new BlockKey(kbytes));
+			while(getByte(slot, KEY_LENGTH) != EMPTY)
+				slot = (slot + 1) & mask;
+
+			for(int bidx=0; bidx < SLOT_SIZE; bidx += 8)
+				putLong(slot, bidx, opage.getLong(pos + bidx));
+
+			++size;
+			++used;
+		}
+	}
+
+	/** Return the number of blocks indexed. */
+	int size()
+	{ return size; }
+
+	/** Return the number of slots in the table. */
+	int capacity()
+	{ return mask + 1; }
+}
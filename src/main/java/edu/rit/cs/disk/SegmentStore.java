@@ -0,0 +1,1321 @@
+/**
+ * Copyright © 2015
+ * Hrfs Segment Block Store
+ *
+ * A log structured BlockStore for large blocks. Blocks are appended to the
+ * end of large segment files and never rewritten in place, so a block is
+ * written to disk once, where LevelDB would copy it again at every level of
+ * compaction. Where each block lies is kept in a SegmentIndex, which is built
+ * again from the segments when the store is opened.
+ *
+ * Every record in a segment carries its key and a checksum, so the segments
+ * alone describe the store. Inserting a block the store already holds only
+ * appends a small record of its new reference count, and deleting a block
+ * drops a reference the same way, until the last reference appends a record
+ * deleting the block. A newly written block is followed by its count too.
+ * Segments are compacted in the background: once little of a sealed segment
+ * is still live, its live blocks are copied onto the end of the store and the
+ * segment is removed. A deletion record names the segment of the block it
+ * deleted, and is dropped by compaction once that segment is gone.
+ *
+ * Record layout, integers big endian:
+ *	magic(4) type(1) keylen(1) valuelen(4) key value crc32(4)
+ *
+ * @file SegmentStore.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.rit.cs.BlockCodec;
+import edu.rit.cs.BlockKey;
+import edu.rit.cs.DataBlock;
+import edu.rit.cs.HrfsConfiguration;
+import edu.rit.cs.HrfsKeys;
+
+class SegmentStore
+	implements BlockStore
+{
+	static
+	{
+		HrfsConfiguration.init();
+	}
+
+	public static final long DEFAULT_SEGMENT_BYTES = 1024L*1024L*256L;	// 256MB
+	public static final float DEFAULT_COMPACT_RATIO = 0.5f;
+	public static final long COMPACT_INTERVAL_MS = 1000;
+	private static final Log LOG = LogFactory.getLog(SegmentStore.class);
+
+	private static final int RECORD_MAGIC = 0x48525347;
+	private static final int HEADER_LENGTH = 10;
+	private static final int TRAILER_LENGTH = 4;
+	private static final byte TYPE_BLOCK = 1;
+	private static final byte TYPE_DELETE = 2;
+	private static final byte TYPE_REF = 3;
+	private static final byte TYPE_MASK = 0x0f;
+	private static final byte FLAG_ENCODED = (byte)0x80;
+	private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+
+	private final HrfsConfiguration conf;
+	private final BlockCodec codec;
+	private final File dir;
+	private final long segmentBytes;
+	private final float compactRatio;
+	private final boolean sync;
+	private final AtomicBoolean isopen;
+	private final ConcurrentSkipListMap<Integer, Segment> segments;
+	private final ReentrantReadWriteLock ilock;
+	private final ReentrantLock appendLock;
+	private final AtomicLong compacted;
+	private final AtomicLong dedups;
+	private SegmentIndex index;
+	private Segment active;
+	private Compactor compactor;
+
+	/* Given each key compaction has read a live record of, before moving it */
+	volatile Consumer<BlockKey> beforeMove;
+
+	/** Segment file, appended to by one writer at a time */
+	private static final class Segment
+	{
+		final int id;
+		final File file;
+		final FileChannel channel;
+		final AtomicLong live;
+		volatile long size;
+
+		Segment(int id, File file)
+			throws IOException
+		{
+			this.id = id;
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+			this.live = new AtomicLong(0);
+			this.size = channel.size();
+		}
+	}
+
+	/** Header of a record read back from a segment */
+	private static final class Record
+	{
+		final long offset;
+		final byte type;
+		final BlockKey key;
+		final int length;
+
+		Record(long offset, byte type, BlockKey key, int length)
+		{
+			this.offset = offset;
+			this.type = type;
+			this.key = key;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Streams the value of a raw record straight from its segment. If the
+	 * segment is compacted away while it is being read, the read fails.
+	 */
+	private static final class RecordStream
+		extends InputStream
+	{
+		private final FileChannel channel;
+		private final long end;
+		private long pos;
+
+		RecordStream(FileChannel channel, long pos, long end)
+		{
+			this.channel = channel;
+			this.pos = pos;
+			this.end = end;
+		}
+
+		@Override
+		public int read()
+			throws IOException
+		{
+			byte[] one;
+
+			one = new byte[1];
+			return (read(one, 0, 1) < 0) ? -1 : (one[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len)
+			throws IOException
+		{
+			int nread;
+
+			if(len == 0)
+				return 0;
+			if(pos >= end)
+				return -1;
+
+			nread = channel.read(ByteBuffer.wrap(buf, off, (int)Math.min(len, end - pos)), pos);
+			if(nread < 0)
+				throw new IOException("Unexpected end of segment");
+
+			pos += nread;
+			return nread;
+		}
+
+		@Override
+		public int available()
+		{
+			return (int)Math.min(end - pos, Integer.MAX_VALUE);
+		}
+	}
+
+	/** Compacts sparse segments every so often */
+	private class Compactor
+		extends Thread
+	{
+		private final CountDownLatch _stop;
+
+		public Compactor()
+		{
+			super("SegmentStore-compactor");
+			setDaemon(true);
+			_stop = new CountDownLatch(1);
+		}
+
+		/**
+		 * Stop compacting. The thread isn't interrupted, as that would
+		 * close the segment it is reading for every other reader too.
+		 */
+		public void finish()
+		{
+			_stop.countDown();
+		}
+
+		@Override
+		public void run()
+		{
+			for(;;) {
+				try {
+					if(_stop.await(COMPACT_INTERVAL_MS, TimeUnit.MILLISECONDS))
+						break;
+
+					compact();
+				}
+				catch(InterruptedException e) {
+					break;
+				}
+				catch(IOException e) {
+					if(isopen.get())
+						LOG.error("Segment compaction failed: " + e.toString());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Construct a segment store as configured in the site conf. The store
+	 * is not created or opened, use the BlockStore API for that.
+	 * @param path Directory of the store, or null for the configured one
+	 */
+	public SegmentStore(String path)
+		throws IOException
+	{
+		this(path, new HrfsConfiguration().getLong(HrfsKeys.HRFS_SEGMENT_BYTES,
+							   DEFAULT_SEGMENT_BYTES));
+	}
+
+	/**
+	 * Construct a segment store with a given segment size.
+	 * @param path Directory of the store, or null for the configured one
+	 * @param segmentBytes Size at which a segment is sealed
+	 */
+	public SegmentStore(String path, long segmentBytes)
+		throws IOException
+	{
+		String storePath;
+
+		if(segmentBytes <= 0)
+			throw new IllegalArgumentException("Invalid segment size: " + segmentBytes);
+
+		conf = new HrfsConfiguration();
+		storePath = path;
+		if(storePath == null)
+			storePath = conf.get(HrfsKeys.HRFS_NODE_STORE_PATH);
+
+		if(storePath == null)
+			throw new IOException("Store Path unset, refusing to construct store.");
+
+		dir = new File(storePath);
+		if(dir.exists() && (!dir.canWrite() || !dir.canRead()))
+			throw new IOException("Insufficient Permission");
+
+		this.segmentBytes = segmentBytes;
+		this.compactRatio = conf.getFloat(HrfsKeys.HRFS_SEGMENT_COMPACT_RATIO,
+						  DEFAULT_COMPACT_RATIO);
+		this.sync = conf.getBoolean(HrfsKeys.HRFS_SEGMENT_SYNC, true);
+		this.codec = BlockCodec.configured(conf);
+		this.isopen = new AtomicBoolean(false);
+		this.segments = new ConcurrentSkipListMap<Integer, Segment>();
+		this.ilock = new ReentrantReadWriteLock();
+		this.appendLock = new ReentrantLock();
+		this.compacted = new AtomicLong(0);
+		this.dedups = new AtomicLong(0);
+		this.index = new SegmentIndex(SegmentIndex.MIN_SLOTS);
+	}
+
+	/**
+	 * Create the store's directory if need be, and open the store.
+	 */
+	@Override
+	public boolean create()
+		throws IOException
+	{
+		if(!dir.exists() && !dir.mkdirs())
+			throw new IOException("Unable to create segment store: " + dir);
+
+		return open();
+	}
+
+	/**
+	 * Open an existing store, indexing the blocks in its segments. A record
+	 * torn by a crash at the end of the last segment is cut off.
+	 */
+	@Override
+	public boolean open()
+		throws IOException
+	{
+		List<Integer> ids;
+		File[] files;
+		Matcher match;
+		Segment seg;
+
+		if(isopen.get())
+			return true;
+		if(!dir.isDirectory())
+			return false;
+
+		files = dir.listFiles();
+		if(files == null)
+			throw new IOException("Unable to list segment store: " + dir);
+
+		ids = new ArrayList<Integer>();
+		for(File file : files) {
+			match = SEGMENT_NAME.matcher(file.getName());
+			if(match.matches())
+				ids.add(Integer.valueOf(match.group(1)));
+		}
+
+		index = new SegmentIndex(SegmentIndex.MIN_SLOTS);
+		segments.clear();
+		for(Integer id : ids)
+			segments.put(id, new Segment(id, segmentFile(id)));
+
+		for(Map.Entry<Integer, Segment> entry : segments.entrySet())
+			recover(entry.getValue(), entry.getKey().equals(segments.lastKey()));
+
+		if(segments.isEmpty()) {
+			seg = new Segment(0, segmentFile(0));
+			segments.put(0, seg);
+		}
+
+		active = segments.lastEntry().getValue();
+		compactor = new Compactor();
+		compactor.start();
+		isopen.set(true);
+		LOG.info("Opened segment store " + dir + ", " + index.size() + " blocks in "
+			 + segments.size() + " segments");
+		return true;
+	}
+
+	@Override
+	public boolean isOpen()
+	{ return isopen.get(); }
+
+	private File segmentFile(int id)
+	{
+		return new File(dir, String.format("segment-%08d.log", id));
+	}
+
+	/** Index every record of a segment, in the order they were written */
+	private void recover(Segment seg, boolean last)
+		throws IOException
+	{
+		SegmentIndex.Location prev;
+		Record rec;
+		long pos;
+
+		pos = 0;
+		while(pos < seg.size) {
+			rec = readHeader(seg, pos);
+			if(rec == null || (last && !verify(seg, rec))) {
+				if(!last)
+					throw new IOException("Corrupt record in " + seg.file + " at " + pos);
+
+				LOG.warn("Truncating torn segment " + seg.file + " at " + pos);
+				seg.channel.truncate(pos);
+				seg.size = pos;
+				break;
+			}
+
+			prev = null;
+			switch(rec.type & TYPE_MASK)
+			{
+			case TYPE_BLOCK:
+				prev = index.put(rec.key, seg.id, pos, rec.length);
+				seg.live.addAndGet(rec.length);
+				break;
+			case TYPE_REF:
+				/* Counts of blocks since deleted are dead */
+				if(!index.contains(rec.key))
+					break;
+
+				prev = index.setReferences(rec.key, readCount(seg, rec),
+							   seg.id, pos, rec.length);
+				seg.live.addAndGet(rec.length);
+				break;
+			default:
+				prev = index.refLocation(rec.key);
+				if(prev != null)
+					release(prev);
+				prev = index.remove(rec.key);
+				break;
+			}
+
+			if(prev != null)
+				release(prev);
+
+			pos += rec.length;
+		}
+	}
+
+	/** Account for a record that no longer holds a live block */
+	private void release(SegmentIndex.Location loc)
+	{
+		Segment seg;
+
+		seg = segments.get(loc.segment);
+		if(seg != null)
+			seg.live.addAndGet(-loc.length);
+	}
+
+	/**
+	 * Read the header and key of a record.
+	 * @return Record, or null if there is no whole record at the offset.
+	 */
+	private static Record readHeader(Segment seg, long pos)
+		throws IOException
+	{
+		ByteBuffer hdr;
+		byte[] kbytes;
+		long length;
+		byte type;
+		int klen;
+		int vlen;
+
+		if(seg.size - pos < HEADER_LENGTH + TRAILER_LENGTH)
+			return null;
+
+		hdr = ByteBuffer.allocate(HEADER_LENGTH + BlockKey.MAX_LENGTH);
+		hdr.limit((int)Math.min(hdr.capacity(), seg.size - pos));
+		readFully(seg.channel, hdr, pos);
+		hdr.flip();
+
+		if(hdr.getInt() != RECORD_MAGIC)
+			return null;
+
+		type = hdr.get();
+		klen = hdr.get() & 0xff;
+		vlen = hdr.getInt();
+		length = (long)HEADER_LENGTH + klen + vlen + TRAILER_LENGTH;
+		if(klen == 0 || klen > BlockKey.MAX_LENGTH || vlen < 0
+		   || length > Integer.MAX_VALUE || pos + length > seg.size)
+			return null;
+
+		kbytes = new byte[klen];
+		hdr.get(kbytes);
+		return new Record(pos, type, new BlockKey(kbytes), (int)length);
+	}
+
+	/** Read the count held by a reference record */
+	private static int readCount(Segment seg, Record rec)
+		throws IOException
+	{
+		ByteBuffer count;
+
+		count = ByteBuffer.allocate(4);
+		readFully(seg.channel, count, rec.offset + HEADER_LENGTH + rec.key.length());
+		return count.getInt(0);
+	}
+
+	/** Check a record against its checksum */
+	private static boolean verify(Segment seg, Record rec)
+		throws IOException
+	{
+		return parse(readRecord(seg, rec.offset, rec.length)) != null;
+	}
+
+	/**
+	 * Check a whole record read back into memory.
+	 * @return Offset of the value within the record, or null if it is corrupt.
+	 */
+	private static Integer parse(ByteBuffer rec)
+	{
+		CRC32 crc;
+		int klen;
+		int vlen;
+
+		if(rec.getInt(0) != RECORD_MAGIC)
+			return null;
+
+		klen = rec.get(5) & 0xff;
+		vlen = rec.getInt(6);
+		if(HEADER_LENGTH + klen + vlen + TRAILER_LENGTH != rec.limit())
+			return null;
+
+		crc = new CRC32();
+		crc.update(rec.array(), 4, rec.limit() - 4 - TRAILER_LENGTH);
+		if((int)crc.getValue() != rec.getInt(rec.limit() - TRAILER_LENGTH))
+			return null;
+
+		return HEADER_LENGTH + klen;
+	}
+
+	private static ByteBuffer readRecord(Segment seg, long pos, int length)
+		throws IOException
+	{
+		ByteBuffer rec;
+
+		rec = ByteBuffer.allocate(length);
+		readFully(seg.channel, rec, pos);
+		rec.flip();
+		return rec;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf, long pos)
+		throws IOException
+	{
+		int nread;
+
+		while(buf.hasRemaining()) {
+			nread = channel.read(buf, pos);
+			if(nread < 0)
+				throw new IOException("Unexpected end of segment");
+
+			pos += nread;
+		}
+	}
+
+	private static long writeFully(FileChannel channel, ByteBuffer buf, long pos)
+		throws IOException
+	{
+		while(buf.hasRemaining())
+			pos += channel.write(buf, pos);
+
+		return pos;
+	}
+
+	/** Make sure the store can be used */
+	private void checkOpen()
+		throws IOException
+	{
+		if(!isopen.get())
+			throw new IOException("Segment store not open");
+	}
+
+	/**
+	 * Append a record to the active segment, sealing it first if the record
+	 * would take it past the segment size. Must hold the append lock.
+	 * @return Where the record was written.
+	 */
+	private SegmentIndex.Location append(ByteBuffer... parts)
+		throws IOException
+	{
+		long length;
+		long start;
+		long pos;
+
+		length = 0;
+		for(ByteBuffer part : parts)
+			length += part.remaining();
+
+		if(active.size > 0 && active.size + length > segmentBytes)
+			roll();
+
+		start = active.size;
+		pos = start;
+		try {
+			for(ByteBuffer part : parts)
+				pos = writeFully(active.channel, part, pos);
+
+			if(sync)
+				active.channel.force(false);
+		}
+		catch(IOException e) {
+			/* Don't leave a torn record for the next append to follow */
+			active.channel.truncate(start);
+			throw e;
+		}
+
+		active.size = pos;
+		return new SegmentIndex.Location(active.id, start, (int)length);
+	}
+
+	/** Seal the active segment and start a new one */
+	private void roll()
+		throws IOException
+	{
+		Segment seg;
+
+		active.channel.force(false);
+		seg = new Segment(active.id + 1, segmentFile(active.id + 1));
+		segments.put(seg.id, seg);
+		active = seg;
+	}
+
+	/**
+	 * Build a record around a key and value, the value is written from its
+	 * own buffer rather than copied into the record.
+	 */
+	private static ByteBuffer[] record(byte type, byte[] kbytes, ByteBuffer value)
+	{
+		ByteBuffer header;
+		ByteBuffer trailer;
+		CRC32 crc;
+
+		header = ByteBuffer.allocate(HEADER_LENGTH + kbytes.length);
+		header.putInt(RECORD_MAGIC);
+		header.put(type);
+		header.put((byte)kbytes.length);
+		header.putInt(value.remaining());
+		header.put(kbytes);
+		header.flip();
+
+		crc = new CRC32();
+		crc.update(header.array(), 4, header.limit() - 4);
+		crc.update(value.duplicate());
+
+		trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+		trailer.putInt(0, (int)crc.getValue());
+		return new ByteBuffer[] { header, value.duplicate(), trailer };
+	}
+
+	/**
+	 * Record a new reference count for an indexed block. Must hold the
+	 * append lock.
+	 */
+	private void appendReferences(BlockKey key, int refs)
+		throws IOException
+	{
+		SegmentIndex.Location prev;
+		SegmentIndex.Location loc;
+		ByteBuffer count;
+
+		count = ByteBuffer.allocate(4);
+		count.putInt(0, refs);
+		loc = append(record(TYPE_REF, key.toBytes(), count));
+
+		ilock.writeLock().lock();
+		try {
+			prev = index.setReferences(key, refs, loc.segment, loc.offset, loc.length);
+		}
+		finally {
+			ilock.writeLock().unlock();
+		}
+
+		active.live.addAndGet(loc.length);
+		if(prev != null)
+			release(prev);
+	}
+
+	/** Count references to a block, under the index lock */
+	private int indexedReferences(BlockKey key)
+	{
+		ilock.readLock().lock();
+		try {
+			return index.references(key);
+		}
+		finally {
+			ilock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Add a block to the store. A block the store already holds is not
+	 * written again, its key says it is the same, it only gains a
+	 * reference.
+	 * @param blk Block to insert
+	 * @return Whether the block was inserted.
+	 */
+	@Override
+	public boolean insert(DataBlock blk)
+		throws IOException
+	{
+		return insert(blk, 1);
+	}
+
+	/**
+	 * Add a block to the store with several references, written as one
+	 * count record rather than one per reference.
+	 */
+	@Override
+	public boolean insert(DataBlock blk, long added)
+		throws IOException
+	{
+		SegmentIndex.Location prev;
+		SegmentIndex.Location loc;
+		ByteBuffer value;
+		BlockKey key;
+		byte type;
+		int refs;
+
+		checkOpen();
+		if(added < 1 || added > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Invalid reference count: " + added);
+
+		key = blk.key();
+
+		/* Encode outside the lock, unless the block is likely a duplicate */
+		type = TYPE_BLOCK;
+		value = null;
+		if(indexedReferences(key) == 0) {
+			value = blk.buffer();
+			if(!codec.isRaw()) {
+				value = ByteBuffer.wrap(codec.encode(value));
+				type |= FLAG_ENCODED;
+			}
+		}
+
+		appendLock.lock();
+		try {
+			refs = indexedReferences(key);
+			if(refs > 0) {
+				if(refs + added > Integer.MAX_VALUE)
+					throw new IOException("Too many references to " + key);
+
+				appendReferences(key, refs + (int)added);
+				dedups.incrementAndGet();
+				return true;
+			}
+
+			/* Deleted since it was looked up */
+			if(value == null) {
+				value = blk.buffer();
+				if(!codec.isRaw()) {
+					value = ByteBuffer.wrap(codec.encode(value));
+					type |= FLAG_ENCODED;
+				}
+			}
+
+			ilock.readLock().lock();
+			try {
+				if(index.isFull())
+					throw new IOException("Segment store full at " + index.size()
+							      + " blocks: " + dir);
+			}
+			finally {
+				ilock.readLock().unlock();
+			}
+
+			loc = append(record(type, key.toBytes(), value));
+			ilock.writeLock().lock();
+			try {
+				prev = index.put(key, loc.segment, loc.offset, loc.length);
+			}
+			finally {
+				ilock.writeLock().unlock();
+			}
+
+			active.live.addAndGet(loc.length);
+			if(prev != null)
+				release(prev);
+
+			/*
+			 * Always counted, even with one reference. A count from
+			 * before the block was last deleted may still be in the log,
+			 * after compaction has dropped the deletion, and opening the
+			 * store again would otherwise hand it to this block.
+			 */
+			appendReferences(key, (int)added);
+		}
+		finally {
+			appendLock.unlock();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Read a block from the store. A block moved by compaction while it is
+	 * being read is looked up again.
+	 * @param key Key of the block
+	 * @return The block, or null if it isn't stored.
+	 */
+	@Override
+	public DataBlock get(BlockKey key)
+		throws IOException
+	{
+		SegmentIndex.Location loc;
+		ByteBuffer rec;
+		ByteBuffer value;
+		Integer voff;
+		Segment seg;
+
+		checkOpen();
+		for(int attempt=0; attempt < 3; ++attempt) {
+			ilock.readLock().lock();
+			try {
+				loc = index.get(key);
+			}
+			finally {
+				ilock.readLock().unlock();
+			}
+
+			if(loc == null)
+				return null;
+
+			seg = segments.get(loc.segment);
+			if(seg == null)
+				continue;
+
+			try {
+				rec = readRecord(seg, loc.offset, loc.length);
+			}
+			catch(ClosedChannelException e) {
+				continue;
+			}
+
+			voff = parse(rec);
+			if(voff == null)
+				throw new IOException("Corrupt block " + key + " in " + seg.file
+						      + " at " + loc.offset);
+
+			value = ByteBuffer.wrap(rec.array(), voff,
+						loc.length - voff - TRAILER_LENGTH).slice();
+			if((rec.get(4) & FLAG_ENCODED) != 0)
+				value = BlockCodec.decode(rec.array(), voff,
+							  loc.length - voff - TRAILER_LENGTH);
+
+			return new DataBlock(value, key.toBytes(), 0);
+		}
+
+		throw new IOException("Block " + key + " kept moving while being read");
+	}
+
+	/**
+	 * Stream a block from its segment. An encoded block is decoded whole,
+	 * a raw one is read from the segment a piece at a time. The record's
+	 * checksum isn't checked, only a whole read does that.
+	 */
+	@Override
+	public InputStream stream(BlockKey key)
+		throws IOException
+	{
+		SegmentIndex.Location loc;
+		ByteBuffer hdr;
+		Segment seg;
+		int voff;
+
+		checkOpen();
+		voff = HEADER_LENGTH + key.length();
+		for(int attempt=0; attempt < 3; ++attempt) {
+			ilock.readLock().lock();
+			try {
+				loc = index.get(key);
+			}
+			finally {
+				ilock.readLock().unlock();
+			}
+
+			if(loc == null)
+				return null;
+
+			seg = segments.get(loc.segment);
+			if(seg == null)
+				continue;
+
+			hdr = ByteBuffer.allocate(HEADER_LENGTH);
+			try {
+				readFully(seg.channel, hdr, loc.offset);
+			}
+			catch(ClosedChannelException e) {
+				continue;
+			}
+
+			if(hdr.getInt(0) != RECORD_MAGIC)
+				throw new IOException("Corrupt block " + key + " in " + seg.file
+						      + " at " + loc.offset);
+
+			if((hdr.get(4) & FLAG_ENCODED) != 0)
+				return BlockStores.stream(get(key));
+
+			return new RecordStream(seg.channel, loc.offset + voff,
+						loc.offset + voff + hdr.getInt(6));
+		}
+
+		throw new IOException("Block " + key + " kept moving while being read");
+	}
+
+	@Override
+	public boolean contains(BlockKey key)
+		throws IOException
+	{
+		checkOpen();
+		ilock.readLock().lock();
+		try {
+			return index.contains(key);
+		}
+		finally {
+			ilock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public long references(BlockKey key)
+		throws IOException
+	{
+		checkOpen();
+		return indexedReferences(key);
+	}
+
+	/**
+	 * Get the length of a block from its record's header, and the codec
+	 * header of an encoded block, without reading the rest of it.
+	 */
+	@Override
+	public long length(BlockKey key)
+		throws IOException
+	{
+		SegmentIndex.Location loc;
+		ByteBuffer hdr;
+		Segment seg;
+		int voff;
+
+		checkOpen();
+		voff = HEADER_LENGTH + key.length();
+		for(int attempt=0; attempt < 3; ++attempt) {
+			ilock.readLock().lock();
+			try {
+				loc = index.get(key);
+			}
+			finally {
+				ilock.readLock().unlock();
+			}
+
+			if(loc == null)
+				return -1;
+
+			seg = segments.get(loc.segment);
+			if(seg == null)
+				continue;
+
+			hdr = ByteBuffer.allocate(Math.min(voff + BlockCodec.HEADER_LENGTH, loc.length));
+			try {
+				readFully(seg.channel, hdr, loc.offset);
+			}
+			catch(ClosedChannelException e) {
+				continue;
+			}
+
+			if(hdr.getInt(0) != RECORD_MAGIC)
+				throw new IOException("Corrupt block " + key + " in " + seg.file
+						      + " at " + loc.offset);
+
+			if((hdr.get(4) & FLAG_ENCODED) == 0)
+				return hdr.getInt(6);
+
+			return BlockCodec.decodedLength(hdr.array(), voff);
+		}
+
+		throw new IOException("Block " + key + " kept moving while being measured");
+	}
+
+	@Override
+	public Iterator<BlockKey> keys()
+		throws IOException
+	{
+		checkOpen();
+		ilock.readLock().lock();
+		try {
+			return index.keys().iterator();
+		}
+		finally {
+			ilock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Drop a reference to a block. Once the last reference is dropped a
+	 * deletion record is appended, so that the block stays deleted when
+	 * the store is opened again, and its space is reclaimed by compaction.
+	 * @param key Key of the block
+	 * @return Whether the block was stored.
+	 */
+	@Override
+	public boolean delete(BlockKey key)
+		throws IOException
+	{
+		return drop(key, false);
+	}
+
+	/**
+	 * Remove a block with all of its references, with a single deletion
+	 * record.
+	 */
+	@Override
+	public boolean remove(BlockKey key)
+		throws IOException
+	{
+		return drop(key, true);
+	}
+
+	/** Drop one reference to a block, or all of them */
+	private boolean drop(BlockKey key, boolean all)
+		throws IOException
+	{
+		SegmentIndex.Location prev;
+		SegmentIndex.Location counted;
+		ByteBuffer deleted;
+		int refs;
+
+		checkOpen();
+		appendLock.lock();
+		try {
+			ilock.readLock().lock();
+			try {
+				prev = index.get(key);
+				refs = index.references(key);
+			}
+			finally {
+				ilock.readLock().unlock();
+			}
+
+			if(prev == null)
+				return false;
+
+			if(refs > 1 && !all) {
+				appendReferences(key, refs - 1);
+				return true;
+			}
+
+			deleted = ByteBuffer.allocate(4);
+			deleted.putInt(0, prev.segment);
+			append(record(TYPE_DELETE, key.toBytes(), deleted));
+			ilock.writeLock().lock();
+			try {
+				counted = index.refLocation(key);
+				prev = index.remove(key);
+			}
+			finally {
+				ilock.writeLock().unlock();
+			}
+
+			if(counted != null)
+				release(counted);
+			if(prev != null)
+				release(prev);
+			return true;
+		}
+		finally {
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Compact every sealed segment that has fallen below the live ratio.
+	 * This is run in the background, but may be called directly.
+	 * @return Number of segments reclaimed.
+	 */
+	public synchronized int compact()
+		throws IOException
+	{
+		List<Segment> sparse;
+		Segment current;
+
+		checkOpen();
+		sparse = new ArrayList<Segment>();
+		current = active;
+		for(Segment seg : segments.values()) {
+			if(seg == current || seg.id > current.id)
+				continue;
+			if(seg.live.get() < seg.size * compactRatio)
+				sparse.add(seg);
+		}
+
+		for(Segment seg : sparse)
+			compact(seg);
+
+		return sparse.size();
+	}
+
+	/** Whether a location is a given record of a segment */
+	private static boolean at(SegmentIndex.Location loc, Segment seg, long pos)
+	{
+		return loc != null && loc.segment == seg.id && loc.offset == pos;
+	}
+
+	/**
+	 * Append a copy of a record still live in a segment being compacted,
+	 * and point the index at it. Must hold the append lock.
+	 */
+	private void move(Segment seg, Record rec, ByteBuffer copy,
+			  SegmentIndex.Location loc, SegmentIndex.Location counted)
+		throws IOException
+	{
+		SegmentIndex.Location moved;
+		boolean kept;
+
+		moved = append(copy);
+		ilock.writeLock().lock();
+		try {
+			switch(rec.type & TYPE_MASK)
+			{
+			case TYPE_BLOCK:
+				kept = index.replace(rec.key, loc, moved.segment,
+						     moved.offset, moved.length);
+				break;
+			case TYPE_REF:
+				kept = index.replaceRef(rec.key, counted, moved.segment,
+							moved.offset, moved.length);
+				break;
+			default:
+				kept = false;
+				break;
+			}
+		}
+		finally {
+			ilock.writeLock().unlock();
+		}
+
+		if(kept)
+			active.live.addAndGet(moved.length);
+
+		/*
+		 * A count recorded before the block's new place would be read
+		 * before the block is, so record it again after.
+		 */
+		if(kept && (rec.type & TYPE_MASK) == TYPE_BLOCK && counted != null)
+			appendReferences(rec.key, indexedReferences(rec.key));
+	}
+
+	/**
+	 * Copy the live records of a sealed segment onto the end of the store,
+	 * then remove the segment.
+	 */
+	private void compact(Segment seg)
+		throws IOException
+	{
+		SegmentIndex.Location loc;
+		SegmentIndex.Location counted;
+		ByteBuffer copy;
+		Record rec;
+		boolean keep;
+		long pos;
+		int deleted;
+
+		pos = 0;
+		while(pos < seg.size) {
+			rec = readHeader(seg, pos);
+			if(rec == null)
+				throw new IOException("Corrupt record in " + seg.file + " at " + pos);
+
+			ilock.readLock().lock();
+			try {
+				loc = index.get(rec.key);
+				counted = index.refLocation(rec.key);
+			}
+			finally {
+				ilock.readLock().unlock();
+			}
+
+			/*
+			 * Live blocks and the latest counts of their references move.
+			 * A deletion is only kept while the segment holding the block
+			 * it deleted is still around, and the block hasn't been
+			 * written again since.
+			 */
+			copy = null;
+			switch(rec.type & TYPE_MASK)
+			{
+			case TYPE_BLOCK:
+				keep = at(loc, seg, pos);
+				break;
+			case TYPE_REF:
+				keep = at(counted, seg, pos);
+				break;
+			default:
+				copy = readRecord(seg, pos, rec.length);
+				deleted = copy.getInt(HEADER_LENGTH + rec.key.length());
+				keep = loc == null && deleted != seg.id && segments.containsKey(deleted);
+				break;
+			}
+
+			if(keep) {
+				if(copy == null)
+					copy = readRecord(seg, pos, rec.length);
+				if(beforeMove != null)
+					beforeMove.accept(rec.key);
+
+				appendLock.lock();
+				try {
+					/*
+					 * The record may have been deleted or written over
+					 * while it was read. Once a later record in the log
+					 * says so, a copy after it would bring it back when
+					 * the store is opened again.
+					 */
+					ilock.readLock().lock();
+					try {
+						loc = index.get(rec.key);
+						counted = index.refLocation(rec.key);
+					}
+					finally {
+						ilock.readLock().unlock();
+					}
+
+					switch(rec.type & TYPE_MASK)
+					{
+					case TYPE_BLOCK:
+						keep = at(loc, seg, pos);
+						break;
+					case TYPE_REF:
+						keep = at(counted, seg, pos);
+						break;
+					default:
+						keep = loc == null;
+						break;
+					}
+
+					if(keep)
+						move(seg, rec, copy, loc, counted);
+				}
+				finally {
+					appendLock.unlock();
+				}
+			}
+
+			pos += rec.length;
+		}
+
+		/* Moved records must be on disk before their originals go */
+		appendLock.lock();
+		try {
+			active.channel.force(false);
+		}
+		finally {
+			appendLock.unlock();
+		}
+
+		segments.remove(seg.id);
+		seg.channel.close();
+		if(!seg.file.delete())
+			LOG.warn("Unable to remove compacted segment " + seg.file);
+
+		compacted.incrementAndGet();
+		LOG.debug("Compacted segment " + seg.file);
+	}
+
+	/**
+	 * Close the store, once any write or compaction under way has finished.
+	 */
+	@Override
+	public void close()
+		throws IOException
+	{
+		if(!isopen.getAndSet(false))
+			return;
+
+		compactor.finish();
+		try {
+			compactor.join();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted closing store");
+		}
+
+		synchronized(this) {
+			appendLock.lock();
+			try {
+				for(Segment seg : segments.values()) {
+					seg.channel.force(false);
+					seg.channel.close();
+				}
+
+				segments.clear();
+			}
+			finally {
+				appendLock.unlock();
+			}
+		}
+	}
+
+	/** Return the number of segments in the store. */
+	public int getSegmentCount()
+	{ return segments.size(); }
+
+	/** Return the number of blocks in the store. */
+	public int getBlockCount()
+	{
+		ilock.readLock().lock();
+		try {
+			return index.size();
+		}
+		finally {
+			ilock.readLock().unlock();
+		}
+	}
+
+	/** Return the bytes of records still holding live blocks. */
+	public long getLiveBytes()
+	{
+		long live;
+
+		live = 0;
+		for(Segment seg : segments.values())
+			live += seg.live.get();
+
+		return live;
+	}
+
+	/** Return the bytes of every segment, live or not. */
+	public long getTotalBytes()
+	{
+		long total;
+
+		total = 0;
+		for(Segment seg : segments.values())
+			total += seg.size;
+
+		return total;
+	}
+
+	/** Return the number of inserts that only added a reference. */
+	public long getDedupCount()
+	{ return dedups.get(); }
+
+	/** Return the number of segments compacted away. */
+	public long getCompactedCount()
+	{ return compacted.get(); }
+}
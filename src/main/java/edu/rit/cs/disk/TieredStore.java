@@ -0,0 +1,892 @@
+/**
+ * Copyright © 2015
+ * Hrfs Tiered Block Store
+ *
+ * Keeps blocks on two stores, a small fast one, such as an NVMe device, and
+ * a large slow one, such as a set of spinning disks. New blocks are written to
+ * the fast tier, and blocks read often are promoted back to it, so hot reads
+ * are served from the fast device. A mover thread demotes the coldest blocks
+ * to the slow tier whenever the fast tier fills close to its capacity, so
+ * there is room for new blocks. A new block only goes to the slow tier when
+ * the fast tier is full and the mover hasn't caught up.
+ *
+ * How often blocks are read is estimated with a FrequencySketch, in a fixed
+ * amount of memory. The blocks on the fast tier are kept in least recently
+ * read order, and the victim of a demotion is the least often read of the
+ * few least recently read blocks. A block read from the slow tier is promoted
+ * once it has been read often enough, and only pushes out a colder block.
+ *
+ * A block lives on one tier at a time, with all of its references. Moving a
+ * block copies it and its count to the other tier in one write before
+ * dropping it from the first in another, under a lock on its key, so readers
+ * always find it on one or the other. The blocks on the fast tier, and how
+ * much space they take, are learned again from the lengths the tiers keep
+ * when the store is opened, before it takes any inserts.
+ *
+ * @file TieredStore.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs.disk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import com.google.common.collect.Iterators;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.rit.cs.BlockKey;
+import edu.rit.cs.DataBlock;
+import edu.rit.cs.HrfsConfiguration;
+import edu.rit.cs.HrfsKeys;
+
+public class TieredStore
+	implements BlockStore
+{
+	static
+	{
+		HrfsConfiguration.init();
+	}
+
+	public static final long DEFAULT_FAST_BYTES = 1024L*1024L*1024L*32L;	// 32GB
+	public static final long DEFAULT_SLOW_BYTES = 0;			// Unbounded
+	public static final int DEFAULT_PROMOTE_FREQUENCY = 3;
+	public static final int HIGH_WATERMARK_PERCENT = 95;
+	public static final int LOW_WATERMARK_PERCENT = 85;
+	public static final int VICTIM_SAMPLE = 8;
+	public static final int PROMOTE_QUEUE = 1024;
+	public static final long MOVER_PERIOD_MS = 1000;
+	private static final int EXPECTED_BLOCK_SIZE = 1024 * 64;
+	private static final long MAX_SKETCH_KEYS = 1L << 22;
+	private static final int LOCK_STRIPES = 256;
+	private static final Log LOG = LogFactory.getLog(TieredStore.class);
+
+	/* Wakes the mover to stop, interrupting it could close a store's files */
+	private static final BlockKey STOP = new BlockKey();
+
+	private final BlockStore fast;
+	private final BlockStore slow;
+	private final long fastCapacity;
+	private final long slowCapacity;
+	private final int promoteFrequency;
+
+	/* Blocks on the fast tier, least recently read first, and the sketch */
+	private final ReentrantLock lock;
+	private final LinkedHashMap<BlockKey, Long> resident;
+	private final FrequencySketch sketch;
+	private long fastBytes;
+	private long slowBytes;
+
+	private final ReadWriteLock[] stripes;
+	private final LinkedBlockingQueue<BlockKey> promotions;
+	private final AtomicBoolean isopen;
+	private final AtomicLong promoted;
+	private final AtomicLong demoted;
+	private Mover mover;
+
+	/** Moves blocks between the tiers in the background */
+	private class Mover
+		extends Thread
+	{
+		private volatile boolean running;
+
+		public Mover()
+		{
+			super("TieredStore-mover");
+			setDaemon(true);
+			this.running = true;
+		}
+
+		public void finish()
+		{
+			running = false;
+			promotions.clear();
+			promotions.offer(STOP);
+		}
+
+		@Override
+		public void run()
+		{
+			BlockKey key;
+
+			while(running) {
+				try {
+					key = promotions.poll(MOVER_PERIOD_MS, TimeUnit.MILLISECONDS);
+					if(key == STOP)
+						break;
+					if(key != null)
+						promote(key);
+
+					demote();
+				}
+				catch(InterruptedException e) {
+					LOG.warn("Tiered store mover interrupted");
+					break;
+				}
+				catch(IOException e) {
+					/* One failed move must not stop every later one */
+					if(running)
+						LOG.error("Tiered store mover failed a move: " + e.toString());
+				}
+				catch(RuntimeException e) {
+					if(running)
+						LOG.error("Tiered store mover failed a move: " + e.toString());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tier two stores with the configured capacities.
+	 * @param fast Store on the fast device
+	 * @param slow Store on the slow devices
+	 */
+	public TieredStore(BlockStore fast, BlockStore slow)
+	{
+		this(fast, slow, conf().getLong(HrfsKeys.HRFS_TIER_FAST_BYTES, DEFAULT_FAST_BYTES),
+		     conf().getLong(HrfsKeys.HRFS_TIER_SLOW_BYTES, DEFAULT_SLOW_BYTES),
+		     conf().getInt(HrfsKeys.HRFS_TIER_PROMOTE_FREQUENCY, DEFAULT_PROMOTE_FREQUENCY));
+	}
+
+	/**
+	 * Tier two stores.
+	 * @param fast Store on the fast device
+	 * @param slow Store on the slow devices
+	 * @param fastCapacity Most bytes of blocks to keep on the fast tier
+	 * @param slowCapacity Most bytes of blocks to keep on the slow tier,
+	 *        zero for no limit
+	 * @param promoteFrequency Reads of a slow block, as estimated, before
+	 *        it is promoted
+	 */
+	public TieredStore(BlockStore fast, BlockStore slow, long fastCapacity,
+			   long slowCapacity, int promoteFrequency)
+	{
+		if(fast == null || slow == null)
+			throw new IllegalArgumentException("Invalid fast or slow store");
+		if(fastCapacity <= 0 || slowCapacity < 0)
+			throw new IllegalArgumentException("Invalid tier capacity");
+		if(promoteFrequency < 1 || promoteFrequency > FrequencySketch.MAX_FREQUENCY)
+			throw new IllegalArgumentException("Invalid promote frequency: " + promoteFrequency);
+
+		this.fast = fast;
+		this.slow = slow;
+		this.fastCapacity = fastCapacity;
+		this.slowCapacity = slowCapacity;
+		this.promoteFrequency = promoteFrequency;
+
+		this.lock = new ReentrantLock();
+		this.resident = new LinkedHashMap<BlockKey, Long>(16, 0.75f, true);
+		this.sketch = new FrequencySketch(Math.min(fastCapacity / EXPECTED_BLOCK_SIZE,
+							   MAX_SKETCH_KEYS));
+		this.fastBytes = 0;
+		this.slowBytes = 0;
+
+		this.stripes = new ReadWriteLock[LOCK_STRIPES];
+		for(int sidx=0; sidx < stripes.length; ++sidx)
+			stripes[sidx] = new ReentrantReadWriteLock();
+
+		this.promotions = new LinkedBlockingQueue<BlockKey>(PROMOTE_QUEUE);
+		this.isopen = new AtomicBoolean(false);
+		this.promoted = new AtomicLong(0);
+		this.demoted = new AtomicLong(0);
+	}
+
+	private static HrfsConfiguration conf()
+	{
+		return new HrfsConfiguration();
+	}
+
+	/** Lock guarding a key's placement on the tiers */
+	private ReadWriteLock stripe(BlockKey key)
+	{
+		return stripes[(key.hashCode() & 0x7fffffff) % stripes.length];
+	}
+
+	@Override
+	public boolean create()
+		throws IOException
+	{
+		if(!fast.create() || !slow.create())
+			return false;
+
+		start();
+		return true;
+	}
+
+	@Override
+	public boolean open()
+		throws IOException
+	{
+		if(!fast.open() || !slow.open())
+			return false;
+
+		learn();
+		start();
+		return true;
+	}
+
+	private void start()
+	{
+		isopen.set(true);
+		mover = new Mover();
+		mover.start();
+	}
+
+	@Override
+	public boolean isOpen()
+	{ return isopen.get(); }
+
+	private void checkOpen()
+		throws IOException
+	{
+		if(!isopen.get())
+			throw new IOException("Tiered store not open");
+	}
+
+	/**
+	 * Learn which blocks are on the fast tier and the space they take, and
+	 * the space taken on the slow tier if it has a capacity to keep to.
+	 * Blocks are measured, not read.
+	 */
+	private void learn()
+		throws IOException
+	{
+		Iterator<BlockKey> keys;
+		BlockKey key;
+		long length;
+
+		lock.lock();
+		try {
+			resident.clear();
+			fastBytes = 0;
+			slowBytes = 0;
+
+			keys = fast.keys();
+			while(keys.hasNext()) {
+				key = keys.next();
+				length = fast.length(key);
+				if(length < 0 || resident.containsKey(key))
+					continue;
+
+				resident.put(key, length);
+				fastBytes += length;
+			}
+
+			if(slowCapacity == 0)
+				return;
+
+			keys = slow.keys();
+			while(keys.hasNext()) {
+				length = slow.length(keys.next());
+				if(length > 0)
+					slowBytes += length;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/** Write a block to a tier, readable by the time this returns */
+	private static void add(BlockStore store, DataBlock blk, long refs)
+		throws IOException
+	{
+		if(refs == 1)
+			BlockStores.insertSync(store, blk);
+		else if(!store.insert(blk, refs))
+			throw new IOException("Failed to insert block " + blk.key());
+	}
+
+	/**
+	 * Insert a block. A block already stored gains a reference on the tier
+	 * holding it. A new block goes to the fast tier, unless the fast tier
+	 * is full and the mover hasn't made room, then it goes to the slow tier.
+	 * The block can be read back once this returns.
+	 */
+	@Override
+	public boolean insert(DataBlock blk)
+		throws IOException
+	{
+		return insert(blk, 1);
+	}
+
+	@Override
+	public boolean insert(DataBlock blk, long refs)
+		throws IOException
+	{
+		ReadWriteLock klock;
+		BlockKey key;
+		long length;
+		boolean tofast;
+
+		checkOpen();
+		key = blk.key();
+		length = blk.length();
+		klock = stripe(key);
+		klock.writeLock().lock();
+		try {
+			if(fast.contains(key)) {
+				add(fast, blk, refs);
+				return true;
+			}
+
+			if(slow.contains(key)) {
+				add(slow, blk, refs);
+				return true;
+			}
+
+			lock.lock();
+			try {
+				tofast = fastBytes + length <= fastCapacity;
+				if(!tofast && slowCapacity > 0 && slowBytes + length > slowCapacity)
+					throw new IOException("Both tiers are full");
+
+				if(tofast) {
+					resident.put(key, length);
+					fastBytes += length;
+				}
+				else {
+					slowBytes += length;
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+
+			try {
+				add(tofast ? fast : slow, blk, refs);
+			}
+			catch(IOException e) {
+				unaccount(key, tofast, length);
+				throw e;
+			}
+
+			return true;
+		}
+		finally {
+			klock.writeLock().unlock();
+		}
+	}
+
+	/** Give back the space a block took on a tier */
+	private void unaccount(BlockKey key, boolean onfast, long length)
+	{
+		lock.lock();
+		try {
+			if(onfast) {
+				if(resident.remove(key) != null)
+					fastBytes -= length;
+			}
+			else {
+				slowBytes -= length;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Read a block from whichever tier holds it. Every read is counted, and
+	 * a block read from the slow tier often enough is queued for promotion.
+	 */
+	@Override
+	public DataBlock get(BlockKey key)
+		throws IOException
+	{
+		ReadWriteLock klock;
+		DataBlock blk;
+		int freq;
+
+		checkOpen();
+		lock.lock();
+		try {
+			sketch.increment(key.hashCode());
+			freq = sketch.frequency(key.hashCode());
+			resident.get(key);
+		}
+		finally {
+			lock.unlock();
+		}
+
+		klock = stripe(key);
+		klock.readLock().lock();
+		try {
+			blk = fast.get(key);
+			if(blk != null)
+				return blk;
+
+			blk = slow.get(key);
+		}
+		finally {
+			klock.readLock().unlock();
+		}
+
+		/* Dropped if the mover is behind, a later read will ask again */
+		if(blk != null && freq >= promoteFrequency)
+			promotions.offer(key);
+
+		return blk;
+	}
+
+	/**
+	 * Stream a block from whichever tier holds it. Streaming is for bulk
+	 * reads, so it isn't counted towards promoting the block.
+	 */
+	@Override
+	public InputStream stream(BlockKey key)
+		throws IOException
+	{
+		ReadWriteLock klock;
+		InputStream in;
+
+		checkOpen();
+		klock = stripe(key);
+		klock.readLock().lock();
+		try {
+			in = fast.stream(key);
+			if(in != null)
+				return in;
+
+			return slow.stream(key);
+		}
+		finally {
+			klock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean contains(BlockKey key)
+		throws IOException
+	{
+		ReadWriteLock klock;
+
+		checkOpen();
+		klock = stripe(key);
+		klock.readLock().lock();
+		try {
+			return fast.contains(key) || slow.contains(key);
+		}
+		finally {
+			klock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public long references(BlockKey key)
+		throws IOException
+	{
+		ReadWriteLock klock;
+		long refs;
+
+		checkOpen();
+		klock = stripe(key);
+		klock.readLock().lock();
+		try {
+			refs = fast.references(key);
+			if(refs > 0)
+				return refs;
+
+			return slow.references(key);
+		}
+		finally {
+			klock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public long length(BlockKey key)
+		throws IOException
+	{
+		ReadWriteLock klock;
+		long length;
+
+		checkOpen();
+		klock = stripe(key);
+		klock.readLock().lock();
+		try {
+			length = fast.length(key);
+			if(length >= 0)
+				return length;
+
+			return slow.length(key);
+		}
+		finally {
+			klock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Drop a reference to a block, from whichever tier holds it.
+	 */
+	@Override
+	public boolean delete(BlockKey key)
+		throws IOException
+	{
+		return drop(key, false);
+	}
+
+	/**
+	 * Remove a block with all of its references, from whichever tier
+	 * holds it.
+	 */
+	@Override
+	public boolean remove(BlockKey key)
+		throws IOException
+	{
+		return drop(key, true);
+	}
+
+	/** Drop one reference to a block, or all of them */
+	private boolean drop(BlockKey key, boolean all)
+		throws IOException
+	{
+		ReadWriteLock klock;
+		Long length;
+		long slowLength;
+		long refs;
+
+		checkOpen();
+		klock = stripe(key);
+		klock.writeLock().lock();
+		try {
+			refs = fast.references(key);
+			if(refs > 0) {
+				if(!(all ? fast.remove(key) : fast.delete(key)))
+					return false;
+
+				if(refs == 1 || all) {
+					lock.lock();
+					try {
+						length = resident.remove(key);
+						if(length != null)
+							fastBytes -= length;
+					}
+					finally {
+						lock.unlock();
+					}
+				}
+
+				return true;
+			}
+
+			/* The slow tier's space is only kept track of with a capacity */
+			slowLength = -1;
+			if(slowCapacity > 0 && (all || slow.references(key) == 1))
+				slowLength = slow.length(key);
+
+			if(!(all ? slow.remove(key) : slow.delete(key)))
+				return false;
+
+			if(slowLength >= 0)
+				unaccount(key, false, slowLength);
+
+			return true;
+		}
+		finally {
+			klock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Move a block and all of its references from one tier to the other,
+	 * one write to copy it with its count and one to remove it. The caller
+	 * holds the key's lock. A copy left on the other tier by a move cut
+	 * short is brought to the same count, not added to.
+	 * @return The block moved, or null if the first tier doesn't hold it.
+	 */
+	private DataBlock move(BlockKey key, BlockStore from, BlockStore to)
+		throws IOException
+	{
+		DataBlock blk;
+		long refs;
+		long have;
+
+		refs = from.references(key);
+		if(refs == 0)
+			return null;
+
+		blk = from.get(key);
+		if(blk == null)
+			return null;
+
+		have = to.references(key);
+		if(have > refs) {
+			to.remove(key);
+			have = 0;
+		}
+
+		if(have < refs && !to.insert(blk, refs - have))
+			throw new IOException("Failed to move block " + key);
+
+		from.remove(key);
+		return blk;
+	}
+
+	/**
+	 * Pick the block to demote, the least often read of the least recently
+	 * read few on the fast tier. The caller holds the lock.
+	 * @return Key of the block, or null if the fast tier is empty.
+	 */
+	private BlockKey victim()
+	{
+		BlockKey coldest;
+		int coldestFreq;
+		int sampled;
+		int freq;
+
+		coldest = null;
+		coldestFreq = Integer.MAX_VALUE;
+		sampled = 0;
+		for(BlockKey key : resident.keySet()) {
+			freq = sketch.frequency(key.hashCode());
+			if(freq < coldestFreq) {
+				coldest = key;
+				coldestFreq = freq;
+			}
+
+			if(++sampled >= VICTIM_SAMPLE)
+				break;
+		}
+
+		return coldest;
+	}
+
+	/**
+	 * Move one block from the fast tier to the slow one.
+	 * @return Whether a block was demoted.
+	 */
+	private boolean demoteOne(BlockKey key)
+		throws IOException
+	{
+		ReadWriteLock klock;
+		DataBlock blk;
+		Long length;
+
+		klock = stripe(key);
+		klock.writeLock().lock();
+		try {
+			lock.lock();
+			try {
+				length = resident.get(key);
+				if(length == null)
+					return false;
+
+				if(slowCapacity > 0 && slowBytes + length > slowCapacity)
+					return false;
+			}
+			finally {
+				lock.unlock();
+			}
+
+			blk = move(key, fast, slow);
+
+			lock.lock();
+			try {
+				if(resident.remove(key) != null)
+					fastBytes -= length;
+				if(blk != null)
+					slowBytes += length;
+			}
+			finally {
+				lock.unlock();
+			}
+
+			if(blk != null)
+				demoted.incrementAndGet();
+
+			return blk != null;
+		}
+		finally {
+			klock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Demote the coldest blocks until the fast tier is back under its low
+	 * watermark, if it has filled past its high watermark.
+	 */
+	public synchronized void demote()
+		throws IOException
+	{
+		BlockKey key;
+		long low;
+
+		low = fastCapacity * LOW_WATERMARK_PERCENT / 100;
+		lock.lock();
+		try {
+			if(fastBytes <= fastCapacity * HIGH_WATERMARK_PERCENT / 100)
+				return;
+		}
+		finally {
+			lock.unlock();
+		}
+
+		for(;;) {
+			lock.lock();
+			try {
+				if(fastBytes <= low)
+					return;
+
+				key = victim();
+			}
+			finally {
+				lock.unlock();
+			}
+
+			if(key == null || !demoteOne(key))
+				return;
+		}
+	}
+
+	/**
+	 * Promote a block from the slow tier to the fast one. The fast tier is
+	 * kept under its high watermark, so the block doesn't just trigger a
+	 * demotion, by first demoting victims read less often than the block.
+	 * @return Whether the block was promoted.
+	 */
+	public synchronized boolean promote(BlockKey key)
+		throws IOException
+	{
+		ReadWriteLock klock;
+		DataBlock blk;
+		BlockKey evict;
+		boolean room;
+		long high;
+		int freq;
+
+		checkOpen();
+
+		/* Just read, so likely still in memory */
+		blk = slow.get(key);
+		if(blk == null)
+			return false;
+
+		high = fastCapacity * HIGH_WATERMARK_PERCENT / 100;
+		for(;;) {
+			lock.lock();
+			try {
+				if(resident.containsKey(key))
+					return false;
+
+				freq = sketch.frequency(key.hashCode());
+				room = fastBytes + blk.length() <= high;
+				evict = room ? null : victim();
+				if(!room && (evict == null
+					     || sketch.frequency(evict.hashCode()) >= freq))
+					return false;
+			}
+			finally {
+				lock.unlock();
+			}
+
+			if(room)
+				break;
+			if(!demoteOne(evict))
+				return false;
+		}
+
+		klock = stripe(key);
+		klock.writeLock().lock();
+		try {
+			blk = move(key, slow, fast);
+			if(blk == null)
+				return false;
+
+			lock.lock();
+			try {
+				resident.put(key, blk.length());
+				fastBytes += blk.length();
+				slowBytes -= blk.length();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		finally {
+			klock.writeLock().unlock();
+		}
+
+		promoted.incrementAndGet();
+		return true;
+	}
+
+	@Override
+	public Iterator<BlockKey> keys()
+		throws IOException
+	{
+		List<Iterator<BlockKey>> iters;
+
+		checkOpen();
+		iters = new ArrayList<Iterator<BlockKey>>();
+		iters.add(fast.keys());
+		iters.add(slow.keys());
+		return Iterators.concat(iters.iterator());
+	}
+
+	/**
+	 * Stop moving blocks and close both tiers.
+	 */
+	@Override
+	public void close()
+		throws IOException
+	{
+		if(!isopen.getAndSet(false))
+			return;
+
+		mover.finish();
+		try {
+			mover.join();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted stopping mover");
+		}
+
+		try {
+			fast.close();
+		}
+		finally {
+			slow.close();
+		}
+	}
+
+	/** Return the fast tier. */
+	public BlockStore getFast()
+	{ return fast; }
+
+	/** Return the slow tier. */
+	public BlockStore getSlow()
+	{ return slow; }
+
+	/** Return the bytes of blocks on the fast tier. */
+	public long getFastBytes()
+	{
+		lock.lock();
+		try {
+			return fastBytes;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/** Return the number of blocks promoted to the fast tier. */
+	public long getPromotedCount()
+	{ return promoted.get(); }
+
+	/** Return the number of blocks demoted to the slow tier. */
+	public long getDemotedCount()
+	{ return demoted.get(); }
+}
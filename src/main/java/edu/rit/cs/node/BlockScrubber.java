@@ -0,0 +1,433 @@
+/**
+ * Copyright © 2015
+ * Hrfs Block Scrubber
+ *
+ * Reads every block a node holds back in the background and hashes it again,
+ * to catch blocks that have rotted on disk since they were written. A block
+ * whose data no longer hashes to its key, or that can't be read at all, is
+ * reported as corrupt.
+ *
+ * The scrubber must never be felt by clients. Blocks are read and hashed a
+ * chunk at a time, and every chunk is held to a budget of bytes per second
+ * with a token bucket, so even a large block is read no faster than the
+ * budget allows, and never held whole in memory where the store can read
+ * part of a block. The scrubber stops altogether while the
+ * node's foreground work is backed up, waiting longer each time it finds the
+ * node still busy. Stores are read underneath any cache, so scrubbing doesn't
+ * push hot blocks out, and a TieredStore's tiers are read directly, so
+ * scrubbing doesn't promote anything.
+ *
+ * @file BlockScrubber.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs.node;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.rit.cs.BlockHasher;
+import edu.rit.cs.BlockKey;
+import edu.rit.cs.HrfsConfiguration;
+import edu.rit.cs.HrfsKeys;
+import edu.rit.cs.disk.BlockStore;
+import edu.rit.cs.disk.CachedBlockStore;
+import edu.rit.cs.disk.IndexedBlockStore;
+import edu.rit.cs.disk.TieredStore;
+
+public class BlockScrubber
+	extends Thread
+{
+	static
+	{
+		HrfsConfiguration.init();
+	}
+
+	public static final long DEFAULT_SCRUB_BYTES = 1024L*1024L*8L;	// 8MB/s
+	public static final int DEFAULT_BUSY_DEPTH = 2;
+	public static final long MIN_BACKOFF_MS = 50;
+	public static final long MAX_BACKOFF_MS = 5000;
+	public static final long PASS_PAUSE_MS = 1000L*60L;		// 1 minute
+	public static final int SCRUB_CHUNK = 1024 * 256;		// 256KB
+	private static final Log LOG = LogFactory.getLog(BlockScrubber.class);
+
+	private final List<BlockStore> stores;
+	private final String basedir;
+	private final String hashname;
+	private final IntSupplier load;
+	private final int busyDepth;
+	private final long rate;
+	private final CountDownLatch stop;
+	private final Set<BlockKey> corrupt;
+	private final AtomicLong scrubbed;
+	private final AtomicLong scrubbedBytes;
+	private final AtomicLong backoffs;
+	private final AtomicLong passes;
+	private final byte[] chunk;
+	private double tokens;
+	private long refilled;
+
+	/**
+	 * Scrub a block store with the configured budget.
+	 * @param store Store to scrub
+	 * @param hashname Content hash the blocks are keyed with
+	 * @param load Depth of the node's foreground work
+	 */
+	public BlockScrubber(BlockStore store, String hashname, IntSupplier load)
+	{
+		this(store, hashname, load, conf().getLong(HrfsKeys.HRFS_SCRUB_BYTES, DEFAULT_SCRUB_BYTES),
+		     conf().getInt(HrfsKeys.HRFS_SCRUB_BUSY, DEFAULT_BUSY_DEPTH));
+	}
+
+	/**
+	 * Scrub a block store.
+	 * @param store Store to scrub
+	 * @param hashname Content hash the blocks are keyed with
+	 * @param load Depth of the node's foreground work
+	 * @param rate Most bytes to read a second
+	 * @param busyDepth Foreground depth at which scrubbing stops
+	 */
+	public BlockScrubber(BlockStore store, String hashname, IntSupplier load,
+			     long rate, int busyDepth)
+	{
+		this(underlying(store), null, hashname, load, rate, busyDepth);
+	}
+
+	/**
+	 * Scrub the blocks a NodeWriter keeps in a directory, with the
+	 * configured budget.
+	 * @param basedir Base directory of the blocks
+	 * @param hashname Content hash the blocks are keyed with
+	 * @param load Depth of the node's foreground work
+	 */
+	public BlockScrubber(String basedir, String hashname, IntSupplier load)
+	{
+		this(basedir, hashname, load,
+		     conf().getLong(HrfsKeys.HRFS_SCRUB_BYTES, DEFAULT_SCRUB_BYTES),
+		     conf().getInt(HrfsKeys.HRFS_SCRUB_BUSY, DEFAULT_BUSY_DEPTH));
+	}
+
+	/**
+	 * Scrub the blocks a NodeWriter keeps in a directory.
+	 * @param basedir Base directory of the blocks
+	 * @param hashname Content hash the blocks are keyed with
+	 * @param load Depth of the node's foreground work
+	 * @param rate Most bytes to read a second
+	 * @param busyDepth Foreground depth at which scrubbing stops
+	 */
+	public BlockScrubber(String basedir, String hashname, IntSupplier load,
+			     long rate, int busyDepth)
+	{
+		this(null, basedir, hashname, load, rate, busyDepth);
+	}
+
+	private BlockScrubber(List<BlockStore> stores, String basedir, String hashname,
+			      IntSupplier load, long rate, int busyDepth)
+	{
+		super("BlockScrubber");
+		setDaemon(true);
+
+		if(rate <= 0)
+			throw new IllegalArgumentException("Invalid scrub rate: " + rate);
+		if(busyDepth < 1)
+			throw new IllegalArgumentException("Invalid busy depth: " + busyDepth);
+
+		this.stores = stores;
+		this.basedir = basedir;
+		this.hashname = hashname;
+		this.load = load;
+		this.rate = rate;
+		this.busyDepth = busyDepth;
+		this.stop = new CountDownLatch(1);
+		this.corrupt = ConcurrentHashMap.<BlockKey>newKeySet();
+		this.scrubbed = new AtomicLong(0);
+		this.scrubbedBytes = new AtomicLong(0);
+		this.backoffs = new AtomicLong(0);
+		this.passes = new AtomicLong(0);
+		this.chunk = new byte[SCRUB_CHUNK];
+
+		/* Start with a second's worth, so a pass doesn't start with a stall */
+		this.tokens = rate;
+		this.refilled = System.nanoTime();
+	}
+
+	private static HrfsConfiguration conf()
+	{
+		return new HrfsConfiguration();
+	}
+
+	/** Find the stores that really hold a store's blocks */
+	private static List<BlockStore> underlying(BlockStore store)
+	{
+		List<BlockStore> out;
+
+		out = new ArrayList<BlockStore>();
+		if(store instanceof CachedBlockStore) {
+			out.addAll(underlying(((CachedBlockStore)store).getStore()));
+		}
+		else if(store instanceof IndexedBlockStore) {
+			out.addAll(underlying(((IndexedBlockStore)store).getStore()));
+		}
+		else if(store instanceof TieredStore) {
+			out.addAll(underlying(((TieredStore)store).getFast()));
+			out.addAll(underlying(((TieredStore)store).getSlow()));
+		}
+		else {
+			out.add(store);
+		}
+
+		return out;
+	}
+
+	/**
+	 * Stop scrubbing, without interrupting a read under way.
+	 */
+	public void finish()
+	{
+		stop.countDown();
+	}
+
+	private boolean stopped()
+	{
+		return stop.getCount() == 0;
+	}
+
+	/**
+	 * Sleep, waking early if the scrubber is stopped.
+	 * @return Whether the scrubber was stopped.
+	 */
+	private boolean pause(long ms)
+	{
+		try {
+			return stop.await(ms, TimeUnit.MILLISECONDS);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return true;
+		}
+	}
+
+	/**
+	 * Wait for the node's foreground work to drop below the busy depth,
+	 * backing off further each time it hasn't.
+	 * @return Whether the scrubber was stopped.
+	 */
+	private boolean awaitIdle()
+	{
+		long backoff;
+
+		backoff = MIN_BACKOFF_MS;
+		while(load != null && load.getAsInt() >= busyDepth) {
+			backoffs.incrementAndGet();
+			if(pause(backoff))
+				return true;
+
+			backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+		}
+
+		return stopped();
+	}
+
+	/**
+	 * Take bytes read out of the budget, waiting for the bucket to refill
+	 * if they overdrew it, before the next chunk is read. The bucket holds
+	 * at most a second's worth.
+	 * @return Whether the scrubber was stopped.
+	 */
+	private boolean spend(long bytes)
+	{
+		long now;
+
+		now = System.nanoTime();
+		tokens = Math.min(rate, tokens + (now - refilled) * (double)rate / 1e9);
+		refilled = now;
+		tokens -= bytes;
+		if(tokens >= 0)
+			return stopped();
+
+		return pause((long)Math.ceil(-tokens * 1000.0 / rate));
+	}
+
+	private void report(BlockKey key, String why)
+	{
+		if(corrupt.add(key))
+			LOG.error("Block " + key + " is corrupt: " + why);
+	}
+
+	/** Whether a block is still held, after failing to read it */
+	private boolean held(BlockStore store, BlockKey key)
+	{
+		try {
+			if(store != null)
+				return store.contains(key);
+
+			return NodeWriter.references(basedir, key) > 0;
+		}
+		catch(IOException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Read and check one block. A block that fails to read is tried once
+	 * more, in case it was moved while it was read, and is only reported
+	 * if it is still held.
+	 * @param store Store holding the block, or null for the base directory
+	 * @return Whether the scrubber was stopped.
+	 */
+	private boolean scrub(BlockStore store, BlockKey key)
+	{
+		/* Keyed with some other hash, there is nothing to check it against */
+		if(key.length() != BlockHasher.forThread(hashname).length())
+			return false;
+
+		for(int attempt=0;; ++attempt) {
+			try {
+				return check(store, key);
+			}
+			catch(IOException e) {
+				/* Throw away whatever was hashed */
+				BlockHasher.forThread(hashname).digest();
+
+				/* A store closing under the scrubber isn't corruption */
+				if(stopped())
+					return true;
+				if(!held(store, key))
+					return false;
+
+				if(attempt > 0) {
+					report(key, e.toString());
+					return false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hash a block a chunk at a time, taking each chunk out of the budget
+	 * as it is read, and check it against its key.
+	 * @return Whether the scrubber was stopped.
+	 */
+	private boolean check(BlockStore store, BlockKey key)
+		throws IOException
+	{
+		BlockHasher hasher;
+		InputStream in;
+		long bytes;
+		int nread;
+
+		in = (store != null) ? store.stream(key) : NodeWriter.stream(basedir, key);
+
+		/* Deleted since the keys were listed */
+		if(in == null)
+			return false;
+
+		hasher = BlockHasher.forThread(hashname);
+		bytes = 0;
+		try {
+			while((nread = in.read(chunk)) > 0) {
+				hasher.update(chunk, 0, nread);
+				bytes += nread;
+				if(spend(nread)) {
+					hasher.digest();
+					return true;
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+
+		if(!Arrays.equals(hasher.digest(), key.toBytes()))
+			report(key, "data does not match its hash");
+		else
+			corrupt.remove(key);
+
+		scrubbed.incrementAndGet();
+		scrubbedBytes.addAndGet(bytes);
+		return false;
+	}
+
+	/**
+	 * Scrub every block once, within the budget. Only the scrubber's own
+	 * thread should call this once it is started.
+	 * @return Whether the pass ran to the end, rather than being stopped.
+	 */
+	public boolean scrubPass()
+		throws IOException
+	{
+		Iterator<BlockKey> keys;
+
+		if(stores == null) {
+			keys = NodeWriter.blocks(basedir).iterator();
+			while(keys.hasNext()) {
+				if(awaitIdle() || scrub(null, keys.next()))
+					return false;
+			}
+		}
+		else {
+			for(BlockStore store : stores) {
+				keys = store.keys();
+				while(keys.hasNext()) {
+					if(awaitIdle() || scrub(store, keys.next()))
+						return false;
+				}
+			}
+		}
+
+		passes.incrementAndGet();
+		return true;
+	}
+
+	@Override
+	public void run()
+	{
+		while(!stopped()) {
+			try {
+				if(!scrubPass())
+					return;
+			}
+			catch(IOException e) {
+				if(stopped())
+					return;
+
+				LOG.error("Scrub pass failed: " + e.toString());
+			}
+
+			if(pause(PASS_PAUSE_MS))
+				return;
+		}
+	}
+
+	/** Return the keys of the blocks found corrupt, and not since fixed. */
+	public Set<BlockKey> getCorrupt()
+	{ return new HashSet<BlockKey>(corrupt); }
+
+	/** Return the number of blocks checked. */
+	public long getScrubbedCount()
+	{ return scrubbed.get(); }
+
+	/** Return the number of bytes checked. */
+	public long getScrubbedBytes()
+	{ return scrubbedBytes.get(); }
+
+	/** Return the number of times the scrubber waited on a busy node. */
+	public long getBackoffCount()
+	{ return backoffs.get(); }
+
+	/** Return the number of full passes made. */
+	public long getPassCount()
+	{ return passes.get(); }
+}
@@ -11,6 +11,8 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
 
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.BasicParser;
@@ -32,10 +34,19 @@ import org.apache.zookeeper.ZooDefs.*;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import edu.rit.cs.BlockCodec;
+import edu.rit.cs.BlockHasher;
+import edu.rit.cs.BlockKey;
+import edu.rit.cs.DataBlock;
+import edu.rit.cs.BlockWritable;
 import edu.rit.cs.HrfsRPC;
 import edu.rit.cs.HrfsKeys;
 import edu.rit.cs.HrfsConfiguration;
+import edu.rit.cs.HrfsHashing;
+import edu.rit.cs.Ring;
 import edu.rit.cs.cluster.RingManager;
+import edu.rit.cs.disk.BlockStore;
+import edu.rit.cs.disk.BlockStores;
 
 public class HrfsNode
 	implements HrfsRPC
@@ -55,6 +66,11 @@ public class HrfsNode
 	private String address;
 	private RPC.Server server;
 	private RingManager cagent;
+	private String hashname;
+	private BlockCodec codec;
+	private BlockStore store;
+	private BlockScrubber scrubber;
+	private final AtomicInteger inflight = new AtomicInteger(0);
 
 	/**
 	 * By default, the HRFS Node will immediately use the local hrfs
@@ -65,6 +81,8 @@ public class HrfsNode
 	public HrfsNode(Options options)
 		throws IOException
 	{
+		Ring ring;
+
 		server = null;
 		conf = new HrfsConfiguration();
 		datadir = new File(conf.get(HrfsKeys.HRFS_NODE_PATH));
@@ -86,7 +104,8 @@ public class HrfsNode
 		 *
 		 * Each node will have MAX_PORT_OFFSET number of tries to claim
 		 * a port on the system. If it can't (there is alot of disks), the
-		 * node will throw a fatal error and terminate.
+		 * node will throw a fatal error and terminate. A node given every
+		 * disk through hrfs.node.store.paths needs no siblings.
 		 */
 		for(int p=0; p < MAX_PORT_OFFSET; ++p) {
 			try {
@@ -125,12 +144,89 @@ public class HrfsNode
 			new InetSocketAddress(address, port),
 			options.hasOption("potent"));
 		
-		if(cagent.getRing() == null) {
+		ring = cagent.getRing();
+		if(ring == null) {
 			LOG.info("No Ring Exists!, new filesystem?");
 		}
 
+		/* Blocks are named with the ring's hash, the config is a fallback */
+		if(ring != null && ring.getHashFunction() != null)
+			this.hashname = ring.getHashFunctionName();
+		else
+			this.hashname = HrfsHashing.configuredName(conf);
+
+		this.codec = BlockCodec.configured(conf);
+
+		/*
+		 * With block stores configured, one node drives every disk it
+		 * is given, rather than running a node per disk. Otherwise blocks
+		 * are kept as files in the node path.
+		 */
+		if(conf.get(HrfsKeys.HRFS_NODE_STORE_PATHS) != null
+		   || conf.get(HrfsKeys.HRFS_NODE_STORE_PATH) != null) {
+			this.store = BlockStores.configured(conf);
+			if(!store.create()) {
+				LOG.fatal("Unable to open the node's block store");
+				System.exit(1);
+			}
+		}
+
+		/* Checkpoint the store's index and flush it on the way down */
+		Runtime.getRuntime().addShutdownHook(new Thread("HrfsNode-shutdown") {
+			@Override
+			public void run()
+			{
+				shutdown();
+			}
+		});
+
 		/* Start Node Daemons */
 		this.server.start();
+		startScrubber();
+	}
+
+	/**
+	 * Stop the node's background work, and close its store.
+	 */
+	private void shutdown()
+	{
+		if(scrubber != null)
+			scrubber.finish();
+
+		try {
+			if(store != null)
+				store.close();
+		}
+		catch(IOException e) {
+			LOG.error("Failed to close the node's blocks cleanly: " + e.toString());
+		}
+	}
+
+	/**
+	 * Start scrubbing the node's blocks in the background, unless it is
+	 * configured off. The scrubber backs off while block requests are in
+	 * flight.
+	 */
+	private void startScrubber()
+	{
+		IntSupplier load;
+
+		if(conf.getLong(HrfsKeys.HRFS_SCRUB_BYTES, BlockScrubber.DEFAULT_SCRUB_BYTES) <= 0)
+			return;
+
+		load = new IntSupplier() {
+			@Override
+			public int getAsInt()
+			{
+				return inflight.get();
+			}
+		};
+
+		if(store != null)
+			scrubber = new BlockScrubber(store, hashname, load);
+		else
+			scrubber = new BlockScrubber(conf.get(HrfsKeys.HRFS_NODE_PATH), hashname, load);
+		scrubber.start();
 	}
 
 	/**
@@ -153,26 +249,80 @@ public class HrfsNode
 
 	/** Get a block from the node */
 	@Override
-	public byte[] getBlock(String key)
+	public byte[] getBlock(BlockKey key)
+	{
+		DataBlock blk;
+
+		if(store == null)
+			return new byte[0];
+
+		inflight.incrementAndGet();
+		try {
+			blk = store.get(key);
+			return (blk == null) ? new byte[0] : blk.data();
+		}
+		catch(IOException e) {
+			LOG.error("Failed to read block " + key + ": " + e.toString());
+			return new byte[0];
+		}
+		finally {
+			inflight.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Put a block into the node's block store, waiting until the store has
+	 * it durably before the put is acknowledged.
+	 */
+	private BlockKey storeBlock(BlockWritable block)
 	{
-		return new byte[0];
+		DataBlock blk;
+		byte[] hash;
+
+		hash = BlockHasher.forThread(hashname).hash(block.buffer()).clone();
+		blk = new DataBlock(block.buffer(), hash, 0);
+		try {
+			BlockStores.insertSync(store, blk);
+		}
+		catch(IOException e) {
+			LOG.error("Failed to store block: " + e.toString());
+			return null;
+		}
+
+		return blk.key();
 	}
 
 	/** Put a block into the node. */
 	@Override
-	public String putBlock(byte[] block)
+	public BlockKey putBlock(BlockWritable block)
+	{
+		inflight.incrementAndGet();
+		try {
+			return writeBlock(block);
+		}
+		finally {
+			inflight.decrementAndGet();
+		}
+	}
+
+	/** Write a block to the store, or as a file in the node path */
+	private BlockKey writeBlock(BlockWritable block)
 	{
-		String out;
+		BlockKey out;
 		NodeWriter writer;
 
+		if(store != null)
+			return storeBlock(block);
+
 		out = null;
 		try {
-			writer = new NodeWriter(conf.get(HrfsKeys.HRFS_NODE_PATH));
-			writer.write(new String(block).toCharArray());
+			writer = new NodeWriter(conf.get(HrfsKeys.HRFS_NODE_PATH), hashname,
+						codec);
+			writer.write(block.buffer());
 			writer.close();
 
 			if(writer.isPlaced())
-				out = writer.blockName();
+				out = writer.blockKey();
 		}
 		catch(FileNotFoundException e) {
 			LOG.error("Something seems to have happened to the data directory: "
@@ -187,11 +337,27 @@ public class HrfsNode
 		return out;
 	}
 
-	/** Removes the block from the node. */
+	/**
+	 * Releases a reference to a block on the node, the block is removed
+	 * once nothing references it.
+	 */
 	@Override
-	public boolean delBlock(String key)
+	public boolean delBlock(BlockKey key)
 	{
-		return false;
+		inflight.incrementAndGet();
+		try {
+			if(store != null)
+				return store.delete(key);
+
+			return NodeWriter.release(conf.get(HrfsKeys.HRFS_NODE_PATH), key);
+		}
+		catch(IOException e) {
+			LOG.error("Failed to release block " + key + ": " + e.toString());
+			return false;
+		}
+		finally {
+			inflight.decrementAndGet();
+		}
 	}
 
 	/**
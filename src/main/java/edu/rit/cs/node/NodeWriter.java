@@ -5,43 +5,107 @@
  * This is the node writer to the underlying filesystem storage
  * device. This writer currently assumes there is an underlying
  * filesystem that will support the creation and editing of files.
+ *
+ * Blocks are named by their content, so writing a block that is already
+ * on disk only adds a reference to it. References past the first are
+ * counted in a small file beside the block, and the block is only removed
+ * once every reference to it has been released.
+ *
+ * A block written with a codec is named with ENCODED_SUFFIX, so whether a
+ * block file is to be decoded is recorded by its name, and never guessed
+ * from the data, which may happen to look like an encoded block.
  */
 package edu.rit.cs.node;
 
 import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.io.Writer;
-import java.nio.file.AccessDeniedException;
-import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Formatter;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.rit.cs.BlockCodec;
+import edu.rit.cs.BlockHasher;
+import edu.rit.cs.BlockKey;
+import edu.rit.cs.HrfsConfiguration;
+import edu.rit.cs.HrfsHashing;
+import edu.rit.cs.disk.BlockStores;
 
 public class NodeWriter
 	extends Writer
 {
-	private FileLock lock;
+	public static final String REFS_SUFFIX = ".refs";
+	public static final String TMP_SUFFIX = ".tmp";
+	public static final String ENCODED_SUFFIX = ".enc";
+	private static final int LOCK_STRIPES = 64;
+	private static final Object[] LOCKS = new Object[LOCK_STRIPES];
+
+	static
+	{
+		for(int lidx=0; lidx < LOCK_STRIPES; ++lidx)
+			LOCKS[lidx] = new Object();
+	}
+
 	private FileOutputStream fos;
 	private File file;
 	private String path;
-	private String sha1;
+	private String bname;
+	private String hashname;
+	private BlockCodec codec;
+	private StringBuilder pathsb;
+	private byte[] key;
+	private BlockKey bkey;
 	private boolean placed;
+	private boolean duplicate;
 
 	/**
 	 * Construct a block writer based on a base directory
-	 * for which it will be stored.
+	 * for which it will be stored, naming blocks with the
+	 * configured cluster content hash.
 	 */
 	public NodeWriter(String basedir)
 		throws FileNotFoundException
 	{
+		this(basedir, HrfsHashing.configuredName(new HrfsConfiguration()));
+	}
+
+	/**
+	 * Construct a block writer based on a base directory
+	 * for which it will be stored, naming blocks with the
+	 * named content hash. This must be the hash of the ring.
+	 */
+	public NodeWriter(String basedir, String hashname)
+		throws FileNotFoundException
+	{
+		this(basedir, hashname, BlockCodec.configured(new HrfsConfiguration()));
+	}
+
+	/**
+	 * Construct a block writer based on a base directory
+	 * for which it will be stored, naming blocks with the
+	 * named content hash, and encoding them with a codec.
+	 * Blocks are named by their data before encoding.
+	 */
+	public NodeWriter(String basedir, String hashname, BlockCodec codec)
+		throws FileNotFoundException
+	{
 
 		super();
 		File fpath;
 
 		this.path = basedir;
+		this.hashname = hashname;
+		this.codec = codec;
+		this.pathsb = new StringBuilder();
 		fpath = new File(path);
 
 		/* Check that the data dir exists */
@@ -55,55 +119,335 @@ public class NodeWriter
 		return this.placed;
 	}
 
-	/** What was the filename (sha1sum) */
+	/** Was the block already on disk, so only referenced again? */
+	public boolean isDuplicate()
+	{
+		return this.duplicate;
+	}
+
+	/**
+	 * What was the filename (content hash in hex), this is only
+	 * encoded when asked for.
+	 */
 	public String blockName()
 	{
-		return this.sha1;
+		if(this.bname == null && this.key != null)
+			this.bname = BlockHasher.toHex(this.key);
+
+		return this.bname;
+	}
+
+	/**
+	 * What was the content hash of the block, as a key. This is
+	 * only built when asked for.
+	 */
+	public BlockKey blockKey()
+	{
+		if(this.bkey == null && this.key != null)
+			this.bkey = new BlockKey(this.key);
+
+		return this.bkey;
 	}
 
-	/** Compute SHA1 Sum of block */
-	private String getSHA1(byte[] buf)
-		throws NoSuchAlgorithmException
+	/**
+	 * Compute the content hash of the block, keeping it binary. The
+	 * digest is reused across blocks written by the same thread.
+	 */
+	private void getHash(ByteBuffer buf)
 	{
-		Formatter formatter;
-		MessageDigest md;
+		BlockHasher hasher;
+		byte[] hash;
 
-		md = MessageDigest.getInstance("SHA-1");
-		formatter = new Formatter();
+		hasher = BlockHasher.forThread(hashname);
+		hash = hasher.hash(buf.duplicate());
 
-		for(byte b : md.digest(buf))
-			formatter.format("%02x", b);
-		
-		return formatter.toString();
+		if(key == null || key.length != hash.length)
+			key = new byte[hash.length];
+
+		System.arraycopy(hash, 0, key, 0, hash.length);
+		bname = null;
+		bkey = null;
 	}
 
-	private synchronized void _writeByteBuffer(byte[] buffer, int off, int len)
-		throws IOException, AccessDeniedException
+	/**
+	 * Build the path of the block file from the binary key, the hex
+	 * encoding is only done here at the file system edge.
+	 */
+	private String blockPath()
+	{
+		pathsb.setLength(0);
+		pathsb.append(this.path).append('/');
+		return BlockHasher.appendHex(pathsb, key, 0, key.length).toString();
+	}
+
+	/** Lock guarding the block file and count of a key */
+	private static Object lockFor(byte[] key)
+	{
+		int hash;
+
+		hash = (key[0] & 0xff) | (key[1] & 0xff) << 8;
+		return LOCKS[hash & (LOCK_STRIPES - 1)];
+	}
+
+	/**
+	 * Find the file of a block, bare or encoded.
+	 * @param blkfile File the block has when stored bare
+	 * @return File of the block, or null if it isn't on disk.
+	 */
+	private static File findBlock(File blkfile)
+	{
+		File encfile;
+
+		if(blkfile.exists())
+			return blkfile;
+
+		encfile = new File(blkfile.getPath() + ENCODED_SUFFIX);
+		return encfile.exists() ? encfile : null;
+	}
+
+	/** Was the block file written with a codec? */
+	private static boolean isEncoded(File blkfile)
+	{
+		return blkfile.getName().endsWith(ENCODED_SUFFIX);
+	}
+
+	/** Read the references to a block on disk, counting from its file */
+	private static long readReferences(File blkfile)
+		throws IOException
 	{
+		File refs;
+
+		refs = new File(blkfile.getPath() + REFS_SUFFIX);
+		if(!refs.exists())
+			return 1;
+
 		try {
-			this.sha1 = getSHA1(buffer);
-			file = new File(this.path + "/" + this.sha1);
+			return Long.parseLong(new String(Files.readAllBytes(refs.toPath()),
+							 StandardCharsets.US_ASCII).trim());
+		}
+		catch(NumberFormatException e) {
+			throw new IOException("Corrupt reference count for " + blkfile);
+		}
+	}
+
+	/**
+	 * Write the references to a block, replacing the count file whole so
+	 * a crash leaves either the old count or the new one.
+	 */
+	private static void writeReferences(File blkfile, long count)
+		throws IOException
+	{
+		File refs;
+		File tmp;
+
+		refs = new File(blkfile.getPath() + REFS_SUFFIX);
+		if(count <= 1) {
+			Files.deleteIfExists(refs.toPath());
+			return;
+		}
+
+		tmp = new File(blkfile.getPath() + REFS_SUFFIX + TMP_SUFFIX);
+		Files.write(tmp.toPath(), Long.toString(count).getBytes(StandardCharsets.US_ASCII));
+		Files.move(tmp.toPath(), refs.toPath(), StandardCopyOption.REPLACE_EXISTING,
+			   StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Count the references to a block in a base directory.
+	 * @param basedir Base directory of the blocks
+	 * @param key Key of the block
+	 * @return References to the block, zero if it isn't on disk.
+	 */
+	public static long references(String basedir, BlockKey key)
+		throws IOException
+	{
+		File blkfile;
 
-			if(this.file.exists())
-				throw new AccessDeniedException("Blocks cannot be modified.");
+		synchronized(lockFor(key.toBytes())) {
+			blkfile = findBlock(new File(basedir, key.toString()));
+			if(blkfile == null)
+				return 0;
+
+			return readReferences(blkfile);
+		}
+	}
 
-			file.createNewFile();
-			fos = new FileOutputStream(file, false);
+	/**
+	 * Release a reference to a block in a base directory, removing the
+	 * block once its last reference is released.
+	 * @param basedir Base directory of the blocks
+	 * @param key Key of the block
+	 * @return Whether the block was on disk.
+	 */
+	public static boolean release(String basedir, BlockKey key)
+		throws IOException
+	{
+		File blkfile;
+		long count;
+
+		synchronized(lockFor(key.toBytes())) {
+			blkfile = findBlock(new File(basedir, key.toString()));
+			if(blkfile == null)
+				return false;
+
+			count = readReferences(blkfile);
+			if(count > 1) {
+				writeReferences(blkfile, count - 1);
+				return true;
+			}
+
+			Files.deleteIfExists(new File(blkfile.getPath() + REFS_SUFFIX).toPath());
+			Files.delete(blkfile.toPath());
+			return true;
+		}
+	}
+
+	/**
+	 * Read a block back from a base directory, decoding it if it was
+	 * written with a codec. A block still being written is waited for.
+	 * @param basedir Base directory of the blocks
+	 * @param key Key of the block
+	 * @return Data of the block, or null if it isn't on disk.
+	 */
+	public static ByteBuffer read(String basedir, BlockKey key)
+		throws IOException
+	{
+		File blkfile;
+		byte[] data;
+
+		synchronized(lockFor(key.toBytes())) {
+			blkfile = findBlock(new File(basedir, key.toString()));
+			if(blkfile == null)
+				return null;
+
+			data = Files.readAllBytes(blkfile.toPath());
+		}
+
+		if(isEncoded(blkfile))
+			return BlockCodec.decode(data, 0, data.length);
+
+		return ByteBuffer.wrap(data);
+	}
+
+	/**
+	 * Open a block in a base directory to read a piece at a time. A block
+	 * written with a codec is decoded whole.
+	 * @param basedir Base directory of the blocks
+	 * @param key Key of the block
+	 * @return Stream of the block's data, or null if it isn't on disk.
+	 */
+	public static InputStream stream(String basedir, BlockKey key)
+		throws IOException
+	{
+		ByteBuffer data;
+		File blkfile;
+
+		synchronized(lockFor(key.toBytes())) {
+			blkfile = findBlock(new File(basedir, key.toString()));
+			if(blkfile == null)
+				return null;
+
+			if(!isEncoded(blkfile))
+				return new FileInputStream(blkfile);
+		}
+
+		data = read(basedir, key);
+		return (data == null) ? null : BlockStores.stream(data);
+	}
+
+	/**
+	 * List the blocks in a base directory, from the names of their files.
+	 * @param basedir Base directory of the blocks
+	 * @return Key of every block on disk.
+	 */
+	public static List<BlockKey> blocks(String basedir)
+	{
+		List<BlockKey> keys;
+		String[] names;
+
+		keys = new ArrayList<BlockKey>();
+		names = new File(basedir).list();
+		if(names == null)
+			return keys;
+
+		for(String name : names) {
+			/* Counts and anything half written carry a further suffix */
+			if(name.endsWith(ENCODED_SUFFIX))
+				name = name.substring(0, name.length() - ENCODED_SUFFIX.length());
+			if(name.indexOf('.') >= 0 || name.length() > BlockKey.MAX_LENGTH * 2)
+				continue;
 
-			/* Make sure we're not allowing reads yet */
-			lock = fos.getChannel().lock();
 			try {
-				fos.write(buffer, off, len);
-				fos.flush();
+				keys.add(BlockKey.fromHex(name));
+			}
+			catch(IllegalArgumentException e) {
+				continue;
+			}
+		}
+
+		return keys;
+	}
+
+	/**
+	 * Write a block, or reference it again if it is already on disk. The
+	 * block is written under a temporary name and renamed into place once
+	 * it is whole and synced, so a block file under its final name is
+	 * always complete, and a crash leaves at most a temporary file behind.
+	 */
+	private synchronized void _writeByteBuffer(ByteBuffer buffer)
+		throws IOException
+	{
+		FileChannel channel;
+		boolean written;
+		String name;
+		File tmp;
+
+		getHash(buffer);
+		name = blockPath();
+
+		synchronized(lockFor(key)) {
+			/* Blocks are never rewritten, only referenced again */
+			file = findBlock(new File(name));
+			if(file != null) {
+				writeReferences(file, readReferences(file) + 1);
+				this.duplicate = true;
 				this.placed = true;
+				return;
+			}
+
+			file = new File(name);
+			if(!codec.isRaw()) {
+				buffer = ByteBuffer.wrap(codec.encode(buffer));
+				file = new File(name + ENCODED_SUFFIX);
+			}
+
+			tmp = new File(file.getPath() + TMP_SUFFIX);
+			fos = new FileOutputStream(tmp, false);
+			this.duplicate = false;
+			written = false;
+			try {
+				channel = fos.getChannel();
+
+				/* Direct buffers go straight to the file, without a heap copy */
+				while(buffer.hasRemaining())
+					channel.write(buffer);
+
+				channel.force(false);
+				written = true;
 			}
 			finally {
-				lock.release();
+				try {
+					fos.close();
+				}
+				finally {
+					fos = null;
+					if(!written)
+						Files.deleteIfExists(tmp.toPath());
+				}
 			}
-		}
-		catch(NoSuchAlgorithmException e) { 
-			System.err.println("SHA-1 Not Supported on System.");
-			return;
+
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			this.placed = true;
 		}
 	}
 
@@ -116,9 +460,20 @@ public class NodeWriter
 	 * @param len Length to write to diskn
 	 */
 	public synchronized void write(byte[] buf, int off, int len)
-		throws AccessDeniedException, IOException
+		throws IOException
 	{
-		this._writeByteBuffer(buf, off, len);
+		this._writeByteBuffer(ByteBuffer.wrap(buf, off, len));
+	}
+
+	/**
+	 * Write the remaining bytes of a buffer as a block, which may be a
+	 * direct or read only buffer. The buffer's position may be moved.
+	 * @param buf Buffer holding the block.
+	 */
+	public synchronized void write(ByteBuffer buf)
+		throws IOException
+	{
+		this._writeByteBuffer(buf);
 	}
 
 	/**
@@ -130,11 +485,11 @@ public class NodeWriter
 	 */
 	@Override
 	public synchronized void write(char[] cbuf, int off, int len)
-		throws AccessDeniedException, IOException
+		throws IOException
 	{
 		byte[] bytes;
 		bytes = new String(cbuf).getBytes();
-		this._writeByteBuffer(bytes, off, len);
+		this._writeByteBuffer(ByteBuffer.wrap(bytes, off, len));
 	}
 
 	/**
@@ -0,0 +1,198 @@
+/**
+ * Copyright @ 2015
+ * Hrfs Block Codec Tests
+ *
+ * @file BlockCodecTest.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.Assert;
+
+public class BlockCodecTest
+{
+	private static final String[] CODECS = { BlockCodec.LZ4, BlockCodec.DEFLATE };
+
+	@Before
+	public void initTest()
+	{
+		HrfsConfiguration.init();
+	}
+
+	/** Log like data, repetitive but not trivially so */
+	private static byte[] logData(int len)
+	{
+		StringBuilder sb;
+		Random rnd;
+
+		rnd = new Random(len);
+		sb = new StringBuilder(len + 128);
+		while(sb.length() < len)
+			sb.append("2015-03-").append(10 + rnd.nextInt(20))
+				.append(" INFO node").append(rnd.nextInt(8))
+				.append(" stored block ").append(rnd.nextInt(100000))
+				.append(" in ").append(rnd.nextInt(50)).append("ms\n");
+
+		return Arrays.copyOf(sb.toString().getBytes(), len);
+	}
+
+	private static byte[] decode(byte[] encoded)
+		throws IOException
+	{
+		ByteBuffer buf;
+		byte[] out;
+
+		buf = BlockCodec.decode(encoded, 0, encoded.length);
+		out = new byte[buf.remaining()];
+		buf.get(out);
+		return out;
+	}
+
+	@Test
+	public void testCompressible()
+		throws IOException
+	{
+		byte[] data;
+		byte[] encoded;
+
+		for(String name : CODECS) {
+			for(int len : new int[] { 1024, 1024*64, 1024*1024 + 7 }) {
+				data = logData(len);
+				encoded = BlockCodec.forName(name).encode(ByteBuffer.wrap(data));
+
+				Assert.assertTrue(name + " did not compress " + len + " bytes",
+						  encoded.length < len / 2);
+				Assert.assertEquals(len, BlockCodec.decodedLength(encoded, 0));
+				Assert.assertArrayEquals(data, decode(encoded));
+			}
+		}
+	}
+
+	/** Runs and overlapping matches, and inputs too short to match at all */
+	@Test
+	public void testEdgeCases()
+		throws IOException
+	{
+		byte[] data;
+
+		for(String name : CODECS) {
+			for(int len : new int[] { 0, 1, 5, 12, 13, 100, 70000 }) {
+				data = new byte[len];
+				Assert.assertArrayEquals(data, decode(BlockCodec.forName(name)
+								      .encode(ByteBuffer.wrap(data))));
+
+				for(int bidx=0; bidx < len; ++bidx)
+					data[bidx] = (byte)(bidx % 3);
+				Assert.assertArrayEquals(data, decode(BlockCodec.forName(name)
+								      .encode(ByteBuffer.wrap(data))));
+			}
+		}
+	}
+
+	/** Random data is kept raw, costing only the header */
+	@Test
+	public void testIncompressible()
+		throws IOException
+	{
+		ByteBuffer direct;
+		byte[] encoded;
+		byte[] data;
+
+		data = new byte[1024*256];
+		new Random(4).nextBytes(data);
+		direct = ByteBuffer.allocateDirect(data.length);
+		direct.put(data).flip();
+
+		for(String name : CODECS) {
+			encoded = BlockCodec.forName(name).encode(direct);
+			Assert.assertEquals(data.length + BlockCodec.HEADER_LENGTH, encoded.length);
+			Assert.assertArrayEquals(data, decode(encoded));
+			Assert.assertEquals(0, direct.position());
+		}
+	}
+
+	/** Any codec's encoding is read back, whoever is reading */
+	@Test
+	public void testStream()
+		throws IOException
+	{
+		ByteArrayOutputStream bos;
+		DataInputStream in;
+		DataOutputStream out;
+		byte[] data;
+
+		data = logData(1024*100);
+		bos = new ByteArrayOutputStream();
+		out = new DataOutputStream(bos);
+		BlockCodec.forName(BlockCodec.NONE).write(ByteBuffer.wrap(data), out);
+		BlockCodec.forName(BlockCodec.LZ4).write(ByteBuffer.wrap(data), out);
+		BlockCodec.forName(BlockCodec.DEFLATE).write(ByteBuffer.wrap(data), out);
+
+		in = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+		for(int ridx=0; ridx < 3; ++ridx)
+			Assert.assertEquals(ByteBuffer.wrap(data), BlockCodec.read(in));
+	}
+
+	/** Blocks larger than the scratch space kept per thread */
+	@Test
+	public void testLarge()
+		throws IOException
+	{
+		ByteBuffer direct;
+		byte[] encoded;
+		byte[] data;
+
+		data = logData(1024*1024*5);
+		direct = ByteBuffer.allocateDirect(data.length);
+		direct.put(data).flip();
+		encoded = BlockCodec.forName(BlockCodec.LZ4).encode(direct);
+		Assert.assertArrayEquals(data, decode(encoded));
+	}
+
+	@Test
+	public void testCorruption()
+	{
+		byte[] encoded;
+
+		for(String name : CODECS) {
+			encoded = BlockCodec.forName(name).encode(ByteBuffer.wrap(logData(1024*64)));
+
+			try {
+				BlockCodec.decode(encoded, 0, encoded.length / 2);
+				Assert.fail(name + " decoded a truncated block");
+			}
+			catch(IOException e) { }
+		}
+
+		try {
+			BlockCodec.decode(new byte[16], 0, 16);
+			Assert.fail("Decoded a block without a header");
+		}
+		catch(IOException e) { }
+
+		/* A header claiming a block past the largest allowed */
+		encoded = BlockCodec.forName(BlockCodec.LZ4).encode(ByteBuffer.wrap(logData(1024*64)));
+		ByteBuffer.wrap(encoded).putInt(2, (int)BlockFactory.MAX_BLOCK_SIZE + 1);
+		try {
+			BlockCodec.decode(encoded, 0, encoded.length);
+			Assert.fail("Decoded a block past the largest block size");
+		}
+		catch(IOException e) { }
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnknownCodec()
+	{
+		BlockCodec.forName("snappy");
+	}
+}
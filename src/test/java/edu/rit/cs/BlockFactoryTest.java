@@ -11,9 +11,20 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.io.FileUtils;
 import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.io.File;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import org.junit.Test;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -197,4 +208,286 @@ public class BlockFactoryTest
 		
 		Assert.assertEquals(5, blks);
 	}
+
+	/**
+	 * Drain a factory with the timed variant of getBlock, a null return
+	 * must either be a timeout or the end of the input.
+	 */
+	@Test
+	public void testTimedGetBlock()
+		throws IOException
+	{
+		BlockFactory factory;
+		int blksz;
+		Block blk;
+		int blks;
+
+		blksz = 1024*64;
+		factory = new BlockFactory(new byte[blksz * 64], blksz);
+
+		blks = 0;
+		while(!factory.isDone())
+		{
+			blk = factory.getBlock(10, TimeUnit.MILLISECONDS);
+			if(blk != null) {
+				Assert.assertEquals(blks, blk.index());
+				++blks;
+			}
+		}
+
+		Assert.assertEquals(64, blks);
+		Assert.assertNull(factory.getBlock());
+		Assert.assertEquals(64, factory.blocksProduced());
+	}
+
+	@Test
+	public void testClose()
+		throws IOException
+	{
+		BlockFactory factory;
+		int blksz;
+
+		blksz = 1024*64;
+		factory = new BlockFactory(new byte[blksz * 4096], blksz);
+		Assert.assertNotNull(factory.getBlock());
+
+		factory.close();
+		Assert.assertTrue(factory.isDone());
+		Assert.assertNull(factory.getBlock());
+	}
+
+	/** Count the descriptors this process has open on a file */
+	private static int openCount(File file)
+		throws IOException
+	{
+		File[] fds;
+		int count;
+
+		fds = new File("/proc/self/fd").listFiles();
+		count = 0;
+		for(File fd : fds) {
+			try {
+				if(Files.readSymbolicLink(fd.toPath()).equals(file.toPath()))
+					++count;
+			}
+			catch(IOException e) {
+				/* Closed while we looked */
+			}
+		}
+
+		return count;
+	}
+
+	/** A factory closes a file it opened itself, whatever its kind */
+	@Test
+	public void testCloseFile()
+		throws IOException
+	{
+		BlockFactory factory;
+		int blksz;
+		File file;
+		int base;
+
+		/* Descriptors are only listed where there is a /proc */
+		if(!new File("/proc/self/fd").isDirectory())
+			return;
+
+		blksz = 1024*64;
+		file = tenv.createFile(blksz * 64).getAbsoluteFile();
+		base = openCount(file);
+		for(int kind=0; kind < 3; ++kind) {
+			if(kind == 0)
+				factory = new BlockFactory(file, blksz);
+			else if(kind == 1)
+				factory = new ChunkingBlockFactory(file);
+			else
+				factory = new HashingBlockFactory(file, blksz, null);
+
+			factory.getBlock().release();
+			Assert.assertEquals(base + 1, openCount(file));
+			factory.close();
+			Assert.assertEquals(base, openCount(file));
+		}
+	}
+
+	/**
+	 * Closing hands the blocks read ahead back to the pool, and the worker
+	 * being stopped part way through a read is not mistaken for a failed
+	 * source.
+	 */
+	@Test
+	public void testClosePooled()
+		throws Exception
+	{
+		PipedOutputStream out;
+		PooledBuffer[] primed;
+		BlockFactory factory;
+		BufferPool pool;
+		long deadline;
+		long before;
+		int blksz;
+
+		blksz = 1024*64;
+		pool = BufferPool.getHeapPool();
+
+		/* Stock the pool, so buffers the factory leaks show up missing */
+		primed = new PooledBuffer[8];
+		for(int pidx=0; pidx < primed.length; ++pidx)
+			primed[pidx] = pool.allocate(blksz);
+		for(PooledBuffer pbuf : primed)
+			pbuf.release();
+		before = pool.getPooledBytes();
+
+		/* A few blocks, then a source that blocks as an idle socket would */
+		out = new PipedOutputStream();
+		factory = new BlockFactory(new PipedInputStream(out, blksz * 8), blksz);
+		out.write(new byte[blksz * 4]);
+		factory.getBlock().release();
+
+		Thread.sleep(200);
+		factory.close();
+
+		deadline = System.currentTimeMillis() + 10000;
+		while(pool.getPooledBytes() < before && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+
+		Assert.assertTrue(pool.getPooledBytes() >= before);
+		Assert.assertTrue(factory.isDone());
+		Assert.assertNull(factory.getBlock());
+		out.close();
+	}
+
+	/**
+	 * Stream that hands back at most a few bytes per read, the way a pipe
+	 * or socket would, so the factory has to piece blocks together.
+	 */
+	private static class TrickleInputStream
+		extends ByteArrayInputStream
+	{
+		public TrickleInputStream(byte[] barr)
+		{ super(barr); }
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len)
+		{ return super.read(b, off, Math.min(len, 1000)); }
+	}
+
+	/** Drain a factory, checking it reproduces the source data */
+	private void checkStream(BlockFactory factory, byte[] barr, int blksz)
+		throws IOException
+	{
+		ByteArrayOutputStream bos;
+		byte[] out;
+		Block blk;
+		long blks;
+
+		bos = new ByteArrayOutputStream();
+		blks = 0;
+		while((blk = factory.getBlock()) != null) {
+			Assert.assertEquals(blks++, blk.index());
+			Assert.assertEquals(blksz, blk.length());
+			bos.write(blk.data(), 0, blksz);
+			blk.release();
+		}
+
+		/* The short tail block is padded out with zeroes */
+		Assert.assertEquals((barr.length + blksz - 1) / blksz, blks);
+		out = bos.toByteArray();
+		for(int bidx=0; bidx < out.length; ++bidx)
+			Assert.assertEquals(bidx < barr.length ? barr[bidx] : 0, out[bidx]);
+	}
+
+	@Test
+	public void testStreamSource()
+		throws IOException
+	{
+		BlockFactory factory;
+		InputStream in;
+		byte[] barr;
+		int blksz;
+
+		blksz = 1024*64;
+		barr = new byte[(blksz * 10) + 1234];
+		new Random(6).nextBytes(barr);
+
+		in = new TrickleInputStream(barr);
+		factory = new BlockFactory(in, blksz);
+		Assert.assertEquals(BlockFactory.UNKNOWN_BLOCK_COUNT, factory.blockCount());
+		checkStream(factory, barr, blksz);
+
+		in = new TrickleInputStream(barr);
+		factory = new BlockFactory(in, blksz, barr.length);
+		Assert.assertEquals(11, factory.blockCount());
+		checkStream(factory, barr, blksz);
+	}
+
+	@Test
+	public void testChannelSource()
+		throws IOException
+	{
+		BlockFactory factory;
+		byte[] barr;
+		int blksz;
+
+		blksz = 1024*64;
+		barr = new byte[(blksz * 7) + 99];
+		new Random(7).nextBytes(barr);
+
+		factory = new BlockFactory(Channels.newChannel(
+			new TrickleInputStream(barr)), blksz);
+		Assert.assertEquals(BlockFactory.UNKNOWN_BLOCK_COUNT, factory.blockCount());
+		checkStream(factory, barr, blksz);
+	}
+
+	@Test
+	public void testStream()
+		throws IOException
+	{
+		BlockFactory factory;
+		List<Long> indices;
+		int blksz;
+
+		blksz = 1024*64;
+		factory = new BlockFactory(new byte[blksz * 100], blksz);
+
+		indices = factory.stream()
+			.map(blk -> { blk.release(); return blk.index(); })
+			.collect(Collectors.toList());
+
+		Assert.assertEquals(100, indices.size());
+		for(int bidx=0; bidx < indices.size(); ++bidx)
+			Assert.assertEquals(bidx, (long)indices.get(bidx));
+		Assert.assertTrue(factory.isDone());
+	}
+
+	@Test
+	public void testParallelStream()
+		throws IOException
+	{
+		BlockFactory factory;
+		Set<Long> indices;
+		byte[] barr;
+		int blksz;
+
+		blksz = 1024*64;
+		barr = new byte[(blksz * 300) + 17];
+		new Random(7).nextBytes(barr);
+		factory = new BlockFactory(barr, blksz);
+		Assert.assertEquals(301, factory.spliterator().estimateSize());
+
+		indices = factory.parallelStream()
+			.filter(blk -> {
+				for(int bidx=0; bidx < blksz; ++bidx) {
+					long off = (blk.index() * blksz) + bidx;
+					if(blk.data()[bidx] != (off < barr.length ? barr[(int)off] : 0))
+						return false;
+				}
+				return true;
+			})
+			.map(Block::index)
+			.collect(Collectors.toSet());
+
+		Assert.assertEquals(301, indices.size());
+		Assert.assertEquals(0, factory.spliterator().estimateSize());
+	}
 }
@@ -0,0 +1,130 @@
+/**
+ * Copyright @ 2015
+ * Hrfs Block Key Tests
+ *
+ * @file BlockKeyTest.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import com.google.common.hash.Hashing;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.Assert;
+
+public class BlockKeyTest
+{
+	/** Compare bytes unsigned, the way keys are meant to be ordered */
+	private static int compareBytes(byte[] left, byte[] right)
+	{
+		int cmp;
+
+		for(int bidx=0; bidx < Math.min(left.length, right.length); ++bidx) {
+			cmp = Integer.compare(left[bidx] & 0xff, right[bidx] & 0xff);
+			if(cmp != 0)
+				return cmp;
+		}
+
+		return Integer.compare(left.length, right.length);
+	}
+
+	@Test
+	public void testBytesAndHex()
+	{
+		BlockKey key;
+		byte[] hash;
+
+		for(int len : new int[] { 1, 16, 20, 32 }) {
+			hash = new byte[len];
+			new Random(len).nextBytes(hash);
+
+			key = new BlockKey(hash);
+			Assert.assertEquals(len, key.length());
+			Assert.assertArrayEquals(hash, key.toBytes());
+			Assert.assertEquals(BlockHasher.toHex(hash), key.toString());
+			Assert.assertEquals(key, BlockKey.fromHex(key.toString()));
+		}
+
+		hash = Hashing.sha1().hashBytes(new byte[10]).asBytes();
+		Assert.assertEquals(Hashing.sha1().hashBytes(new byte[10]).toString(),
+				    new BlockKey(hash).toString());
+	}
+
+	@Test
+	public void testEquality()
+	{
+		BlockKey key;
+		byte[] hash;
+
+		hash = new byte[20];
+		new Random(1).nextBytes(hash);
+		key = new BlockKey(hash);
+
+		Assert.assertEquals(key, new BlockKey(hash.clone()));
+		Assert.assertEquals(key.hashCode(), new BlockKey(hash.clone()).hashCode());
+
+		/* Trailing zeros still make a longer, different key */
+		Assert.assertNotEquals(new BlockKey(new byte[16]), new BlockKey(new byte[20]));
+
+		hash[19] ^= 1;
+		Assert.assertNotEquals(key, new BlockKey(hash));
+	}
+
+	/** Keys sort the same way their bytes do */
+	@Test
+	public void testOrdering()
+	{
+		BlockKey[] keys;
+		byte[][] hashes;
+		Random rnd;
+
+		rnd = new Random(2);
+		hashes = new byte[500][];
+		keys = new BlockKey[hashes.length];
+		for(int kidx=0; kidx < hashes.length; ++kidx) {
+			hashes[kidx] = new byte[1 + rnd.nextInt(BlockKey.MAX_LENGTH)];
+			rnd.nextBytes(hashes[kidx]);
+			keys[kidx] = new BlockKey(hashes[kidx]);
+		}
+
+		Arrays.sort(hashes, BlockKeyTest::compareBytes);
+		Arrays.sort(keys);
+		for(int kidx=0; kidx < keys.length; ++kidx)
+			Assert.assertArrayEquals(hashes[kidx], keys[kidx].toBytes());
+	}
+
+	@Test
+	public void testWritable()
+		throws IOException
+	{
+		ByteArrayOutputStream bos;
+		BlockKey key;
+		BlockKey read;
+		byte[] hash;
+
+		hash = new byte[20];
+		new Random(3).nextBytes(hash);
+		key = new BlockKey(hash);
+
+		bos = new ByteArrayOutputStream();
+		key.write(new DataOutputStream(bos));
+		Assert.assertEquals(21, bos.size());
+
+		read = new BlockKey();
+		read.readFields(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+		Assert.assertEquals(key, read);
+		Assert.assertEquals(0, key.compareTo(read));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testTooLong()
+	{
+		new BlockKey(new byte[BlockKey.MAX_LENGTH + 1]);
+	}
+}
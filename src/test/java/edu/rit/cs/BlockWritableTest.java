@@ -0,0 +1,97 @@
+/**
+ * Copyright @ 2015
+ * Hrfs Block Writable Tests
+ *
+ * @file BlockWritableTest.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.Assert;
+
+public class BlockWritableTest
+{
+	/** Send a writable through a stream, and read it back out */
+	private static BlockWritable roundTrip(BlockWritable bw)
+		throws IOException
+	{
+		ByteArrayOutputStream bos;
+		BlockWritable out;
+
+		bos = new ByteArrayOutputStream();
+		bw.write(new DataOutputStream(bos));
+
+		out = new BlockWritable();
+		out.readFields(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+		return out;
+	}
+
+	/** Only the bytes of the block go out, not the rest of its buffer */
+	@Test
+	public void testHeapSlice()
+		throws IOException
+	{
+		BlockWritable bw;
+		ByteBuffer out;
+		byte[] barr;
+
+		barr = new byte[1024];
+		new Random(5).nextBytes(barr);
+
+		bw = roundTrip(new BlockWritable(ByteBuffer.wrap(barr, 100, 500)));
+		out = bw.buffer();
+		Assert.assertEquals(500, bw.length());
+		for(int bidx=0; bidx < 500; ++bidx)
+			Assert.assertEquals(barr[100 + bidx], out.get(bidx));
+	}
+
+	@Test
+	public void testDirect()
+		throws IOException
+	{
+		ByteBuffer direct;
+		BlockWritable bw;
+		byte[] barr;
+
+		barr = new byte[1024*200 + 3];
+		new Random(6).nextBytes(barr);
+		direct = ByteBuffer.allocateDirect(barr.length);
+		direct.put(barr).flip();
+
+		bw = roundTrip(new BlockWritable(direct.asReadOnlyBuffer()));
+		Assert.assertEquals(barr.length, bw.length());
+		Assert.assertEquals(ByteBuffer.wrap(barr), bw.buffer());
+		Assert.assertEquals(0, direct.position());
+	}
+
+	/** Lengths off the wire are checked before the block is allocated */
+	@Test
+	public void testOversize()
+		throws IOException
+	{
+		ByteArrayOutputStream bos;
+		DataOutputStream out;
+		BlockWritable bw;
+
+		bos = new ByteArrayOutputStream();
+		out = new DataOutputStream(bos);
+		out.writeInt(Integer.MAX_VALUE);
+		out.write(new byte[] { (byte)0xb1, 0, 0x7f, (byte)0xff, (byte)0xff, (byte)0xfa });
+
+		bw = new BlockWritable();
+		try {
+			bw.readFields(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+			Assert.fail("Read a block past the largest block size");
+		}
+		catch(IOException e) { }
+		Assert.assertEquals(0, bw.length());
+	}
+}
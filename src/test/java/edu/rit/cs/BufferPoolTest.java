@@ -0,0 +1,117 @@
+/**
+ * Copyright @ 2015
+ * Hrfs Buffer Pool Tests
+ *
+ * @file BufferPoolTest.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.Assert;
+
+public class BufferPoolTest
+{
+	@Before
+	public void initTest()
+	{
+		HrfsConfiguration.init();
+	}
+
+	@Test
+	public void testSizeClasses()
+	{
+		Assert.assertEquals(512, BufferPool.sizeClass(1));
+		Assert.assertEquals(512, BufferPool.sizeClass(512));
+		Assert.assertEquals(1024, BufferPool.sizeClass(513));
+		Assert.assertEquals(1024*64, BufferPool.sizeClass(1024*64));
+		Assert.assertEquals(1024*64 + 512, BufferPool.sizeClass(1024*64 + 512));
+	}
+
+	@Test
+	public void testRecycle()
+	{
+		BufferPool pool;
+		PooledBuffer pbuf;
+		PooledBuffer again;
+		byte[] arr;
+
+		pool = new BufferPool(false, 1024*1024);
+		pbuf = pool.allocate(1024*64);
+		arr = pbuf.array();
+		Assert.assertEquals(1024*64, arr.length);
+		Assert.assertEquals(1, pbuf.refCount());
+
+		/* Shared holders keep it out of the pool */
+		pbuf.retain();
+		Assert.assertFalse(pbuf.release());
+		Assert.assertEquals(0, pool.getPooledBytes());
+
+		Assert.assertTrue(pbuf.release());
+		Assert.assertEquals(1024*64, pool.getPooledBytes());
+
+		again = pool.allocate(1024*64);
+		Assert.assertSame(arr, again.array());
+		Assert.assertEquals(1, again.refCount());
+		Assert.assertEquals(0, pool.getPooledBytes());
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testDoubleRelease()
+	{
+		PooledBuffer pbuf;
+
+		pbuf = new BufferPool(false, 1024*1024).allocate(4096);
+		pbuf.release();
+		pbuf.release();
+	}
+
+	@Test
+	public void testCapacity()
+	{
+		BufferPool pool;
+		PooledBuffer first;
+		PooledBuffer second;
+
+		pool = new BufferPool(true, 1024*64);
+		first = pool.allocate(1024*64);
+		second = pool.allocate(1024*64);
+		Assert.assertTrue(first.isDirect());
+		Assert.assertNull(first.array());
+
+		/* Only one of them fits back into the pool */
+		first.release();
+		second.release();
+		Assert.assertEquals(1024*64, pool.getPooledBytes());
+	}
+
+	/**
+	 * A consumer that releases each block after use should keep getting
+	 * the same few buffers back from the factory.
+	 */
+	@Test
+	public void testFactoryReuse()
+		throws IOException
+	{
+		BlockFactory factory;
+		Set<byte[]> seen;
+		int blksz;
+		Block blk;
+
+		blksz = 1024*64;
+		seen = Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+		factory = new BlockFactory(new byte[blksz * 256], blksz);
+
+		while((blk = factory.getBlock()) != null) {
+			seen.add(blk.data());
+			blk.release();
+		}
+
+		Assert.assertTrue(seen.size() < 256);
+	}
+}
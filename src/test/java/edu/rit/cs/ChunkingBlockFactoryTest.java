@@ -0,0 +1,167 @@
+/**
+ * Copyright @ 2015
+ * Hrfs Content Defined Chunking Tests
+ *
+ * @file ChunkingBlockFactoryTest.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import com.google.common.hash.Hashing;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.Assert;
+
+public class ChunkingBlockFactoryTest
+{
+	private static final int MIN = 1024*64;
+	private static final int AVG = 1024*128;
+	private static final int MAX = 1024*512;
+
+	@Before
+	public void initTest()
+	{
+		HrfsConfiguration.init();
+	}
+
+	/** Drain a factory, in order, into a list of blocks */
+	private List<Block> drain(BlockFactory factory)
+		throws IOException
+	{
+		List<Block> blocks;
+		Block blk;
+
+		blocks = new ArrayList<Block>();
+		while((blk = factory.getBlock()) != null)
+			blocks.add(blk);
+
+		return blocks;
+	}
+
+	/** Hash each block, giving the set of blocks that would be stored */
+	private Set<String> hashes(List<Block> blocks)
+	{
+		Set<String> hset;
+
+		hset = new HashSet<String>();
+		for(Block blk : blocks)
+			hset.add(Hashing.sha1().hashBytes(
+					 blk.data(), 0, (int)blk.length()).toString());
+
+		return hset;
+	}
+
+	@Test
+	public void testChunkConsistency()
+		throws IOException
+	{
+		ByteArrayOutputStream bos;
+		List<Block> blocks;
+		byte[] barr;
+
+		barr = new byte[1024*1024*8];
+		new Random(1).nextBytes(barr);
+
+		blocks = drain(new ChunkingBlockFactory(barr, MIN, AVG, MAX));
+		Assert.assertTrue(blocks.size() > 1);
+
+		bos = new ByteArrayOutputStream();
+		for(int bidx=0; bidx < blocks.size(); ++bidx) {
+			Block blk = blocks.get(bidx);
+
+			Assert.assertEquals(bidx, blk.index());
+			Assert.assertTrue(blk.length() <= MAX);
+			if(bidx < blocks.size() - 1)
+				Assert.assertTrue(blk.length() >= MIN);
+
+			bos.write(blk.data(), 0, (int)blk.length());
+		}
+
+		Assert.assertArrayEquals(barr, bos.toByteArray());
+	}
+
+	/** Chunks in pooled buffers still hand out exactly their own data */
+	@Test
+	public void testExactData()
+		throws IOException
+	{
+		DataBlock dblock;
+		byte[] barr;
+		byte[] hash;
+		long off;
+
+		barr = new byte[1024*1024*4];
+		new Random(4).nextBytes(barr);
+
+		off = 0;
+		for(Block blk : drain(new ChunkingBlockFactory(barr, MIN, AVG, MAX))) {
+			hash = Hashing.sha1().hashBytes(blk.buffer()).asBytes();
+			dblock = new DataBlock(blk, hash);
+			Assert.assertEquals(blk.length(), dblock.data().length);
+			Assert.assertArrayEquals(Arrays.copyOfRange(barr, (int)off,
+						 (int)(off + blk.length())), blk.data());
+			Assert.assertEquals(blk.buffer(), ByteBuffer.wrap(blk.data()));
+
+			off += blk.length();
+			blk.release();
+		}
+
+		Assert.assertEquals(barr.length, off);
+	}
+
+	/**
+	 * Insert a single byte near the start of the data, only the chunks
+	 * around the insertion should change. A fixed size factory would have
+	 * every block after the insertion change.
+	 */
+	@Test
+	public void testShiftResistance()
+		throws IOException
+	{
+		Set<String> before;
+		Set<String> after;
+		Set<String> shared;
+		byte[] barr;
+		byte[] shifted;
+
+		barr = new byte[1024*1024*8];
+		new Random(2).nextBytes(barr);
+
+		shifted = new byte[barr.length + 1];
+		System.arraycopy(barr, 0, shifted, 0, 1000);
+		shifted[1000] = 42;
+		System.arraycopy(barr, 1000, shifted, 1001, barr.length - 1000);
+
+		before = hashes(drain(new ChunkingBlockFactory(barr, MIN, AVG, MAX)));
+		after = hashes(drain(new ChunkingBlockFactory(shifted, MIN, AVG, MAX)));
+
+		shared = new HashSet<String>(before);
+		shared.retainAll(after);
+
+		/* At most a couple of chunks around the edit may differ */
+		Assert.assertTrue(before.size() - shared.size() <= 2);
+	}
+
+	@Test(expected=IOException.class)
+	public void testInvalidAverage()
+		throws IOException
+	{
+		new ChunkingBlockFactory(new byte[MAX], MIN, AVG + 4096, MAX);
+	}
+
+	@Test(expected=IOException.class)
+	public void testMinimumBelowBlockLimit()
+		throws IOException
+	{
+		new ChunkingBlockFactory(new byte[MAX], 4096, AVG, MAX);
+	}
+}
@@ -9,8 +9,18 @@ package edu.rit.cs;
 
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.io.IOException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -54,34 +64,228 @@ public class HashEngineTest
 
 	@Test
 	public void hashSHA1HEngineTest()
-		throws IOException
+		throws Exception
 	{
+		List<CompletableFuture<DataBlock>> futures;
 		Random rnd;
 		BlockFactory factory;
 		HashEngine hengine;
 		HashFunction hfn;
+		DataBlock dblk;
 		byte[] tbuf;
-		int cnt;
+		Block blk;
 
-		cnt = 0;
 		rnd = new Random();
 		tbuf = new byte[1024*1024*10]; // 10MB
 		rnd.nextBytes(tbuf);
 
 		hfn = Hashing.sha1();
 		hengine = new HashEngine(hfn);
+		futures = new ArrayList<CompletableFuture<DataBlock>>();
 
 		/* Create 64KB blk factory on in-memory data */
 		factory = new BlockFactory(tbuf, 1024*64);
 
-		while(!factory.isDone()) {
-			Block blk;
+		while((blk = factory.getBlock()) != null)
+			futures.add(hengine.putBlock(blk));
 
-			blk = factory.getBlock();
-			if(blk == null)
-				break;
+		Assert.assertEquals(160, futures.size());
+		for(CompletableFuture<DataBlock> future : futures) {
+			dblk = future.get();
+			Assert.assertArrayEquals(hfn.hashBytes(dblk.data(), 0,
+				(int)dblk.length()).asBytes(), dblk.hash());
+		}
+
+		Assert.assertEquals(160, hengine.getProducedCount());
+		Assert.assertEquals(0, hengine.getPendingCount());
+	}
+
+	@Test
+	public void orderedHEngineTest()
+		throws Exception
+	{
+		final List<Long> order;
+		CompletableFuture<DataBlock> last;
+		BlockFactory factory;
+		HashEngine hengine;
+		Block blk;
+
+		order = Collections.synchronizedList(new ArrayList<Long>());
+		hengine = new HashEngine(Hashing.sha1(), true);
+		Assert.assertTrue(hengine.isOrdered());
+
+		factory = new BlockFactory(new byte[1024*64*200], 1024*64);
+
+		last = null;
+		while((blk = factory.getBlock()) != null) {
+			last = hengine.putBlock(blk);
+			last.thenAccept(dblk -> order.add(dblk.index()));
+		}
+
+		last.get();
+		Assert.assertEquals(200, order.size());
+		for(int bidx=0; bidx < order.size(); ++bidx)
+			Assert.assertEquals(bidx, (long)order.get(bidx));
+	}
+
+	/** Blocks held off heap hash the same as blocks on heap */
+	@Test
+	public void directBlockHEngineTest()
+		throws Exception
+	{
+		HashEngine hengine;
+		ByteBuffer direct;
+		DataBlock dblk;
+		byte[] tbuf;
+
+		tbuf = new byte[1024*64];
+		new Random(3).nextBytes(tbuf);
+		direct = ByteBuffer.allocateDirect(tbuf.length + 16);
+		direct.position(16);
+		direct.put(tbuf);
+		direct.position(16);
+
+		hengine = new HashEngine(Hashing.sha1());
+		dblk = hengine.putBlock(new DataBlock(direct, new byte[0], 7)).get();
+
+		Assert.assertEquals(7, dblk.index());
+		Assert.assertEquals(tbuf.length, dblk.length());
+		Assert.assertTrue(dblk.buffer().isDirect());
+		Assert.assertArrayEquals(Hashing.sha1().hashBytes(tbuf).asBytes(), dblk.hash());
+		Assert.assertArrayEquals(tbuf, dblk.data());
+	}
+
+	@Test
+	public void shutdownHEngineTest()
+		throws Exception
+	{
+		CompletableFuture<DataBlock> future;
+		HashEngine hengine;
+		BlockFactory factory;
+
+		hengine = new HashEngine(Hashing.sha1());
+		factory = new BlockFactory(new byte[1024*64*2], 1024*64);
+
+		future = hengine.putBlock(factory.getBlock());
+		hengine.shutdown();
+		Assert.assertTrue(hengine.awaitTermination(10, TimeUnit.SECONDS));
+		Assert.assertNotNull(future.get());
+
+		try {
+			hengine.putBlock(factory.getBlock());
+			Assert.fail("Engine accepted a block after shutdown");
+		}
+		catch(IOException e) { }
+	}
 
-			hengine.putBlock(blk);
+	@Test
+	public void adaptiveHEngineTest()
+		throws Exception
+	{
+		CompletableFuture<DataBlock> last;
+		HashEngine hengine;
+		BlockFactory factory;
+		Block blk;
+		long deadline;
+
+		hengine = new HashEngine(Hashing.sha256(), false, 1, 4);
+		Assert.assertTrue(hengine.isAdaptive());
+		Assert.assertEquals(1, hengine.getWorkerCount());
+		Assert.assertEquals(1, hengine.getWorkerFloor());
+		Assert.assertEquals(4, hengine.getWorkerCeiling());
+
+		/* Keep a backlog, so the governor has reason to grow */
+		factory = new BlockFactory(new byte[1024*1024*128], 1024*1024);
+		last = null;
+		while((blk = factory.getBlock()) != null) {
+			last = hengine.putBlock(blk);
+			Assert.assertTrue(hengine.getWorkerCount() >= 1);
+			Assert.assertTrue(hengine.getWorkerCount() <= 4);
 		}
+
+		last.get();
+
+		/* Once idle, the engine should settle back to its floor */
+		deadline = System.currentTimeMillis() + 20000;
+		while(hengine.getWorkerCount() > 1 && System.currentTimeMillis() < deadline)
+			Thread.sleep(HashEngine.GOVERNOR_INTERVAL_MS);
+
+		Assert.assertEquals(1, hengine.getWorkerCount());
+		Assert.assertEquals(0, hengine.getBacklog());
+
+		hengine.shutdown();
+		Assert.assertTrue(hengine.awaitTermination(10, TimeUnit.SECONDS));
+		Assert.assertFalse(new HashEngine(Hashing.sha1(), false, 2, 2).isAdaptive());
+	}
+
+	/** A worker that dies of an Error must not stall ordered delivery */
+	@Test
+	public void errorHEngineTest()
+		throws Exception
+	{
+		CompletableFuture<DataBlock> failed;
+		CompletableFuture<DataBlock> next;
+		final DataBlock good;
+		HashEngine hengine;
+		Block bad;
+
+		good = new DataBlock(new byte[1024], new byte[0], 0);
+		bad = new Block() {
+			private int calls = 0;
+
+			public long length() { return good.length(); }
+			public long index() { return good.index(); }
+			public byte[] data() { return good.data(); }
+			public void release() { }
+
+			public ByteBuffer buffer()
+			{
+				/* Fine when submitted, fatal once a worker has it */
+				if(calls++ > 0)
+					throw new Error("Simulated hashing failure");
+				return good.buffer();
+			}
+		};
+
+		hengine = new HashEngine(Hashing.sha1(), true, 1, 1);
+		failed = hengine.putBlock(bad);
+		next = hengine.putBlock(new DataBlock(new byte[1024], new byte[0], 1));
+
+		Assert.assertEquals(1, next.get(10, TimeUnit.SECONDS).index());
+		try {
+			failed.get();
+			Assert.fail("Block that failed to hash was completed");
+		}
+		catch(ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof Error);
+		}
+
+		hengine.shutdown();
+	}
+
+	@Test
+	public void metricsHEngineTest()
+		throws Exception
+	{
+		HashEngine hengine;
+		MBeanServer mbeans;
+		ObjectName name;
+
+		/* Engines are only published when asked, so dropped ones don't leak */
+		hengine = new HashEngine(Hashing.sha1(), false, 2, 2);
+		Assert.assertNull(hengine.getMetricsName());
+		name = hengine.publishMetrics();
+		Assert.assertNotNull(name);
+		Assert.assertEquals(name, hengine.publishMetrics());
+		Assert.assertEquals(name, hengine.getMetricsName());
+
+		mbeans = ManagementFactory.getPlatformMBeanServer();
+		Assert.assertEquals(2, mbeans.getAttribute(name, "WorkerCount"));
+		Assert.assertEquals(false, mbeans.getAttribute(name, "Adaptive"));
+
+		hengine.shutdown();
+		Assert.assertFalse(mbeans.isRegistered(name));
+		Assert.assertNull(hengine.getMetricsName());
+		Assert.assertNull(hengine.publishMetrics());
 	}
 }
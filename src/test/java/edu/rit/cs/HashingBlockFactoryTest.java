@@ -0,0 +1,109 @@
+/**
+ * Copyright @ 2015
+ * Hrfs Hashing Block Factory Tests
+ *
+ * @file HashingBlockFactoryTest.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import com.google.common.hash.HashFunction;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.Assert;
+
+public class HashingBlockFactoryTest
+{
+	private Environment tenv;
+
+	@Before
+	public void initTest()
+	{
+		HrfsConfiguration.init();
+
+		try {
+			/* Build up our test environment, try to share it */
+			tenv = new Environment(TestUtil.TEST_BASE + "hashingblocks/");
+			Assert.assertNotNull(tenv);
+		}
+		catch(IOException e) {
+			System.err.println("Error building test environment: " + e.toString());
+		}
+		catch(SecurityException e){
+			System.err.println("Insufficient/Invalid permissions for test environment: "
+				  + e.toString());
+		}
+	}
+
+	/**
+	 * Every block must carry the same hash the HashEngine would have given
+	 * it, padding and all.
+	 */
+	private void checkHashes(BlockFactory factory, String hashname, long count)
+		throws IOException
+	{
+		HashFunction hfn;
+		DataBlock dblk;
+		Block blk;
+		long blks;
+
+		hfn = HrfsHashing.function(hashname);
+		blks = 0;
+		while((blk = factory.getBlock()) != null) {
+			Assert.assertTrue(blk instanceof DataBlock);
+			dblk = (DataBlock)blk;
+
+			Assert.assertEquals(blks++, dblk.index());
+			Assert.assertArrayEquals(hfn.hashBytes(dblk.data(), 0,
+				(int)dblk.length()).asBytes(), dblk.hash());
+			dblk.release();
+		}
+
+		Assert.assertEquals(count, blks);
+	}
+
+	@Test
+	public void testFileHashes()
+		throws IOException
+	{
+		HashingBlockFactory factory;
+		int blksz;
+		File file;
+
+		/* Blocks of several strides, plus a short tail */
+		blksz = 1024*1024;
+		file = tenv.createFile((blksz * 6) + 1000);
+		factory = new HashingBlockFactory(file, blksz, HrfsHashing.SHA1);
+
+		Assert.assertEquals(7, factory.blockCount());
+		checkHashes(factory, HrfsHashing.SHA1, 7);
+	}
+
+	@Test
+	public void testStreamHashes()
+		throws IOException
+	{
+		HashingBlockFactory factory;
+		byte[] barr;
+		int blksz;
+
+		blksz = 1024*512;
+		barr = new byte[(blksz * 4) + 77];
+		new Random(11).nextBytes(barr);
+
+		factory = new HashingBlockFactory(new ByteArrayInputStream(barr),
+						  blksz, HrfsHashing.MURMUR3_128);
+		checkHashes(factory, HrfsHashing.MURMUR3_128, 5);
+	}
+
+	@Test(expected=IOException.class)
+	public void testUnknownHash()
+		throws IOException
+	{
+		new HashingBlockFactory(tenv.createFile(1024*64), 1024*64, "MD4");
+	}
+}
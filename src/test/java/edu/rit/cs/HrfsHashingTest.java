@@ -0,0 +1,93 @@
+/**
+ * Copyright @ 2015
+ * Hrfs Content Hashing Tests
+ *
+ * @file HrfsHashingTest.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import com.google.common.hash.HashFunction;
+import java.security.MessageDigest;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.Assert;
+
+public class HrfsHashingTest
+{
+	@Before
+	public void initTest()
+	{
+		HrfsConfiguration.init();
+	}
+
+	/**
+	 * Blocks already on disk are named by the hex SHA-1 of their content,
+	 * the SHA1 function must keep producing exactly those names.
+	 */
+	@Test
+	public void testSHA1Compatibility()
+		throws Exception
+	{
+		StringBuilder hex;
+		byte[] barr;
+
+		barr = new byte[1024*64];
+		new Random(9).nextBytes(barr);
+
+		hex = new StringBuilder();
+		for(byte b : MessageDigest.getInstance("SHA-1").digest(barr))
+			hex.append(String.format("%02x", b));
+
+		Assert.assertEquals(hex.toString(), HrfsHashing.function(
+			HrfsHashing.SHA1).hashBytes(barr).toString());
+	}
+
+	@Test
+	public void testFunctions()
+	{
+		HashFunction hfn;
+
+		hfn = HrfsHashing.function(HrfsHashing.SHA256);
+		Assert.assertEquals(256, hfn.bits());
+
+		hfn = HrfsHashing.function(HrfsHashing.MURMUR3_128);
+		Assert.assertEquals(128, hfn.bits());
+
+		Assert.assertEquals(160, HrfsHashing.configured(
+			new HrfsConfiguration()).bits());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnknownFunction()
+	{
+		HrfsHashing.function("MD4");
+	}
+
+	@Test
+	public void testTreeNames()
+	{
+		String name;
+
+		name = HrfsHashing.treeName(HrfsHashing.SHA256, 1024*1024);
+		Assert.assertEquals("SHA256/1048576", name);
+		Assert.assertEquals(HrfsHashing.SHA256, HrfsHashing.functionName(name));
+		Assert.assertEquals(1024*1024, HrfsHashing.treeChunk(name));
+		Assert.assertEquals(256, HrfsHashing.function(name).bits());
+		Assert.assertEquals("SHA-256", HrfsHashing.digestAlgorithm(name));
+
+		/* Plain hashes keep their plain names */
+		Assert.assertEquals(HrfsHashing.SHA1, HrfsHashing.treeName(HrfsHashing.SHA1, 0));
+		Assert.assertEquals(0, HrfsHashing.treeChunk(HrfsHashing.SHA1));
+		Assert.assertEquals(HrfsHashing.MURMUR3_128,
+				    HrfsHashing.nameOf(HrfsHashing.function(HrfsHashing.MURMUR3_128)));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testTreeChunkTooSmall()
+	{
+		HrfsHashing.function("SHA1/512");
+	}
+}
+
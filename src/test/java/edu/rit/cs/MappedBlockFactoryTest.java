@@ -0,0 +1,123 @@
+/**
+ * Copyright @ 2015
+ * Hrfs Mapped Block Factory Tests
+ *
+ * @file MappedBlockFactoryTest.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import org.apache.commons.io.FileUtils;
+import java.io.IOException;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.HashMap;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.Assert;
+
+public class MappedBlockFactoryTest
+{
+	private Environment tenv;
+
+	@Before
+	public void initTest()
+	{
+		HrfsConfiguration.init();
+
+		try {
+			/* Build up our test environment, try to share it */
+			tenv = new Environment(TestUtil.TEST_BASE + "mappedblocks/");
+			Assert.assertNotNull(tenv);
+		}
+		catch(IOException e) {
+			System.err.println("Error building test environment: " + e.toString());
+		}
+		catch(SecurityException e){
+			System.err.println("Insufficient/Invalid permissions for test environment: "
+				  + e.toString());
+		}
+	}
+
+	/**
+	 * Use a window that holds a few blocks, so that the factory has to
+	 * remap several times over the file, and make sure that the short tail
+	 * block is still padded out to the block size.
+	 */
+	@Test
+	public void testFileConsistency()
+		throws IOException
+	{
+		MappedBlockFactory factory;
+		byte[] bfile;
+		int blksz;
+		Block blk;
+		File file;
+		int blks;
+
+		/* 64KB blocks, 3 to a window, 20 blocks plus change */
+		blksz = 1024*64;
+		file = tenv.createFile((blksz * 20) + 1000);
+		bfile = FileUtils.readFileToByteArray(file);
+		factory = new MappedBlockFactory(file, blksz, blksz * 3);
+
+		Assert.assertEquals(21, factory.blockCount());
+
+		blks = 0;
+		while(!factory.isDone())
+		{
+			blk = factory.getBlock();
+			if(blk == null)
+				continue;
+
+			++blks;
+			Assert.assertEquals(blksz, blk.length());
+
+			byte[] data = blk.data();
+			for(int bidx=0; bidx < blksz; ++bidx) {
+				long off = (blk.index() * blksz) + bidx;
+				if(off < bfile.length)
+					Assert.assertEquals(bfile[(int)off], data[bidx]);
+				else
+					Assert.assertEquals(0, data[bidx]);
+			}
+		}
+
+		Assert.assertEquals(21, blks);
+	}
+
+	@Test
+	public void testReadOnlyViews()
+		throws IOException
+	{
+		MappedBlockFactory factory;
+		MappedBlockFactory.MappedBlock mblk;
+		ByteBuffer view;
+		int blksz;
+		Block blk;
+		File file;
+
+		blksz = 1024*64;
+		file = tenv.createFile(blksz * 4);
+		factory = new MappedBlockFactory(file, blksz);
+
+		blk = null;
+		while(blk == null && !factory.isDone())
+			blk = factory.getBlock();
+
+		Assert.assertNotNull(blk);
+		Assert.assertTrue(blk instanceof MappedBlockFactory.MappedBlock);
+
+		mblk = (MappedBlockFactory.MappedBlock)blk;
+		view = mblk.buffer();
+		Assert.assertTrue(view.isReadOnly());
+		Assert.assertEquals(blksz, view.remaining());
+
+		try {
+			view.put(0, (byte)1);
+			Assert.fail("Mapped block views must be read only");
+		}
+		catch(ReadOnlyBufferException e) { }
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright @ 2015
+ * Hrfs Merkle Tree Tests
+ *
+ * @file MerkleTreeTest.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import com.google.common.hash.Hashing;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.Assert;
+
+public class MerkleTreeTest
+{
+	@Before
+	public void initTest()
+	{
+		HrfsConfiguration.init();
+	}
+
+	/** Content hashes of a number of made up blocks */
+	private byte[][] blockHashes(int count, long seed)
+	{
+		byte[][] hashes;
+		byte[] data;
+		Random rnd;
+
+		rnd = new Random(seed);
+		data = new byte[512];
+		hashes = new byte[count][];
+		for(int bidx=0; bidx < count; ++bidx) {
+			rnd.nextBytes(data);
+			hashes[bidx] = Hashing.sha1().hashBytes(data).asBytes();
+		}
+
+		return hashes;
+	}
+
+	@Test
+	public void testProofs()
+	{
+		MerkleTree tree;
+		byte[][] hashes;
+		byte[] bad;
+
+		/* Odd and even sizes, so nodes get carried up */
+		for(int count=1; count <= 33; ++count) {
+			hashes = blockHashes(count, count);
+			tree = new MerkleTree(HrfsHashing.SHA1, hashes);
+			Assert.assertEquals(count, tree.leafCount());
+
+			for(int bidx=0; bidx < count; ++bidx) {
+				Assert.assertTrue(MerkleTree.verify(HrfsHashing.SHA1, tree.root(),
+					count, bidx, hashes[bidx], tree.proof(bidx)));
+
+				bad = hashes[bidx].clone();
+				bad[0] ^= 1;
+				Assert.assertFalse(MerkleTree.verify(HrfsHashing.SHA1, tree.root(),
+					count, bidx, bad, tree.proof(bidx)));
+			}
+
+			/* A block must not verify at another index */
+			if(count > 1)
+				Assert.assertFalse(MerkleTree.verify(HrfsHashing.SHA1, tree.root(),
+					count, 0, hashes[1], tree.proof(0)));
+		}
+	}
+
+	@Test
+	public void testBuildFromBlocks()
+	{
+		List<DataBlock> blocks;
+		byte[][] hashes;
+
+		hashes = blockHashes(20, 1);
+		blocks = new ArrayList<DataBlock>();
+		for(int bidx=0; bidx < hashes.length; ++bidx)
+			blocks.add(new DataBlock(new byte[1], hashes[bidx], bidx));
+
+		/* Blocks may come back from the HashEngine in any order */
+		Collections.shuffle(blocks, new Random(2));
+		Assert.assertArrayEquals(new MerkleTree(HrfsHashing.SHA1, hashes).root(),
+					 MerkleTree.build(HrfsHashing.SHA1, blocks).root());
+
+		blocks.removeIf(dblk -> dblk.index() == 5);
+		try {
+			MerkleTree.build(HrfsHashing.SHA1, blocks);
+			Assert.fail("Built a tree with a missing block");
+		}
+		catch(IllegalArgumentException e) { }
+	}
+
+	@Test
+	public void testDiff()
+	{
+		MerkleTree before;
+		MerkleTree after;
+		byte[][] hashes;
+		byte[][] changed;
+
+		hashes = blockHashes(100, 3);
+		changed = hashes.clone();
+		changed[7] = blockHashes(1, 4)[0];
+		changed[64] = blockHashes(1, 5)[0];
+
+		before = new MerkleTree(HrfsHashing.SHA1, hashes);
+		after = new MerkleTree(HrfsHashing.SHA1, changed);
+
+		Assert.assertFalse(Arrays.equals(before.root(), after.root()));
+		Assert.assertEquals(Arrays.asList(7L, 64L), before.diff(after));
+		Assert.assertTrue(before.diff(before).isEmpty());
+
+		/* A partial upload, everything past the end is missing */
+		after = new MerkleTree(HrfsHashing.SHA1, Arrays.copyOf(hashes, 97));
+		Assert.assertEquals(Arrays.asList(97L, 98L, 99L), before.diff(after));
+	}
+
+	@Test
+	public void testWritable()
+		throws IOException
+	{
+		ByteArrayOutputStream bos;
+		MerkleTree tree;
+		MerkleTree read;
+
+		tree = new MerkleTree(HrfsHashing.SHA256, blockHashes(13, 6));
+		bos = new ByteArrayOutputStream();
+		tree.write(new DataOutputStream(bos));
+
+		read = new MerkleTree();
+		read.readFields(new DataInputStream(
+			new ByteArrayInputStream(bos.toByteArray())));
+
+		Assert.assertEquals(HrfsHashing.SHA256, read.getHashName());
+		Assert.assertEquals(13, read.leafCount());
+		Assert.assertArrayEquals(tree.root(), read.root());
+		Assert.assertArrayEquals(tree.blockHash(12), read.blockHash(12));
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright @ 2015
+ * Hrfs Parallel Block Factory Tests
+ *
+ * @file ParallelBlockFactoryTest.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import org.apache.commons.io.FileUtils;
+import java.io.IOException;
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.Assert;
+
+public class ParallelBlockFactoryTest
+{
+	private Environment tenv;
+
+	@Before
+	public void initTest()
+	{
+		HrfsConfiguration.init();
+
+		try {
+			/* Build up our test environment, try to share it */
+			tenv = new Environment(TestUtil.TEST_BASE + "parallelblocks/");
+			Assert.assertNotNull(tenv);
+		}
+		catch(IOException e) {
+			System.err.println("Error building test environment: " + e.toString());
+		}
+		catch(SecurityException e){
+			System.err.println("Insufficient/Invalid permissions for test environment: "
+				  + e.toString());
+		}
+	}
+
+	/** Check a block against the region of the file it claims to be */
+	private void checkBlock(byte[] bfile, int blksz, Block blk)
+	{
+		byte[] data;
+		long off;
+
+		Assert.assertEquals(blksz, blk.length());
+
+		data = blk.data();
+		for(int bidx=0; bidx < blksz; ++bidx) {
+			off = (blk.index() * blksz) + bidx;
+			if(off < bfile.length)
+				Assert.assertEquals(bfile[(int)off], data[bidx]);
+			else
+				Assert.assertEquals(0, data[bidx]);
+		}
+	}
+
+	@Test
+	public void testOrderedDelivery()
+		throws IOException
+	{
+		ParallelBlockFactory factory;
+		byte[] bfile;
+		int blksz;
+		Block blk;
+		File file;
+		long next;
+
+		blksz = 1024*64;
+		file = tenv.createFile((blksz * 50) + 1000);
+		bfile = FileUtils.readFileToByteArray(file);
+		factory = new ParallelBlockFactory(file, blksz, 4, true);
+
+		Assert.assertTrue(factory.isOrdered());
+		Assert.assertEquals(51, factory.blockCount());
+
+		next = 0;
+		while((blk = factory.getBlock()) != null) {
+			Assert.assertEquals(next++, blk.index());
+			checkBlock(bfile, blksz, blk);
+			blk.release();
+		}
+
+		Assert.assertEquals(51, next);
+	}
+
+	@Test
+	public void testUnorderedDelivery()
+		throws IOException
+	{
+		ParallelBlockFactory factory;
+		Set<Long> seen;
+		byte[] bfile;
+		int blksz;
+		Block blk;
+		File file;
+
+		blksz = 1024*64;
+		file = tenv.createFile((blksz * 50) + 1000);
+		bfile = FileUtils.readFileToByteArray(file);
+		factory = new ParallelBlockFactory(file, blksz, 8, false);
+
+		seen = new HashSet<Long>();
+		while((blk = factory.getBlock()) != null) {
+			Assert.assertTrue(seen.add(blk.index()));
+			checkBlock(bfile, blksz, blk);
+			blk.release();
+		}
+
+		Assert.assertEquals(51, seen.size());
+	}
+
+	@Test(expected=IOException.class)
+	public void testInvalidReaderCount()
+		throws IOException
+	{
+		new ParallelBlockFactory(tenv.createFile(1024*64), 1024*64, 0, true);
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright @ 2015
+ * Hrfs Tree Hasher Tests
+ *
+ * @file TreeHasherTest.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs;
+
+import com.google.common.hash.Hashing;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.Assert;
+
+public class TreeHasherTest
+{
+	private static final int CHUNK = 1024*64;
+
+	@Before
+	public void initTest()
+	{
+		HrfsConfiguration.init();
+	}
+
+	/**
+	 * The key of a block must not depend on how many threads hashed it,
+	 * for lengths that fill the tree and lengths that leave it ragged.
+	 */
+	@Test
+	public void testDeterministic()
+	{
+		ForkJoinPool single;
+		ForkJoinPool wide;
+		byte[] barr;
+		int[] lengths;
+
+		barr = new byte[CHUNK * 37 + 5];
+		new Random(13).nextBytes(barr);
+		lengths = new int[] { CHUNK + 1, CHUNK * 2, CHUNK * 3, CHUNK * 16,
+				      CHUNK * 17 - 1, barr.length };
+
+		single = new ForkJoinPool(1);
+		wide = new ForkJoinPool(8);
+		try {
+			for(int len : lengths)
+				Assert.assertArrayEquals(
+					new TreeHasher(Hashing.sha1(), CHUNK, single).hash(barr, 0, len),
+					new TreeHasher(Hashing.sha1(), CHUNK, wide).hash(barr, 0, len));
+		}
+		finally {
+			single.shutdown();
+			wide.shutdown();
+		}
+	}
+
+	/** Data off heap must tree hash to the same key as on heap. */
+	@Test
+	public void testDirectBuffer()
+	{
+		TreeHasher hasher;
+		ByteBuffer direct;
+		byte[] barr;
+
+		barr = new byte[CHUNK * 5 + 17];
+		new Random(17).nextBytes(barr);
+		direct = ByteBuffer.allocateDirect(barr.length);
+		direct.put(barr).flip();
+
+		hasher = new TreeHasher(Hashing.sha1(), CHUNK);
+		Assert.assertArrayEquals(hasher.hash(barr, 0, barr.length),
+					 hasher.hash(direct));
+		Assert.assertEquals(0, direct.position());
+	}
+
+	@Test
+	public void testSensitivity()
+	{
+		TreeHasher hasher;
+		byte[] barr;
+		byte[] before;
+
+		barr = new byte[CHUNK * 10];
+		new Random(14).nextBytes(barr);
+		hasher = new TreeHasher(Hashing.sha1(), CHUNK);
+
+		before = hasher.hash(barr, 0, barr.length);
+		barr[CHUNK * 7 + 3] ^= 1;
+		Assert.assertFalse(Arrays.equals(before, hasher.hash(barr, 0, barr.length)));
+
+		/* A tree hash is its own key space, never a plain hash */
+		Assert.assertFalse(Arrays.equals(Hashing.sha1().hashBytes(barr).asBytes(),
+						 hasher.hash(barr, 0, barr.length)));
+		Assert.assertFalse(Arrays.equals(Hashing.sha1().hashBytes(barr, 0, CHUNK).asBytes(),
+						 hasher.hash(barr, 0, CHUNK)));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testChunkTooSmall()
+	{
+		new TreeHasher(Hashing.sha1(), 512);
+	}
+
+	/**
+	 * Keys made anywhere in the cluster go through BlockHasher, which must
+	 * build the same tree from a whole block, or from one fed in pieces
+	 * that don't line up with the chunks.
+	 */
+	@Test
+	public void testBlockHasher()
+	{
+		BlockHasher hasher;
+		TreeHasher tree;
+		byte[] barr;
+		byte[] expect;
+		int[] lengths;
+		int piece;
+
+		barr = new byte[CHUNK * 9 + 11];
+		new Random(15).nextBytes(barr);
+		lengths = new int[] { 1, CHUNK, CHUNK + 1, CHUNK * 2, CHUNK * 5 + 3, barr.length };
+		hasher = BlockHasher.forThread(HrfsHashing.treeName(HrfsHashing.SHA1, CHUNK));
+		tree = new TreeHasher(Hashing.sha1(), CHUNK);
+		Assert.assertEquals(CHUNK, hasher.getTreeChunk());
+
+		for(int len : lengths) {
+			/* No longer than a chunk is a plain hash, as in the HashEngine */
+			if(len <= CHUNK)
+				expect = Hashing.sha1().hashBytes(barr, 0, len).asBytes();
+			else
+				expect = tree.hash(barr, 0, len);
+
+			Assert.assertArrayEquals(expect, hasher.hash(barr, 0, len));
+			Assert.assertArrayEquals(expect, hasher.hash(ByteBuffer.wrap(barr, 0, len)));
+
+			for(int off=0; off < len; off += piece) {
+				piece = Math.min(len - off, 1000 + off % 7919);
+				hasher.update(barr, off, piece);
+			}
+			Assert.assertArrayEquals(expect, hasher.digest());
+		}
+	}
+
+	@Test
+	public void testHashEngine()
+		throws Exception
+	{
+		HashEngine hengine;
+		byte[] barr;
+
+		barr = new byte[CHUNK * 4 + 1];
+		new Random(16).nextBytes(barr);
+
+		hengine = new HashEngine(HrfsHashing.treeName(HrfsHashing.SHA1, CHUNK));
+		Assert.assertEquals(CHUNK, hengine.getTreeHashChunk());
+		Assert.assertArrayEquals(new TreeHasher(Hashing.sha1(), CHUNK).hash(barr, 0, barr.length),
+					 hengine.putBlock(new DataBlock(barr, new byte[0], 0)).get().hash());
+		hengine.shutdown();
+	}
+}
+
@@ -0,0 +1,249 @@
+/**
+ * Copyright @ 2015
+ * Hrfs Block Cache Tests
+ *
+ * @file BlockCacheTest.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs.disk;
+
+import edu.rit.cs.BlockKey;
+import edu.rit.cs.DataBlock;
+import edu.rit.cs.HrfsConfiguration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.Assert;
+
+public class BlockCacheTest
+{
+	private static final int BLKSZ = 1024*4;
+
+	/** Store kept in a map, counting how often it is read */
+	private static class MapStore
+		implements BlockStore
+	{
+		final HashMap<BlockKey, DataBlock> blocks = new HashMap<BlockKey, DataBlock>();
+		int reads = 0;
+
+		public boolean create() { return true; }
+		public boolean open() { return true; }
+		public boolean isOpen() { return true; }
+		public void close() { }
+
+		public boolean insert(DataBlock blk)
+		{
+			blocks.put(blk.key(), blk);
+			return true;
+		}
+
+		public boolean insert(DataBlock blk, long refs)
+		{ return insert(blk); }
+
+		public DataBlock get(BlockKey key)
+		{
+			++reads;
+			return blocks.get(key);
+		}
+
+		public InputStream stream(BlockKey key)
+		{ return BlockStores.stream(blocks.get(key)); }
+
+		public boolean contains(BlockKey key)
+		{ return blocks.containsKey(key); }
+
+		public long references(BlockKey key)
+		{ return blocks.containsKey(key) ? 1 : 0; }
+
+		public long length(BlockKey key)
+		{ return blocks.containsKey(key) ? blocks.get(key).length() : -1; }
+
+		public boolean delete(BlockKey key)
+		{ return blocks.remove(key) != null; }
+
+		public boolean remove(BlockKey key)
+		{ return delete(key); }
+
+		public Iterator<BlockKey> keys()
+		{ return new ArrayList<BlockKey>(blocks.keySet()).iterator(); }
+	}
+
+	/** Store that only has a block once the test says it is written */
+	private static class SlowStore
+		extends MapStore
+		implements AsyncBlockStore
+	{
+		final CompletableFuture<DataBlock> written = new CompletableFuture<DataBlock>();
+
+		public CompletableFuture<DataBlock> insertAsync(DataBlock blk)
+		{
+			insert(blk);
+			return written;
+		}
+	}
+
+	@Before
+	public void initTest()
+	{
+		HrfsConfiguration.init();
+	}
+
+	/** Block number n, keyed by the hash of its contents */
+	private static DataBlock block(int n)
+	{
+		return block(n, BLKSZ);
+	}
+
+	/** Block number n of a length */
+	private static DataBlock block(int n, int length)
+	{
+		byte[] data;
+
+		data = ByteBuffer.allocate(length).putInt(n).array();
+		return new DataBlock(data, Hashing.sha1().hashBytes(data).asBytes(), 0);
+	}
+
+	/** Read through the cache, filling it on a miss */
+	private static boolean read(BlockCache cache, DataBlock blk)
+	{
+		if(cache.get(blk.key()) != null)
+			return true;
+
+		cache.put(blk);
+		return false;
+	}
+
+	@Test
+	public void testBudget()
+	{
+		BlockCache cache;
+		long capacity;
+
+		capacity = 100L * (BLKSZ + BlockCache.ENTRY_OVERHEAD);
+		cache = new BlockCache(capacity);
+
+		for(int bidx=0; bidx < 1000; ++bidx) {
+			read(cache, block(bidx));
+			Assert.assertTrue(cache.size() <= capacity);
+		}
+
+		Assert.assertTrue(cache.count() <= 100);
+		Assert.assertTrue(cache.count() > 50);
+		Assert.assertNotNull(cache.get(block(999).key()));
+
+		cache.invalidate(block(999).key());
+		Assert.assertNull(cache.get(block(999).key()));
+	}
+
+	/** A one pass scan must not push out blocks that are read often */
+	@Test
+	public void testScanResistance()
+	{
+		BlockCache cache;
+		DataBlock[] hot;
+		int cached;
+
+		cache = new BlockCache(100L * (BLKSZ + BlockCache.ENTRY_OVERHEAD));
+		hot = new DataBlock[50];
+		for(int bidx=0; bidx < hot.length; ++bidx)
+			hot[bidx] = block(bidx);
+
+		for(int round=0; round < 5; ++round)
+			for(DataBlock blk : hot)
+				read(cache, blk);
+
+		for(int bidx=1000; bidx < 6000; ++bidx)
+			read(cache, block(bidx));
+
+		cached = 0;
+		for(DataBlock blk : hot)
+			if(cache.get(blk.key()) != null)
+				++cached;
+
+		Assert.assertTrue("Only " + cached + " hot blocks survived the scan",
+				  cached >= 45);
+	}
+
+	/** A candidate losing to any of its victims pushes none of them out */
+	@Test
+	public void testAdmission()
+	{
+		BlockCache cache;
+		DataBlock cold;
+		DataBlock hot;
+		DataBlock big;
+
+		/* Room in the main cache for two blocks */
+		cache = new BlockCache(2L * (BLKSZ + BlockCache.ENTRY_OVERHEAD) + 100);
+		cold = block(1);
+		hot = block(2);
+		cache.put(cold);
+		cache.put(hot);
+		for(int read=0; read < 10; ++read)
+			Assert.assertNotNull(cache.get(hot.key()));
+
+		/* Read more than the cold block, less than the hot one */
+		big = block(3, BLKSZ * 2);
+		for(int offer=0; offer < 4; ++offer)
+			cache.put(big);
+
+		Assert.assertNull(cache.get(big.key()));
+		Assert.assertNotNull(cache.get(cold.key()));
+		Assert.assertNotNull(cache.get(hot.key()));
+	}
+
+	@Test
+	public void testCachedStore()
+		throws IOException
+	{
+		CachedBlockStore cstore;
+		MapStore store;
+		DataBlock blk;
+
+		store = new MapStore();
+		cstore = new CachedBlockStore(store, new BlockCache(1024*1024));
+		blk = block(7);
+
+		Assert.assertTrue(cstore.insert(blk));
+		for(int ridx=0; ridx < 10; ++ridx)
+			Assert.assertEquals(blk.key(), cstore.get(blk.key()).key());
+
+		Assert.assertEquals(1, store.reads);
+		Assert.assertTrue(cstore.contains(blk.key()));
+
+		Assert.assertTrue(cstore.delete(blk.key()));
+		Assert.assertFalse(cstore.contains(blk.key()));
+		Assert.assertNull(cstore.get(blk.key()));
+		Assert.assertFalse(cstore.delete(blk.key()));
+	}
+
+	/** A put through the cache is only done once the store behind it is */
+	@Test
+	public void testInsertAsync()
+		throws IOException
+	{
+		CompletableFuture<DataBlock> future;
+		CachedBlockStore cstore;
+		SlowStore store;
+		DataBlock blk;
+
+		store = new SlowStore();
+		cstore = new CachedBlockStore(store, new BlockCache(1024*1024));
+		blk = block(3);
+
+		future = BlockStores.insertAsync(cstore, blk);
+		Assert.assertFalse(future.isDone());
+
+		store.written.complete(blk);
+		Assert.assertTrue(future.isDone());
+		Assert.assertEquals(blk.key(), cstore.get(blk.key()).key());
+	}
+}
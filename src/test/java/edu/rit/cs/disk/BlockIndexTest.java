@@ -0,0 +1,202 @@
+/**
+ * Copyright @ 2015
+ * Hrfs Block Index Tests
+ *
+ * @file BlockIndexTest.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs.disk;
+
+import edu.rit.cs.BlockKey;
+import edu.rit.cs.Environment;
+import edu.rit.cs.HrfsConfiguration;
+import edu.rit.cs.TestUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.Assert;
+
+public class BlockIndexTest
+{
+	private static final long NEVER = 3600;
+	private Environment tenv;
+
+	@Before
+	public void initTest()
+		throws IOException
+	{
+		HrfsConfiguration.init();
+		tenv = new Environment(TestUtil.TEST_BASE + "blockindex/");
+	}
+
+	private static List<BlockKey> keys(int count, long seed)
+	{
+		List<BlockKey> keys;
+		Random rand;
+		byte[] kbytes;
+
+		keys = new ArrayList<BlockKey>();
+		rand = new Random(seed);
+		for(int kidx=0; kidx < count; ++kidx) {
+			kbytes = new byte[20];
+			rand.nextBytes(kbytes);
+			keys.add(new BlockKey(kbytes));
+		}
+
+		return keys;
+	}
+
+	/** Journals left in an index directory */
+	private static int journalCount(File dir)
+	{
+		int count;
+
+		count = 0;
+		for(String name : dir.list())
+			if(name.startsWith("journal-"))
+				++count;
+
+		return count;
+	}
+
+	@Test
+	public void testJournal()
+		throws IOException
+	{
+		List<BlockKey> keys;
+		BlockIndex index;
+		String path;
+
+		path = tenv.createFile().getAbsolutePath();
+		index = new BlockIndex(path, NEVER, false);
+		Assert.assertFalse(index.open());
+
+		keys = keys(100, 1);
+		for(BlockKey key : keys)
+			Assert.assertEquals(1, index.add(key));
+		Assert.assertEquals(2, index.add(keys.get(0)));
+		Assert.assertEquals(0, index.release(keys.get(1)));
+		Assert.assertEquals(-1, index.release(keys.get(1)));
+		Assert.assertEquals(99, index.size());
+
+		/* Left without a checkpoint, as if the node died */
+		index = new BlockIndex(path, NEVER, false);
+		Assert.assertTrue(index.open());
+		Assert.assertEquals(99, index.size());
+		Assert.assertEquals(2, index.references(keys.get(0)));
+		Assert.assertFalse(index.contains(keys.get(1)));
+		for(int kidx=2; kidx < keys.size(); ++kidx)
+			Assert.assertEquals(1, index.references(keys.get(kidx)));
+
+		index.close();
+	}
+
+	@Test
+	public void testCheckpoint()
+		throws IOException
+	{
+		List<BlockKey> keys;
+		BlockIndex index;
+		File dir;
+
+		dir = tenv.createFile();
+		index = new BlockIndex(dir.getAbsolutePath(), NEVER, false);
+		index.open();
+
+		/* Enough to grow the table a few times */
+		keys = keys(10000, 2);
+		for(BlockKey key : keys)
+			index.add(key);
+
+		index.checkpoint();
+		Assert.assertEquals(1, index.getCheckpointCount());
+		Assert.assertEquals(1, journalCount(dir));
+
+		/* Changes after the checkpoint are only in the new journal */
+		for(int kidx=0; kidx < 100; ++kidx)
+			index.release(keys.get(kidx));
+		index.add(keys.get(100));
+
+		index = new BlockIndex(dir.getAbsolutePath(), NEVER, false);
+		Assert.assertTrue(index.open());
+		Assert.assertEquals(9900, index.size());
+		Assert.assertFalse(index.contains(keys.get(0)));
+		Assert.assertEquals(2, index.references(keys.get(100)));
+		Assert.assertEquals(new HashSet<BlockKey>(keys.subList(100, keys.size())),
+				    new HashSet<BlockKey>(index.keys()));
+
+		/* Closing checkpoints, leaving just the fresh journal */
+		index.close();
+		Assert.assertEquals(1, journalCount(dir));
+
+		index = new BlockIndex(dir.getAbsolutePath(), NEVER, false);
+		Assert.assertTrue(index.open());
+		Assert.assertEquals(9900, index.size());
+		index.close();
+	}
+
+	@Test
+	public void testTornJournal()
+		throws IOException
+	{
+		RandomAccessFile raf;
+		List<BlockKey> keys;
+		BlockIndex index;
+		File journal;
+		File dir;
+
+		dir = tenv.createFile();
+		index = new BlockIndex(dir.getAbsolutePath(), NEVER, false);
+		index.open();
+
+		keys = keys(10, 3);
+		for(BlockKey key : keys)
+			index.add(key);
+
+		/* Tear the last record part way through */
+		journal = new File(dir, "journal-00000001.log");
+		raf = new RandomAccessFile(journal, "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+
+		index = new BlockIndex(dir.getAbsolutePath(), NEVER, false);
+		Assert.assertTrue(index.open());
+		Assert.assertEquals(9, index.size());
+		Assert.assertFalse(index.contains(keys.get(9)));
+		index.close();
+	}
+
+	@Test
+	public void testCorruptCheckpoint()
+		throws IOException
+	{
+		RandomAccessFile raf;
+		BlockIndex index;
+		File dir;
+
+		dir = tenv.createFile();
+		index = new BlockIndex(dir.getAbsolutePath(), NEVER, false);
+		index.open();
+		for(BlockKey key : keys(50, 4))
+			index.add(key);
+		index.close();
+
+		raf = new RandomAccessFile(new File(dir, BlockIndex.CHECKPOINT_NAME), "rw");
+		raf.seek(40);
+		raf.write(raf.read() ^ 0x01);
+		raf.close();
+
+		/* Nothing trustworthy to load, the index must be filled in again */
+		index = new BlockIndex(dir.getAbsolutePath(), NEVER, false);
+		Assert.assertFalse(index.open());
+		Assert.assertEquals(0, index.size());
+		index.close();
+	}
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright @ 2015
+ * Hrfs Indexed Block Store Tests
+ *
+ * @file IndexedBlockStoreTest.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs.disk;
+
+import edu.rit.cs.BlockKey;
+import edu.rit.cs.DataBlock;
+import edu.rit.cs.Environment;
+import edu.rit.cs.HrfsConfiguration;
+import edu.rit.cs.TestUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.Assert;
+
+public class IndexedBlockStoreTest
+{
+	private static final int BLKSZ = 1024*4;
+	private static final long NEVER = 3600;
+	private Environment tenv;
+	private String storePath;
+	private String indexPath;
+
+	@Before
+	public void initTest()
+		throws IOException
+	{
+		HrfsConfiguration.init();
+		tenv = new Environment(TestUtil.TEST_BASE + "indexed/");
+		storePath = tenv.createFile().getAbsolutePath();
+		indexPath = tenv.createFile().getAbsolutePath();
+	}
+
+	private static DataBlock block(Random rand)
+	{
+		byte[] data;
+
+		data = new byte[BLKSZ];
+		rand.nextBytes(data);
+		return new DataBlock(data, Hashing.sha1().hashBytes(data).asBytes(), 0);
+	}
+
+	private IndexedBlockStore build()
+		throws IOException
+	{
+		return new IndexedBlockStore(new SegmentStore(storePath),
+					     new BlockIndex(indexPath, NEVER, false));
+	}
+
+	private static Set<BlockKey> listed(BlockStore store)
+		throws IOException
+	{
+		Set<BlockKey> keys;
+		Iterator<BlockKey> iter;
+
+		keys = new HashSet<BlockKey>();
+		iter = store.keys();
+		while(iter.hasNext())
+			keys.add(iter.next());
+
+		return keys;
+	}
+
+	@Test
+	public void testRestart()
+		throws IOException
+	{
+		IndexedBlockStore store;
+		List<DataBlock> blocks;
+		Set<BlockKey> expect;
+		Random rand;
+
+		store = build();
+		Assert.assertTrue(store.create());
+
+		rand = new Random(1);
+		blocks = new ArrayList<DataBlock>();
+		expect = new HashSet<BlockKey>();
+		for(int blk=0; blk < 50; ++blk) {
+			blocks.add(block(rand));
+			store.insert(blocks.get(blk));
+			expect.add(blocks.get(blk).key());
+		}
+		store.insert(blocks.get(0));
+		Assert.assertTrue(store.delete(blocks.get(1).key()));
+		expect.remove(blocks.get(1).key());
+		store.close();
+
+		/* Reopened, the blocks come from the checkpoint */
+		store = build();
+		Assert.assertTrue(store.open());
+		Assert.assertEquals(49, store.getIndex().size());
+		Assert.assertEquals(expect, listed(store));
+		Assert.assertEquals(2, store.references(blocks.get(0).key()));
+		Assert.assertFalse(store.contains(blocks.get(1).key()));
+		Assert.assertArrayEquals(blocks.get(2).data(), store.get(blocks.get(2).key()).data());
+		store.close();
+	}
+
+	@Test
+	public void testRebuild()
+		throws IOException
+	{
+		IndexedBlockStore store;
+		SegmentStore plain;
+		Set<BlockKey> expect;
+		DataBlock dblock;
+		Random rand;
+
+		/* Blocks written before the store was indexed */
+		plain = new SegmentStore(storePath);
+		Assert.assertTrue(plain.create());
+		rand = new Random(2);
+		expect = new HashSet<BlockKey>();
+		for(int blk=0; blk < 20; ++blk) {
+			dblock = block(rand);
+			plain.insert(dblock);
+			if(blk == 0)
+				plain.insert(dblock);
+			expect.add(dblock.key());
+		}
+		plain.close();
+
+		store = build();
+		Assert.assertTrue(store.open());
+		Assert.assertEquals(1, store.getIndex().getCheckpointCount());
+		Assert.assertEquals(expect, listed(store));
+		store.close();
+
+		/* The second time round there is a checkpoint to load */
+		store = build();
+		Assert.assertTrue(store.open());
+		Assert.assertEquals(0, store.getIndex().getCheckpointCount());
+		Assert.assertEquals(expect, listed(store));
+		store.close();
+	}
+
+	/**
+	 * An index lost to a crash is behind its store, it is reconciled rather
+	 * than trusted.
+	 */
+	@Test
+	public void testCrash()
+		throws IOException
+	{
+		IndexedBlockStore store;
+		SegmentStore plain;
+		List<DataBlock> blocks;
+		Set<BlockKey> expect;
+		Random rand;
+
+		store = build();
+		Assert.assertTrue(store.create());
+		rand = new Random(3);
+		blocks = new ArrayList<DataBlock>();
+		expect = new HashSet<BlockKey>();
+		for(int blk=0; blk < 20; ++blk) {
+			blocks.add(block(rand));
+			store.insert(blocks.get(blk));
+			expect.add(blocks.get(blk).key());
+		}
+		store.close();
+		Assert.assertTrue(new File(indexPath, BlockIndex.CLEAN_NAME).exists());
+
+		/* The store takes changes the index never hears of, then crashes */
+		store = build();
+		Assert.assertTrue(store.open());
+		Assert.assertTrue(store.getIndex().isClean());
+		Assert.assertFalse(new File(indexPath, BlockIndex.CLEAN_NAME).exists());
+		plain = (SegmentStore)store.getStore();
+		Assert.assertTrue(plain.delete(blocks.get(0).key()));
+		expect.remove(blocks.get(0).key());
+		blocks.add(block(rand));
+		plain.insert(blocks.get(20));
+		expect.add(blocks.get(20).key());
+		plain.close();
+
+		store = build();
+		Assert.assertTrue(store.open());
+		Assert.assertFalse(store.getIndex().isClean());
+		Assert.assertEquals(expect, listed(store));
+		Assert.assertFalse(store.contains(blocks.get(0).key()));
+		Assert.assertEquals(1, store.references(blocks.get(20).key()));
+		store.close();
+	}
+}
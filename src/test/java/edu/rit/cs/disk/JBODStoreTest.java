@@ -0,0 +1,256 @@
+/**
+ * Copyright @ 2015
+ * Hrfs JBOD Store Tests
+ *
+ * @file JBODStoreTest.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs.disk;
+
+import edu.rit.cs.DataBlock;
+import edu.rit.cs.Environment;
+import edu.rit.cs.HrfsConfiguration;
+import edu.rit.cs.TestUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.Assert;
+
+public class JBODStoreTest
+{
+	private static final int BLKSZ = 1024*4;
+	private static final int NDISKS = 4;
+	private Environment tenv;
+
+	@Before
+	public void initTest()
+		throws IOException
+	{
+		HrfsConfiguration.init();
+		tenv = new Environment(TestUtil.TEST_BASE + "jbod/");
+	}
+
+	private static DataBlock block(Random rand)
+	{
+		byte[] data;
+
+		data = new byte[BLKSZ];
+		rand.nextBytes(data);
+		return new DataBlock(data, Hashing.sha1().hashBytes(data).asBytes(), 0);
+	}
+
+	/** Directories standing in for disks */
+	private List<File> disks()
+		throws IOException
+	{
+		List<File> dirs;
+
+		dirs = new ArrayList<File>();
+		for(int disk=0; disk < NDISKS; ++disk)
+			dirs.add(tenv.createFile());
+
+		return dirs;
+	}
+
+	/** Build a store over a segment store in each directory */
+	private static JBODStore build(List<File> dirs)
+		throws IOException
+	{
+		List<SegmentStore> stores;
+
+		stores = new ArrayList<SegmentStore>();
+		for(File dir : dirs)
+			stores.add(new SegmentStore(dir.getAbsolutePath()));
+
+		return new JBODStore(stores, dirs, 2);
+	}
+
+	@Test
+	public void testSpread()
+		throws Exception
+	{
+		List<CompletableFuture<DataBlock>> futures;
+		List<DataBlock> blocks;
+		JBODStore store;
+		Random rand;
+		long count;
+
+		store = build(disks());
+		Assert.assertTrue(store.create());
+
+		rand = new Random(3);
+		blocks = new ArrayList<DataBlock>();
+		futures = new ArrayList<CompletableFuture<DataBlock>>();
+		for(int blk=0; blk < 400; ++blk) {
+			blocks.add(block(rand));
+			futures.add(store.insertAsync(blocks.get(blk)));
+		}
+
+		for(CompletableFuture<DataBlock> future : futures)
+			future.get();
+
+		/* Every disk takes a share */
+		for(int disk=0; disk < NDISKS; ++disk) {
+			count = ((SegmentStore)store.getStore(disk)).getBlockCount();
+			Assert.assertTrue("Disk " + disk + " holds " + count, count > 40);
+		}
+
+		for(DataBlock dblock : blocks)
+			Assert.assertArrayEquals(dblock.data(), store.get(dblock.key()).data());
+
+		store.close();
+		Assert.assertEquals(0, store.getQueueDepth());
+	}
+
+	@Test
+	public void testDuplicates()
+		throws Exception
+	{
+		List<CompletableFuture<DataBlock>> futures;
+		JBODStore store;
+		DataBlock dblock;
+		long total;
+
+		store = build(disks());
+		Assert.assertTrue(store.create());
+
+		/* Copies of a block, even racing ones, land on one disk */
+		dblock = block(new Random(5));
+		futures = new ArrayList<CompletableFuture<DataBlock>>();
+		for(int dup=0; dup < 9; ++dup)
+			futures.add(store.insertAsync(dblock));
+
+		for(CompletableFuture<DataBlock> future : futures)
+			future.get();
+
+		total = 0;
+		for(int disk=0; disk < NDISKS; ++disk)
+			total += ((SegmentStore)store.getStore(disk)).getBlockCount();
+
+		Assert.assertEquals(1, total);
+		Assert.assertEquals(9, store.references(dblock.key()));
+
+		for(int dup=0; dup < 9; ++dup)
+			Assert.assertTrue(store.delete(dblock.key()));
+
+		Assert.assertFalse(store.contains(dblock.key()));
+		Assert.assertFalse(store.delete(dblock.key()));
+		store.close();
+	}
+
+	@Test
+	public void testClose()
+		throws Exception
+	{
+		List<DataBlock> blocks;
+		List<File> dirs;
+		JBODStore store;
+		Random rand;
+
+		dirs = disks();
+		store = build(dirs);
+		Assert.assertTrue(store.create());
+
+		/* Closing waits for queued writes */
+		rand = new Random(7);
+		blocks = new ArrayList<DataBlock>();
+		for(int blk=0; blk < 100; ++blk) {
+			blocks.add(block(rand));
+			store.insert(blocks.get(blk));
+		}
+		store.close();
+
+		try {
+			store.insert(blocks.get(0));
+			Assert.fail("Insert into a closed store");
+		}
+		catch(IOException e) {
+			/* Expected */
+		}
+
+		/* The same store takes writes again once reopened */
+		Assert.assertTrue(store.open());
+		blocks.add(block(rand));
+		store.insertAsync(blocks.get(100)).get();
+		store.close();
+
+		store = build(dirs);
+		Assert.assertTrue(store.open());
+		for(DataBlock dblock : blocks)
+			Assert.assertTrue(store.contains(dblock.key()));
+		store.close();
+	}
+
+	/** Inserts wait for room once a slow disk's queue is full */
+	@Test
+	public void testBackpressure()
+		throws Exception
+	{
+		final CountDownLatch stalled;
+		final JBODStore store;
+		final List<DataBlock> blocks;
+		List<SegmentStore> stores;
+		List<File> dirs;
+		Thread producer;
+		Random rand;
+
+		stalled = new CountDownLatch(1);
+		dirs = new ArrayList<File>();
+		dirs.add(tenv.createFile());
+		stores = new ArrayList<SegmentStore>();
+		stores.add(new SegmentStore(dirs.get(0).getAbsolutePath()) {
+			@Override
+			public boolean insert(DataBlock blk)
+				throws IOException
+			{
+				try {
+					stalled.await();
+				}
+				catch(InterruptedException e) {
+					throw new IOException("Interrupted");
+				}
+				return super.insert(blk);
+			}
+		});
+		store = new JBODStore(stores, dirs, 1, 2);
+		Assert.assertTrue(store.create());
+
+		rand = new Random(9);
+		blocks = new ArrayList<DataBlock>();
+		for(int blk=0; blk < 10; ++blk)
+			blocks.add(block(rand));
+
+		producer = new Thread(() -> {
+			try {
+				for(DataBlock dblock : blocks)
+					store.insert(dblock);
+			}
+			catch(IOException e) {
+				Assert.fail(e.toString());
+			}
+		});
+		producer.start();
+
+		/* One write under way and two queued, the rest wait */
+		producer.join(500);
+		Assert.assertTrue(producer.isAlive());
+		Assert.assertEquals(3, store.getQueueDepth());
+
+		stalled.countDown();
+		producer.join();
+		store.close();
+
+		Assert.assertTrue(stores.get(0).open());
+		for(DataBlock dblock : blocks)
+			Assert.assertTrue(stores.get(0).contains(dblock.key()));
+		stores.get(0).close();
+	}
+}
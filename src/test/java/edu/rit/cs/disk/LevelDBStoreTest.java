@@ -16,6 +16,10 @@ import edu.rit.cs.Block;
 
 import java.io.IOException;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import com.google.common.hash.Hashing;
 import com.google.common.hash.HashFunction;
 import org.junit.Test;
@@ -64,11 +68,13 @@ public class LevelDBStoreTest
 
 	@Test
 	public void insertTest()
-		throws IOException
+		throws Exception
 	{
+		List<CompletableFuture<DataBlock>> futures;
 		HashFunction hfn;
 		HashEngine hengine;
 		BlockFactory factory;
+		Block pblock;
 		File datafd;
 		String path;
 		int blksz;
@@ -80,31 +86,149 @@ public class LevelDBStoreTest
 
 		factory = new BlockFactory(datafd, blksz);
 		hengine = new HashEngine(hfn);
+		futures = new ArrayList<CompletableFuture<DataBlock>>();
 
-		int blks = 0;
-		while(!factory.isDone())
-		{
-			Block pblock;
-
-			pblock = factory.getBlock();
-			if(pblock != null) {
-				hengine.putBlock(pblock);
-				++blks;
-			}
-			else {
-				continue;
-			}
-		}
+		while((pblock = factory.getBlock()) != null)
+			futures.add(hengine.putBlock(pblock));
 
-		for(int blk=0; blk<blks; ++blk) {
+		for(int blk=0; blk < futures.size(); ++blk) {
 			DataBlock dblock;
 
 			System.out.println("Storing block: " + blk);
-			dblock = hengine.getDataBlock();
-			if(dblock == null) {
-				blk--;
-				continue;
-			}
+			dblock = futures.get(blk).get();
+			Assert.assertNotNull(dblock);
+		}
+	}
+
+	@Test
+	public void readTest()
+		throws Exception
+	{
+		LevelDBStore store;
+		DataBlock dblock;
+		DataBlock read;
+		byte[] data;
+
+		store = new LevelDBStore(tenv.createFile().getAbsolutePath(), 2);
+		Assert.assertTrue(store.create());
+
+		data = new byte[1024*64];
+		new Random(9).nextBytes(data);
+		dblock = new DataBlock(data, Hashing.sha1().hashBytes(data).asBytes(), 0);
+		Assert.assertFalse(store.contains(dblock.key()));
+		Assert.assertNull(store.get(dblock.key()));
+
+		/* Inserts land in the background */
+		Assert.assertSame(dblock, store.insertAsync(dblock).get());
+		Assert.assertTrue(store.contains(dblock.key()));
+
+		read = store.get(dblock.key());
+		Assert.assertNotNull(read);
+		Assert.assertEquals(dblock.key(), read.key());
+		Assert.assertArrayEquals(data, read.data());
+
+		Assert.assertTrue(store.delete(dblock.key()));
+		Assert.assertFalse(store.contains(dblock.key()));
+		Assert.assertFalse(store.delete(dblock.key()));
+	}
+
+	@Test
+	public void groupCommitTest()
+		throws Exception
+	{
+		List<CompletableFuture<DataBlock>> futures;
+		LevelDBStore store;
+		DataBlock dblock;
+		Random rand;
+		byte[] data;
+		int nblocks;
+
+		store = new LevelDBStore(tenv.createFile().getAbsolutePath(), 4);
+		Assert.assertTrue(store.create());
+
+		nblocks = 200;
+		rand = new Random(19);
+		futures = new ArrayList<CompletableFuture<DataBlock>>();
+		for(int blk=0; blk < nblocks; ++blk) {
+			data = new byte[1024*4];
+			rand.nextBytes(data);
+			dblock = new DataBlock(data, Hashing.sha1().hashBytes(data).asBytes(), blk);
+			futures.add(store.insertAsync(dblock));
+		}
+
+		/* Every block is readable once its future completes */
+		for(CompletableFuture<DataBlock> future : futures)
+			Assert.assertTrue(store.contains(future.get().key()));
+
+		Assert.assertEquals(nblocks, store.getCommittedCount());
+		Assert.assertTrue(store.getBatchCount() < nblocks);
+
+		/* Closing waits out inserts, and turns new ones away */
+		store.close();
+		Assert.assertFalse(store.isOpen());
+		try {
+			store.insertAsync(futures.get(0).get());
+			Assert.fail("Insert into a closed store");
+		}
+		catch(IOException e) {
+			/* Expected */
 		}
 	}
+
+	@Test
+	public void referenceTest()
+		throws Exception
+	{
+		LevelDBStore store;
+		DataBlock dblock;
+		byte[] data;
+
+		store = new LevelDBStore(tenv.createFile().getAbsolutePath(), 2);
+		Assert.assertTrue(store.create());
+
+		data = new byte[1024*64];
+		new Random(13).nextBytes(data);
+		dblock = new DataBlock(data, Hashing.sha1().hashBytes(data).asBytes(), 0);
+
+		/* Every insert of the same block counts, but only one writes it */
+		for(int dup=0; dup < 3; ++dup)
+			store.insertAsync(dblock).get();
+
+		Assert.assertEquals(3, store.references(dblock.key()));
+		Assert.assertEquals(2, store.getDedupCount());
+
+		Assert.assertTrue(store.delete(dblock.key()));
+		Assert.assertTrue(store.delete(dblock.key()));
+		Assert.assertArrayEquals(data, store.get(dblock.key()).data());
+
+		Assert.assertTrue(store.delete(dblock.key()));
+		Assert.assertFalse(store.contains(dblock.key()));
+		Assert.assertNull(store.get(dblock.key()));
+		Assert.assertFalse(store.delete(dblock.key()));
+		store.close();
+	}
+
+	@Test
+	public void reopenTest()
+		throws Exception
+	{
+		LevelDBStore store;
+		DataBlock dblock;
+		byte[] data;
+
+		store = new LevelDBStore(tenv.createFile().getAbsolutePath(), 2);
+		Assert.assertTrue(store.create());
+		store.close();
+		Assert.assertFalse(store.isOpen());
+
+		/* A reopened store takes async inserts again */
+		Assert.assertTrue(store.open());
+		data = new byte[1024*64];
+		new Random(17).nextBytes(data);
+		dblock = new DataBlock(data, Hashing.sha1().hashBytes(data).asBytes(), 0);
+		store.insertAsync(dblock).get();
+
+		Assert.assertArrayEquals(data, store.get(dblock.key()).data());
+		store.close();
+	}
 }
@@ -0,0 +1,149 @@
+/**
+ * Copyright @ 2015
+ * Hrfs Segment Index Tests
+ *
+ * @file SegmentIndexTest.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs.disk;
+
+import edu.rit.cs.BlockKey;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+import org.junit.Assert;
+
+public class SegmentIndexTest
+{
+	private static BlockKey key(int num)
+	{
+		return new BlockKey(Hashing.sha1().hashInt(num).asBytes());
+	}
+
+	@Test
+	public void testPutGet()
+	{
+		SegmentIndex index;
+		SegmentIndex.Location loc;
+
+		index = new SegmentIndex(0);
+		Assert.assertNull(index.get(key(1)));
+		Assert.assertNull(index.put(key(1), 3, 4096L, 100));
+
+		loc = index.get(key(1));
+		Assert.assertEquals(3, loc.segment);
+		Assert.assertEquals(4096L, loc.offset);
+		Assert.assertEquals(100, loc.length);
+
+		/* Putting a key again moves it */
+		loc = index.put(key(1), 5, 0L, 100);
+		Assert.assertEquals(3, loc.segment);
+		Assert.assertEquals(5, index.get(key(1)).segment);
+		Assert.assertEquals(1, index.size());
+
+		Assert.assertNotNull(index.remove(key(1)));
+		Assert.assertNull(index.remove(key(1)));
+		Assert.assertFalse(index.contains(key(1)));
+		Assert.assertEquals(0, index.size());
+	}
+
+	@Test
+	public void testReplace()
+	{
+		SegmentIndex index;
+		SegmentIndex.Location loc;
+
+		index = new SegmentIndex(0);
+		index.put(key(1), 1, 10L, 50);
+		loc = index.get(key(1));
+
+		Assert.assertTrue(index.replace(key(1), loc, 2, 20L, 50));
+		Assert.assertEquals(2, index.get(key(1)).segment);
+
+		/* Moved since, so the stale location doesn't match */
+		Assert.assertFalse(index.replace(key(1), loc, 3, 30L, 50));
+		Assert.assertEquals(2, index.get(key(1)).segment);
+		Assert.assertFalse(index.replace(key(2), loc, 3, 30L, 50));
+	}
+
+	@Test
+	public void testGrowth()
+	{
+		Map<Integer, Long> expect;
+		SegmentIndex index;
+		Random rand;
+		int nkeys;
+
+		index = new SegmentIndex(0);
+		expect = new HashMap<Integer, Long>();
+		rand = new Random(3);
+		nkeys = SegmentIndex.MIN_SLOTS * 8;
+
+		/* Churn through removes as well, leaving plenty of markers */
+		for(int num=0; num < nkeys; ++num) {
+			index.put(key(num), num, (long)num * 7, num);
+			expect.put(num, (long)num * 7);
+			if(rand.nextInt(3) == 0) {
+				index.remove(key(num / 2));
+				expect.remove(num / 2);
+			}
+		}
+
+		Assert.assertEquals(expect.size(), index.size());
+		Assert.assertTrue(index.capacity() > SegmentIndex.MIN_SLOTS);
+		for(int num=0; num < nkeys; ++num) {
+			if(expect.containsKey(num))
+				Assert.assertEquals((long)expect.get(num), index.get(key(num)).offset);
+			else
+				Assert.assertNull(index.get(key(num)));
+		}
+	}
+
+	@Test
+	public void testPages()
+	{
+		SegmentIndex index;
+		int nkeys;
+
+		/* Every page fits a buffer, however large the table grows */
+		Assert.assertTrue((long)SegmentIndex.PAGE_SLOTS * SegmentIndex.SLOT_SIZE
+				  <= Integer.MAX_VALUE);
+
+		/* Small pages, so the table spans many of them as it grows */
+		index = new SegmentIndex(0, 256, SegmentIndex.MIN_SLOTS * 8);
+		nkeys = SegmentIndex.MIN_SLOTS * 8 * 3 / 4;
+		for(int num=0; num < nkeys; ++num) {
+			Assert.assertFalse(index.isFull());
+			Assert.assertNull(index.put(key(num), num, (long)num << 33, num));
+		}
+
+		Assert.assertEquals(SegmentIndex.MIN_SLOTS * 8, index.capacity());
+		Assert.assertEquals(nkeys, index.size());
+		for(int num=0; num < nkeys; ++num)
+			Assert.assertEquals((long)num << 33, index.get(key(num)).offset);
+
+		/* At its largest, the table refuses more rather than growing */
+		Assert.assertTrue(index.isFull());
+		try {
+			index.put(key(nkeys), 0, 0L, 0);
+			Assert.fail("Put into a full index");
+		}
+		catch(IllegalStateException e) {
+			Assert.assertEquals(nkeys, index.size());
+		}
+
+		/* Churning at the limit clears out markers in place */
+		for(int num=0; num < nkeys; ++num) {
+			Assert.assertNotNull(index.remove(key(num)));
+			Assert.assertNull(index.put(key(nkeys + num), num, 0L, 0));
+		}
+
+		Assert.assertEquals(SegmentIndex.MIN_SLOTS * 8, index.capacity());
+		Assert.assertEquals(nkeys, index.size());
+		Assert.assertNull(index.get(key(0)));
+		Assert.assertEquals(nkeys - 1, index.get(key(nkeys * 2 - 1)).segment);
+	}
+}
@@ -0,0 +1,396 @@
+/**
+ * Copyright @ 2015
+ * Hrfs Segment Store Tests
+ *
+ * @file SegmentStoreTest.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs.disk;
+
+import edu.rit.cs.BlockKey;
+import edu.rit.cs.DataBlock;
+import edu.rit.cs.Environment;
+import edu.rit.cs.HrfsConfiguration;
+import edu.rit.cs.TestUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Consumer;
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.Assert;
+
+public class SegmentStoreTest
+{
+	private static final int BLKSZ = 1024*64;
+	private Environment tenv;
+
+	@Before
+	public void initTest()
+		throws IOException
+	{
+		HrfsConfiguration.init();
+		tenv = new Environment(TestUtil.TEST_BASE + "segment/");
+	}
+
+	private static DataBlock block(Random rand, int len)
+	{
+		byte[] data;
+
+		data = new byte[len];
+		rand.nextBytes(data);
+		return new DataBlock(data, Hashing.sha1().hashBytes(data).asBytes(), 0);
+	}
+
+	@Test
+	public void testReadWrite()
+		throws IOException
+	{
+		SegmentStore store;
+		DataBlock dblock;
+		DataBlock read;
+		ByteBuffer direct;
+		byte[] data;
+
+		store = new SegmentStore(tenv.createFile().getAbsolutePath());
+		Assert.assertFalse(store.open());
+		Assert.assertTrue(store.create());
+
+		dblock = block(new Random(1), BLKSZ);
+		Assert.assertFalse(store.contains(dblock.key()));
+		Assert.assertNull(store.get(dblock.key()));
+
+		Assert.assertTrue(store.insert(dblock));
+		Assert.assertTrue(store.contains(dblock.key()));
+		read = store.get(dblock.key());
+		Assert.assertEquals(dblock.key(), read.key());
+		Assert.assertArrayEquals(dblock.data(), read.data());
+
+		/* The same block isn't written twice */
+		Assert.assertTrue(store.insert(dblock));
+		Assert.assertEquals(1, store.getBlockCount());
+		Assert.assertTrue(store.getTotalBytes() - store.getLiveBytes() < BLKSZ / 16);
+
+		/* Direct buffers are written straight out */
+		data = block(new Random(2), BLKSZ).data();
+		direct = ByteBuffer.allocateDirect(BLKSZ);
+		direct.put(data).flip();
+		read = new DataBlock(direct, Hashing.sha1().hashBytes(data).asBytes(), 0);
+		Assert.assertTrue(store.insert(read));
+		Assert.assertArrayEquals(data, store.get(read.key()).data());
+
+		/* Both inserts hold a reference */
+		Assert.assertTrue(store.delete(dblock.key()));
+		Assert.assertNotNull(store.get(dblock.key()));
+		Assert.assertTrue(store.delete(dblock.key()));
+		Assert.assertFalse(store.delete(dblock.key()));
+		Assert.assertNull(store.get(dblock.key()));
+		store.close();
+	}
+
+	@Test
+	public void testReopen()
+		throws IOException
+	{
+		List<DataBlock> blocks;
+		SegmentStore store;
+		RandomAccessFile torn;
+		File[] segments;
+		String path;
+		Random rand;
+
+		path = tenv.createFile().getAbsolutePath();
+		store = new SegmentStore(path, BLKSZ * 4);
+		Assert.assertTrue(store.create());
+
+		rand = new Random(5);
+		blocks = new ArrayList<DataBlock>();
+		for(int blk=0; blk < 10; ++blk) {
+			blocks.add(block(rand, BLKSZ));
+			Assert.assertTrue(store.insert(blocks.get(blk)));
+		}
+
+		Assert.assertTrue(store.getSegmentCount() > 1);
+		Assert.assertTrue(store.delete(blocks.get(0).key()));
+		store.close();
+
+		/* Leave half a record at the end, as a crash might */
+		segments = new File(path).listFiles();
+		Arrays.sort(segments);
+		torn = new RandomAccessFile(segments[segments.length - 1], "rw");
+		torn.seek(torn.length());
+		torn.write(new byte[] { 0x48, 0x52, 0x53, 0x47, 1, 20, 0, 1 });
+		torn.close();
+
+		store = new SegmentStore(path, BLKSZ * 4);
+		Assert.assertTrue(store.open());
+		Assert.assertEquals(9, store.getBlockCount());
+		Assert.assertFalse(store.contains(blocks.get(0).key()));
+		for(int blk=1; blk < blocks.size(); ++blk)
+			Assert.assertArrayEquals(blocks.get(blk).data(),
+						 store.get(blocks.get(blk).key()).data());
+
+		/* Appends carry on past the cut */
+		Assert.assertTrue(store.insert(blocks.get(0)));
+		Assert.assertNotNull(store.get(blocks.get(0).key()));
+		store.close();
+	}
+
+	@Test
+	public void testCompaction()
+		throws IOException
+	{
+		List<DataBlock> blocks;
+		SegmentStore store;
+		String path;
+		Random rand;
+		long before;
+
+		path = tenv.createFile().getAbsolutePath();
+		store = new SegmentStore(path, BLKSZ * 4);
+		Assert.assertTrue(store.create());
+
+		rand = new Random(7);
+		blocks = new ArrayList<DataBlock>();
+		for(int blk=0; blk < 16; ++blk) {
+			blocks.add(block(rand, BLKSZ));
+			store.insert(blocks.get(blk));
+		}
+
+		/* Delete three in every four, leaving the segments sparse */
+		for(int blk=0; blk < blocks.size(); ++blk)
+			if(blk % 4 != 0)
+				store.delete(blocks.get(blk).key());
+
+		before = store.getTotalBytes();
+		Assert.assertTrue(store.compact() > 0);
+		Assert.assertTrue(store.getTotalBytes() < before);
+		Assert.assertTrue(store.getCompactedCount() > 0);
+
+		for(int blk=0; blk < blocks.size(); ++blk) {
+			if(blk % 4 == 0)
+				Assert.assertArrayEquals(blocks.get(blk).data(),
+							 store.get(blocks.get(blk).key()).data());
+			else
+				Assert.assertNull(store.get(blocks.get(blk).key()));
+		}
+
+		/* Deletions must survive the compaction of their segments */
+		store.close();
+		store = new SegmentStore(path, BLKSZ * 4);
+		Assert.assertTrue(store.open());
+		Assert.assertEquals(4, store.getBlockCount());
+		for(int blk=0; blk < blocks.size(); ++blk)
+			Assert.assertEquals(blk % 4 == 0, store.contains(blocks.get(blk).key()));
+		store.close();
+	}
+
+	@Test
+	public void testCompactDelete()
+		throws IOException
+	{
+		final Set<BlockKey> survivors;
+		final SegmentStore store;
+		SegmentStore reopened;
+		List<DataBlock> blocks;
+		String path;
+		Random rand;
+
+		path = tenv.createFile().getAbsolutePath();
+		store = new SegmentStore(path, BLKSZ * 4);
+		Assert.assertTrue(store.create());
+
+		/* Delete each survivor just as compaction is about to move it */
+		survivors = Collections.synchronizedSet(new HashSet<BlockKey>());
+		store.beforeMove = new Consumer<BlockKey>() {
+			@Override
+			public void accept(BlockKey key)
+			{
+				try {
+					if(survivors.remove(key))
+						store.delete(key);
+				}
+				catch(IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+
+		/* Leave one block in every three, the segments are all sparse */
+		rand = new Random(13);
+		blocks = new ArrayList<DataBlock>();
+		for(int blk=0; blk < 96; ++blk) {
+			blocks.add(block(rand, BLKSZ));
+			if(blk % 3 == 0)
+				survivors.add(blocks.get(blk).key());
+			store.insert(blocks.get(blk));
+		}
+		for(int blk=0; blk < blocks.size(); ++blk)
+			if(blk % 3 != 0)
+				store.delete(blocks.get(blk).key());
+
+		/* Seal the last of them behind a segment of its own */
+		store.insert(block(rand, BLKSZ * 4));
+		store.compact();
+		Assert.assertTrue(survivors.isEmpty());
+		Assert.assertEquals(1, store.getBlockCount());
+		store.close();
+
+		/* Nothing deleted may come back from a moved copy */
+		reopened = new SegmentStore(path, BLKSZ * 4);
+		Assert.assertTrue(reopened.open());
+		Assert.assertEquals(1, reopened.getBlockCount());
+		for(DataBlock dblock : blocks)
+			Assert.assertFalse(reopened.contains(dblock.key()));
+		reopened.close();
+	}
+
+	@Test
+	public void testReferences()
+		throws IOException
+	{
+		SegmentStore store;
+		DataBlock dblock;
+		String path;
+		long before;
+
+		path = tenv.createFile().getAbsolutePath();
+		store = new SegmentStore(path, BLKSZ * 4);
+		Assert.assertTrue(store.create());
+
+		dblock = block(new Random(11), BLKSZ);
+		Assert.assertEquals(0, store.references(dblock.key()));
+		Assert.assertTrue(store.insert(dblock));
+		before = store.getTotalBytes();
+
+		/* Duplicates cost a count, not the data */
+		for(int dup=0; dup < 4; ++dup)
+			Assert.assertTrue(store.insert(dblock));
+
+		Assert.assertEquals(5, store.references(dblock.key()));
+		Assert.assertEquals(4, store.getDedupCount());
+		Assert.assertTrue(store.getTotalBytes() - before < BLKSZ / 16);
+
+		Assert.assertTrue(store.delete(dblock.key()));
+		Assert.assertTrue(store.delete(dblock.key()));
+		Assert.assertEquals(3, store.references(dblock.key()));
+
+		/* Counts survive reopening, and compaction of their segments */
+		for(int blk=0; blk < 8; ++blk) {
+			store.insert(block(new Random(100 + blk), BLKSZ));
+			store.delete(block(new Random(100 + blk), BLKSZ).key());
+		}
+		store.compact();
+		store.close();
+
+		store = new SegmentStore(path, BLKSZ * 4);
+		Assert.assertTrue(store.open());
+		Assert.assertEquals(3, store.references(dblock.key()));
+		Assert.assertEquals(1, store.getBlockCount());
+
+		for(int ref=0; ref < 3; ++ref) {
+			Assert.assertTrue(store.contains(dblock.key()));
+			Assert.assertTrue(store.delete(dblock.key()));
+		}
+
+		Assert.assertFalse(store.contains(dblock.key()));
+		Assert.assertFalse(store.delete(dblock.key()));
+		store.close();
+	}
+
+	@Test
+	public void testBulkReferences()
+		throws IOException
+	{
+		SegmentStore store;
+		DataBlock dblock;
+		String path;
+		long before;
+
+		path = tenv.createFile().getAbsolutePath();
+		store = new SegmentStore(path, BLKSZ * 4);
+		Assert.assertTrue(store.create());
+
+		/* Many references cost one count record */
+		dblock = block(new Random(12), BLKSZ);
+		Assert.assertEquals(-1, store.length(dblock.key()));
+		Assert.assertTrue(store.insert(dblock, 5));
+		before = store.getTotalBytes();
+		Assert.assertTrue(store.insert(dblock, 3));
+		Assert.assertEquals(8, store.references(dblock.key()));
+		Assert.assertEquals(BLKSZ, store.length(dblock.key()));
+		Assert.assertTrue(store.getTotalBytes() - before < BLKSZ / 16);
+		store.close();
+
+		store = new SegmentStore(path, BLKSZ * 4);
+		Assert.assertTrue(store.open());
+		Assert.assertEquals(8, store.references(dblock.key()));
+
+		/* And go all at once */
+		Assert.assertTrue(store.remove(dblock.key()));
+		Assert.assertFalse(store.contains(dblock.key()));
+		Assert.assertFalse(store.remove(dblock.key()));
+		store.close();
+
+		store = new SegmentStore(path, BLKSZ * 4);
+		Assert.assertTrue(store.open());
+		Assert.assertFalse(store.contains(dblock.key()));
+		store.close();
+	}
+
+	/**
+	 * A block deleted and written again starts over with one reference,
+	 * even once compaction has dropped its deletion and a count from
+	 * before the deletion is still in the log.
+	 */
+	@Test
+	public void testReinsert()
+		throws IOException
+	{
+		SegmentStore store;
+		DataBlock dblock;
+		DataBlock dead;
+		String path;
+
+		path = tenv.createFile().getAbsolutePath();
+		store = new SegmentStore(path, BLKSZ * 4);
+		Assert.assertTrue(store.create());
+
+		/* Counted, in a segment that stays mostly live */
+		dblock = block(new Random(13), BLKSZ);
+		for(int ref=0; ref < 5; ++ref)
+			Assert.assertTrue(store.insert(dblock));
+		for(int blk=0; blk < 3; ++blk)
+			store.insert(block(new Random(200 + blk), BLKSZ));
+
+		/* Deleted, in a segment that is soon mostly dead */
+		Assert.assertTrue(store.remove(dblock.key()));
+		for(int blk=0; blk < 6; ++blk) {
+			dead = block(new Random(300 + blk), BLKSZ);
+			store.insert(dead);
+			store.delete(dead.key());
+		}
+
+		Assert.assertTrue(store.insert(dblock));
+		Assert.assertEquals(1, store.references(dblock.key()));
+		Assert.assertTrue(store.compact() > 0);
+		store.close();
+
+		store = new SegmentStore(path, BLKSZ * 4);
+		Assert.assertTrue(store.open());
+		Assert.assertEquals(1, store.references(dblock.key()));
+		Assert.assertTrue(store.delete(dblock.key()));
+		Assert.assertFalse(store.contains(dblock.key()));
+		store.close();
+	}
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright @ 2015
+ * Hrfs Tiered Store Tests
+ *
+ * @file TieredStoreTest.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs.disk;
+
+import edu.rit.cs.BlockKey;
+import edu.rit.cs.DataBlock;
+import edu.rit.cs.Environment;
+import edu.rit.cs.HrfsConfiguration;
+import edu.rit.cs.TestUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.Assert;
+
+public class TieredStoreTest
+{
+	private static final int BLKSZ = 1024*4;
+	private Environment tenv;
+	private File fastDir;
+	private File slowDir;
+
+	@Before
+	public void initTest()
+		throws IOException
+	{
+		HrfsConfiguration.init();
+		tenv = new Environment(TestUtil.TEST_BASE + "tiered/");
+		fastDir = tenv.createFile();
+		slowDir = tenv.createFile();
+	}
+
+	private static DataBlock block(Random rand)
+	{
+		byte[] data;
+
+		data = new byte[BLKSZ];
+		rand.nextBytes(data);
+		return new DataBlock(data, Hashing.sha1().hashBytes(data).asBytes(), 0);
+	}
+
+	/** Tier a store in each test directory, room on the fast tier for some blocks */
+	private TieredStore build(int fastBlocks)
+		throws IOException
+	{
+		return new TieredStore(new SegmentStore(fastDir.getAbsolutePath()),
+				       new SegmentStore(slowDir.getAbsolutePath()),
+				       (long)fastBlocks * BLKSZ, 0, 3);
+	}
+
+	@Test
+	public void testPlacement()
+		throws IOException
+	{
+		List<DataBlock> blocks;
+		Set<BlockKey> listed;
+		Iterator<BlockKey> keys;
+		TieredStore store;
+		Random rand;
+
+		store = build(100);
+		Assert.assertTrue(store.create());
+
+		/* New blocks, and their duplicates, land on the fast tier */
+		rand = new Random(1);
+		blocks = new ArrayList<DataBlock>();
+		for(int blk=0; blk < 10; ++blk) {
+			blocks.add(block(rand));
+			Assert.assertTrue(store.insert(blocks.get(blk)));
+		}
+		Assert.assertTrue(store.insert(blocks.get(0)));
+
+		Assert.assertEquals(10, ((SegmentStore)store.getFast()).getBlockCount());
+		Assert.assertEquals(0, ((SegmentStore)store.getSlow()).getBlockCount());
+		Assert.assertEquals(10L * BLKSZ, store.getFastBytes());
+		Assert.assertEquals(2, store.references(blocks.get(0).key()));
+
+		listed = new HashSet<BlockKey>();
+		keys = store.keys();
+		while(keys.hasNext())
+			listed.add(keys.next());
+
+		for(DataBlock dblock : blocks) {
+			Assert.assertTrue(listed.contains(dblock.key()));
+			Assert.assertArrayEquals(dblock.data(), store.get(dblock.key()).data());
+		}
+
+		Assert.assertTrue(store.delete(blocks.get(0).key()));
+		Assert.assertTrue(store.delete(blocks.get(0).key()));
+		Assert.assertFalse(store.contains(blocks.get(0).key()));
+		Assert.assertEquals(9L * BLKSZ, store.getFastBytes());
+		store.close();
+	}
+
+	@Test
+	public void testDemotion()
+		throws IOException
+	{
+		List<DataBlock> blocks;
+		TieredStore store;
+		BlockStore fast;
+		BlockStore slow;
+		Random rand;
+
+		store = build(20);
+		Assert.assertTrue(store.create());
+		fast = store.getFast();
+		slow = store.getSlow();
+
+		rand = new Random(2);
+		blocks = new ArrayList<DataBlock>();
+		for(int blk=0; blk < 10; ++blk) {
+			blocks.add(block(rand));
+			store.insert(blocks.get(blk));
+		}
+		store.insert(blocks.get(5));
+
+		/* The first five are hot, the next five never read */
+		for(int read=0; read < 5; ++read)
+			for(int blk=0; blk < 5; ++blk)
+				Assert.assertNotNull(store.get(blocks.get(blk).key()));
+
+		for(int blk=10; blk < 20; ++blk) {
+			blocks.add(block(rand));
+			store.insert(blocks.get(blk));
+		}
+
+		store.demote();
+		Assert.assertEquals(3, store.getDemotedCount());
+		Assert.assertEquals(17L * BLKSZ, store.getFastBytes());
+
+		for(int blk=0; blk < 5; ++blk)
+			Assert.assertTrue(fast.contains(blocks.get(blk).key()));
+		for(int blk=5; blk < 8; ++blk) {
+			Assert.assertFalse(fast.contains(blocks.get(blk).key()));
+			Assert.assertTrue(slow.contains(blocks.get(blk).key()));
+		}
+
+		/* References move with the block */
+		Assert.assertEquals(2, slow.references(blocks.get(5).key()));
+		Assert.assertEquals(2, store.references(blocks.get(5).key()));
+
+		for(DataBlock dblock : blocks)
+			Assert.assertArrayEquals(dblock.data(), store.get(dblock.key()).data());
+
+		store.close();
+	}
+
+	/** A move that fails leaves the mover running for the next one */
+	@Test
+	public void testMoverFailure()
+		throws Exception
+	{
+		final AtomicInteger failures;
+		TieredStore store;
+		BlockStore slow;
+		long deadline;
+		Random rand;
+
+		failures = new AtomicInteger(1);
+		slow = new SegmentStore(slowDir.getAbsolutePath()) {
+			@Override
+			public boolean insert(DataBlock blk, long refs)
+				throws IOException
+			{
+				if(failures.getAndDecrement() > 0)
+					throw new IOException("Simulated slow tier failure");
+				return super.insert(blk, refs);
+			}
+		};
+		store = new TieredStore(new SegmentStore(fastDir.getAbsolutePath()), slow,
+					20L * BLKSZ, 0, 3);
+		Assert.assertTrue(store.create());
+
+		rand = new Random(5);
+		for(int blk=0; blk < 20; ++blk)
+			store.insert(block(rand));
+
+		deadline = System.currentTimeMillis() + 10 * TieredStore.MOVER_PERIOD_MS;
+		while(store.getDemotedCount() == 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(50);
+
+		Assert.assertTrue(failures.get() < 0);
+		Assert.assertTrue(store.getDemotedCount() > 0);
+		store.close();
+	}
+
+	@Test
+	public void testPromotion()
+		throws IOException
+	{
+		List<DataBlock> blocks;
+		TieredStore store;
+		DataBlock cold;
+		Random rand;
+
+		store = build(4);
+		Assert.assertTrue(store.create());
+
+		rand = new Random(3);
+		blocks = new ArrayList<DataBlock>();
+		for(int blk=0; blk < 4; ++blk) {
+			blocks.add(block(rand));
+			store.insert(blocks.get(blk));
+		}
+
+		/* No room left, the block overflows to the slow tier */
+		cold = block(rand);
+		store.insert(cold);
+		Assert.assertTrue(store.getSlow().contains(cold.key()));
+
+		/* Read often enough, it pushes out blocks never read */
+		for(int read=0; read < 3; ++read)
+			Assert.assertArrayEquals(cold.data(), store.get(cold.key()).data());
+
+		store.promote(cold.key());
+		Assert.assertTrue(store.getFast().contains(cold.key()));
+		Assert.assertFalse(store.getSlow().contains(cold.key()));
+		Assert.assertEquals(1, store.getPromotedCount());
+
+		/* Leaving the fast tier under its high watermark */
+		Assert.assertEquals(2, store.getDemotedCount());
+		Assert.assertEquals(3L * BLKSZ, store.getFastBytes());
+
+		for(DataBlock dblock : blocks)
+			Assert.assertArrayEquals(dblock.data(), store.get(dblock.key()).data());
+
+		store.close();
+	}
+
+	@Test
+	public void testReopen()
+		throws IOException
+	{
+		TieredStore store;
+		Random rand;
+
+		store = build(100);
+		Assert.assertTrue(store.create());
+
+		rand = new Random(4);
+		for(int blk=0; blk < 10; ++blk)
+			store.insert(block(rand));
+		store.close();
+
+		/* The fast tier's blocks are measured before the store opens */
+		store = build(100);
+		Assert.assertTrue(store.open());
+		Assert.assertEquals(10L * BLKSZ, store.getFastBytes());
+		store.close();
+	}
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright @ 2015
+ * Hrfs Block Scrubber Tests
+ *
+ * @file BlockScrubberTest.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs.node;
+
+import edu.rit.cs.BlockCodec;
+import edu.rit.cs.BlockKey;
+import edu.rit.cs.DataBlock;
+import edu.rit.cs.Environment;
+import edu.rit.cs.HrfsConfiguration;
+import edu.rit.cs.HrfsHashing;
+import edu.rit.cs.TestUtil;
+import edu.rit.cs.TreeHasher;
+import edu.rit.cs.disk.BlockCache;
+import edu.rit.cs.disk.BlockStore;
+import edu.rit.cs.disk.BlockStores;
+import edu.rit.cs.disk.CachedBlockStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.Assert;
+
+public class BlockScrubberTest
+{
+	private static final int BLKSZ = 1024*16;
+	private static final long UNLIMITED = Long.MAX_VALUE / 4;
+	private Environment tenv;
+
+	@Before
+	public void initTest()
+		throws IOException
+	{
+		HrfsConfiguration.init();
+		tenv = new Environment(TestUtil.TEST_BASE + "scrubber/");
+	}
+
+	/** Write blocks as a NodeWriter would, returning their keys */
+	private List<BlockKey> writeBlocks(File dir, int count)
+		throws IOException
+	{
+		return writeBlocks(dir, count, HrfsHashing.SHA1);
+	}
+
+	/** Write blocks keyed with a content hash, returning their keys */
+	private List<BlockKey> writeBlocks(File dir, int count, String hashname)
+		throws IOException
+	{
+		List<BlockKey> keys;
+		NodeWriter writer;
+		Random rand;
+		byte[] data;
+
+		Assert.assertTrue(dir.mkdirs());
+		keys = new ArrayList<BlockKey>();
+		rand = new Random(count);
+		for(int blk=0; blk < count; ++blk) {
+			data = new byte[BLKSZ];
+			rand.nextBytes(data);
+			writer = new NodeWriter(dir.getAbsolutePath(), hashname,
+						BlockCodec.forName(BlockCodec.NONE));
+			writer.write(data, 0, data.length);
+			writer.close();
+			keys.add(writer.blockKey());
+		}
+
+		return keys;
+	}
+
+	@Test
+	public void testCorruption()
+		throws IOException
+	{
+		BlockScrubber scrubber;
+		RandomAccessFile raf;
+		List<BlockKey> keys;
+		File dir;
+
+		dir = tenv.createFile();
+		keys = writeBlocks(dir, 8);
+		scrubber = new BlockScrubber(dir.getAbsolutePath(), HrfsHashing.SHA1, null, UNLIMITED, 1);
+
+		Assert.assertTrue(scrubber.scrubPass());
+		Assert.assertEquals(8, scrubber.getScrubbedCount());
+		Assert.assertTrue(scrubber.getCorrupt().isEmpty());
+
+		/* Rot a byte in the middle of one block */
+		raf = new RandomAccessFile(new File(dir, keys.get(3).toString()), "rw");
+		raf.seek(BLKSZ / 2);
+		raf.write(raf.read() ^ 0x10);
+		raf.close();
+
+		Assert.assertTrue(scrubber.scrubPass());
+		Assert.assertEquals(1, scrubber.getCorrupt().size());
+		Assert.assertTrue(scrubber.getCorrupt().contains(keys.get(3)));
+	}
+
+	@Test
+	public void testTreeHash()
+		throws IOException
+	{
+		BlockScrubber scrubber;
+		List<BlockKey> keys;
+		TreeHasher tree;
+		String hashname;
+		Random rand;
+		byte[] data;
+		File dir;
+
+		/* Nodes key blocks just as clients do, and the scrubber agrees */
+		hashname = HrfsHashing.treeName(HrfsHashing.SHA1, BLKSZ / 4);
+		tree = new TreeHasher(Hashing.sha1(), BLKSZ / 4);
+		dir = tenv.createFile();
+		keys = writeBlocks(dir, 4, hashname);
+
+		rand = new Random(4);
+		for(BlockKey key : keys) {
+			data = new byte[BLKSZ];
+			rand.nextBytes(data);
+			Assert.assertEquals(new BlockKey(tree.hash(data, 0, data.length)), key);
+		}
+
+		scrubber = new BlockScrubber(dir.getAbsolutePath(), hashname, null, UNLIMITED, 1);
+		Assert.assertTrue(scrubber.scrubPass());
+		Assert.assertEquals(4, scrubber.getScrubbedCount());
+		Assert.assertTrue(scrubber.getCorrupt().isEmpty());
+	}
+
+	@Test
+	public void testStore()
+		throws IOException
+	{
+		CachedBlockStore cached;
+		BlockScrubber scrubber;
+		BlockStore store;
+		Random rand;
+		byte[] data;
+
+		store = BlockStores.forPath(BlockStores.SEGMENT, tenv.createFile().getAbsolutePath(), 1);
+		cached = new CachedBlockStore(store, new BlockCache(1024*1024));
+		Assert.assertTrue(cached.create());
+
+		rand = new Random(2);
+		for(int blk=0; blk < 8; ++blk) {
+			data = new byte[BLKSZ];
+			rand.nextBytes(data);
+			cached.insert(new DataBlock(data, Hashing.sha1().hashBytes(data).asBytes(), 0));
+		}
+
+		/* Scrubbing reads under the cache, leaving it alone */
+		scrubber = new BlockScrubber(cached, HrfsHashing.SHA1, null, UNLIMITED, 1);
+		Assert.assertTrue(scrubber.scrubPass());
+		Assert.assertEquals(8, scrubber.getScrubbedCount());
+		Assert.assertEquals(8L * BLKSZ, scrubber.getScrubbedBytes());
+		Assert.assertTrue(scrubber.getCorrupt().isEmpty());
+		Assert.assertEquals(0, cached.getCache().size());
+
+		cached.close();
+	}
+
+	@Test
+	public void testBudget()
+		throws IOException
+	{
+		BlockScrubber scrubber;
+		long start;
+		File dir;
+
+		dir = tenv.createFile();
+		writeBlocks(dir, 8);
+
+		/* A second's worth up front, the other 64KB takes another second */
+		scrubber = new BlockScrubber(dir.getAbsolutePath(), HrfsHashing.SHA1, null, 4L * BLKSZ, 1);
+		start = System.currentTimeMillis();
+		Assert.assertTrue(scrubber.scrubPass());
+		Assert.assertTrue(System.currentTimeMillis() - start >= 900);
+		Assert.assertEquals(8, scrubber.getScrubbedCount());
+	}
+
+	/** A block bigger than the budget is read within it, a chunk at a time */
+	@Test
+	public void testLargeBlock()
+		throws IOException
+	{
+		BlockScrubber scrubber;
+		BlockStore store;
+		byte[] data;
+		long start;
+
+		store = BlockStores.forPath(BlockStores.SEGMENT, tenv.createFile().getAbsolutePath(), 1);
+		Assert.assertTrue(store.create());
+
+		data = new byte[BlockScrubber.SCRUB_CHUNK * 4];
+		new Random(5).nextBytes(data);
+		store.insert(new DataBlock(data, Hashing.sha1().hashBytes(data).asBytes(), 0));
+
+		/* Half the block up front, the other half takes another second */
+		scrubber = new BlockScrubber(store, HrfsHashing.SHA1, null,
+					     BlockScrubber.SCRUB_CHUNK * 2L, 1);
+		start = System.currentTimeMillis();
+		Assert.assertTrue(scrubber.scrubPass());
+		Assert.assertTrue(System.currentTimeMillis() - start >= 900);
+		Assert.assertEquals(data.length, scrubber.getScrubbedBytes());
+		Assert.assertTrue(scrubber.getCorrupt().isEmpty());
+
+		store.close();
+	}
+
+	@Test
+	public void testBackoff()
+		throws IOException
+	{
+		final AtomicInteger polls;
+		BlockScrubber scrubber;
+		IntSupplier load;
+		File dir;
+
+		dir = tenv.createFile();
+		writeBlocks(dir, 4);
+
+		/* The node is busy for its first few looks */
+		polls = new AtomicInteger(0);
+		load = new IntSupplier() {
+			@Override
+			public int getAsInt()
+			{
+				return (polls.incrementAndGet() <= 3) ? 5 : 0;
+			}
+		};
+
+		scrubber = new BlockScrubber(dir.getAbsolutePath(), HrfsHashing.SHA1, load, UNLIMITED, 2);
+		Assert.assertTrue(scrubber.scrubPass());
+		Assert.assertEquals(3, scrubber.getBackoffCount());
+		Assert.assertEquals(4, scrubber.getScrubbedCount());
+
+		/* Stopping a waiting scrubber ends its pass */
+		polls.set(-1000);
+		scrubber.finish();
+		Assert.assertFalse(scrubber.scrubPass());
+	}
+}
@@ -0,0 +1,342 @@
+/**
+ * Copyright @ 2015
+ * Hrfs Node Writer Tests
+ *
+ * @file NodeWriterTest.java
+ * @author Will Dignazio <wdignazio@gmail.com>
+ */
+package edu.rit.cs.node;
+
+import edu.rit.cs.BlockCodec;
+import edu.rit.cs.BlockHasher;
+import edu.rit.cs.BlockKey;
+import edu.rit.cs.Environment;
+import edu.rit.cs.HrfsConfiguration;
+import edu.rit.cs.HrfsHashing;
+import edu.rit.cs.TestUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Formatter;
+import java.util.Random;
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.Assert;
+import com.carrotsearch.junitbenchmarks.AbstractBenchmark;
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+
+public class NodeWriterTest
+	extends AbstractBenchmark
+{
+	private static final int BLKSZ = 1024*64;
+	private static final int ROUNDS = 1000;
+
+	private Environment tenv;
+	private byte[] block;
+
+	@Before
+	public void initTest()
+	{
+		HrfsConfiguration.init();
+
+		block = new byte[BLKSZ];
+		new Random(10).nextBytes(block);
+
+		try {
+			/* Build up our test environment, try to share it */
+			tenv = new Environment(TestUtil.TEST_BASE + "nodewriter/");
+			Assert.assertNotNull(tenv);
+		}
+		catch(IOException e) {
+			System.err.println("Error building test environment: " + e.toString());
+		}
+		catch(SecurityException e){
+			System.err.println("Insufficient/Invalid permissions for test environment: "
+				  + e.toString());
+		}
+	}
+
+	/** Bytes allocated so far by the calling thread */
+	private static long allocated()
+	{
+		return ((com.sun.management.ThreadMXBean)ManagementFactory
+			.getThreadMXBean()).getThreadAllocatedBytes(
+				Thread.currentThread().getId());
+	}
+
+	/** Name a block the way NodeWriter used to, for comparison */
+	private static String legacyName(byte[] buf)
+		throws Exception
+	{
+		Formatter formatter;
+		MessageDigest md;
+
+		md = MessageDigest.getInstance("SHA-1");
+		formatter = new Formatter();
+
+		for(byte b : md.digest(buf))
+			formatter.format("%02x", b);
+
+		return formatter.toString();
+	}
+
+	@Test
+	public void testBlockNames()
+		throws IOException
+	{
+		NodeWriter writer;
+		String name;
+
+		writer = new NodeWriter(tenv.getBasePath(), HrfsHashing.SHA1);
+		writer.write(block, 0, block.length);
+		writer.close();
+
+		name = Hashing.sha1().hashBytes(block).toString();
+		Assert.assertTrue(writer.isPlaced());
+		Assert.assertEquals(name, writer.blockName());
+		Assert.assertArrayEquals(Hashing.sha1().hashBytes(block).asBytes(),
+					 writer.blockKey().toBytes());
+		Assert.assertTrue(new File(tenv.getBasePath() + "/" + name).exists());
+	}
+
+	/** Blocks written from a direct buffer land the same as from an array */
+	@Test
+	public void testDirectWrite()
+		throws IOException
+	{
+		NodeWriter writer;
+		ByteBuffer direct;
+		File bfile;
+		String name;
+
+		direct = ByteBuffer.allocateDirect(BLKSZ);
+		direct.put(block).flip();
+		direct.put(0, (byte)(block[0] + 1)); // Not the block of testBlockNames
+
+		writer = new NodeWriter(tenv.getBasePath(), HrfsHashing.SHA1);
+		writer.write(direct.duplicate());
+		writer.close();
+
+		block[0] += 1;
+		name = Hashing.sha1().hashBytes(block).toString();
+		bfile = new File(tenv.getBasePath() + "/" + name);
+		Assert.assertTrue(writer.isPlaced());
+		Assert.assertEquals(name, writer.blockName());
+		Assert.assertArrayEquals(block, Files.readAllBytes(bfile.toPath()));
+	}
+
+	/** Writing a block already on disk only references it again */
+	@Test
+	public void testDuplicateWrite()
+		throws IOException
+	{
+		NodeWriter writer;
+		BlockKey key;
+		File bfile;
+		byte[] dup;
+
+		dup = new byte[BLKSZ];
+		new Random(System.nanoTime()).nextBytes(dup);
+
+		for(int round=0; round < 3; ++round) {
+			writer = new NodeWriter(tenv.getBasePath(), HrfsHashing.SHA1);
+			writer.write(dup, 0, dup.length);
+			writer.close();
+
+			Assert.assertTrue(writer.isPlaced());
+			Assert.assertEquals(round > 0, writer.isDuplicate());
+		}
+
+		key = new BlockKey(Hashing.sha1().hashBytes(dup).asBytes());
+		bfile = new File(tenv.getBasePath(), key.toString());
+		Assert.assertEquals(3, NodeWriter.references(tenv.getBasePath(), key));
+		Assert.assertArrayEquals(dup, Files.readAllBytes(bfile.toPath()));
+
+		/* The block only goes with its last reference */
+		Assert.assertTrue(NodeWriter.release(tenv.getBasePath(), key));
+		Assert.assertTrue(NodeWriter.release(tenv.getBasePath(), key));
+		Assert.assertEquals(1, NodeWriter.references(tenv.getBasePath(), key));
+		Assert.assertTrue(bfile.exists());
+
+		Assert.assertTrue(NodeWriter.release(tenv.getBasePath(), key));
+		Assert.assertFalse(bfile.exists());
+		Assert.assertFalse(new File(bfile.getPath() + NodeWriter.REFS_SUFFIX).exists());
+		Assert.assertFalse(NodeWriter.release(tenv.getBasePath(), key));
+		Assert.assertEquals(0, NodeWriter.references(tenv.getBasePath(), key));
+	}
+
+	/** A write torn by a crash is left aside, not taken for the block */
+	@Test
+	public void testTornWrite()
+		throws IOException
+	{
+		NodeWriter writer;
+		BlockKey key;
+		File bfile;
+		File tmp;
+		byte[] data;
+
+		data = new byte[BLKSZ];
+		new Random(System.nanoTime()).nextBytes(data);
+		key = new BlockKey(Hashing.sha1().hashBytes(data).asBytes());
+		bfile = new File(tenv.getBasePath(), key.toString());
+		tmp = new File(bfile.getPath() + NodeWriter.TMP_SUFFIX);
+
+		/* Half a block, as a crash part way through its write leaves it */
+		Files.write(tmp.toPath(), Arrays.copyOf(data, BLKSZ / 2));
+		Assert.assertFalse(NodeWriter.blocks(tenv.getBasePath()).contains(key));
+
+		writer = new NodeWriter(tenv.getBasePath(), HrfsHashing.SHA1);
+		writer.write(data, 0, data.length);
+		writer.close();
+
+		Assert.assertTrue(writer.isPlaced());
+		Assert.assertFalse(writer.isDuplicate());
+		Assert.assertFalse(tmp.exists());
+		Assert.assertArrayEquals(data, Files.readAllBytes(bfile.toPath()));
+	}
+
+	/** Blocks are read back by their name, whatever codec wrote them */
+	@Test
+	public void testMixedCodecs()
+		throws IOException
+	{
+		NodeWriter writer;
+		InputStream in;
+		BlockKey[] keys;
+		byte[][] data;
+		byte[] back;
+		String[] codecs;
+
+		codecs = new String[] { BlockCodec.LZ4, BlockCodec.NONE };
+		keys = new BlockKey[codecs.length];
+		data = new byte[codecs.length][BLKSZ];
+		for(int cidx=0; cidx < codecs.length; ++cidx) {
+			/* Compressible, but different for every run */
+			new Random(System.nanoTime()).nextBytes(data[cidx]);
+			for(int bidx=0; bidx < BLKSZ; ++bidx)
+				data[cidx][bidx] &= 0x03;
+
+			writer = new NodeWriter(tenv.getBasePath(), HrfsHashing.SHA1,
+						BlockCodec.forName(codecs[cidx]));
+			writer.write(data[cidx], 0, BLKSZ);
+			writer.close();
+			keys[cidx] = new BlockKey(Hashing.sha1().hashBytes(data[cidx]).asBytes());
+		}
+
+		Assert.assertTrue(new File(tenv.getBasePath(), keys[0].toString()
+					   + NodeWriter.ENCODED_SUFFIX).length() < BLKSZ);
+		Assert.assertTrue(new File(tenv.getBasePath(), keys[1].toString()).exists());
+		for(int cidx=0; cidx < codecs.length; ++cidx) {
+			Assert.assertEquals(ByteBuffer.wrap(data[cidx]),
+					    NodeWriter.read(tenv.getBasePath(), keys[cidx]));
+
+			in = NodeWriter.stream(tenv.getBasePath(), keys[cidx]);
+			back = new byte[BLKSZ];
+			try {
+				Assert.assertEquals(BLKSZ, in.read(back));
+				Assert.assertEquals(-1, in.read());
+			}
+			finally {
+				in.close();
+			}
+			Assert.assertArrayEquals(data[cidx], back);
+		}
+	}
+
+	/** A bare block that happens to look encoded is never decoded */
+	@Test
+	public void testFramedBareBlock()
+		throws IOException
+	{
+		NodeWriter writer;
+		InputStream in;
+		BlockKey key;
+		byte[] framed;
+		byte[] back;
+
+		framed = BlockCodec.forName(BlockCodec.NONE).encode(ByteBuffer.wrap(block));
+		writer = new NodeWriter(tenv.getBasePath(), HrfsHashing.SHA1,
+					BlockCodec.forName(BlockCodec.NONE));
+		writer.write(framed, 0, framed.length);
+		writer.close();
+		key = new BlockKey(Hashing.sha1().hashBytes(framed).asBytes());
+
+		Assert.assertEquals(ByteBuffer.wrap(framed), NodeWriter.read(tenv.getBasePath(), key));
+		in = NodeWriter.stream(tenv.getBasePath(), key);
+		back = new byte[framed.length];
+		try {
+			Assert.assertEquals(framed.length, in.read(back));
+		}
+		finally {
+			in.close();
+		}
+		Assert.assertArrayEquals(framed, back);
+		Assert.assertTrue(NodeWriter.blocks(tenv.getBasePath()).contains(key));
+	}
+
+	/**
+	 * Hashing a block and building its path through the reusable digest
+	 * should allocate next to nothing, where the old digest and formatter
+	 * allocated on every block.
+	 */
+	@Test
+	public void testHashAllocations()
+		throws Exception
+	{
+		BlockHasher hasher;
+		StringBuilder sb;
+		byte[] hash;
+		long before;
+		long reused;
+		long legacy;
+
+		hasher = BlockHasher.forThread(HrfsHashing.SHA1);
+		sb = new StringBuilder(256);
+
+		/* Warm up, so class loading and compilation aren't counted */
+		for(int r=0; r < ROUNDS; ++r) {
+			hash = hasher.hash(block, 0, block.length);
+			sb.setLength(0);
+			BlockHasher.appendHex(sb, hash, 0, hash.length);
+			legacyName(block);
+		}
+
+		before = allocated();
+		for(int r=0; r < ROUNDS; ++r) {
+			hash = hasher.hash(block, 0, block.length);
+			sb.setLength(0);
+			BlockHasher.appendHex(sb, hash, 0, hash.length);
+		}
+		reused = (allocated() - before) / ROUNDS;
+
+		before = allocated();
+		for(int r=0; r < ROUNDS; ++r)
+			legacyName(block);
+		legacy = (allocated() - before) / ROUNDS;
+
+		System.out.println("Bytes allocated per block: reused " + reused
+				   + ", legacy " + legacy);
+		Assert.assertEquals(legacyName(block), sb.toString());
+		Assert.assertTrue(reused < 64);
+		Assert.assertTrue(legacy > reused * 10);
+	}
+
+	@BenchmarkOptions(benchmarkRounds=20, warmupRounds=5)
+	@Test
+	public void benchmarkBlockHasher()
+	{
+		BlockHasher hasher;
+
+		hasher = BlockHasher.forThread(HrfsHashing.SHA1);
+		for(int r=0; r < 64; ++r)
+			hasher.hash(block, 0, block.length);
+	}
+}